@@ -0,0 +1,94 @@
+package org.matt1.climediarenderer.bench;
+
+import java.io.IOException;
+
+import org.matt1.climediarenderer.services.CliMediaRenderer;
+import org.matt1.climediarenderer.utils.RendererConfig;
+
+/**
+ * The stub backends shared by all the benchmarks, and a renderer device playing through them,
+ * started the first time they're needed.
+ *
+ * @author Matt
+ *
+ */
+class BenchEnvironment {
+
+	private static BenchEnvironment environment;
+
+	private StubMediaServer mediaServer;
+
+	private StubMPDServer mpdServer;
+
+	private CliMediaRenderer renderer;
+
+	static synchronized BenchEnvironment getInstance() {
+		if (environment == null) {
+			environment = new BenchEnvironment();
+		}
+		return environment;
+	}
+
+	private BenchEnvironment() {
+	}
+
+	/**
+	 * The stub media server, for URIs the renderer can check and play
+	 * @return
+	 * @throws IOException
+	 */
+	synchronized StubMediaServer getMediaServer() throws IOException {
+		if (mediaServer == null) {
+			mediaServer = new StubMediaServer();
+		}
+		return mediaServer;
+	}
+
+	/**
+	 * The stub MPD server
+	 * @return
+	 * @throws IOException
+	 */
+	synchronized StubMPDServer getMPDServer() throws IOException {
+		if (mpdServer == null) {
+			mpdServer = new StubMPDServer();
+		}
+		return mpdServer;
+	}
+
+	/**
+	 * Settings for a renderer that plays through the stubs
+	 * @param playerType mplayer or mpd
+	 * @return
+	 * @throws IOException
+	 */
+	RendererConfig getRendererConfig(String playerType) throws IOException {
+		return new RendererConfig("bench-" + playerType, "Benchmark " + playerType, null, null, playerType,
+				null, "127.0.0.1", getMPDServer().getPort());
+	}
+
+	/**
+	 * A renderer device that plays through the stub MPD server.  It isn't announced on the
+	 * network; the benchmarks call its services directly.
+	 * @return
+	 * @throws Exception
+	 */
+	synchronized CliMediaRenderer getRenderer() throws Exception {
+		if (renderer == null) {
+			renderer = new CliMediaRenderer(getRendererConfig("mpd"), null);
+		}
+		return renderer;
+	}
+
+	synchronized void shutdown() {
+		if (renderer != null) {
+			renderer.shutdown();
+		}
+		if (mediaServer != null) {
+			mediaServer.shutdown();
+		}
+		if (mpdServer != null) {
+			mpdServer.shutdown();
+		}
+	}
+}
@@ -0,0 +1,45 @@
+package org.matt1.climediarenderer.bench;
+
+/**
+ * A single operation to be timed by the BenchmarkRunner.  setUp and tearDown are called once
+ * either side of all the iterations, and run is called over and over in between.
+ *
+ * @author Matt
+ *
+ */
+public abstract class Benchmark {
+
+	private final String name;
+
+	/**
+	 * @param name shown in the results, e.g. avtransport.getPositionInfo
+	 */
+	protected Benchmark(String name) {
+		this.name = name;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Get everything ready, e.g. start stubs and create the renderer
+	 * @throws Exception
+	 */
+	public void setUp() throws Exception {
+	}
+
+	/**
+	 * Do the operation once
+	 * @return whatever it produced, so the JIT can't throw the work away
+	 * @throws Exception
+	 */
+	public abstract Object run() throws Exception;
+
+	/**
+	 * Release anything setUp created
+	 * @throws Exception
+	 */
+	public void tearDown() throws Exception {
+	}
+}
@@ -0,0 +1,339 @@
+package org.matt1.climediarenderer.bench;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+import org.matt1.climediarenderer.player.MPlayerOutputBenchmarks;
+
+/**
+ * Runs the renderer's benchmarks and writes the results as JSON in the same layout as JMH's
+ * -rf json output, so runs can be compared with the usual JMH tools.  Each benchmark is warmed
+ * up and then measured for a number of fixed-length iterations on a single thread; throughput
+ * is the primary score and the time taken by individual operations is kept as a secondary
+ * "latency" metric.
+ *
+ * Usage: BenchmarkRunner [-wi n] [-i n] [-w seconds] [-r seconds] [-rff file] [regex]
+ *
+ * It must be run from the bench directory so that it picks up the benchmark settings and the
+ * stub MPlayer rather than the real ones.
+ *
+ * @author Matt
+ *
+ */
+public class BenchmarkRunner {
+
+	/** Most operation times kept per benchmark for working out latency percentiles */
+	private static final int MAX_SAMPLES = 1 << 20;
+
+	/** Percentiles reported, as JMH does */
+	private static final double[] PERCENTILES = {0.0, 50.0, 90.0, 95.0, 99.0, 99.9, 99.99, 100.0};
+
+	/** Student's t for a 99.9% confidence interval, by degrees of freedom from 1 to 30 */
+	private static final double[] T_999 = {636.62, 31.599, 12.924, 8.610, 6.869, 5.959, 5.408, 5.041, 4.781,
+			4.587, 4.437, 4.318, 4.221, 4.140, 4.073, 4.015, 3.965, 3.922, 3.883, 3.850, 3.819, 3.792, 3.768,
+			3.745, 3.725, 3.707, 3.690, 3.674, 3.659, 3.646};
+
+	private int warmupIterations = 3;
+
+	private int measurementIterations = 5;
+
+	private int warmupSeconds = 1;
+
+	private int measurementSeconds = 1;
+
+	private String resultFile = "bench-results.json";
+
+	private Pattern filter = Pattern.compile(".*");
+
+	/** Everything the benchmarks return is folded in here so the work can't be optimised away */
+	private volatile int sink;
+
+	/** Operations done so far, counted across iterations */
+	private long operations;
+
+	private final Random random = new Random(42);
+
+	public static void main(String[] args) throws Exception {
+		BenchmarkRunner runner = new BenchmarkRunner();
+		runner.parseArguments(args);
+
+		// The renderer logs every action it handles, which would swamp the results
+		Logger.getLogger("").setLevel(Level.WARNING);
+		Logger.getLogger("org.fourthline.cling").setLevel(Level.SEVERE);
+
+		List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+		benchmarks.addAll(ServiceBenchmarks.create());
+		benchmarks.addAll(MPlayerOutputBenchmarks.create());
+		benchmarks.addAll(PlayerFactoryBenchmarks.create());
+
+		boolean failed = !runner.runAll(benchmarks);
+		BenchEnvironment.getInstance().shutdown();
+		System.exit(failed ? 1 : 0);
+	}
+
+	private void parseArguments(String[] args) {
+		for (int i = 0; i < args.length; i++) {
+			String arg = args[i];
+			if (arg.equals("-wi")) {
+				warmupIterations = Integer.parseInt(args[++i]);
+			} else if (arg.equals("-i")) {
+				measurementIterations = Integer.parseInt(args[++i]);
+			} else if (arg.equals("-w")) {
+				warmupSeconds = Integer.parseInt(args[++i]);
+			} else if (arg.equals("-r")) {
+				measurementSeconds = Integer.parseInt(args[++i]);
+			} else if (arg.equals("-rff")) {
+				resultFile = args[++i];
+			} else {
+				filter = Pattern.compile(".*" + arg + ".*");
+			}
+		}
+	}
+
+	/**
+	 * Run every benchmark whose name matches the filter and write out the results
+	 * @param benchmarks
+	 * @return false if any of them failed
+	 * @throws IOException
+	 */
+	private boolean runAll(List<Benchmark> benchmarks) throws IOException {
+		List<String> results = new ArrayList<String>();
+		boolean ok = true;
+		for (Benchmark benchmark : benchmarks) {
+			if (!filter.matcher(benchmark.getName()).matches()) {
+				continue;
+			}
+			try {
+				results.add(run(benchmark));
+			} catch (Exception e) {
+				System.out.println("# " + benchmark.getName() + " failed: " + e);
+				ok = false;
+			}
+		}
+
+		Writer out = new OutputStreamWriter(new FileOutputStream(resultFile), "UTF-8");
+		try {
+			out.write("[\n");
+			for (int i = 0; i < results.size(); i++) {
+				out.write(results.get(i));
+				out.write(i < results.size() - 1 ? ",\n" : "\n");
+			}
+			out.write("]\n");
+		} finally {
+			out.close();
+		}
+		System.out.println("# Results written to " + resultFile);
+		return ok;
+	}
+
+	/**
+	 * Warm up and measure one benchmark
+	 * @param benchmark
+	 * @return its results as a JSON object
+	 * @throws Exception
+	 */
+	private String run(Benchmark benchmark) throws Exception {
+		System.out.println("# Benchmark: " + benchmark.getName());
+		benchmark.setUp();
+		double[] scores = new double[measurementIterations];
+		long[] samples = new long[MAX_SAMPLES];
+		long sampled = 0;
+		try {
+			for (int i = 0; i < warmupIterations; i++) {
+				double score = iteration(benchmark, warmupSeconds, null, 0);
+				System.out.println(String.format(Locale.ROOT, "# Warmup Iteration %3d: %.3f ops/s", i + 1, score));
+			}
+			for (int i = 0; i < measurementIterations; i++) {
+				long before = operations;
+				scores[i] = iteration(benchmark, measurementSeconds, samples, sampled);
+				sampled += operations - before;
+				System.out.println(String.format(Locale.ROOT, "Iteration %3d: %.3f ops/s", i + 1, scores[i]));
+			}
+		} finally {
+			benchmark.tearDown();
+		}
+
+		long[] latencies = Arrays.copyOf(samples, (int) Math.min(sampled, MAX_SAMPLES));
+		Arrays.sort(latencies);
+		double mean = mean(scores);
+		double error = error(scores);
+		System.out.println(String.format(Locale.ROOT, "Result \"%s\": %.3f +- %.3f ops/s, p50 %.3f us/op, p99 %.3f us/op%n",
+				benchmark.getName(), mean, error, percentile(latencies, 50.0) / 1000.0, percentile(latencies, 99.0) / 1000.0));
+		return toJson(benchmark, scores, latencies);
+	}
+
+	/**
+	 * Run the benchmark over and over for one iteration
+	 * @param benchmark
+	 * @param seconds how long the iteration lasts
+	 * @param samples where to keep operation times, or null not to keep them
+	 * @param sampled number of operations already offered to samples
+	 * @return operations per second
+	 * @throws Exception
+	 */
+	private double iteration(Benchmark benchmark, int seconds, long[] samples, long sampled) throws Exception {
+		int blackhole = 0;
+		long count = 0;
+		long start = System.nanoTime();
+		long end = start + TimeUnit.SECONDS.toNanos(seconds);
+		long now;
+		do {
+			long before = System.nanoTime();
+			Object result = benchmark.run();
+			now = System.nanoTime();
+			blackhole ^= System.identityHashCode(result);
+			if (samples != null) {
+				// Reservoir sampling keeps a fair spread once there are too many to keep them all
+				long seen = sampled + count;
+				if (seen < samples.length) {
+					samples[(int) seen] = now - before;
+				} else {
+					long slot = (long) (random.nextDouble() * (seen + 1));
+					if (slot < samples.length) {
+						samples[(int) slot] = now - before;
+					}
+				}
+			}
+			count++;
+		} while (now < end);
+		sink ^= blackhole;
+		operations += count;
+		return count * 1e9 / (now - start);
+	}
+
+	private static double mean(double[] values) {
+		double total = 0;
+		for (double value : values) {
+			total += value;
+		}
+		return values.length == 0 ? Double.NaN : total / values.length;
+	}
+
+	/**
+	 * Half the width of the 99.9% confidence interval for the mean, as JMH reports
+	 * @param values
+	 * @return
+	 */
+	private static double error(double[] values) {
+		if (values.length < 2) {
+			return Double.NaN;
+		}
+		double mean = mean(values);
+		double squares = 0;
+		for (double value : values) {
+			squares += (value - mean) * (value - mean);
+		}
+		double deviation = Math.sqrt(squares / (values.length - 1));
+		int freedom = values.length - 1;
+		double t = freedom <= T_999.length ? T_999[freedom - 1] : 3.291;
+		return t * deviation / Math.sqrt(values.length);
+	}
+
+	private static double percentile(long[] sorted, double percentile) {
+		if (sorted.length == 0) {
+			return Double.NaN;
+		}
+		int index = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+		return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+	}
+
+	private static double percentile(double[] values, double percentile) {
+		double[] sorted = values.clone();
+		Arrays.sort(sorted);
+		if (sorted.length == 0) {
+			return Double.NaN;
+		}
+		int index = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+		return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+	}
+
+	/**
+	 * Write out a benchmark's results in JMH's layout
+	 * @param benchmark
+	 * @param scores ops/s for each measurement iteration
+	 * @param latencies sorted operation times in nanoseconds
+	 * @return
+	 */
+	private String toJson(Benchmark benchmark, double[] scores, long[] latencies) {
+		double mean = mean(scores);
+		double error = error(scores);
+		StringBuilder json = new StringBuilder();
+		json.append("    {\n");
+		json.append("        \"benchmark\" : ").append(quote(benchmark.getName())).append(",\n");
+		json.append("        \"mode\" : \"thrpt\",\n");
+		json.append("        \"threads\" : 1,\n");
+		json.append("        \"forks\" : 0,\n");
+		json.append("        \"jvm\" : ").append(quote(System.getProperty("java.home"))).append(",\n");
+		json.append("        \"jdkVersion\" : ").append(quote(System.getProperty("java.version"))).append(",\n");
+		json.append("        \"warmupIterations\" : ").append(warmupIterations).append(",\n");
+		json.append("        \"warmupTime\" : ").append(quote(warmupSeconds + " s")).append(",\n");
+		json.append("        \"measurementIterations\" : ").append(measurementIterations).append(",\n");
+		json.append("        \"measurementTime\" : ").append(quote(measurementSeconds + " s")).append(",\n");
+		json.append("        \"primaryMetric\" : {\n");
+		json.append("            \"score\" : ").append(number(mean)).append(",\n");
+		json.append("            \"scoreError\" : ").append(number(error)).append(",\n");
+		json.append("            \"scoreConfidence\" : [").append(number(mean - error)).append(", ")
+				.append(number(mean + error)).append("],\n");
+		json.append("            \"scorePercentiles\" : {");
+		for (int i = 0; i < PERCENTILES.length; i++) {
+			json.append(i == 0 ? "" : ", ").append(quote(String.valueOf(PERCENTILES[i]))).append(" : ")
+					.append(number(percentile(scores, PERCENTILES[i])));
+		}
+		json.append("},\n");
+		json.append("            \"scoreUnit\" : \"ops/s\",\n");
+		json.append("            \"rawData\" : [[");
+		for (int i = 0; i < scores.length; i++) {
+			json.append(i == 0 ? "" : ", ").append(number(scores[i]));
+		}
+		json.append("]]\n");
+		json.append("        },\n");
+		json.append("        \"secondaryMetrics\" : {\n");
+		json.append("            \"latency\" : {\n");
+		json.append("                \"score\" : ").append(number(meanMicros(latencies))).append(",\n");
+		json.append("                \"sampleCount\" : ").append(latencies.length).append(",\n");
+		json.append("                \"scorePercentiles\" : {");
+		for (int i = 0; i < PERCENTILES.length; i++) {
+			json.append(i == 0 ? "" : ", ").append(quote(String.valueOf(PERCENTILES[i]))).append(" : ")
+					.append(number(percentile(latencies, PERCENTILES[i]) / 1000.0));
+		}
+		json.append("},\n");
+		json.append("                \"scoreUnit\" : \"us/op\"\n");
+		json.append("            }\n");
+		json.append("        }\n");
+		json.append("    }");
+		return json.toString();
+	}
+
+	private static double meanMicros(long[] latencies) {
+		if (latencies.length == 0) {
+			return Double.NaN;
+		}
+		double total = 0;
+		for (long latency : latencies) {
+			total += latency;
+		}
+		return total / latencies.length / 1000.0;
+	}
+
+	private static String number(double value) {
+		if (Double.isNaN(value) || Double.isInfinite(value)) {
+			return "\"NaN\"";
+		}
+		return String.format(Locale.ROOT, "%.6f", value);
+	}
+
+	private static String quote(String value) {
+		return "\"" + value.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+	}
+}
@@ -0,0 +1,316 @@
+package org.matt1.climediarenderer.bench;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.BasicClientConnectionManager;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.util.EntityUtils;
+
+/**
+ * One simulated control point, e.g. a phone running a UPnP app.  It subscribes to the
+ * renderer's events and then polls it with a mix of actions like a real app showing a "now
+ * playing" screen does, mostly asking for the position.  Each one has its own HTTP connection
+ * as separate devices would.
+ *
+ * @author Matt
+ *
+ */
+class ControlPoint {
+
+	/** How long subscriptions are asked for, in seconds; they're renewed half way through */
+	private static final int SUBSCRIPTION_SECONDS = 300;
+
+	/** The actions polled and how often each is picked, out of the total of the weights */
+	private static final Poll[] POLLS = {
+		new Poll(RendererDescription.AV_TRANSPORT, "GetPositionInfo", 60, "InstanceID", "0"),
+		new Poll(RendererDescription.AV_TRANSPORT, "GetTransportInfo", 20, "InstanceID", "0"),
+		new Poll(RendererDescription.AV_TRANSPORT, "GetMediaInfo", 8, "InstanceID", "0"),
+		new Poll(RendererDescription.RENDERING_CONTROL, "GetVolume", 8, "InstanceID", "0", "Channel", "Master"),
+		new Poll(RendererDescription.CONNECTION_MANAGER, "GetProtocolInfo", 4)
+	};
+
+	private final int id;
+
+	private final RendererDescription renderer;
+
+	private final LoadStats stats;
+
+	private final EventReceiver receiver;
+
+	private final DefaultHttpClient client;
+
+	private final Random random;
+
+	/** Current subscription ids, one per subscribed service */
+	private final List<Subscription> subscriptions = new ArrayList<Subscription>();
+
+	/**
+	 * @param id
+	 * @param renderer
+	 * @param stats
+	 * @param receiver where events should be sent
+	 * @param timeoutMillis how long to wait for the renderer to answer
+	 */
+	ControlPoint(int id, RendererDescription renderer, LoadStats stats, EventReceiver receiver, int timeoutMillis) {
+		this.id = id;
+		this.renderer = renderer;
+		this.stats = stats;
+		this.receiver = receiver;
+		this.random = new Random(id);
+		client = new DefaultHttpClient(new BasicClientConnectionManager());
+		HttpConnectionParams.setConnectionTimeout(client.getParams(), timeoutMillis);
+		HttpConnectionParams.setSoTimeout(client.getParams(), timeoutMillis);
+	}
+
+	/**
+	 * Poll the renderer until the deadline
+	 * @param intervalMillis average time between polls, or 0 to poll as fast as it answers
+	 * @param deadline from System.nanoTime()
+	 */
+	void poll(long intervalMillis, long deadline) {
+		int total = 0;
+		for (Poll poll : POLLS) {
+			total += poll.weight;
+		}
+		while (System.nanoTime() < deadline && !Thread.currentThread().isInterrupted()) {
+			int pick = random.nextInt(total);
+			for (Poll poll : POLLS) {
+				pick -= poll.weight;
+				if (pick < 0) {
+					invoke(poll.serviceType, poll.action, poll.arguments);
+					break;
+				}
+			}
+			renewSubscriptions();
+			if (intervalMillis > 0) {
+				// Spread the polls out rather than having every control point ask at once
+				long pause = (long) (intervalMillis * (0.5 + random.nextDouble()));
+				long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+				try {
+					Thread.sleep(Math.max(0, Math.min(pause, remaining)));
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Invoke a SOAP action on the renderer, recording how it went
+	 * @param serviceType
+	 * @param action
+	 * @param arguments names and values, in turn
+	 * @return true if it succeeded
+	 */
+	boolean invoke(String serviceType, String action, String... arguments) {
+		URL control = renderer.getControlUrl(serviceType);
+		if (control == null) {
+			return false;
+		}
+		StringBuilder body = new StringBuilder();
+		body.append("<?xml version=\"1.0\" encoding=\"utf-8\"?>");
+		body.append("<s:Envelope xmlns:s=\"http://schemas.xmlsoap.org/soap/envelope/\" ");
+		body.append("s:encodingStyle=\"http://schemas.xmlsoap.org/soap/encoding/\"><s:Body>");
+		body.append("<u:").append(action).append(" xmlns:u=\"").append(serviceType).append("\">");
+		for (int i = 0; i + 1 < arguments.length; i += 2) {
+			body.append("<").append(arguments[i]).append(">").append(escape(arguments[i + 1]))
+					.append("</").append(arguments[i]).append(">");
+		}
+		body.append("</u:").append(action).append("></s:Body></s:Envelope>");
+
+		HttpPost post = new HttpPost(toUri(control));
+		post.setHeader("Content-Type", "text/xml; charset=\"utf-8\"");
+		post.setHeader("SOAPACTION", "\"" + serviceType + "#" + action + "\"");
+		post.setEntity(new StringEntity(body.toString(), ContentType.create("text/xml", "UTF-8")));
+
+		LoadStats.Operation operation = stats.get(action);
+		long start = System.nanoTime();
+		try {
+			HttpResponse response = client.execute(post);
+			String responseBody = response.getEntity() == null ? "" : EntityUtils.toString(response.getEntity(), "UTF-8");
+			operation.latency.record(System.nanoTime() - start);
+			if (response.getStatusLine().getStatusCode() == 200) {
+				operation.successes.incrementAndGet();
+				return true;
+			} else if (responseBody.contains("acquire lock")) {
+				// The service manager's lock timeout, as opposed to the action itself failing
+				operation.lockTimeouts.incrementAndGet();
+			} else {
+				operation.faults.incrementAndGet();
+			}
+		} catch (SocketTimeoutException e) {
+			post.abort();
+			operation.timeouts.incrementAndGet();
+		} catch (ConnectTimeoutException e) {
+			post.abort();
+			operation.timeouts.incrementAndGet();
+		} catch (IOException e) {
+			post.abort();
+			operation.errors.incrementAndGet();
+		}
+		return false;
+	}
+
+	/**
+	 * Subscribe to a service's events
+	 * @param serviceType
+	 * @param name short name for the service, used in the callback URL
+	 * @return true if subscribed
+	 */
+	boolean subscribe(String serviceType, String name) {
+		URL events = renderer.getEventUrl(serviceType);
+		if (events == null) {
+			return false;
+		}
+		GenaRequest request = new GenaRequest("SUBSCRIBE", toUri(events));
+		request.setHeader("CALLBACK", "<" + receiver.getCallback(id, name) + ">");
+		request.setHeader("NT", "upnp:event");
+		request.setHeader("TIMEOUT", "Second-" + SUBSCRIPTION_SECONDS);
+		String sid = gena(request);
+		if (sid == null) {
+			return false;
+		}
+		subscriptions.add(new Subscription(events, sid));
+		return true;
+	}
+
+	/** Renew any subscriptions that are half way to expiring */
+	private void renewSubscriptions() {
+		long now = System.nanoTime();
+		for (Subscription subscription : subscriptions) {
+			if (now - subscription.renewed > TimeUnit.SECONDS.toNanos(SUBSCRIPTION_SECONDS / 2)) {
+				GenaRequest request = new GenaRequest("SUBSCRIBE", toUri(subscription.url));
+				request.setHeader("SID", subscription.sid);
+				request.setHeader("TIMEOUT", "Second-" + SUBSCRIPTION_SECONDS);
+				gena(request);
+				subscription.renewed = now;
+			}
+		}
+	}
+
+	/** End all subscriptions and close the connection */
+	void close() {
+		for (Subscription subscription : subscriptions) {
+			GenaRequest request = new GenaRequest("UNSUBSCRIBE", toUri(subscription.url));
+			request.setHeader("SID", subscription.sid);
+			gena(request);
+			receiver.unsubscribed(subscription.sid);
+		}
+		subscriptions.clear();
+		client.getConnectionManager().shutdown();
+	}
+
+	/**
+	 * Send a GENA request, recording how it went
+	 * @param request
+	 * @return the subscription id the renderer gave, or null if it failed
+	 */
+	private String gena(GenaRequest request) {
+		String name = request.getMethod() + (request.getFirstHeader("SID") != null && request.getMethod().equals("SUBSCRIBE") ? " (renew)" : "");
+		LoadStats.Operation operation = stats.get(name);
+		long start = System.nanoTime();
+		try {
+			HttpResponse response = client.execute(request);
+			EntityUtils.consume(response.getEntity());
+			operation.latency.record(System.nanoTime() - start);
+			if (response.getStatusLine().getStatusCode() == 200) {
+				operation.successes.incrementAndGet();
+				return response.getFirstHeader("SID") == null ? "" : response.getFirstHeader("SID").getValue();
+			}
+			operation.faults.incrementAndGet();
+		} catch (SocketTimeoutException e) {
+			request.abort();
+			operation.timeouts.incrementAndGet();
+		} catch (ConnectTimeoutException e) {
+			request.abort();
+			operation.timeouts.incrementAndGet();
+		} catch (IOException e) {
+			request.abort();
+			operation.errors.incrementAndGet();
+		}
+		return null;
+	}
+
+	private static URI toUri(URL url) {
+		try {
+			return url.toURI();
+		} catch (Exception e) {
+			throw new IllegalArgumentException("Bad URL from renderer: " + url);
+		}
+	}
+
+	private static String escape(String value) {
+		return value.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+	}
+
+	/**
+	 * An action the control point polls with
+	 */
+	private static class Poll {
+
+		final String serviceType;
+
+		final String action;
+
+		final int weight;
+
+		final String[] arguments;
+
+		Poll(String serviceType, String action, int weight, String... arguments) {
+			this.serviceType = serviceType;
+			this.action = action;
+			this.weight = weight;
+			this.arguments = arguments;
+		}
+	}
+
+	/**
+	 * A subscription to one of the renderer's services
+	 */
+	private static class Subscription {
+
+		final URL url;
+
+		final String sid;
+
+		/** When it was last renewed, from System.nanoTime() */
+		long renewed = System.nanoTime();
+
+		Subscription(URL url, String sid) {
+			this.url = url;
+			this.sid = sid;
+		}
+	}
+
+	/**
+	 * SUBSCRIBE or UNSUBSCRIBE, which HttpClient doesn't have classes for
+	 */
+	private static class GenaRequest extends HttpRequestBase {
+
+		private final String method;
+
+		GenaRequest(String method, URI uri) {
+			this.method = method;
+			setURI(uri);
+		}
+
+		@Override
+		public String getMethod() {
+			return method;
+		}
+	}
+}
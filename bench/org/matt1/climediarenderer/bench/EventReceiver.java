@@ -0,0 +1,141 @@
+package org.matt1.climediarenderer.bench;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Receives GENA events for all of the load generator's control points.  Each subscription
+ * gets its own callback path so events can be told apart, and events saying the transport
+ * state has changed are timed against when that change was asked for.
+ *
+ * @author Matt
+ *
+ */
+class EventReceiver {
+
+	/** TransportState inside a LastChange, which is escaped XML inside the event */
+	private static final Pattern TRANSPORT_STATE = Pattern.compile("TransportState val=(?:&quot;|\"|&amp;quot;)([A-Z_]+)");
+
+	private final HttpServer server;
+
+	private final ExecutorService executor;
+
+	private final LoadStats stats;
+
+	/** Last sequence number seen for each subscription */
+	private final Map<String, Long> sequences = new ConcurrentHashMap<String, Long>();
+
+	/** When each transport state was last asked for, from System.nanoTime() */
+	private final Map<String, Long> requested = new ConcurrentHashMap<String, Long>();
+
+	/**
+	 * Start listening for events on localhost
+	 * @param stats
+	 * @param threads how many events can be taken at once
+	 * @throws IOException
+	 */
+	EventReceiver(LoadStats stats, int threads) throws IOException {
+		this.stats = stats;
+		executor = Executors.newFixedThreadPool(threads);
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0), 200);
+		server.createContext("/", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				long received = System.nanoTime();
+				String body = read(exchange.getRequestBody());
+				exchange.sendResponseHeaders(200, -1);
+				exchange.close();
+				if (exchange.getRequestMethod().equals("NOTIFY")) {
+					event(exchange.getRequestHeaders().getFirst("SID"), exchange.getRequestHeaders().getFirst("SEQ"),
+							body, received);
+				}
+			}
+		});
+		server.setExecutor(executor);
+		server.start();
+	}
+
+	/**
+	 * Callback URL for one of a control point's subscriptions
+	 * @param controlPoint
+	 * @param service short name of the service
+	 * @return
+	 */
+	String getCallback(int controlPoint, String service) {
+		return "http://127.0.0.1:" + server.getAddress().getPort() + "/cp/" + controlPoint + "/" + service;
+	}
+
+	/**
+	 * Note that a control point has just asked for the transport state to change
+	 * @param state e.g. PLAYING
+	 */
+	void stateRequested(String state) {
+		requested.put(state, System.nanoTime());
+	}
+
+	/**
+	 * Forget a subscription that has ended, so a new one with the same id would start afresh
+	 * @param sid
+	 */
+	void unsubscribed(String sid) {
+		sequences.remove(sid);
+	}
+
+	void shutdown() {
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+	private void event(String sid, String seq, String body, long received) {
+		stats.events.incrementAndGet();
+		if (sid != null && seq != null) {
+			try {
+				long sequence = Long.parseLong(seq.trim());
+				Long last = sequences.put(sid, sequence);
+				if (last != null && sequence != last + 1 && sequence != 1) {
+					// Sequence numbers wrap from the maximum back to 1
+					stats.sequenceGaps.incrementAndGet();
+				}
+				if (sequence == 0) {
+					// The initial event just gives the current state
+					return;
+				}
+			} catch (NumberFormatException e) {
+				// Not something we can check
+			}
+		}
+		Matcher matcher = TRANSPORT_STATE.matcher(body);
+		if (matcher.find()) {
+			// Only changes the load generator asked for can be timed
+			Long asked = requested.get(matcher.group(1));
+			if (asked != null && received > asked) {
+				stats.stateEvents.incrementAndGet();
+				stats.eventLag.record(received - asked);
+			}
+		}
+	}
+
+	private static String read(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+		int count;
+		while ((count = in.read(buffer)) != -1) {
+			out.write(buffer, 0, count);
+		}
+		in.close();
+		return out.toString("UTF-8");
+	}
+}
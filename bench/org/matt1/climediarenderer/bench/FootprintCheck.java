@@ -0,0 +1,205 @@
+package org.matt1.climediarenderer.bench;
+
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.matt1.climediarenderer.metrics.Footprint;
+
+/**
+ * Measures how much memory a renderer settles down to using, and fails if that is more than
+ * given, so a change that makes the renderer bigger is caught before it reaches a Pi Zero.
+ *
+ * Starts a renderer on localhost playing through the stub backends, measures it once it has
+ * started, then has a few control points subscribe and poll it for a while, as phones would,
+ * and measures it again once they have gone and garbage has been collected.  Run it from
+ * bench/embedded (ant footprint) to measure embedded mode with the JVM options a small board
+ * would use.  The figures include the stubs, and the control points' recorded times, so are
+ * somewhat over what the renderer alone would use.
+ *
+ * Usage: FootprintCheck [-clients n] [-duration seconds] [-interval ms] [-rss megabytes]
+ * [-heap megabytes] [-rff file]
+ *
+ * @author Matt
+ *
+ */
+public class FootprintCheck {
+
+	private int clients = 4;
+
+	private int durationSeconds = 30;
+
+	/** Average time between each client's polls */
+	private int intervalMillis = 1000;
+
+	private int timeoutMillis = 5000;
+
+	/** Most resident memory allowed once settled, in megabytes, or 0 not to check */
+	private int rssCeiling = 0;
+
+	/** Most heap allowed in use once settled, in megabytes, or 0 not to check */
+	private int heapCeiling = 0;
+
+	private String resultFile = "footprint-results.json";
+
+	public static void main(String[] args) throws Exception {
+		FootprintCheck check = new FootprintCheck();
+		check.parseArguments(args);
+
+		Logger.getLogger("").setLevel(Level.WARNING);
+		Logger.getLogger("org.fourthline").setLevel(Level.OFF);
+
+		int status;
+		try {
+			status = check.run() ? 0 : 1;
+		} catch (Exception e) {
+			System.out.println("Footprint check failed: " + e);
+			status = 1;
+		}
+		BenchEnvironment.getInstance().shutdown();
+		System.exit(status);
+	}
+
+	private void parseArguments(String[] args) {
+		for (int i = 0; i < args.length; i++) {
+			String arg = args[i];
+			if (arg.equals("-clients")) {
+				clients = Integer.parseInt(args[++i]);
+			} else if (arg.equals("-duration")) {
+				durationSeconds = Integer.parseInt(args[++i]);
+			} else if (arg.equals("-interval")) {
+				intervalMillis = Integer.parseInt(args[++i]);
+			} else if (arg.equals("-rss")) {
+				rssCeiling = Integer.parseInt(args[++i]);
+			} else if (arg.equals("-heap")) {
+				heapCeiling = Integer.parseInt(args[++i]);
+			} else if (arg.equals("-rff")) {
+				resultFile = args[++i];
+			} else {
+				throw new IllegalArgumentException("Unknown option " + arg);
+			}
+		}
+	}
+
+	/**
+	 * Measure the renderer started, then after being used
+	 * @return whether it stayed within the ceilings
+	 * @throws Exception
+	 */
+	private boolean run() throws Exception {
+		Footprint footprint = Footprint.getInstance();
+		LoadStats stats = new LoadStats();
+		EventReceiver receiver = new EventReceiver(stats, 2);
+		LoopbackRenderer loopback = new LoopbackRenderer(BenchEnvironment.getInstance().getRenderer());
+		try {
+			final RendererDescription renderer = new RendererDescription(loopback.getDescriptor());
+			System.out.println("# Renderer: " + renderer.getFriendlyName() + " at " + renderer.getDescriptor());
+
+			footprint.settle();
+			Sample started = new Sample(footprint);
+			started.print("started");
+
+			ControlPoint remote = new ControlPoint(0, renderer, stats, receiver, timeoutMillis);
+			if (!remote.invoke(RendererDescription.AV_TRANSPORT, "SetAVTransportURI", "InstanceID", "0",
+					"CurrentURI", BenchEnvironment.getInstance().getMediaServer().getUri(1), "CurrentURIMetaData", "")) {
+				throw new Exception("Renderer wouldn't take the stub track");
+			}
+			remote.invoke(RendererDescription.AV_TRANSPORT, "Play", "InstanceID", "0", "Speed", "1");
+
+			System.out.println("# " + clients + " control points polling every " + intervalMillis + "ms for "
+					+ durationSeconds + "s");
+			final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(durationSeconds);
+			List<Thread> threads = new ArrayList<Thread>();
+			for (int i = 1; i <= clients; i++) {
+				final ControlPoint controlPoint = new ControlPoint(i, renderer, stats, receiver, timeoutMillis);
+				Thread thread = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						controlPoint.subscribe(RendererDescription.AV_TRANSPORT, "avt");
+						controlPoint.subscribe(RendererDescription.RENDERING_CONTROL, "rc");
+						controlPoint.poll(intervalMillis, deadline);
+						controlPoint.close();
+					}
+				}, "control-point-" + i);
+				thread.setDaemon(true);
+				thread.start();
+				threads.add(thread);
+			}
+			for (Thread thread : threads) {
+				thread.join();
+			}
+			remote.invoke(RendererDescription.AV_TRANSPORT, "Stop", "InstanceID", "0");
+			remote.close();
+
+			// Let idle connections and threads time out before measuring what's left
+			Thread.sleep(2000);
+			footprint.settle();
+			Sample settled = new Sample(footprint);
+			settled.print("settled");
+
+			boolean passed = true;
+			if (rssCeiling > 0 && settled.rss > rssCeiling * 1024L) {
+				System.out.println("FAILED: resident memory " + settled.rss / 1024 + "MB is over " + rssCeiling + "MB");
+				passed = false;
+			}
+			if (heapCeiling > 0 && settled.heapUsed > heapCeiling * 1024L) {
+				System.out.println("FAILED: heap " + settled.heapUsed / 1024 + "MB is over " + heapCeiling + "MB");
+				passed = false;
+			}
+			if (passed) {
+				System.out.println("# Within the ceilings");
+			}
+
+			Writer out = new OutputStreamWriter(new FileOutputStream(resultFile), "UTF-8");
+			try {
+				out.write("{ \"clients\" : " + clients + ", \"durationSeconds\" : " + durationSeconds
+						+ ", \"rssCeilingMB\" : " + rssCeiling + ", \"heapCeilingMB\" : " + heapCeiling
+						+ ", \"started\" : " + started.toJson() + ", \"settled\" : " + settled.toJson()
+						+ ", \"passed\" : " + passed + " }\n");
+			} finally {
+				out.close();
+			}
+			System.out.println("# Results written to " + resultFile);
+			return passed;
+		} finally {
+			receiver.shutdown();
+			loopback.shutdown();
+		}
+	}
+
+	/**
+	 * Memory in use at one moment, in kilobytes
+	 */
+	private static class Sample {
+
+		private final long rss;
+
+		private final long heapUsed;
+
+		private final long nonHeapUsed;
+
+		private final int threads;
+
+		Sample(Footprint footprint) {
+			rss = footprint.getRssKilobytes();
+			heapUsed = footprint.getHeapUsedKilobytes();
+			nonHeapUsed = footprint.getNonHeapUsedKilobytes();
+			threads = footprint.getThreadCount();
+		}
+
+		void print(String when) {
+			System.out.println(String.format("%-8s rss %6dKB  heap %6dKB  non-heap %6dKB  threads %3d", when, rss,
+					heapUsed, nonHeapUsed, threads));
+		}
+
+		String toJson() {
+			return "{ \"rssKB\" : " + rss + ", \"heapUsedKB\" : " + heapUsed + ", \"nonHeapUsedKB\" : "
+					+ nonHeapUsed + ", \"threads\" : " + threads + " }";
+		}
+	}
+}
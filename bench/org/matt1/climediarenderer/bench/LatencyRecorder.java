@@ -0,0 +1,79 @@
+package org.matt1.climediarenderer.bench;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Collects how long things took, from any number of threads, and works out percentiles at the
+ * end.  Once there are more than it can keep it carries on with a fair random sample.
+ *
+ * @author Matt
+ *
+ */
+class LatencyRecorder {
+
+	/** Most times kept */
+	private static final int MAX_SAMPLES = 200000;
+
+	private final long[] samples = new long[MAX_SAMPLES];
+
+	private final Random random = new Random(42);
+
+	/** Number of times recorded, including any that weren't kept */
+	private long count;
+
+	private long max;
+
+	/**
+	 * Record one time
+	 * @param nanos
+	 */
+	synchronized void record(long nanos) {
+		if (count < MAX_SAMPLES) {
+			samples[(int) count] = nanos;
+		} else {
+			long slot = (long) (random.nextDouble() * (count + 1));
+			if (slot < MAX_SAMPLES) {
+				samples[(int) slot] = nanos;
+			}
+		}
+		count++;
+		max = Math.max(max, nanos);
+	}
+
+	synchronized long getCount() {
+		return count;
+	}
+
+	/**
+	 * The recorded times, sorted
+	 * @return
+	 */
+	synchronized long[] getSorted() {
+		long[] sorted = Arrays.copyOf(samples, (int) Math.min(count, MAX_SAMPLES));
+		Arrays.sort(sorted);
+		return sorted;
+	}
+
+	/**
+	 * Work out a percentile of the recorded times
+	 * @param sorted from getSorted
+	 * @param percentile e.g. 99.9
+	 * @return in milliseconds, or NaN if nothing has been recorded
+	 */
+	static double percentileMillis(long[] sorted, double percentile) {
+		if (sorted.length == 0) {
+			return Double.NaN;
+		}
+		int index = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+		return sorted[Math.max(0, Math.min(sorted.length - 1, index))] / 1e6;
+	}
+
+	/**
+	 * Longest time recorded, whether or not it was kept
+	 * @return in milliseconds
+	 */
+	synchronized double getMaxMillis() {
+		return count == 0 ? Double.NaN : max / 1e6;
+	}
+}
@@ -0,0 +1,257 @@
+package org.matt1.climediarenderer.bench;
+
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Puts a renderer under the kind of load a house full of phones, tablets and home automation
+ * bridges gives it: a number of control points that all subscribe to its events and keep
+ * polling it, while one of them plays and pauses now and then.  Reports how long each kind of
+ * request took, how many failed or timed out (including the renderer giving up waiting for a
+ * service lock), and how long events took to reach the subscribers.
+ *
+ * By default it starts its own renderer on localhost playing through the stub backends, so
+ * nothing needs to be installed or playing.  It can also be pointed at a running renderer's
+ * device descriptor with -target, or find one with -discover.
+ *
+ * Usage: LoadGenerator [-clients n] [-subscribers n] [-duration seconds] [-rampup seconds]
+ * [-interval ms] [-toggle ms] [-timeout ms] [-target descriptorUrl | -discover [name]] [-rff file]
+ *
+ * @author Matt
+ *
+ */
+public class LoadGenerator {
+
+	private int clients = 20;
+
+	/** How many of the clients subscribe to events, -1 for all of them */
+	private int subscribers = -1;
+
+	private int durationSeconds = 60;
+
+	private int rampUpSeconds = 5;
+
+	/** Average time between each client's polls */
+	private int intervalMillis = 1000;
+
+	/** Time between plays and pauses */
+	private int toggleMillis = 2000;
+
+	private int timeoutMillis = 5000;
+
+	private String target;
+
+	private boolean discover = false;
+
+	private String discoverName;
+
+	private String resultFile = "loadgen-results.json";
+
+	/** Clients whose AVTransport subscription is active, who should hear every state change */
+	private final AtomicInteger transportSubscribers = new AtomicInteger();
+
+	public static void main(String[] args) throws Exception {
+		LoadGenerator generator = new LoadGenerator();
+		generator.parseArguments(args);
+
+		Logger.getLogger("").setLevel(Level.WARNING);
+		Logger.getLogger("org.fourthline").setLevel(Level.OFF);
+
+		int status = 0;
+		try {
+			generator.run();
+		} catch (Exception e) {
+			System.out.println("Load generator failed: " + e);
+			status = 1;
+		}
+		BenchEnvironment.getInstance().shutdown();
+		System.exit(status);
+	}
+
+	private void parseArguments(String[] args) {
+		for (int i = 0; i < args.length; i++) {
+			String arg = args[i];
+			if (arg.equals("-clients")) {
+				clients = Integer.parseInt(args[++i]);
+			} else if (arg.equals("-subscribers")) {
+				subscribers = Integer.parseInt(args[++i]);
+			} else if (arg.equals("-duration")) {
+				durationSeconds = Integer.parseInt(args[++i]);
+			} else if (arg.equals("-rampup")) {
+				rampUpSeconds = Integer.parseInt(args[++i]);
+			} else if (arg.equals("-interval")) {
+				intervalMillis = Integer.parseInt(args[++i]);
+			} else if (arg.equals("-toggle")) {
+				toggleMillis = Integer.parseInt(args[++i]);
+			} else if (arg.equals("-timeout")) {
+				timeoutMillis = Integer.parseInt(args[++i]);
+			} else if (arg.equals("-target")) {
+				target = args[++i];
+			} else if (arg.equals("-discover")) {
+				discover = true;
+				if (i + 1 < args.length && !args[i + 1].startsWith("-")) {
+					discoverName = args[++i];
+				}
+			} else if (arg.equals("-rff")) {
+				resultFile = args[++i];
+			} else {
+				throw new IllegalArgumentException("Unknown option " + arg);
+			}
+		}
+		if (subscribers < 0 || subscribers > clients) {
+			subscribers = clients;
+		}
+	}
+
+	private void run() throws Exception {
+		final LoadStats stats = new LoadStats();
+		final EventReceiver receiver = new EventReceiver(stats, 8);
+		LoopbackRenderer loopback = null;
+		try {
+			final RendererDescription renderer;
+			if (target != null) {
+				renderer = new RendererDescription(new URL(target));
+			} else if (discover) {
+				renderer = RendererDescription.discover(discoverName, 5000);
+			} else {
+				loopback = new LoopbackRenderer(BenchEnvironment.getInstance().getRenderer());
+				renderer = new RendererDescription(loopback.getDescriptor());
+			}
+			System.out.println("# Renderer: " + renderer.getFriendlyName() + " at " + renderer.getDescriptor());
+			System.out.println("# " + clients + " control points, " + subscribers + " subscribed, polling every "
+					+ intervalMillis + "ms for " + durationSeconds + "s");
+
+			// Something to play and pause; the stub media server is on localhost either way
+			final ControlPoint remote = new ControlPoint(0, renderer, stats, receiver, timeoutMillis);
+			if (!remote.invoke(RendererDescription.AV_TRANSPORT, "SetAVTransportURI", "InstanceID", "0",
+					"CurrentURI", BenchEnvironment.getInstance().getMediaServer().getUri(1), "CurrentURIMetaData", "")) {
+				throw new Exception("Renderer wouldn't take the stub track");
+			}
+
+			long start = System.nanoTime();
+			final long deadline = start + TimeUnit.SECONDS.toNanos(durationSeconds);
+			List<Thread> threads = new ArrayList<Thread>();
+			for (int i = 1; i <= clients; i++) {
+				final int id = i;
+				final long delay = clients <= 1 ? 0 : TimeUnit.SECONDS.toMillis(rampUpSeconds) * (i - 1) / clients;
+				Thread thread = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						runControlPoint(id, delay, renderer, stats, receiver, deadline);
+					}
+				}, "control-point-" + id);
+				thread.setDaemon(true);
+				thread.start();
+				threads.add(thread);
+			}
+
+			Thread toggler = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					toggle(remote, stats, receiver, deadline);
+				}
+			}, "control-point-remote");
+			toggler.setDaemon(true);
+			toggler.start();
+			threads.add(toggler);
+
+			for (Thread thread : threads) {
+				thread.join();
+			}
+			double seconds = (System.nanoTime() - start) / 1e9;
+			remote.invoke(RendererDescription.AV_TRANSPORT, "Stop", "InstanceID", "0");
+			remote.close();
+			// Let any events still on their way arrive
+			Thread.sleep(1000);
+
+			stats.print(seconds);
+			Writer out = new OutputStreamWriter(new FileOutputStream(resultFile), "UTF-8");
+			try {
+				out.write(stats.toJson(settingsJson(renderer), seconds));
+			} finally {
+				out.close();
+			}
+			System.out.println("# Results written to " + resultFile);
+		} finally {
+			receiver.shutdown();
+			if (loopback != null) {
+				loopback.shutdown();
+			}
+		}
+	}
+
+	/**
+	 * What each simulated control point does
+	 * @param id
+	 * @param delayMillis how long to wait before starting, to ramp the load up
+	 * @param renderer
+	 * @param stats
+	 * @param receiver
+	 * @param deadline
+	 */
+	private void runControlPoint(int id, long delayMillis, RendererDescription renderer, LoadStats stats,
+			EventReceiver receiver, long deadline) {
+		try {
+			Thread.sleep(delayMillis);
+		} catch (InterruptedException e) {
+			return;
+		}
+		ControlPoint controlPoint = new ControlPoint(id, renderer, stats, receiver, timeoutMillis);
+		boolean listening = false;
+		if (id <= subscribers) {
+			listening = controlPoint.subscribe(RendererDescription.AV_TRANSPORT, "avt");
+			if (listening) {
+				transportSubscribers.incrementAndGet();
+			}
+			controlPoint.subscribe(RendererDescription.RENDERING_CONTROL, "rc");
+		}
+		controlPoint.poll(intervalMillis, deadline);
+		if (listening) {
+			transportSubscribers.decrementAndGet();
+		}
+		controlPoint.close();
+	}
+
+	/**
+	 * Play and pause every so often, so there are state changes for the subscribers to hear
+	 * about
+	 * @param remote
+	 * @param stats
+	 * @param receiver
+	 * @param deadline
+	 */
+	private void toggle(ControlPoint remote, LoadStats stats, EventReceiver receiver, long deadline) {
+		boolean play = true;
+		while (toggleMillis > 0 && System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(toggleMillis) < deadline) {
+			try {
+				Thread.sleep(toggleMillis);
+			} catch (InterruptedException e) {
+				return;
+			}
+			int listening = transportSubscribers.get();
+			receiver.stateRequested(play ? "PLAYING" : "PAUSED_PLAYBACK");
+			boolean done = play
+					? remote.invoke(RendererDescription.AV_TRANSPORT, "Play", "InstanceID", "0", "Speed", "1")
+					: remote.invoke(RendererDescription.AV_TRANSPORT, "Pause", "InstanceID", "0");
+			if (done) {
+				stats.expectedStateEvents.addAndGet(listening);
+			}
+			play = !play;
+		}
+	}
+
+	private String settingsJson(RendererDescription renderer) {
+		return "\"renderer\" : \"" + renderer.getDescriptor() + "\", \"clients\" : " + clients
+				+ ", \"subscribers\" : " + subscribers + ", \"durationSeconds\" : " + durationSeconds
+				+ ", \"rampUpSeconds\" : " + rampUpSeconds + ", \"intervalMillis\" : " + intervalMillis
+				+ ", \"toggleMillis\" : " + toggleMillis + ", \"timeoutMillis\" : " + timeoutMillis;
+	}
+}
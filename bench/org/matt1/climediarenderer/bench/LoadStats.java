@@ -0,0 +1,161 @@
+package org.matt1.climediarenderer.bench;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * What the load generator's control points saw: how long each kind of request took and how
+ * many failed, and how long events took to arrive.
+ *
+ * @author Matt
+ *
+ */
+class LoadStats {
+
+	/** Percentiles reported for each kind of request and for event lag */
+	private static final double[] PERCENTILES = {50.0, 90.0, 99.0, 99.9};
+
+	private final Map<String, Operation> operations = new TreeMap<String, Operation>();
+
+	/** Events received, including the initial event for each subscription */
+	final AtomicLong events = new AtomicLong();
+
+	/** Events saying the transport state had changed the way the load generator asked */
+	final AtomicLong stateEvents = new AtomicLong();
+
+	/** Events whose sequence number wasn't the one after the last, i.e. some went missing */
+	final AtomicLong sequenceGaps = new AtomicLong();
+
+	/** State changes requested, times the number of subscriptions that should hear about each */
+	final AtomicLong expectedStateEvents = new AtomicLong();
+
+	/** Time from asking for a state change to each subscriber hearing about it */
+	final LatencyRecorder eventLag = new LatencyRecorder();
+
+	/**
+	 * Get the stats for one kind of request, e.g. GetPositionInfo or SUBSCRIBE
+	 * @param name
+	 * @return
+	 */
+	synchronized Operation get(String name) {
+		Operation operation = operations.get(name);
+		if (operation == null) {
+			operation = new Operation();
+			operations.put(name, operation);
+		}
+		return operation;
+	}
+
+	/**
+	 * Print a summary table
+	 * @param seconds how long the load ran for
+	 */
+	synchronized void print(double seconds) {
+		System.out.println(String.format(Locale.ROOT, "%-22s %9s %8s %8s %8s %8s %9s %9s %9s %9s %9s",
+				"operation", "count", "req/s", "faults", "errors", "timeouts", "lockFail", "p50 ms", "p90 ms", "p99 ms", "max ms"));
+		for (Map.Entry<String, Operation> entry : operations.entrySet()) {
+			Operation operation = entry.getValue();
+			long[] sorted = operation.latency.getSorted();
+			System.out.println(String.format(Locale.ROOT, "%-22s %9d %8.1f %8d %8d %8d %9d %9.2f %9.2f %9.2f %9.2f",
+					entry.getKey(), operation.getCount(), operation.getCount() / seconds, operation.faults.get(),
+					operation.errors.get(), operation.timeouts.get(), operation.lockTimeouts.get(),
+					LatencyRecorder.percentileMillis(sorted, 50.0), LatencyRecorder.percentileMillis(sorted, 90.0),
+					LatencyRecorder.percentileMillis(sorted, 99.0), operation.latency.getMaxMillis()));
+		}
+		long[] lag = eventLag.getSorted();
+		System.out.println(String.format(Locale.ROOT,
+				"events: %d received, %d state changes of %d expected, %d sequence gaps, lag p50 %.2f ms p99 %.2f ms max %.2f ms",
+				events.get(), stateEvents.get(), expectedStateEvents.get(), sequenceGaps.get(),
+				LatencyRecorder.percentileMillis(lag, 50.0), LatencyRecorder.percentileMillis(lag, 99.0),
+				eventLag.getMaxMillis()));
+	}
+
+	/**
+	 * Everything as a JSON object
+	 * @param settings the load generator's settings, already as JSON members
+	 * @param seconds how long the load ran for
+	 * @return
+	 */
+	synchronized String toJson(String settings, double seconds) {
+		StringBuilder json = new StringBuilder();
+		json.append("{\n");
+		json.append("    \"settings\" : {").append(settings).append("},\n");
+		json.append("    \"seconds\" : ").append(number(seconds)).append(",\n");
+		json.append("    \"operations\" : {\n");
+		int i = 0;
+		for (Map.Entry<String, Operation> entry : operations.entrySet()) {
+			Operation operation = entry.getValue();
+			json.append("        \"").append(entry.getKey()).append("\" : {");
+			json.append("\"count\" : ").append(operation.getCount());
+			json.append(", \"perSecond\" : ").append(number(operation.getCount() / seconds));
+			json.append(", \"faults\" : ").append(operation.faults.get());
+			json.append(", \"errors\" : ").append(operation.errors.get());
+			json.append(", \"timeouts\" : ").append(operation.timeouts.get());
+			json.append(", \"lockTimeouts\" : ").append(operation.lockTimeouts.get());
+			json.append(", \"errorRate\" : ").append(number(operation.getFailureRate()));
+			json.append(", \"latencyMillis\" : ").append(percentiles(operation.latency)).append("}");
+			json.append(++i < operations.size() ? ",\n" : "\n");
+		}
+		json.append("    },\n");
+		json.append("    \"events\" : {");
+		json.append("\"received\" : ").append(events.get());
+		json.append(", \"stateChanges\" : ").append(stateEvents.get());
+		json.append(", \"expectedStateChanges\" : ").append(expectedStateEvents.get());
+		json.append(", \"sequenceGaps\" : ").append(sequenceGaps.get());
+		json.append(", \"lagMillis\" : ").append(percentiles(eventLag)).append("}\n");
+		json.append("}\n");
+		return json.toString();
+	}
+
+	private static String percentiles(LatencyRecorder recorder) {
+		long[] sorted = recorder.getSorted();
+		StringBuilder json = new StringBuilder("{");
+		for (double percentile : PERCENTILES) {
+			json.append("\"").append(percentile).append("\" : ")
+					.append(number(LatencyRecorder.percentileMillis(sorted, percentile))).append(", ");
+		}
+		json.append("\"max\" : ").append(number(recorder.getMaxMillis())).append("}");
+		return json.toString();
+	}
+
+	static String number(double value) {
+		if (Double.isNaN(value) || Double.isInfinite(value)) {
+			return "null";
+		}
+		return String.format(Locale.ROOT, "%.3f", value);
+	}
+
+	/**
+	 * Stats for one kind of request
+	 */
+	static class Operation {
+
+		/** Time taken by every request that got a response, successful or not */
+		final LatencyRecorder latency = new LatencyRecorder();
+
+		final AtomicLong successes = new AtomicLong();
+
+		/** Requests answered with an error, other than a lock timeout */
+		final AtomicLong faults = new AtomicLong();
+
+		/** Requests the renderer failed because the service was locked for too long */
+		final AtomicLong lockTimeouts = new AtomicLong();
+
+		/** Requests that weren't answered in time */
+		final AtomicLong timeouts = new AtomicLong();
+
+		/** Requests that failed at the network level, e.g. connection refused */
+		final AtomicLong errors = new AtomicLong();
+
+		long getCount() {
+			return successes.get() + faults.get() + lockTimeouts.get() + timeouts.get() + errors.get();
+		}
+
+		double getFailureRate() {
+			long count = getCount();
+			return count == 0 ? 0 : (double) (count - successes.get()) / count;
+		}
+	}
+}
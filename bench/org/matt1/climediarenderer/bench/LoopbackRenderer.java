@@ -0,0 +1,93 @@
+package org.matt1.climediarenderer.bench;
+
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.ServerSocket;
+import java.net.URL;
+
+import org.fourthline.cling.transport.impl.NetworkAddressFactoryImpl;
+import org.fourthline.cling.transport.spi.NetworkAddressFactory;
+import org.matt1.climediarenderer.ApacheServiceConfiguration;
+import org.matt1.climediarenderer.RendererUpnpService;
+import org.matt1.climediarenderer.services.CliMediaRenderer;
+
+/**
+ * Serves a renderer device over UPnP on the loopback interface only, the same way
+ * MediaRenderer does on the real network, so it can be put under load without anything
+ * leaving the machine.
+ *
+ * @author Matt
+ *
+ */
+class LoopbackRenderer {
+
+	private final RendererUpnpService upnp;
+
+	private final URL descriptor;
+
+	/**
+	 * Start serving a renderer
+	 * @param renderer
+	 * @throws Exception
+	 */
+	LoopbackRenderer(CliMediaRenderer renderer) throws Exception {
+		final int port = freePort();
+		upnp = new RendererUpnpService(new ApacheServiceConfiguration() {
+			@Override
+			protected NetworkAddressFactory createNetworkAddressFactory(int streamListenPort) {
+				return new LoopbackAddressFactory(port);
+			}
+		});
+		upnp.getRegistry().addDevice(renderer.getDevice());
+		descriptor = new URL("http", "127.0.0.1", port,
+				upnp.getConfiguration().getNamespace().getDescriptorPath(renderer.getDevice()).toString());
+	}
+
+	/**
+	 * Where control points can read the renderer's device descriptor
+	 * @return
+	 */
+	URL getDescriptor() {
+		return descriptor;
+	}
+
+	void shutdown() {
+		upnp.shutdown();
+	}
+
+	/**
+	 * Find a port nothing is listening on, as the stream server needs to be told which to use
+	 * @return
+	 * @throws IOException
+	 */
+	private static int freePort() throws IOException {
+		ServerSocket socket = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+		try {
+			return socket.getLocalPort();
+		} finally {
+			socket.close();
+		}
+	}
+
+	/**
+	 * Only uses the loopback interface, which Cling normally ignores
+	 */
+	private static class LoopbackAddressFactory extends NetworkAddressFactoryImpl {
+
+		LoopbackAddressFactory(int port) {
+			super(port);
+		}
+
+		@Override
+		protected boolean isUsableNetworkInterface(NetworkInterface networkInterface) throws Exception {
+			return networkInterface.isLoopback();
+		}
+
+		@Override
+		protected boolean isUsableAddress(NetworkInterface networkInterface, InetAddress address) {
+			return address instanceof Inet4Address;
+		}
+	}
+}
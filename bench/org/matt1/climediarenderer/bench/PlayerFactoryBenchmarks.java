@@ -0,0 +1,61 @@
+package org.matt1.climediarenderer.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.matt1.climediarenderer.player.BasicPlayer;
+import org.matt1.climediarenderer.player.PlayerFactory;
+import org.matt1.climediarenderer.utils.RendererConfig;
+
+/**
+ * Benchmarks for creating a player, which happens every time a control point sets a new URI.
+ * MPlayer takes a stub process from the pool and MPD talks to the stub server, so what is
+ * measured is the renderer's own overhead.
+ *
+ * @author Matt
+ *
+ */
+class PlayerFactoryBenchmarks {
+
+	/**
+	 * Create the player factory benchmarks
+	 * @return
+	 */
+	static List<Benchmark> create() {
+		List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+		benchmarks.add(new GetPlayerBenchmark("mplayer"));
+		benchmarks.add(new GetPlayerBenchmark("mpd"));
+		return benchmarks;
+	}
+
+	/**
+	 * Creates a player for a track and cleans it up again, as setting the next URI would
+	 */
+	private static class GetPlayerBenchmark extends Benchmark {
+
+		private final String playerType;
+
+		private RendererConfig config;
+
+		private String uri;
+
+		GetPlayerBenchmark(String playerType) {
+			super("playerFactory.getPlayer." + playerType);
+			this.playerType = playerType;
+		}
+
+		@Override
+		public void setUp() throws Exception {
+			config = BenchEnvironment.getInstance().getRendererConfig(playerType);
+			uri = BenchEnvironment.getInstance().getMediaServer().getUri(1);
+			PlayerFactory.warmUp(config);
+		}
+
+		@Override
+		public Object run() throws Exception {
+			BasicPlayer player = PlayerFactory.getPlayer(uri, config);
+			player.cleanup();
+			return player;
+		}
+	}
+}
@@ -0,0 +1,172 @@
+package org.matt1.climediarenderer.bench;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+/**
+ * Where to find a renderer's services, read from its device descriptor the way a control point
+ * would.  Renderers can also be found with an SSDP search.
+ *
+ * @author Matt
+ *
+ */
+class RendererDescription {
+
+	static final String AV_TRANSPORT = "urn:schemas-upnp-org:service:AVTransport:1";
+
+	static final String RENDERING_CONTROL = "urn:schemas-upnp-org:service:RenderingControl:1";
+
+	static final String CONNECTION_MANAGER = "urn:schemas-upnp-org:service:ConnectionManager:1";
+
+	private static final String SSDP_ADDRESS = "239.255.255.250";
+
+	private static final int SSDP_PORT = 1900;
+
+	private final URL descriptor;
+
+	private final String friendlyName;
+
+	/** Control URL of each service, by service type */
+	private final Map<String, URL> controlUrls = new HashMap<String, URL>();
+
+	/** Event subscription URL of each service, by service type */
+	private final Map<String, URL> eventUrls = new HashMap<String, URL>();
+
+	/**
+	 * Read a renderer's device descriptor
+	 * @param descriptor
+	 * @throws IOException if it can't be read or isn't a device descriptor
+	 */
+	RendererDescription(URL descriptor) throws IOException {
+		this.descriptor = descriptor;
+		Document document;
+		InputStream in = descriptor.openStream();
+		try {
+			DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+			factory.setNamespaceAware(true);
+			document = factory.newDocumentBuilder().parse(in);
+		} catch (Exception e) {
+			throw new IOException("Unable to read device descriptor " + descriptor + ": " + e.getMessage());
+		} finally {
+			in.close();
+		}
+
+		URL base = descriptor;
+		String urlBase = text(document.getDocumentElement(), "URLBase");
+		if (urlBase != null && urlBase.length() > 0) {
+			base = new URL(urlBase);
+		}
+		friendlyName = text(document.getDocumentElement(), "friendlyName");
+
+		NodeList services = document.getElementsByTagNameNS("*", "service");
+		for (int i = 0; i < services.getLength(); i++) {
+			Element service = (Element) services.item(i);
+			String type = text(service, "serviceType");
+			controlUrls.put(type, new URL(base, text(service, "controlURL")));
+			eventUrls.put(type, new URL(base, text(service, "eventSubURL")));
+		}
+		if (!controlUrls.containsKey(AV_TRANSPORT)) {
+			throw new IOException(descriptor + " has no AVTransport service");
+		}
+	}
+
+	/**
+	 * Search the network for a media renderer
+	 * @param name part of the renderer's name, or null for the first to answer
+	 * @param timeoutMillis how long to wait for answers
+	 * @return the renderer
+	 * @throws IOException if none answered in time
+	 */
+	static RendererDescription discover(String name, int timeoutMillis) throws IOException {
+		String search = "M-SEARCH * HTTP/1.1\r\n"
+				+ "HOST: " + SSDP_ADDRESS + ":" + SSDP_PORT + "\r\n"
+				+ "MAN: \"ssdp:discover\"\r\n"
+				+ "MX: 2\r\n"
+				+ "ST: urn:schemas-upnp-org:device:MediaRenderer:1\r\n\r\n";
+		byte[] request = search.getBytes("US-ASCII");
+		DatagramSocket socket = new DatagramSocket();
+		try {
+			socket.send(new DatagramPacket(request, request.length, InetAddress.getByName(SSDP_ADDRESS), SSDP_PORT));
+			long end = System.currentTimeMillis() + timeoutMillis;
+			byte[] buffer = new byte[2048];
+			while (System.currentTimeMillis() < end) {
+				socket.setSoTimeout((int) Math.max(1, end - System.currentTimeMillis()));
+				DatagramPacket response = new DatagramPacket(buffer, buffer.length);
+				try {
+					socket.receive(response);
+				} catch (SocketTimeoutException e) {
+					break;
+				}
+				String location = header(new String(response.getData(), 0, response.getLength(), "US-ASCII"), "LOCATION");
+				if (location == null) {
+					continue;
+				}
+				try {
+					RendererDescription renderer = new RendererDescription(new URL(location));
+					if (name == null || (renderer.friendlyName != null && renderer.friendlyName.contains(name))) {
+						return renderer;
+					}
+				} catch (IOException e) {
+					// Not one we can use, keep looking
+				}
+			}
+		} finally {
+			socket.close();
+		}
+		throw new IOException("No media renderer" + (name == null ? "" : " called " + name) + " answered");
+	}
+
+	URL getDescriptor() {
+		return descriptor;
+	}
+
+	String getFriendlyName() {
+		return friendlyName;
+	}
+
+	/**
+	 * Control URL for a service
+	 * @param serviceType
+	 * @return the URL, or null if the renderer doesn't have the service
+	 */
+	URL getControlUrl(String serviceType) {
+		return controlUrls.get(serviceType);
+	}
+
+	/**
+	 * Event subscription URL for a service
+	 * @param serviceType
+	 * @return the URL, or null if the renderer doesn't have the service
+	 */
+	URL getEventUrl(String serviceType) {
+		return eventUrls.get(serviceType);
+	}
+
+	private static String text(Element parent, String tag) {
+		NodeList nodes = parent.getElementsByTagNameNS("*", tag);
+		return nodes.getLength() == 0 ? null : nodes.item(0).getTextContent().trim();
+	}
+
+	private static String header(String message, String name) {
+		for (String line : message.split("\r\n")) {
+			int colon = line.indexOf(':');
+			if (colon > 0 && line.substring(0, colon).trim().equalsIgnoreCase(name)) {
+				return line.substring(colon + 1).trim();
+			}
+		}
+		return null;
+	}
+}
@@ -0,0 +1,148 @@
+package org.matt1.climediarenderer.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.fourthline.cling.model.ServiceManager;
+import org.fourthline.cling.model.action.ActionExecutor;
+import org.fourthline.cling.model.action.ActionInvocation;
+import org.fourthline.cling.model.meta.Action;
+import org.fourthline.cling.model.meta.LocalService;
+import org.fourthline.cling.model.types.UnsignedIntegerFourBytes;
+import org.fourthline.cling.support.avtransport.lastchange.AVTransportVariable;
+import org.fourthline.cling.support.lastchange.LastChange;
+import org.fourthline.cling.support.model.TransportState;
+import org.matt1.climediarenderer.services.CliMRAVTransportService;
+
+/**
+ * Benchmarks for the AVTransport service as control points see it.  Actions go through the
+ * same Cling executor, service manager lock and argument conversion as they do when they come
+ * in over SOAP, just without the HTTP and XML around them.
+ *
+ * @author Matt
+ *
+ */
+class ServiceBenchmarks {
+
+	/**
+	 * Create the service benchmarks
+	 * @return
+	 */
+	static List<Benchmark> create() {
+		List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+		benchmarks.add(new ActionBenchmark("avtransport.GetPositionInfo"));
+		benchmarks.add(new ActionBenchmark("avtransport.GetTransportInfo"));
+		benchmarks.add(new ActionBenchmark("avtransport.GetMediaInfo"));
+		benchmarks.add(new Benchmark("avtransport.LastChange.initialEvent") {
+
+			private ServiceManager<CliMRAVTransportService> manager;
+
+			@Override
+			public void setUp() throws Exception {
+				manager = loadedRenderer();
+			}
+
+			@Override
+			public Object run() throws Exception {
+				// What each new GENA subscriber is sent
+				return manager.readEventedStateVariableValues(true);
+			}
+		});
+		benchmarks.add(new Benchmark("avtransport.LastChange.initialEvent.afterChange") {
+
+			private ServiceManager<CliMRAVTransportService> manager;
+
+			private LastChange lastChange;
+
+			@Override
+			public void setUp() throws Exception {
+				manager = loadedRenderer();
+				lastChange = manager.getImplementation().getLastChange();
+			}
+
+			@Override
+			public Object run() throws Exception {
+				// The first subscriber after a change has to wait for the event to be built again
+				lastChange.setEventedValue(new UnsignedIntegerFourBytes(0),
+						new AVTransportVariable.TransportState(TransportState.STOPPED));
+				return manager.readEventedStateVariableValues(true);
+			}
+		});
+		return benchmarks;
+	}
+
+	/**
+	 * Get the AVTransport of the benchmark renderer with a track loaded, so the actions have
+	 * something to report on
+	 * @return
+	 * @throws Exception
+	 */
+	private static synchronized ServiceManager<CliMRAVTransportService> loadedRenderer() throws Exception {
+		ServiceManager<CliMRAVTransportService> manager = BenchEnvironment.getInstance().getRenderer().getAvTransport();
+		if (manager.getImplementation().getPositionInfo(new UnsignedIntegerFourBytes(0)).getTrackURI() == null) {
+			ActionInvocation<LocalService<CliMRAVTransportService>> invocation = invocation(manager, "SetAVTransportURI");
+			invocation.setInput("CurrentURI", BenchEnvironment.getInstance().getMediaServer().getUri(1));
+			invocation.setInput("CurrentURIMetaData", "");
+			execute(manager, invocation);
+		}
+		return manager;
+	}
+
+	/**
+	 * Start an invocation of one of the service's actions for instance 0
+	 * @param manager
+	 * @param actionName
+	 * @return
+	 */
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	private static ActionInvocation<LocalService<CliMRAVTransportService>> invocation(
+			ServiceManager<CliMRAVTransportService> manager, String actionName) {
+		Action action = manager.getService().getAction(actionName);
+		ActionInvocation invocation = new ActionInvocation(action);
+		invocation.setInput("InstanceID", new UnsignedIntegerFourBytes(0));
+		return invocation;
+	}
+
+	/**
+	 * Run an invocation the way Cling does for a SOAP request
+	 * @param manager
+	 * @param invocation
+	 * @throws Exception if the action failed
+	 */
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	private static void execute(ServiceManager<CliMRAVTransportService> manager,
+			ActionInvocation invocation) throws Exception {
+		ActionExecutor executor = manager.getService().getExecutor(invocation.getAction());
+		executor.execute(invocation);
+		if (invocation.getFailure() != null) {
+			throw invocation.getFailure();
+		}
+	}
+
+	/**
+	 * Invokes an action that takes nothing but the instance id
+	 */
+	private static class ActionBenchmark extends Benchmark {
+
+		private final String actionName;
+
+		private ServiceManager<CliMRAVTransportService> manager;
+
+		ActionBenchmark(String name) {
+			super(name);
+			actionName = name.substring(name.indexOf('.') + 1);
+		}
+
+		@Override
+		public void setUp() throws Exception {
+			manager = loadedRenderer();
+		}
+
+		@Override
+		public Object run() throws Exception {
+			ActionInvocation<LocalService<CliMRAVTransportService>> invocation = invocation(manager, actionName);
+			execute(manager, invocation);
+			return invocation.getOutput();
+		}
+	}
+}
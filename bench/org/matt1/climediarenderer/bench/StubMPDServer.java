@@ -0,0 +1,165 @@
+package org.matt1.climediarenderer.bench;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Just enough of an MPD server to stand in for a real one in the benchmarks.  It answers every
+ * command straight away without playing anything, so what gets measured is our side of the
+ * conversation rather than MPD's.  idle waits until noidle or the connection is closed.
+ *
+ * @author Matt
+ *
+ */
+class StubMPDServer {
+
+	private static final String GREETING = "OK MPD 0.19.0\n";
+
+	private final ServerSocket server;
+
+	private final List<Socket> connections = new ArrayList<Socket>();
+
+	/** Ids handed out by addid */
+	private final AtomicInteger nextId = new AtomicInteger(1);
+
+	/** Bumped whenever the playlist changes, as MPD does */
+	private final AtomicInteger playlistVersion = new AtomicInteger(1);
+
+	private volatile boolean running = true;
+
+	StubMPDServer() throws IOException {
+		server = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+		Thread acceptor = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				accept();
+			}
+		}, "stub-mpd");
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	int getPort() {
+		return server.getLocalPort();
+	}
+
+	void shutdown() {
+		running = false;
+		try {
+			server.close();
+		} catch (IOException e) {
+			// Closing anyway
+		}
+		synchronized (connections) {
+			for (Socket connection : connections) {
+				try {
+					connection.close();
+				} catch (IOException e) {
+					// Closing anyway
+				}
+			}
+		}
+	}
+
+	private void accept() {
+		while (running) {
+			try {
+				final Socket connection = server.accept();
+				connection.setTcpNoDelay(true);
+				synchronized (connections) {
+					connections.add(connection);
+				}
+				Thread thread = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						serve(connection);
+					}
+				}, "stub-mpd-connection");
+				thread.setDaemon(true);
+				thread.start();
+			} catch (IOException e) {
+				// Shut down
+			}
+		}
+	}
+
+	/**
+	 * Answer commands on one connection until it is closed
+	 * @param connection
+	 */
+	private void serve(Socket connection) {
+		try {
+			BufferedReader in = new BufferedReader(new InputStreamReader(connection.getInputStream(), "UTF-8"));
+			OutputStream out = connection.getOutputStream();
+			out.write(GREETING.getBytes("UTF-8"));
+			out.flush();
+
+			List<String> commandList = null;
+			String line;
+			while ((line = in.readLine()) != null) {
+				StringBuilder response = new StringBuilder();
+				if (line.equals("command_list_ok_begin") || line.equals("command_list_begin")) {
+					commandList = new ArrayList<String>();
+					continue;
+				} else if (commandList != null && !line.equals("command_list_end")) {
+					commandList.add(line);
+					continue;
+				} else if (commandList != null) {
+					for (String command : commandList) {
+						response.append(answer(command)).append("list_OK\n");
+					}
+					commandList = null;
+				} else if (line.startsWith("idle")) {
+					// Nothing ever changes, so just wait to be told to stop
+					line = in.readLine();
+					if (line == null) {
+						break;
+					}
+				} else {
+					response.append(answer(line));
+				}
+				response.append("OK\n");
+				out.write(response.toString().getBytes("UTF-8"));
+				out.flush();
+			}
+		} catch (IOException e) {
+			// Client went away
+		} finally {
+			synchronized (connections) {
+				connections.remove(connection);
+			}
+			try {
+				connection.close();
+			} catch (IOException e) {
+				// Closing anyway
+			}
+		}
+	}
+
+	/**
+	 * Response lines for a single command, not including the final OK
+	 * @param command
+	 * @return
+	 */
+	private String answer(String command) {
+		String name = command.split(" ", 2)[0];
+		if (name.equals("status")) {
+			return "volume: 100\nrepeat: 0\nrandom: 0\nsingle: 0\nconsume: 0\nplaylist: " + playlistVersion.get()
+					+ "\nplaylistlength: 1\nstate: stop\nsong: 0\nsongid: 1\n";
+		} else if (name.equals("addid")) {
+			playlistVersion.incrementAndGet();
+			return "Id: " + nextId.incrementAndGet() + "\n";
+		} else if (name.equals("add") || name.equals("clear") || name.equals("deleteid")) {
+			playlistVersion.incrementAndGet();
+		}
+		return "";
+	}
+}
@@ -0,0 +1,71 @@
+package org.matt1.climediarenderer.bench;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Stands in for the media server in the benchmarks.  Every path is an MP3 of the same length;
+ * HEAD gets just the headers and GET gets silence, so the renderer's checks on a track's URI
+ * always pass without going anywhere near the network.
+ *
+ * @author Matt
+ *
+ */
+class StubMediaServer {
+
+	/** Size of every track, a little over a minute at 128kbps */
+	private static final int TRACK_LENGTH = 1024 * 1024;
+
+	private final HttpServer server;
+
+	private final ExecutorService executor = Executors.newCachedThreadPool();
+
+	StubMediaServer() throws IOException {
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0), 50);
+		server.createContext("/", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				exchange.getResponseHeaders().set("Content-Type", "audio/mpeg");
+				exchange.getResponseHeaders().set("Accept-Ranges", "bytes");
+				exchange.getResponseHeaders().set("contentFeatures.dlna.org",
+						"DLNA.ORG_PN=MP3;DLNA.ORG_OP=01;DLNA.ORG_FLAGS=01700000000000000000000000000000");
+				if (exchange.getRequestMethod().equals("HEAD")) {
+					exchange.getResponseHeaders().set("Content-Length", String.valueOf(TRACK_LENGTH));
+					exchange.sendResponseHeaders(200, -1);
+				} else {
+					exchange.sendResponseHeaders(200, TRACK_LENGTH);
+					OutputStream out = exchange.getResponseBody();
+					byte[] silence = new byte[8192];
+					for (int sent = 0; sent < TRACK_LENGTH; sent += silence.length) {
+						out.write(silence, 0, Math.min(silence.length, TRACK_LENGTH - sent));
+					}
+				}
+				exchange.close();
+			}
+		});
+		server.setExecutor(executor);
+		server.start();
+	}
+
+	/**
+	 * URI of a track on this server
+	 * @param track
+	 * @return
+	 */
+	String getUri(int track) {
+		return "http://127.0.0.1:" + server.getAddress().getPort() + "/track" + track + ".mp3";
+	}
+
+	void shutdown() {
+		server.stop(0);
+		executor.shutdownNow();
+	}
+}
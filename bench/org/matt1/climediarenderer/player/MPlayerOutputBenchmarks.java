@@ -0,0 +1,120 @@
+package org.matt1.climediarenderer.player;
+
+import java.io.IOException;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.matt1.climediarenderer.bench.Benchmark;
+import org.matt1.climediarenderer.utils.PropertyHelper;
+
+/**
+ * Benchmarks for reading MPlayer's slave mode output.  These live alongside the player classes
+ * as the reader and process aren't public.
+ *
+ * @author Matt
+ *
+ */
+public class MPlayerOutputBenchmarks {
+
+	/**
+	 * Create the MPlayer output benchmarks
+	 * @return
+	 */
+	public static List<Benchmark> create() {
+		List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+
+		benchmarks.add(new ReaderBenchmark("mplayer.output.answer") {
+			@Override
+			public Object run() throws Exception {
+				// A position query being asked and answered, as the position tracker does
+				MPlayerOutputReader.PropertyQuery query = reader.expect("time_pos");
+				reader.handleLine("ANS_time_pos=123.4");
+				return query.get(0);
+			}
+		});
+
+		benchmarks.add(new ReaderBenchmark("mplayer.output.playing") {
+			@Override
+			public Object run() throws Exception {
+				reader.handleLine("Playing http://192.168.0.2:50599/disk/DLNA-PNMP3-OP01-FLAGS01700000/O0$1$8I450314.mp3.");
+				return reader;
+			}
+		});
+
+		benchmarks.add(new ReaderBenchmark("mplayer.output.status") {
+			@Override
+			public Object run() throws Exception {
+				// Anything else MPlayer says is only logged
+				reader.handleLine("A: 123.4 (02:03.4) of 245.0 (04:05.0)  0.5%");
+				return reader;
+			}
+		});
+
+		benchmarks.add(new Benchmark("mplayer.getProperty") {
+
+			private MPlayerProcess process;
+
+			@Override
+			public void setUp() throws Exception {
+				process = new MPlayerProcess(PropertyHelper.getInstance().getMPlayerPath(), null);
+				if (process.getProperty("time_pos", 5000) == null) {
+					throw new IOException("Stub MPlayer didn't answer");
+				}
+			}
+
+			@Override
+			public Object run() throws Exception {
+				// The whole round trip through the stub process's pipes
+				return process.getProperty("time_pos", 1000);
+			}
+
+			@Override
+			public void tearDown() throws Exception {
+				process.destroy();
+			}
+		});
+
+		return benchmarks;
+	}
+
+	/**
+	 * Feeds lines straight to a reader, whose own threads sit waiting on pipes nothing is
+	 * written to
+	 */
+	private static abstract class ReaderBenchmark extends Benchmark {
+
+		protected MPlayerOutputReader reader;
+
+		private PipedOutputStream stdout;
+
+		private PipedOutputStream stderr;
+
+		ReaderBenchmark(String name) {
+			super(name);
+		}
+
+		@Override
+		public void setUp() throws Exception {
+			stdout = new PipedOutputStream();
+			stderr = new PipedOutputStream();
+			reader = new MPlayerOutputReader("mplayer-bench", new PipedInputStream(stdout), new PipedInputStream(stderr));
+			reader.setListener(new PlayerListener() {
+				@Override
+				public void trackChanged(String uri) {
+				}
+
+				@Override
+				public void stateChanged(PlayerState state) {
+				}
+			});
+		}
+
+		@Override
+		public void tearDown() throws Exception {
+			stdout.close();
+			stderr.close();
+		}
+	}
+}
@@ -0,0 +1,10 @@
+#!/bin/sh
+# Stands in for MPlayer in the benchmarks.  Answers get_property and says it is playing
+# whatever it is told to load, without playing anything.
+while read -r line; do
+	case "$line" in
+		*get_property\ *) echo "ANS_${line##* }=0.0";;
+		loadfile\ *) file=${line#loadfile \"}; echo "Playing ${file%%\"*}.";;
+		quit*) exit 0;;
+	esac
+done
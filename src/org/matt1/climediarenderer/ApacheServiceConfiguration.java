@@ -1,17 +1,34 @@
 package org.matt1.climediarenderer;
 
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
 import org.fourthline.cling.DefaultUpnpServiceConfiguration;
 import org.fourthline.cling.transport.impl.apache.StreamClientConfigurationImpl;
-import org.fourthline.cling.transport.impl.apache.StreamClientImpl;
 import org.fourthline.cling.transport.impl.apache.StreamServerConfigurationImpl;
 import org.fourthline.cling.transport.impl.apache.StreamServerImpl;
 import org.fourthline.cling.transport.spi.NetworkAddressFactory;
 import org.fourthline.cling.transport.spi.StreamClient;
 import org.fourthline.cling.transport.spi.StreamServer;
+import org.matt1.climediarenderer.utils.PropertyHelper;
 
 /**
  * Configuration to use Apache instead of JRE-based HTTP.  Needed for things that don't support
- * the built-in HTTP, like OpenJDK on ARM.
+ * the built-in HTTP, like OpenJDK on ARM.  Requests to control points are made by a
+ * PooledStreamClient, sized from the httpClient settings, and requests from them are answered
+ * by Apache's server or, with streamServer=nio, a NioStreamServer.
+ *
+ * Protocol work runs on Cling's own executor unless executorProfile says to use a
+ * ProtocolExecutor instead.  Work that runs for as long as the stack does - listening for
+ * multicasts and connections, and maintaining the registry - always stays on Cling's executor,
+ * so it can't take up the ProtocolExecutor's threads.
+ *
+ * Both executors' threads are given threadStackSize stacks, and the registry is maintained
+ * every registryMaintenanceInterval milliseconds, so embedded mode can use less memory and
+ * wake up less often.
  * 
  * @author Matt
  *
@@ -19,18 +36,149 @@ import org.fourthline.cling.transport.spi.StreamServer;
 @SuppressWarnings("rawtypes")
 public class ApacheServiceConfiguration extends DefaultUpnpServiceConfiguration {
 
+	/** Log used to display messages to the console */
+	private static Logger log = Logger.getLogger(ApacheServiceConfiguration.class.getName());
+
+	/** Used to give each of Cling's threads a distinct name */
+	private static final AtomicInteger count = new AtomicInteger();
+
+	/** Runs protocol work, or null to leave it on Cling's executor */
+	private ProtocolExecutor protocolExecutor;
+
+	private boolean protocolExecutorCreated;
+
 	@Override
     public StreamClient createStreamClient() {
-        return new StreamClientImpl(new StreamClientConfigurationImpl());
+        StreamClientConfigurationImpl configuration = new StreamClientConfigurationImpl();
+        int maxPerRoute = 4;
+        int idleTimeout = 30;
+        configuration.setMaxTotalConnections(64);
+        try {
+            PropertyHelper properties = PropertyHelper.getInstance();
+            configuration.setMaxTotalConnections(properties.getHttpClientMaxConnections());
+            configuration.setConnectionTimeoutSeconds(properties.getHttpClientConnectTimeout());
+            configuration.setDataReadTimeoutSeconds(properties.getHttpClientReadTimeout());
+            maxPerRoute = properties.getHttpClientMaxConnectionsPerRoute();
+            idleTimeout = properties.getHttpClientIdleTimeout();
+        } catch (Exception e) {
+            // Use the defaults
+        }
+        return new PooledStreamClient(configuration, maxPerRoute, idleTimeout);
     }
 
     @Override
     public StreamServer createStreamServer(NetworkAddressFactory networkAddressFactory) {
-        return new StreamServerImpl(
-                new StreamServerConfigurationImpl(
-                        networkAddressFactory.getStreamListenPort()
-                )
-        );
+        StreamServerConfigurationImpl configuration =
+                new StreamServerConfigurationImpl(networkAddressFactory.getStreamListenPort());
+        String type = "apache";
+        try {
+            PropertyHelper properties = PropertyHelper.getInstance();
+            type = properties.getStreamServer();
+            configuration.setDataWaitTimeoutSeconds(properties.getStreamServerIdleTimeout());
+        } catch (Exception e) {
+            // Use the defaults
+        }
+        if (type.equalsIgnoreCase("nio")) {
+            return new NioStreamServer(configuration);
+        }
+        // Apache's server waits for data on each connection for the default 5 seconds
+        configuration.setDataWaitTimeoutSeconds(new StreamServerConfigurationImpl().getDataWaitTimeoutSeconds());
+        return new StreamServerImpl(configuration);
+    }
+
+    @Override
+    public int getRegistryMaintenanceIntervalMillis() {
+        try {
+            return PropertyHelper.getInstance().getRegistryMaintenanceInterval();
+        } catch (Exception e) {
+            return super.getRegistryMaintenanceIntervalMillis();
+        }
+    }
+
+    @Override
+    protected Executor createDefaultExecutor() {
+        // Called from Cling's constructor, before any of our fields are set
+        final long stackSize = getThreadStackSize() * 1024L;
+        return new ClingExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(null, runnable, "cling-" + count.incrementAndGet(), stackSize);
+                // Like Cling's own, these keep the renderer running
+                thread.setDaemon(false);
+                return thread;
+            }
+        }, new ThreadPoolExecutor.DiscardPolicy());
+    }
+
+    @Override
+    public Executor getSyncProtocolExecutor() {
+        ProtocolExecutor executor = getProtocolExecutor();
+        return executor == null ? super.getSyncProtocolExecutor() : executor;
+    }
+
+    @Override
+    public Executor getAsyncProtocolExecutor() {
+        ProtocolExecutor executor = getProtocolExecutor();
+        return executor == null ? super.getAsyncProtocolExecutor() : executor;
+    }
+
+    @Override
+    public Executor getRegistryListenerExecutor() {
+        ProtocolExecutor executor = getProtocolExecutor();
+        return executor == null ? super.getRegistryListenerExecutor() : executor;
+    }
+
+    @Override
+    public void shutdown() {
+        super.shutdown();
+        ProtocolExecutor executor = getProtocolExecutor();
+        if (executor != null) {
+            executor.shutdown();
+        }
     }
 
-}
\ No newline at end of file
+    /**
+     * Create the executor executorProfile asks for the first time it is needed
+     * @return null for Cling's own
+     */
+    private synchronized ProtocolExecutor getProtocolExecutor() {
+        if (!protocolExecutorCreated) {
+            protocolExecutorCreated = true;
+            String profile = "cling";
+            int threads = 4;
+            int queueSize = 64;
+            int stackSize = getThreadStackSize();
+            try {
+                PropertyHelper properties = PropertyHelper.getInstance();
+                profile = properties.getExecutorProfile();
+                threads = properties.getExecutorThreads();
+                queueSize = properties.getExecutorQueueSize();
+            } catch (Exception e) {
+                // Use the defaults
+            }
+            if (profile.equalsIgnoreCase("virtual")) {
+                protocolExecutor = ProtocolExecutor.virtual("protocol");
+                if (protocolExecutor == null) {
+                    log.warning("Virtual threads need Java 21 or later, using a bounded pool instead");
+                    profile = "bounded";
+                }
+            }
+            if (profile.equalsIgnoreCase("bounded")) {
+                protocolExecutor = ProtocolExecutor.bounded("protocol", threads, queueSize, stackSize);
+            }
+        }
+        return protocolExecutor;
+    }
+
+    /**
+     * The stack size threadStackSize asks for
+     * @return kilobytes, or 0 for the JVM's default
+     */
+    private static int getThreadStackSize() {
+        try {
+            return PropertyHelper.getInstance().getThreadStackSize();
+        } catch (Exception e) {
+            return 0;
+        }
+    }
+}
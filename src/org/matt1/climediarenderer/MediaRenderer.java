@@ -1,11 +1,18 @@
 package org.matt1.climediarenderer;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import org.fourthline.cling.UpnpServiceImpl;
+import org.fourthline.cling.model.NetworkAddress;
+import org.matt1.climediarenderer.managers.LastChangeScheduler;
+import org.matt1.climediarenderer.metrics.Footprint;
+import org.matt1.climediarenderer.metrics.Metrics;
+import org.matt1.climediarenderer.player.PlayerFactory;
 import org.matt1.climediarenderer.services.CliMediaRenderer;
 import org.matt1.climediarenderer.utils.PropertyHelper;
+import org.matt1.climediarenderer.utils.RendererConfig;
 
 /**
  * Main entry class.  All it does it setup the UPnP service, create a new instane of the
@@ -21,13 +28,50 @@ public class MediaRenderer {
     	configureLogging();
     	
     	try {
-	    	CliMediaRenderer mediaRenderer = new CliMediaRenderer(PropertyHelper.getInstance().getName());
+    		PropertyHelper properties = PropertyHelper.getInstance();
+    		
+    		// One scheduler sends the events for every device
+    		final LastChangeScheduler lastChangeScheduler = 
+    				new LastChangeScheduler(properties.getLastChangeModeration());
+    		final List<CliMediaRenderer> mediaRenderers = new ArrayList<CliMediaRenderer>();
+    		for (RendererConfig config : properties.getRendererConfigs()) {
+    			mediaRenderers.add(new CliMediaRenderer(config, lastChangeScheduler));
+    		}
 	
-	    	UpnpServiceImpl upnp = new UpnpServiceImpl(new ApacheServiceConfiguration());
+	    	final RendererUpnpService upnp = new RendererUpnpService(new ApacheServiceConfiguration());
 	    	
-	    	upnp.getRegistry().addDevice(
-	                mediaRenderer.getDevice()
-	        );
+	    	Runtime.getRuntime().addShutdownHook(new Thread() {
+	    		public void run() {
+	    			for (CliMediaRenderer mediaRenderer : mediaRenderers) {
+	    				mediaRenderer.shutdown();
+	    			}
+	    			lastChangeScheduler.shutdown();
+	    			upnp.shutdown();
+	    			Footprint.getInstance().shutdown();
+	    		}
+	    	});
+	    	
+	    	for (CliMediaRenderer mediaRenderer : mediaRenderers) {
+		    	upnp.getRegistry().addDevice(
+		                mediaRenderer.getDevice()
+		        );
+		    	// In embedded mode the players are left until there is something to play
+		    	if (!properties.isEmbedded()) {
+		    		PlayerFactory.warmUp(mediaRenderer.getConfig());
+		    	}
+	    	}
+	    	for (CliMediaRenderer mediaRenderer : mediaRenderers) {
+	    		mediaRenderer.restore();
+	    	}
+	    	Footprint.getInstance().start();
+	    	
+	    	if (Metrics.getInstance().isEnabled()) {
+	    		for (NetworkAddress address : upnp.getRouter().getActiveStreamServers(null)) {
+	    			Logger.getLogger(MediaRenderer.class.getName()).info("Metrics available at http://" 
+	    					+ address.getAddress().getHostAddress() + ":" + address.getPort() 
+	    					+ RendererProtocolFactory.METRICS_PATH);
+	    		}
+	    	}
     	} catch (Exception e) {
     		Logger.getLogger(MediaRenderer.class.getName()).severe("Unexpected error starting up: " + e.getMessage());
     	}
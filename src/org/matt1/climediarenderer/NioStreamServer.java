@@ -0,0 +1,712 @@
+package org.matt1.climediarenderer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import org.apache.http.protocol.HttpDateGenerator;
+import org.fourthline.cling.model.message.StreamRequestMessage;
+import org.fourthline.cling.model.message.StreamResponseMessage;
+import org.fourthline.cling.model.message.UpnpHeaders;
+import org.fourthline.cling.model.message.UpnpMessage;
+import org.fourthline.cling.model.message.UpnpRequest;
+import org.fourthline.cling.transport.Router;
+import org.fourthline.cling.transport.impl.apache.StreamServerConfigurationImpl;
+import org.fourthline.cling.transport.spi.InitializationException;
+import org.fourthline.cling.transport.spi.StreamServer;
+import org.fourthline.cling.transport.spi.UpnpStream;
+import org.matt1.climediarenderer.metrics.Gauge;
+import org.matt1.climediarenderer.metrics.Metrics;
+
+/**
+ * A stream server for control points' HTTP requests - actions, subscriptions and descriptors -
+ * that watches every connection from one thread with a selector, rather than keeping a thread
+ * blocked on each one as Cling's servers do.  Only once a whole request has arrived is it
+ * handed to Cling's executor to be answered, so a control point holding a connection open
+ * between requests costs a few kilobytes rather than a thread.
+ *
+ * Connections left idle for longer than the configuration's data wait timeout are closed.
+ *
+ * @author Matt
+ *
+ */
+public class NioStreamServer implements StreamServer<StreamServerConfigurationImpl> {
+
+	/** Log used to display messages to the console */
+	private static Logger log = Logger.getLogger(NioStreamServer.class.getName());
+
+	/** Largest request line and headers accepted, in bytes */
+	private static final int MAX_HEAD = 16 * 1024;
+
+	/** Largest request body accepted, in bytes.  SOAP actions are a few kilobytes at most. */
+	private static final int MAX_BODY = 1024 * 1024;
+
+	/** Connections open on every server, for Metrics */
+	private static final AtomicInteger open = new AtomicInteger();
+
+	static {
+		Metrics.getInstance().gauge("http.server.connections", new Gauge() {
+			@Override
+			public long getValue() {
+				return open.get();
+			}
+		});
+	}
+
+	protected final StreamServerConfigurationImpl configuration;
+
+	protected Router router;
+
+	private ServerSocketChannel serverChannel;
+
+	private Selector selector;
+
+	/** Things for the selector thread to do, e.g. start sending a response */
+	private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
+	private final HttpDateGenerator dates = new HttpDateGenerator();
+
+	private volatile boolean stopped;
+
+	public NioStreamServer(StreamServerConfigurationImpl configuration) {
+		this.configuration = configuration;
+	}
+
+	@Override
+	public StreamServerConfigurationImpl getConfiguration() {
+		return configuration;
+	}
+
+	@Override
+	public synchronized void init(InetAddress bindAddress, Router router) throws InitializationException {
+		try {
+			this.router = router;
+			selector = Selector.open();
+			serverChannel = ServerSocketChannel.open();
+			serverChannel.socket().setReuseAddress(true);
+			serverChannel.socket().bind(new InetSocketAddress(bindAddress, configuration.getListenPort()),
+					configuration.getTcpConnectionBacklog());
+			serverChannel.configureBlocking(false);
+			serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+			log.info("Created socket (for receiving TCP streams) on: " + serverChannel.socket().getLocalSocketAddress());
+		} catch (IOException e) {
+			throw new InitializationException("Could not initialize " + getClass().getSimpleName() + ": " + e, e);
+		}
+	}
+
+	@Override
+	public synchronized int getPort() {
+		return serverChannel.socket().getLocalPort();
+	}
+
+	@Override
+	public synchronized void stop() {
+		stopped = true;
+		if (selector != null) {
+			selector.wakeup();
+		}
+	}
+
+	/**
+	 * Accept connections and read requests until stopped
+	 */
+	@Override
+	public void run() {
+		long idleMillis = Math.max(1, configuration.getDataWaitTimeoutSeconds()) * 1000L;
+		long lastSweep = System.currentTimeMillis();
+		try {
+			while (!stopped) {
+				selector.select(1000);
+				Runnable task;
+				while ((task = tasks.poll()) != null) {
+					task.run();
+				}
+				for (SelectionKey key : selector.selectedKeys()) {
+					if (!key.isValid()) {
+						continue;
+					}
+					if (key.isAcceptable()) {
+						accept();
+					} else {
+						Connection connection = (Connection) key.attachment();
+						if (key.isReadable()) {
+							connection.read();
+						}
+						if (key.isValid() && key.isWritable()) {
+							connection.write();
+						}
+					}
+				}
+				selector.selectedKeys().clear();
+
+				long now = System.currentTimeMillis();
+				if (now - lastSweep >= 1000) {
+					lastSweep = now;
+					for (SelectionKey key : selector.keys()) {
+						Connection connection = (Connection) key.attachment();
+						if (connection != null && !connection.busy && now - connection.lastActive > idleMillis) {
+							connection.close();
+						}
+					}
+				}
+			}
+		} catch (IOException e) {
+			log.warning("Exception using server socket: " + e.getMessage());
+		} finally {
+			for (SelectionKey key : selector.keys()) {
+				if (key.attachment() != null) {
+					((Connection) key.attachment()).close();
+				}
+			}
+			try {
+				serverChannel.close();
+				selector.close();
+			} catch (IOException e) {
+				log.warning("Exception closing streaming server socket: " + e.getMessage());
+			}
+		}
+	}
+
+	private void accept() throws IOException {
+		SocketChannel channel = serverChannel.accept();
+		if (channel == null) {
+			return;
+		}
+		channel.configureBlocking(false);
+		channel.socket().setTcpNoDelay(configuration.isTcpNoDelay());
+		Connection connection = new Connection(channel);
+		connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+		open.incrementAndGet();
+	}
+
+	/**
+	 * Build the bytes of a response
+	 * @param status e.g. 200
+	 * @param reason e.g. OK
+	 * @param headers to send as well as Date, Content-Length and Connection
+	 * @param body
+	 * @param close whether the connection will be closed afterwards
+	 * @return
+	 */
+	private byte[] serialize(int status, String reason, Map<String, List<String>> headers, byte[] body, boolean close) {
+		StringBuilder head = new StringBuilder(256);
+		head.append("HTTP/1.1 ").append(status).append(' ').append(reason).append("\r\n");
+		if (headers != null) {
+			for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+				for (String value : header.getValue()) {
+					head.append(header.getKey()).append(": ").append(value).append("\r\n");
+				}
+			}
+		}
+		head.append("Date: ").append(dates.getCurrentDate()).append("\r\n");
+		// Not modified and no content responses have no body to give the length of
+		if (status != 304 && status != 204) {
+			head.append("Content-Length: ").append(body.length).append("\r\n");
+		}
+		if (close) {
+			head.append("Connection: close\r\n");
+		}
+		head.append("\r\n");
+		byte[] headBytes = latin1(head.toString());
+		byte[] bytes = Arrays.copyOf(headBytes, headBytes.length + body.length);
+		System.arraycopy(body, 0, bytes, headBytes.length, body.length);
+		return bytes;
+	}
+
+	private static byte[] latin1(String text) {
+		try {
+			return text.getBytes("ISO-8859-1");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * A request that couldn't be understood, answered with the status given and the connection
+	 * closed
+	 */
+	private static class BadRequestException extends Exception {
+
+		private static final long serialVersionUID = 1L;
+
+		private final int status;
+
+		BadRequestException(int status, String message) {
+			super(message);
+			this.status = status;
+		}
+	}
+
+	/**
+	 * A request read off a connection, not yet answered
+	 */
+	private static class Request {
+
+		String method;
+
+		String uri;
+
+		int minorVersion;
+
+		/** Header names in lower case */
+		Map<String, List<String>> headers = new LinkedHashMap<String, List<String>>();
+
+		/** Bytes taken by the request line and headers */
+		int headLength;
+
+		long contentLength;
+
+		boolean chunked;
+
+		byte[] body;
+
+		String getHeader(String name) {
+			List<String> values = headers.get(name);
+			return values == null || values.isEmpty() ? null : values.get(0);
+		}
+
+		/**
+		 * Whether the connection should be closed once this is answered
+		 * @return
+		 */
+		boolean isClose() {
+			String connection = getHeader("connection");
+			if (minorVersion == 0) {
+				return connection == null || !connection.toLowerCase(Locale.ROOT).contains("keep-alive");
+			}
+			return connection != null && connection.toLowerCase(Locale.ROOT).contains("close");
+		}
+	}
+
+	/**
+	 * One control point's connection.  Everything but close() is only called on the selector
+	 * thread.
+	 */
+	private class Connection {
+
+		private final SocketChannel channel;
+
+		private SelectionKey key;
+
+		/** What has been read but not yet made into a request, ready to read more into */
+		private ByteBuffer in = ByteBuffer.allocate(4096);
+
+		/** The request whose head has been read, while waiting for its body */
+		private Request request;
+
+		/** What is being sent, or null */
+		private ByteBuffer out;
+
+		private boolean closeAfterWrite;
+
+		/** Set while a request is being answered, so no more are read until it has been */
+		private volatile boolean busy;
+
+		private volatile long lastActive = System.currentTimeMillis();
+
+		private boolean closed;
+
+		Connection(SocketChannel channel) {
+			this.channel = channel;
+		}
+
+		void read() {
+			try {
+				if (!in.hasRemaining()) {
+					if (in.capacity() >= MAX_HEAD + 2 * MAX_BODY) {
+						throw new BadRequestException(413, "Request Entity Too Large");
+					}
+					ByteBuffer larger = ByteBuffer.allocate(in.capacity() * 2);
+					in.flip();
+					larger.put(in);
+					in = larger;
+				}
+				if (channel.read(in) < 0) {
+					close();
+					return;
+				}
+				lastActive = System.currentTimeMillis();
+				handleInput();
+			} catch (IOException e) {
+				close();
+			} catch (BadRequestException e) {
+				log.fine("Bad request: " + e.getMessage());
+				send(serialize(e.status, e.getMessage(), null, new byte[0], true), true);
+			}
+		}
+
+		/**
+		 * Start answering the next request if the whole of it has arrived
+		 * @throws BadRequestException
+		 */
+		private void handleInput() throws BadRequestException {
+			if (busy || closed) {
+				return;
+			}
+			Request complete = parse();
+			if (complete != null) {
+				busy = true;
+				key.interestOps(0);
+				try {
+					router.received(new NioUpnpStream(this, complete));
+				} catch (RejectedExecutionException e) {
+					send(serialize(503, "Service Unavailable", null, new byte[0], true), true);
+				}
+			}
+		}
+
+		/**
+		 * Take a whole request from what has been read, if there is one
+		 * @return null if there isn't one yet
+		 * @throws BadRequestException
+		 */
+		private Request parse() throws BadRequestException {
+			byte[] data = in.array();
+			int length = in.position();
+			if (request == null) {
+				int headEnd = findHeadEnd(data, length);
+				if (headEnd < 0) {
+					if (length > MAX_HEAD) {
+						throw new BadRequestException(413, "Request Entity Too Large");
+					}
+					return null;
+				}
+				request = parseHead(data, headEnd);
+				String expect = request.getHeader("expect");
+				if (expect != null && expect.equalsIgnoreCase("100-continue") && request.minorVersion > 0) {
+					try {
+						channel.write(ByteBuffer.wrap(latin1("HTTP/1.1 100 Continue\r\n\r\n")));
+					} catch (IOException e) {
+						// Will be found when reading
+					}
+				}
+			}
+
+			int consumed;
+			if (request.chunked) {
+				consumed = decodeChunks(data, request.headLength, length);
+				if (consumed < 0) {
+					return null;
+				}
+			} else {
+				if (length - request.headLength < request.contentLength) {
+					return null;
+				}
+				consumed = request.headLength + (int) request.contentLength;
+				request.body = Arrays.copyOfRange(data, request.headLength, consumed);
+			}
+
+			// Keep anything after this request for the next
+			System.arraycopy(data, consumed, data, 0, length - consumed);
+			in.position(length - consumed);
+			Request complete = request;
+			request = null;
+			return complete;
+		}
+
+		/**
+		 * Find the blank line after the headers
+		 * @return the index just after it, or -1 if it hasn't arrived
+		 */
+		private int findHeadEnd(byte[] data, int length) {
+			for (int i = 0; i < length - 1; i++) {
+				if (data[i] == '\n') {
+					if (data[i + 1] == '\n') {
+						return i + 2;
+					}
+					if (data[i + 1] == '\r' && i + 2 < length && data[i + 2] == '\n') {
+						return i + 3;
+					}
+				}
+			}
+			return -1;
+		}
+
+		private Request parseHead(byte[] data, int headEnd) throws BadRequestException {
+			String[] lines;
+			try {
+				lines = new String(data, 0, headEnd, "ISO-8859-1").split("\r?\n");
+			} catch (UnsupportedEncodingException e) {
+				throw new IllegalStateException(e);
+			}
+			String[] requestLine = lines[0].split(" ");
+			if (requestLine.length != 3 || !requestLine[2].startsWith("HTTP/1.")) {
+				throw new BadRequestException(400, "Bad Request");
+			}
+			Request parsed = new Request();
+			parsed.method = requestLine[0];
+			parsed.uri = requestLine[1];
+			parsed.minorVersion = requestLine[2].equals("HTTP/1.0") ? 0 : 1;
+			parsed.headLength = headEnd;
+
+			String lastName = null;
+			for (int i = 1; i < lines.length; i++) {
+				String line = lines[i];
+				if (line.length() == 0) {
+					continue;
+				}
+				if ((line.charAt(0) == ' ' || line.charAt(0) == '\t') && lastName != null) {
+					// Folded onto the next line
+					List<String> values = parsed.headers.get(lastName);
+					int last = values.size() - 1;
+					values.set(last, values.get(last) + " " + line.trim());
+					continue;
+				}
+				int colon = line.indexOf(':');
+				if (colon <= 0) {
+					throw new BadRequestException(400, "Bad Request");
+				}
+				lastName = line.substring(0, colon).trim().toLowerCase(Locale.ROOT);
+				List<String> values = parsed.headers.get(lastName);
+				if (values == null) {
+					values = new ArrayList<String>(1);
+					parsed.headers.put(lastName, values);
+				}
+				values.add(line.substring(colon + 1).trim());
+			}
+
+			String transferEncoding = parsed.getHeader("transfer-encoding");
+			parsed.chunked = transferEncoding != null && transferEncoding.toLowerCase(Locale.ROOT).contains("chunked");
+			String contentLength = parsed.getHeader("content-length");
+			if (!parsed.chunked && contentLength != null) {
+				try {
+					parsed.contentLength = Long.parseLong(contentLength);
+				} catch (NumberFormatException e) {
+					throw new BadRequestException(400, "Bad Request");
+				}
+				if (parsed.contentLength < 0) {
+					throw new BadRequestException(400, "Bad Request");
+				}
+				if (parsed.contentLength > MAX_BODY) {
+					throw new BadRequestException(413, "Request Entity Too Large");
+				}
+			}
+			return parsed;
+		}
+
+		/**
+		 * Put together a chunked body, if all of it has arrived
+		 * @return the index just after the body, or -1 if it hasn't all arrived
+		 * @throws BadRequestException
+		 */
+		private int decodeChunks(byte[] data, int start, int length) throws BadRequestException {
+			byte[] body = new byte[0];
+			int position = start;
+			while (true) {
+				int lineEnd = indexOf(data, (byte) '\n', position, length);
+				if (lineEnd < 0) {
+					return -1;
+				}
+				String sizeLine = new String(data, position, lineEnd - position).trim();
+				int extension = sizeLine.indexOf(';');
+				int size;
+				try {
+					size = Integer.parseInt(extension < 0 ? sizeLine : sizeLine.substring(0, extension).trim(), 16);
+				} catch (NumberFormatException e) {
+					throw new BadRequestException(400, "Bad Request");
+				}
+				if (size < 0 || body.length + (long) size > MAX_BODY) {
+					throw new BadRequestException(413, "Request Entity Too Large");
+				}
+				position = lineEnd + 1;
+				if (size == 0) {
+					// Skip any trailers, up to the blank line
+					while (true) {
+						int trailerEnd = indexOf(data, (byte) '\n', position, length);
+						if (trailerEnd < 0) {
+							return -1;
+						}
+						boolean blank = trailerEnd == position || (trailerEnd == position + 1 && data[position] == '\r');
+						position = trailerEnd + 1;
+						if (blank) {
+							request.body = body;
+							return position;
+						}
+					}
+				}
+				if (length - position < size) {
+					return -1;
+				}
+				int previous = body.length;
+				body = Arrays.copyOf(body, previous + size);
+				System.arraycopy(data, position, body, previous, size);
+				position += size;
+				// Each chunk ends with a line break
+				int chunkEnd = indexOf(data, (byte) '\n', position, length);
+				if (chunkEnd < 0) {
+					return -1;
+				}
+				position = chunkEnd + 1;
+			}
+		}
+
+		private int indexOf(byte[] data, byte value, int from, int to) {
+			for (int i = from; i < to; i++) {
+				if (data[i] == value) {
+					return i;
+				}
+			}
+			return -1;
+		}
+
+		/**
+		 * Start sending a response.  Called on the selector thread.
+		 * @param response
+		 * @param close whether to close the connection once it has been sent
+		 */
+		void send(byte[] response, boolean close) {
+			if (closed) {
+				return;
+			}
+			out = ByteBuffer.wrap(response);
+			closeAfterWrite = close;
+			busy = true;
+			write();
+		}
+
+		void write() {
+			try {
+				channel.write(out);
+			} catch (IOException e) {
+				close();
+				return;
+			}
+			lastActive = System.currentTimeMillis();
+			if (out.hasRemaining()) {
+				key.interestOps(SelectionKey.OP_WRITE);
+				return;
+			}
+			out = null;
+			if (closeAfterWrite) {
+				close();
+				return;
+			}
+			busy = false;
+			key.interestOps(SelectionKey.OP_READ);
+			try {
+				// A control point may have sent its next request already
+				handleInput();
+			} catch (BadRequestException e) {
+				send(serialize(e.status, e.getMessage(), null, new byte[0], true), true);
+			}
+		}
+
+		/**
+		 * Have the selector thread send a response.  Called once a request has been answered.
+		 * @param response
+		 * @param close
+		 */
+		void respond(final byte[] response, final boolean close) {
+			tasks.add(new Runnable() {
+				@Override
+				public void run() {
+					send(response, close);
+				}
+			});
+			selector.wakeup();
+		}
+
+		synchronized void close() {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			busy = false;
+			open.decrementAndGet();
+			if (key != null) {
+				key.cancel();
+			}
+			try {
+				channel.close();
+			} catch (IOException e) {
+				// Closed anyway
+			}
+		}
+	}
+
+	/**
+	 * Answers one request on Cling's executor, then hands the response back to the selector
+	 * thread to send.  Closing it instead answers that the server is too busy.
+	 */
+	private class NioUpnpStream extends UpnpStream implements Closeable {
+
+		private final Connection connection;
+
+		private final Request request;
+
+		NioUpnpStream(Connection connection, Request request) {
+			super(router.getProtocolFactory());
+			this.connection = connection;
+			this.request = request;
+		}
+
+		@Override
+		public void close() {
+			connection.respond(serialize(503, "Service Unavailable", null, new byte[0], true), true);
+		}
+
+		@Override
+		public void run() {
+			boolean close = request.isClose() || stopped;
+			try {
+				UpnpRequest.Method method = UpnpRequest.Method.getByHttpName(request.method);
+				if (method == null || method.equals(UpnpRequest.Method.UNKNOWN)) {
+					connection.respond(serialize(501, "Not Implemented", null, new byte[0], close), close);
+					return;
+				}
+				URI uri;
+				try {
+					uri = URI.create(request.uri);
+				} catch (IllegalArgumentException e) {
+					connection.respond(serialize(400, "Bad Request", null, new byte[0], true), true);
+					return;
+				}
+
+				StreamRequestMessage requestMessage = new StreamRequestMessage(method, uri);
+				requestMessage.getOperation().setHttpMinorVersion(request.minorVersion);
+				requestMessage.setHeaders(new UpnpHeaders(request.headers));
+				if (request.body.length > 0) {
+					if (requestMessage.isContentTypeMissingOrText()) {
+						requestMessage.setBodyCharacters(request.body);
+					} else {
+						requestMessage.setBody(UpnpMessage.BodyType.BYTES, request.body);
+					}
+				}
+				Metrics.getInstance().increment("http.server.requests");
+
+				StreamResponseMessage responseMessage = process(requestMessage);
+				if (responseMessage == null) {
+					connection.respond(serialize(404, "Not Found", null, new byte[0], close), close);
+					return;
+				}
+				byte[] body = responseMessage.hasBody() ? responseMessage.getBodyBytes() : new byte[0];
+				connection.respond(serialize(responseMessage.getOperation().getStatusCode(),
+						responseMessage.getOperation().getStatusMessage(), responseMessage.getHeaders(), body, close), close);
+				responseSent(responseMessage);
+			} catch (Throwable t) {
+				log.fine("Exception occured during UPnP stream processing: " + t);
+				connection.respond(serialize(500, "Internal Server Error", null, new byte[0], true), true);
+				responseException(t);
+			}
+		}
+	}
+}
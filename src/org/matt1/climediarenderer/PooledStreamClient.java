@@ -0,0 +1,158 @@
+package org.matt1.climediarenderer;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeSocketFactory;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.HttpContext;
+import org.fourthline.cling.model.message.StreamRequestMessage;
+import org.fourthline.cling.model.message.StreamResponseMessage;
+import org.fourthline.cling.transport.impl.apache.StreamClientConfigurationImpl;
+import org.fourthline.cling.transport.impl.apache.StreamClientImpl;
+import org.matt1.climediarenderer.metrics.Gauge;
+import org.matt1.climediarenderer.metrics.Metrics;
+
+/**
+ * Cling's Apache HTTP client, mostly used to send events to control points, keeping
+ * connections open between requests.  Each control point can have several connections open
+ * at once rather than HttpClient's default of two, and connections left idle for longer than
+ * a set time are closed, rather than kept until the control point closes them.
+ *
+ * How many connections are open and how many requests are being made can be seen under
+ * http.client in Metrics; http.client.connects against http.client.requests shows how often
+ * connections are being reused.
+ *
+ * @author Matt
+ *
+ */
+public class PooledStreamClient extends StreamClientImpl {
+
+	/** Used to give each thread a distinct name */
+	private static final AtomicInteger count = new AtomicInteger();
+
+	private final Metrics metrics = Metrics.getInstance();
+
+	/** Requests being made, or waiting for a connection */
+	private final AtomicInteger inFlight = new AtomicInteger();
+
+	/** Closes connections that have been idle too long */
+	private final ScheduledExecutorService evictor;
+
+	/**
+	 * Create a new client
+	 * @param configuration most connections in total, and timeouts
+	 * @param maxPerRoute most connections to any one control point
+	 * @param idleSeconds how long a connection can be left idle before it is closed
+	 */
+	public PooledStreamClient(StreamClientConfigurationImpl configuration, int maxPerRoute, int idleSeconds) {
+		super(configuration);
+		final long idleMillis = Math.max(1, idleSeconds) * 1000L;
+
+		clientConnectionManager.setMaxTotal(configuration.getMaxTotalConnections());
+		clientConnectionManager.setDefaultMaxPerRoute(Math.max(1, maxPerRoute));
+		clientConnectionManager.getSchemeRegistry().register(
+				new Scheme("http", 80, new CountingSocketFactory(PlainSocketFactory.getSocketFactory())));
+
+		// Keep a connection no longer than the control point says it will, nor than idleSeconds
+		httpClient.setKeepAliveStrategy(new DefaultConnectionKeepAliveStrategy() {
+			@Override
+			public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+				long duration = super.getKeepAliveDuration(response, context);
+				return duration > 0 ? Math.min(duration, idleMillis) : idleMillis;
+			}
+		});
+
+		evictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "http-client-evictor-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		long period = Math.max(1000, idleMillis / 2);
+		evictor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				clientConnectionManager.closeExpiredConnections();
+				clientConnectionManager.closeIdleConnections(idleMillis, TimeUnit.MILLISECONDS);
+			}
+		}, period, period, TimeUnit.MILLISECONDS);
+
+		metrics.gauge("http.client.pool.connections", new Gauge() {
+			@Override
+			public long getValue() {
+				return clientConnectionManager.getConnectionsInPool();
+			}
+		});
+		metrics.gauge("http.client.pool.max", new Gauge() {
+			@Override
+			public long getValue() {
+				return clientConnectionManager.getMaxTotal();
+			}
+		});
+		metrics.gauge("http.client.inflight", new Gauge() {
+			@Override
+			public long getValue() {
+				return inFlight.get();
+			}
+		});
+	}
+
+	@Override
+	public StreamResponseMessage sendRequest(StreamRequestMessage requestMessage) {
+		inFlight.incrementAndGet();
+		metrics.increment("http.client.requests");
+		try {
+			return super.sendRequest(requestMessage);
+		} finally {
+			inFlight.decrementAndGet();
+		}
+	}
+
+	@Override
+	public void stop() {
+		evictor.shutdownNow();
+		super.stop();
+	}
+
+	/**
+	 * Opens plain sockets, counting each one as a new connection
+	 */
+	private class CountingSocketFactory implements SchemeSocketFactory {
+
+		private final SchemeSocketFactory factory;
+
+		CountingSocketFactory(SchemeSocketFactory factory) {
+			this.factory = factory;
+		}
+
+		@Override
+		public Socket createSocket(HttpParams params) throws IOException {
+			return factory.createSocket(params);
+		}
+
+		@Override
+		public Socket connectSocket(Socket socket, InetSocketAddress remoteAddress, InetSocketAddress localAddress,
+				HttpParams params) throws IOException {
+			metrics.increment("http.client.connects");
+			return factory.connectSocket(socket, remoteAddress, localAddress, params);
+		}
+
+		@Override
+		public boolean isSecure(Socket socket) {
+			return factory.isSecure(socket);
+		}
+	}
+}
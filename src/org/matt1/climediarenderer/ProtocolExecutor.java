@@ -0,0 +1,165 @@
+package org.matt1.climediarenderer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import org.matt1.climediarenderer.metrics.Gauge;
+import org.matt1.climediarenderer.metrics.Metrics;
+
+/**
+ * Runs the UPnP stack's protocol work - answering actions, subscriptions and searches, and
+ * telling listeners about the registry - on either a small fixed pool of named threads with a
+ * limited queue, or a virtual thread per task where the JVM has them.  Cling's own executor
+ * starts a new thread whenever none is free, without limit.
+ *
+ * Under executor.&lt;name&gt; in Metrics are how many tasks are waiting and running, how long
+ * they waited to start, and how many were turned away because the queue was full.  A task
+ * turned away that is Closeable is closed, so e.g. a request can be answered as refused
+ * rather than left waiting.
+ *
+ * @author Matt
+ *
+ */
+public class ProtocolExecutor implements Executor {
+
+	/** Log used to display messages to the console */
+	private static Logger log = Logger.getLogger(ProtocolExecutor.class.getName());
+
+	/** Least time between warnings about tasks being turned away, in milliseconds */
+	private static final long WARNING_INTERVAL = 60000;
+
+	private final Metrics metrics = Metrics.getInstance();
+
+	private final ExecutorService executor;
+
+	private final String prefix;
+
+	/** Tasks given to run that haven't finished */
+	private final AtomicInteger inFlight = new AtomicInteger();
+
+	/** When we last warned about tasks being turned away, from System.currentTimeMillis() */
+	private volatile long lastWarning;
+
+	/**
+	 * Create a fixed pool of threads named after the executor
+	 * @param name e.g. protocol
+	 * @param threads
+	 * @param queueSize most tasks waiting for a thread before more are turned away
+	 * @param stackSize each thread's stack size in kilobytes, or 0 for the JVM's default
+	 * @return
+	 */
+	public static ProtocolExecutor bounded(final String name, int threads, int queueSize, final int stackSize) {
+		final AtomicInteger count = new AtomicInteger();
+		final ThreadPoolExecutor pool = new ThreadPoolExecutor(Math.max(1, threads), Math.max(1, threads),
+				60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(Math.max(1, queueSize)), new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable runnable) {
+						Thread thread = new Thread(null, runnable, "upnp-" + name + "-" + count.incrementAndGet(),
+								Math.max(0, stackSize) * 1024L);
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		pool.allowCoreThreadTimeOut(true);
+		ProtocolExecutor executor = new ProtocolExecutor(name, pool);
+		executor.metrics.gauge(executor.prefix + ".queue", new Gauge() {
+			@Override
+			public long getValue() {
+				return pool.getQueue().size();
+			}
+		});
+		return executor;
+	}
+
+	/**
+	 * Create an executor starting a virtual thread for each task
+	 * @param name e.g. protocol
+	 * @return null if this JVM doesn't have virtual threads
+	 */
+	public static ProtocolExecutor virtual(String name) {
+		try {
+			// Looked up so this still builds and runs on JVMs from before virtual threads
+			ExecutorService virtual = (ExecutorService) Executors.class
+					.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+			return new ProtocolExecutor(name, virtual);
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	private ProtocolExecutor(String name, ExecutorService executor) {
+		this.executor = executor;
+		prefix = "executor." + name;
+		metrics.gauge(prefix + ".inflight", new Gauge() {
+			@Override
+			public long getValue() {
+				return inFlight.get();
+			}
+		});
+	}
+
+	@Override
+	public void execute(Runnable task) {
+		inFlight.incrementAndGet();
+		try {
+			executor.execute(new TimedTask(task));
+		} catch (RejectedExecutionException e) {
+			inFlight.decrementAndGet();
+			metrics.increment(prefix + ".rejected");
+			long now = System.currentTimeMillis();
+			if (now - lastWarning >= WARNING_INTERVAL) {
+				lastWarning = now;
+				log.warning("Too busy to run " + task.getClass().getName() + "; see " + prefix
+						+ ".rejected for how many more are turned away");
+			}
+			if (task instanceof Closeable) {
+				try {
+					((Closeable) task).close();
+				} catch (IOException closing) {
+					// Turned away anyway
+				}
+			}
+		}
+	}
+
+	/**
+	 * Stop taking tasks and stop the threads once those waiting have run
+	 */
+	public void shutdown() {
+		executor.shutdown();
+	}
+
+	/**
+	 * Records how long a task waited to start
+	 */
+	private class TimedTask implements Runnable {
+
+		private final Runnable task;
+
+		private final long queued = System.nanoTime();
+
+		TimedTask(Runnable task) {
+			this.task = task;
+		}
+
+		@Override
+		public void run() {
+			metrics.recordSince(prefix + ".wait", queued);
+			try {
+				task.run();
+			} finally {
+				inFlight.decrementAndGet();
+			}
+		}
+	}
+}
@@ -0,0 +1,175 @@
+package org.matt1.climediarenderer;
+
+import java.net.URI;
+import java.util.logging.Logger;
+
+import org.fourthline.cling.UpnpService;
+import org.fourthline.cling.binding.xml.DescriptorBindingException;
+import org.fourthline.cling.model.gena.LocalGENASubscription;
+import org.fourthline.cling.model.message.StreamRequestMessage;
+import org.fourthline.cling.model.message.StreamResponseMessage;
+import org.fourthline.cling.model.message.UpnpRequest;
+import org.fourthline.cling.model.message.UpnpResponse;
+import org.fourthline.cling.model.message.header.SoapActionHeader;
+import org.fourthline.cling.model.message.header.UpnpHeader;
+import org.fourthline.cling.model.resource.Resource;
+import org.fourthline.cling.model.types.SoapActionType;
+import org.fourthline.cling.protocol.ProtocolCreationException;
+import org.fourthline.cling.protocol.ProtocolFactoryImpl;
+import org.fourthline.cling.protocol.ReceivingSync;
+import org.fourthline.cling.protocol.sync.ReceivingAction;
+import org.fourthline.cling.protocol.sync.ReceivingRetrieval;
+import org.fourthline.cling.protocol.sync.SendingEvent;
+import org.matt1.climediarenderer.cache.DescriptorCache;
+import org.matt1.climediarenderer.managers.EventDelivery;
+import org.matt1.climediarenderer.metrics.Metrics;
+import org.matt1.climediarenderer.utils.PropertyHelper;
+import org.seamless.util.MimeType;
+
+/**
+ * Changes how Cling answers control points: descriptors and icons are served from a
+ * DescriptorCache, events are sent to control points by EventDelivery, every action is
+ * timed, and what Metrics has recorded is served at /metrics.  Everything else is handled as
+ * normal.
+ *
+ * @author Matt
+ *
+ */
+public class RendererProtocolFactory extends ProtocolFactoryImpl {
+
+	/** Log used to display messages to the console */
+	private static Logger log = Logger.getLogger(RendererProtocolFactory.class.getName());
+
+	public static final String METRICS_PATH = "/metrics";
+
+	private final Metrics metrics = Metrics.getInstance();
+
+	private final DescriptorCache descriptors;
+
+	private final EventDelivery events;
+
+	public RendererProtocolFactory(UpnpService upnpService) {
+		super(upnpService);
+		descriptors = new DescriptorCache(upnpService);
+		int threads = 4;
+		int failureLimit = 5;
+		try {
+			PropertyHelper properties = PropertyHelper.getInstance();
+			threads = properties.getEventDeliveryThreads();
+			failureLimit = properties.getEventFailureLimit();
+		} catch (Exception e) {
+			log.warning("Unable to read event delivery settings, using defaults: " + e.getMessage());
+		}
+		events = new EventDelivery(upnpService, threads, failureLimit);
+	}
+
+	/**
+	 * The rendered descriptors and icons of every device being served
+	 * @return
+	 */
+	public DescriptorCache getDescriptorCache() {
+		return descriptors;
+	}
+
+	/**
+	 * What sends events to subscribed control points
+	 * @return
+	 */
+	public EventDelivery getEventDelivery() {
+		return events;
+	}
+
+	@Override
+	@SuppressWarnings("rawtypes")
+	public ReceivingSync createReceivingSync(StreamRequestMessage message) throws ProtocolCreationException {
+		UpnpRequest.Method method = message.getOperation().getMethod();
+		if (method == UpnpRequest.Method.GET) {
+			if (metrics.isEnabled() && METRICS_PATH.equals(message.getUri().getPath())) {
+				return new ReceivingMetrics(getUpnpService(), message);
+			}
+			return new CachedReceivingRetrieval(getUpnpService(), message);
+		}
+		if (metrics.isEnabled() && method == UpnpRequest.Method.POST
+				&& getUpnpService().getConfiguration().getNamespace().isControlPath(message.getUri())) {
+			return new TimedReceivingAction(getUpnpService(), message);
+		}
+		return super.createReceivingSync(message);
+	}
+
+	@Override
+	public SendingEvent createSendingEvent(LocalGENASubscription subscription) {
+		return events.createSendingEvent(subscription);
+	}
+
+	/**
+	 * Answers requests for descriptors and icons from the cache
+	 */
+	private class CachedReceivingRetrieval extends ReceivingRetrieval {
+
+		CachedReceivingRetrieval(UpnpService upnpService, StreamRequestMessage message) {
+			super(upnpService, message);
+		}
+
+		@Override
+		@SuppressWarnings("rawtypes")
+		protected StreamResponseMessage createResponse(URI requestedURI, Resource resource) {
+			DescriptorCache.Descriptor descriptor;
+			try {
+				descriptor = descriptors.get(resource);
+			} catch (DescriptorBindingException e) {
+				log.warning("Unable to generate descriptor for " + requestedURI + ": " + e.getMessage());
+				return new StreamResponseMessage(UpnpResponse.Status.INTERNAL_SERVER_ERROR);
+			}
+			if (descriptor == null) {
+				return super.createResponse(requestedURI, resource);
+			}
+			return descriptor.respond(getInputMessage());
+		}
+	}
+
+	/**
+	 * Runs an action, recording how long it took under action.&lt;service&gt;.&lt;action&gt;
+	 */
+	private class TimedReceivingAction extends ReceivingAction {
+
+		TimedReceivingAction(UpnpService upnpService, StreamRequestMessage message) {
+			super(upnpService, message);
+		}
+
+		@Override
+		protected StreamResponseMessage executeSync() {
+			long start = System.nanoTime();
+			try {
+				return super.executeSync();
+			} finally {
+				metrics.recordSince(getName(), start);
+			}
+		}
+
+		private String getName() {
+			SoapActionHeader header = getInputMessage().getHeaders().getFirstHeader(
+					UpnpHeader.Type.SOAPACTION, SoapActionHeader.class);
+			if (header == null || header.getValue() == null) {
+				return "action.unknown";
+			}
+			SoapActionType type = header.getValue();
+			// QueryStateVariable has a made up namespace and no service type
+			return "action." + (type.getType() == null ? "control" : type.getType()) + "." + type.getActionName();
+		}
+	}
+
+	/**
+	 * Answers with everything Metrics has recorded, as plain text
+	 */
+	private static class ReceivingMetrics extends ReceivingSync<StreamRequestMessage, StreamResponseMessage> {
+
+		ReceivingMetrics(UpnpService upnpService, StreamRequestMessage message) {
+			super(upnpService, message);
+		}
+
+		@Override
+		protected StreamResponseMessage executeSync() {
+			return new StreamResponseMessage(Metrics.getInstance().toText(), MimeType.valueOf("text/plain;charset=UTF-8"));
+		}
+	}
+}
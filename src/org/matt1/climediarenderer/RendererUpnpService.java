@@ -0,0 +1,60 @@
+package org.matt1.climediarenderer;
+
+import org.fourthline.cling.UpnpServiceConfiguration;
+import org.fourthline.cling.UpnpServiceImpl;
+import org.fourthline.cling.model.meta.LocalDevice;
+import org.fourthline.cling.protocol.ProtocolFactory;
+import org.fourthline.cling.registry.DefaultRegistryListener;
+import org.fourthline.cling.registry.Registry;
+import org.matt1.climediarenderer.utils.PropertyHelper;
+
+/**
+ * The UPnP stack, answering control points with a RendererProtocolFactory.  The descriptors of
+ * each device are rendered as soon as it is added, ready for the first control point to ask,
+ * except in embedded mode where they are left until a control point does ask.
+ *
+ * @author Matt
+ *
+ */
+public class RendererUpnpService extends UpnpServiceImpl {
+
+	public RendererUpnpService(UpnpServiceConfiguration configuration) {
+		super(configuration);
+		boolean embedded;
+		try {
+			embedded = PropertyHelper.getInstance().isEmbedded();
+		} catch (Exception e) {
+			embedded = false;
+		}
+		final boolean renderEarly = !embedded;
+		getRegistry().addListener(new DefaultRegistryListener() {
+			@Override
+			public void localDeviceAdded(Registry registry, LocalDevice device) {
+				if (renderEarly) {
+					getProtocolFactory().getDescriptorCache().render(device);
+				}
+			}
+
+			@Override
+			public void localDeviceRemoved(Registry registry, LocalDevice device) {
+				getProtocolFactory().getDescriptorCache().forget(device);
+			}
+		});
+	}
+
+	@Override
+	protected ProtocolFactory createProtocolFactory() {
+		return new RendererProtocolFactory(this);
+	}
+
+	@Override
+	public RendererProtocolFactory getProtocolFactory() {
+		return (RendererProtocolFactory) super.getProtocolFactory();
+	}
+
+	@Override
+	public synchronized void shutdown() {
+		super.shutdown();
+		getProtocolFactory().getEventDelivery().shutdown();
+	}
+}
@@ -0,0 +1,235 @@
+package org.matt1.climediarenderer.cache;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URI;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Logger;
+
+import org.fourthline.cling.UpnpService;
+import org.fourthline.cling.binding.xml.DescriptorBindingException;
+import org.fourthline.cling.model.ValidationException;
+import org.fourthline.cling.model.message.StreamRequestMessage;
+import org.fourthline.cling.model.message.StreamResponseMessage;
+import org.fourthline.cling.model.message.UpnpResponse;
+import org.fourthline.cling.model.message.header.ContentTypeHeader;
+import org.fourthline.cling.model.meta.Icon;
+import org.fourthline.cling.model.meta.LocalDevice;
+import org.fourthline.cling.model.meta.LocalService;
+import org.fourthline.cling.model.profile.ControlPointInfo;
+import org.fourthline.cling.model.resource.DeviceDescriptorResource;
+import org.fourthline.cling.model.resource.IconResource;
+import org.fourthline.cling.model.resource.Resource;
+import org.fourthline.cling.model.resource.ServiceDescriptorResource;
+import org.seamless.util.MimeType;
+
+/**
+ * Keeps the device and service descriptors and icons that control points fetch, already
+ * turned into bytes, so Cling doesn't have to generate the XML again for every request.  Each
+ * one has an ETag and Last-Modified date, so control points that ask again with
+ * If-None-Match or If-Modified-Since just get told nothing has changed.  A descriptor is only
+ * generated again if the device or service it describes is replaced, e.g. by adding the
+ * device to the registry again.
+ *
+ * @author Matt
+ *
+ */
+public class DescriptorCache {
+
+	/** Log used to display messages to the console */
+	private static Logger log = Logger.getLogger(DescriptorCache.class.getName());
+
+	private final UpnpService upnpService;
+
+	/** What has been rendered, keyed on the path control points ask for */
+	private final ConcurrentMap<URI, Descriptor> descriptors = new ConcurrentHashMap<URI, Descriptor>();
+
+	/**
+	 * Create a cache for the descriptors a UPnP service serves
+	 * @param upnpService
+	 */
+	public DescriptorCache(UpnpService upnpService) {
+		this.upnpService = upnpService;
+	}
+
+	/**
+	 * Render everything a device serves, so that the first control point to find it doesn't
+	 * have to wait
+	 * @param device
+	 */
+	public void render(LocalDevice device) {
+		try {
+			for (Resource<?> resource : upnpService.getConfiguration().getNamespace().getResources(device)) {
+				get(resource);
+			}
+		} catch (ValidationException e) {
+			log.warning("Unable to render descriptors for " + device + ": " + e.getMessage());
+		} catch (DescriptorBindingException e) {
+			log.warning("Unable to render descriptors for " + device + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Forget everything a device served, once it has gone
+	 * @param device
+	 */
+	public void forget(LocalDevice device) {
+		try {
+			for (Resource<?> resource : upnpService.getConfiguration().getNamespace().getResources(device)) {
+				descriptors.remove(resource.getPathQuery());
+			}
+		} catch (ValidationException e) {
+			// Couldn't have been rendered either
+		}
+	}
+
+	/**
+	 * Get the rendered copy of a descriptor or icon, rendering it first if we haven't already
+	 * or what it describes has been replaced since
+	 * @param resource
+	 * @return the rendered copy, or null for anything that isn't a descriptor or icon
+	 * @throws DescriptorBindingException if the descriptor couldn't be generated
+	 */
+	public Descriptor get(Resource<?> resource) throws DescriptorBindingException {
+		Descriptor descriptor = descriptors.get(resource.getPathQuery());
+		if (descriptor != null && descriptor.model == resource.getModel()) {
+			return descriptor;
+		}
+		descriptor = create(resource);
+		if (descriptor != null) {
+			descriptors.put(resource.getPathQuery(), descriptor);
+		}
+		return descriptor;
+	}
+
+	private Descriptor create(Resource<?> resource) throws DescriptorBindingException {
+		if (resource instanceof DeviceDescriptorResource) {
+			LocalDevice device = ((DeviceDescriptorResource) resource).getModel();
+			// Our devices describe themselves the same way whoever is asking
+			String xml = upnpService.getConfiguration().getDeviceDescriptorBinderUDA10().generate(
+					device, new ControlPointInfo(), upnpService.getConfiguration().getNamespace());
+			return new Descriptor(device, toBytes(xml), ContentTypeHeader.DEFAULT_CONTENT_TYPE_UTF8);
+		}
+		if (resource instanceof ServiceDescriptorResource) {
+			LocalService<?> service = ((ServiceDescriptorResource) resource).getModel();
+			String xml = upnpService.getConfiguration().getServiceDescriptorBinderUDA10().generate(service);
+			return new Descriptor(service, toBytes(xml), ContentTypeHeader.DEFAULT_CONTENT_TYPE_UTF8);
+		}
+		if (resource instanceof IconResource) {
+			Icon icon = ((IconResource) resource).getModel();
+			return icon.getData() == null ? null : new Descriptor(icon, icon.getData(), icon.getMimeType());
+		}
+		return null;
+	}
+
+	private static byte[] toBytes(String xml) {
+		try {
+			return xml.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * A descriptor or icon ready to send
+	 */
+	public static class Descriptor {
+
+		/** What it was rendered from, to tell if that has been replaced */
+		private final Object model;
+
+		private final byte[] body;
+
+		private final MimeType contentType;
+
+		private final String etag;
+
+		/** When it was rendered, to the second as HTTP dates are */
+		private final long lastModified;
+
+		private final String lastModifiedText;
+
+		Descriptor(Object model, byte[] body, MimeType contentType) {
+			this.model = model;
+			this.body = body;
+			this.contentType = contentType;
+			etag = "\"" + digest(body) + "\"";
+			lastModified = System.currentTimeMillis() / 1000 * 1000;
+			lastModifiedText = httpDateFormat().format(new Date(lastModified));
+		}
+
+		/**
+		 * Answer a request for this, with just "not modified" if the control point already has
+		 * the current copy
+		 * @param request
+		 * @return
+		 */
+		public StreamResponseMessage respond(StreamRequestMessage request) {
+			StreamResponseMessage response;
+			if (isCurrent(request)) {
+				response = new StreamResponseMessage(new UpnpResponse(304, "Not Modified"));
+			} else {
+				response = new StreamResponseMessage(body, contentType);
+			}
+			response.getHeaders().add("ETag", etag);
+			response.getHeaders().add("Last-Modified", lastModifiedText);
+			return response;
+		}
+
+		/**
+		 * Whether the control point already has this copy.  If-None-Match wins if both are given.
+		 * @param request
+		 * @return
+		 */
+		private boolean isCurrent(StreamRequestMessage request) {
+			String ifNoneMatch = request.getHeaders().getFirstHeader("If-None-Match");
+			if (ifNoneMatch != null) {
+				for (String tag : ifNoneMatch.split(",")) {
+					tag = tag.trim();
+					if (tag.startsWith("W/")) {
+						tag = tag.substring(2);
+					}
+					if (tag.equals("*") || tag.equals(etag)) {
+						return true;
+					}
+				}
+				return false;
+			}
+			String ifModifiedSince = request.getHeaders().getFirstHeader("If-Modified-Since");
+			if (ifModifiedSince != null) {
+				try {
+					return httpDateFormat().parse(ifModifiedSince.trim()).getTime() >= lastModified;
+				} catch (ParseException e) {
+					// Not a date we understand, so send it all
+				}
+			}
+			return false;
+		}
+
+		private static String digest(byte[] body) {
+			try {
+				StringBuilder hex = new StringBuilder();
+				byte[] digest = MessageDigest.getInstance("SHA-1").digest(body);
+				for (int i = 0; i < 8; i++) {
+					hex.append(String.format("%02x", digest[i] & 0xff));
+				}
+				return hex.toString();
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+
+		private static SimpleDateFormat httpDateFormat() {
+			SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+			format.setTimeZone(TimeZone.getTimeZone("GMT"));
+			return format;
+		}
+	}
+}
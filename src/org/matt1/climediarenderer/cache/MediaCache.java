@@ -0,0 +1,375 @@
+package org.matt1.climediarenderer.cache;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import org.matt1.climediarenderer.utils.PropertyHelper;
+
+/**
+ * Keeps copies of tracks on disk so that playing them again doesn't mean fetching them from
+ * the media server again.  Tracks are keyed on their URI along with the ETag or Last-Modified
+ * header the server gave, so a changed file is fetched afresh.  When the cache goes over its
+ * size budget the least recently played tracks are removed.
+ *
+ * The players don't know about the cache: they're given a URI for the MediaCacheServer, which
+ * serves the track from disk or streams it from the media server while saving it.
+ *
+ * @author Matt
+ *
+ */
+public class MediaCache {
+
+	/** Log used to display messages to the console */
+	private static Logger log = Logger.getLogger(MediaCache.class.getName());
+
+	/** Extension of the file holding the track itself */
+	private static final String DATA_EXTENSION = ".data";
+
+	/** Extension of the file describing the track */
+	private static final String META_EXTENSION = ".meta";
+
+	/** Extension of partly downloaded tracks */
+	private static final String PARTIAL_EXTENSION = ".part";
+
+	/** Most tracks remembered as having been given to a player */
+	private static final int MAX_PLAYABLE = 32;
+
+	private static MediaCache cache;
+
+	/** Whether we've already tried to start the cache */
+	private static boolean initialised = false;
+
+	/** Directory the tracks are kept in */
+	private final File directory;
+
+	/** Most bytes the cache can hold */
+	private final long budget;
+
+	/** Cached tracks, least recently used first */
+	private final LinkedHashMap<String, CacheEntry> entries = new LinkedHashMap<String, CacheEntry>(16, 0.75f, true);
+
+	/** Total size of all cached tracks */
+	private long size = 0;
+
+	/** Server that the players fetch tracks through */
+	private MediaCacheServer server;
+
+	private final AtomicLong hits = new AtomicLong();
+
+	private final AtomicLong misses = new AtomicLong();
+
+	private final AtomicLong evictions = new AtomicLong();
+
+	/** Used to give each partial download a distinct name */
+	private final AtomicLong downloads = new AtomicLong();
+
+	/** Tracks recently given to a player, least recently first; the server fetches nothing else */
+	private final Map<String, Boolean> playable = new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+			return size() > MAX_PLAYABLE;
+		}
+	};
+
+	/**
+	 * Get the media cache, starting it if needed.
+	 * @return the cache, or null if it is turned off or couldn't be started
+	 */
+	public static synchronized MediaCache getInstance() {
+		if (!initialised) {
+			initialised = true;
+			try {
+				PropertyHelper properties = PropertyHelper.getInstance();
+				if (properties.isMediaCacheEnabled()) {
+					MediaCache newCache = new MediaCache(new File(properties.getMediaCacheDirectory()),
+							properties.getMediaCacheSize() * 1024L * 1024L);
+					newCache.server = new MediaCacheServer(newCache, properties.getMediaCacheHost(),
+							properties.getMediaCachePort());
+					cache = newCache;
+				}
+			} catch (Exception e) {
+				log.warning("Unable to start media cache, playing straight from the server: " + e.getMessage());
+			}
+		}
+		return cache;
+	}
+
+	/**
+	 * Get the URI the player should use to play a track - either one that goes through the
+	 * cache, or the original if the cache isn't in use.  Only tracks that have been through
+	 * here can be fetched through the cache, so it can't be used to reach anything else.
+	 *
+	 * @param uri
+	 * @return
+	 */
+	public static String toPlaybackUri(String uri) {
+		MediaCache mediaCache = getInstance();
+		if (mediaCache == null || uri == null || !uri.startsWith("http:")) {
+			return uri;
+		}
+		synchronized (mediaCache.playable) {
+			mediaCache.playable.put(uri, Boolean.TRUE);
+		}
+		try {
+			return mediaCache.server.getBaseUri() + "media?uri=" + URLEncoder.encode(uri, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			return uri;
+		}
+	}
+
+	MediaCache(File directory, long budget) throws IOException {
+		this.directory = directory;
+		this.budget = budget;
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Cannot create cache directory " + directory);
+		}
+		load();
+		log.info("Media cache ready with " + entries.size() + " tracks, " + (size / 1024 / 1024) + "MB.");
+	}
+
+	/**
+	 * Whether a track has been given to a player recently, so the server may fetch it
+	 * @param uri
+	 * @return
+	 */
+	boolean isPlayable(String uri) {
+		synchronized (playable) {
+			return playable.get(uri) != null;
+		}
+	}
+
+	/**
+	 * Look up a track
+	 * @param uri
+	 * @param validator the ETag or Last-Modified value from the media server
+	 * @return the cached track, or null if we haven't got it
+	 */
+	CacheEntry get(String uri, String validator) {
+		CacheEntry entry;
+		synchronized (this) {
+			entry = entries.get(key(uri, validator));
+		}
+		if (entry != null && entry.data.exists()) {
+			hits.incrementAndGet();
+			// So that the least recently used order survives a restart
+			entry.data.setLastModified(System.currentTimeMillis());
+			return entry;
+		}
+		misses.incrementAndGet();
+		return null;
+	}
+
+	/**
+	 * Get a new file to download a track into
+	 * @return
+	 */
+	File newPartialFile() {
+		return new File(directory, "download-" + downloads.incrementAndGet() + PARTIAL_EXTENSION);
+	}
+
+	/**
+	 * Add a fully downloaded track to the cache, removing older tracks to make room if needed
+	 * @param uri
+	 * @param validator
+	 * @param contentType
+	 * @param partial the downloaded track, which is moved into the cache
+	 */
+	void put(String uri, String validator, String contentType, File partial) {
+		String key = key(uri, validator);
+		File data = new File(directory, key + DATA_EXTENSION);
+		File meta = new File(directory, key + META_EXTENSION);
+
+		if (partial.length() > budget) {
+			partial.delete();
+			return;
+		}
+
+		synchronized (this) {
+			CacheEntry existing = entries.remove(key);
+			if (existing != null) {
+				size -= existing.length;
+			}
+			if (!partial.renameTo(data)) {
+				// Windows won't rename over an existing file
+				data.delete();
+				if (!partial.renameTo(data)) {
+					log.warning("Unable to add " + uri + " to the media cache.");
+					partial.delete();
+					return;
+				}
+			}
+
+			Properties properties = new Properties();
+			properties.setProperty("uri", uri);
+			properties.setProperty("validator", validator == null ? "" : validator);
+			properties.setProperty("contentType", contentType == null ? "" : contentType);
+			try {
+				OutputStream out = new FileOutputStream(meta);
+				try {
+					properties.store(out, null);
+				} finally {
+					out.close();
+				}
+			} catch (IOException e) {
+				log.warning("Unable to save media cache details for " + uri + ": " + e.getMessage());
+			}
+
+			CacheEntry entry = new CacheEntry(key, data, contentType, data.length());
+			entries.put(key, entry);
+			size += entry.length;
+			evict();
+		}
+		log.fine("Added " + uri + " to the media cache.");
+	}
+
+	/** Remove the least recently used tracks until we're within budget */
+	private void evict() {
+		Iterator<CacheEntry> iterator = entries.values().iterator();
+		while (size > budget && iterator.hasNext()) {
+			CacheEntry entry = iterator.next();
+			iterator.remove();
+			size -= entry.length;
+			evictions.incrementAndGet();
+			entry.data.delete();
+			new File(directory, entry.key + META_EXTENSION).delete();
+			log.fine("Evicted " + entry.key + " from the media cache.");
+		}
+	}
+
+	/** Read back what's already in the cache directory, oldest first */
+	private void load() {
+		File[] files = directory.listFiles();
+		if (files == null) {
+			return;
+		}
+		List<File> dataFiles = new ArrayList<File>();
+		for (File file : files) {
+			if (file.getName().endsWith(PARTIAL_EXTENSION)) {
+				// Left over from a download that never finished
+				file.delete();
+			} else if (file.getName().endsWith(DATA_EXTENSION)) {
+				dataFiles.add(file);
+			}
+		}
+		Collections.sort(dataFiles, new Comparator<File>() {
+			@Override
+			public int compare(File a, File b) {
+				return Long.valueOf(a.lastModified()).compareTo(b.lastModified());
+			}
+		});
+
+		for (File data : dataFiles) {
+			String key = data.getName().substring(0, data.getName().length() - DATA_EXTENSION.length());
+			File meta = new File(directory, key + META_EXTENSION);
+			Properties properties = new Properties();
+			try {
+				InputStream in = new FileInputStream(meta);
+				try {
+					properties.load(in);
+				} finally {
+					in.close();
+				}
+			} catch (IOException e) {
+				data.delete();
+				meta.delete();
+				continue;
+			}
+			String contentType = properties.getProperty("contentType", "");
+			CacheEntry entry = new CacheEntry(key, data, contentType.length() == 0 ? null : contentType, data.length());
+			entries.put(key, entry);
+			size += entry.length;
+		}
+		evict();
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	public synchronized long getSize() {
+		return size;
+	}
+
+	public synchronized int getTrackCount() {
+		return entries.size();
+	}
+
+	public long getBudget() {
+		return budget;
+	}
+
+	/**
+	 * Work out the name a track is stored under
+	 * @param uri
+	 * @param validator
+	 * @return
+	 */
+	private static String key(String uri, String validator) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			digest.update(uri.getBytes("UTF-8"));
+			digest.update((byte) '\n');
+			if (validator != null) {
+				digest.update(validator.getBytes("UTF-8"));
+			}
+			StringBuilder key = new StringBuilder();
+			for (byte b : digest.digest()) {
+				key.append(String.format("%02x", b & 0xff));
+			}
+			return key.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * A track that's been fully downloaded into the cache
+	 */
+	static class CacheEntry {
+
+		final String key;
+
+		final File data;
+
+		final String contentType;
+
+		final long length;
+
+		CacheEntry(String key, File data, String contentType, long length) {
+			this.key = key;
+			this.data = data;
+			this.contentType = contentType;
+			this.length = length;
+		}
+	}
+}
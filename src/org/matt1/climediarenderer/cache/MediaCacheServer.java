@@ -0,0 +1,443 @@
+package org.matt1.climediarenderer.cache;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Logger;
+
+import org.matt1.climediarenderer.utils.UriValidator;
+
+/**
+ * Very small HTTP server that the players fetch tracks through when the media cache is in use.
+ * Cached tracks are served straight from disk using memory mapped reads; anything else is
+ * streamed from the media server and saved into the cache on the way through.
+ *
+ * Requests look like /media?uri=&lt;original URI&gt;, and are only answered for http tracks the
+ * players have been given, so the server can't be used to fetch anything else on the network.
+ * /stats shows how well the cache is doing.
+ *
+ * @author Matt
+ *
+ */
+class MediaCacheServer {
+
+	/** Log used to display messages to the console */
+	private static Logger log = Logger.getLogger(MediaCacheServer.class.getName());
+
+	/** How much of a cached file is mapped into memory at once */
+	private static final int MAP_CHUNK = 1024 * 1024;
+
+	/** Buffer size used when streaming from the media server */
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	/** Timeout for talking to the media server, in milliseconds */
+	private static final int TIMEOUT = 10000;
+
+	private final MediaCache cache;
+
+	private final ServerSocket serverSocket;
+
+	private final String baseUri;
+
+	private final ExecutorService workers = Executors.newCachedThreadPool(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "media-cache");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	/**
+	 * Start listening for requests from the players
+	 * @param cache
+	 * @param host address to listen on and to give to the players
+	 * @param port port to listen on, 0 for any
+	 * @throws IOException
+	 */
+	MediaCacheServer(MediaCache cache, String host, int port) throws IOException {
+		this.cache = cache;
+		serverSocket = new ServerSocket();
+		serverSocket.bind(new InetSocketAddress(InetAddress.getByName(host), port));
+		baseUri = "http://" + host + ":" + serverSocket.getLocalPort() + "/";
+
+		Thread acceptor = new Thread("media-cache-server") {
+			@Override
+			public void run() {
+				acceptConnections();
+			}
+		};
+		acceptor.setDaemon(true);
+		acceptor.start();
+		log.info("Media cache serving at " + baseUri);
+	}
+
+	/**
+	 * Get the URI that requests to this server start with
+	 * @return
+	 */
+	String getBaseUri() {
+		return baseUri;
+	}
+
+	private void acceptConnections() {
+		while (!serverSocket.isClosed()) {
+			try {
+				final Socket socket = serverSocket.accept();
+				workers.execute(new Runnable() {
+					@Override
+					public void run() {
+						handle(socket);
+					}
+				});
+			} catch (IOException e) {
+				log.warning("Media cache server stopped accepting connections: " + e.getMessage());
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Deal with one request.  Connections are closed afterwards.
+	 * @param socket
+	 */
+	private void handle(Socket socket) {
+		OutputStream out = null;
+		try {
+			InputStream in = new BufferedInputStream(socket.getInputStream());
+			out = socket.getOutputStream();
+
+			String requestLine = readLine(in);
+			if (requestLine == null) {
+				return;
+			}
+			Map<String, String> headers = new HashMap<String, String>();
+			String header;
+			while ((header = readLine(in)) != null && header.length() > 0) {
+				int colon = header.indexOf(':');
+				if (colon > 0) {
+					headers.put(header.substring(0, colon).trim().toLowerCase(Locale.ENGLISH),
+							header.substring(colon + 1).trim());
+				}
+			}
+
+			String[] parts = requestLine.split(" ");
+			if (parts.length < 2 || !parts[0].equals("GET")) {
+				sendStatus(out, "405 Method Not Allowed");
+				return;
+			}
+			String path = parts[1];
+			if (path.equals("/stats")) {
+				sendStats(out);
+			} else if (path.startsWith("/media?uri=")) {
+				String uri = decode(path.substring("/media?uri=".length()));
+				if (!uri.startsWith("http:") || !cache.isPlayable(uri)) {
+					log.warning("Media cache refused request for " + uri);
+					sendStatus(out, "403 Forbidden");
+					return;
+				}
+				sendMedia(uri, headers.get("range"), out);
+			} else {
+				sendStatus(out, "404 Not Found");
+			}
+		} catch (IOException e) {
+			// Player went away, e.g. it was stopped or skipped
+			log.fine("Media cache connection closed: " + e.getMessage());
+		} catch (RuntimeException e) {
+			log.warning("Media cache request failed: " + e.getMessage());
+			if (out != null) {
+				try {
+					sendStatus(out, "500 Internal Server Error");
+				} catch (IOException e2) {
+					// Player has gone anyway
+				}
+			}
+		} finally {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// nothing to do
+			}
+		}
+	}
+
+	/**
+	 * Send a track, from the cache if we have it or from the media server if not
+	 * @param uri
+	 * @param range the Range header the player sent, if any
+	 * @param out
+	 * @throws IOException
+	 */
+	private void sendMedia(String uri, String range, OutputStream out) throws IOException {
+		String validator = getValidator(uri);
+		MediaCache.CacheEntry entry = cache.get(uri, validator);
+		long start = getRangeStart(range);
+
+		if (entry != null) {
+			sendCached(entry, start, out);
+		} else if (start > 0) {
+			// A seek into a track we haven't got; just pass it through
+			sendFromServer(uri, null, start, out);
+		} else {
+			sendFromServer(uri, validator, 0, out);
+		}
+	}
+
+	/**
+	 * Send a cached track from the given byte onwards using memory mapped reads
+	 * @param entry
+	 * @param start
+	 * @param out
+	 * @throws IOException
+	 */
+	private void sendCached(MediaCache.CacheEntry entry, long start, OutputStream out) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(entry.data, "r");
+		try {
+			FileChannel channel = file.getChannel();
+			long length = channel.size();
+			if (start >= length && length > 0) {
+				sendStatus(out, "416 Requested Range Not Satisfiable");
+				return;
+			}
+
+			StringBuilder response = new StringBuilder();
+			if (start > 0) {
+				response.append("HTTP/1.1 206 Partial Content\r\n");
+				response.append("Content-Range: bytes ").append(start).append('-').append(length - 1)
+						.append('/').append(length).append("\r\n");
+			} else {
+				response.append("HTTP/1.1 200 OK\r\n");
+			}
+			response.append("Content-Length: ").append(length - start).append("\r\n");
+			appendCommonHeaders(response, entry.contentType);
+			out.write(response.toString().getBytes("ISO-8859-1"));
+
+			WritableByteChannel target = Channels.newChannel(out);
+			long position = start;
+			while (position < length) {
+				long chunk = Math.min(MAP_CHUNK, length - position);
+				MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, chunk);
+				while (buffer.hasRemaining()) {
+					target.write(buffer);
+				}
+				position += chunk;
+			}
+			out.flush();
+		} finally {
+			file.close();
+		}
+	}
+
+	/**
+	 * Stream a track from the media server.  If the whole track is fetched it is saved into
+	 * the cache as it goes.
+	 *
+	 * @param uri
+	 * @param validator the ETag or Last-Modified value to save it under, or null to not save it
+	 * @param start
+	 * @param out
+	 * @throws IOException
+	 */
+	private void sendFromServer(String uri, String validator, long start, OutputStream out) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) new URL(uri).openConnection();
+		connection.setConnectTimeout(TIMEOUT);
+		connection.setReadTimeout(TIMEOUT);
+		if (start > 0) {
+			connection.setRequestProperty("Range", "bytes=" + start + "-");
+		}
+
+		int status = connection.getResponseCode();
+		if (status != HttpURLConnection.HTTP_OK && status != HttpURLConnection.HTTP_PARTIAL) {
+			connection.disconnect();
+			sendStatus(out, "502 Bad Gateway");
+			return;
+		}
+
+		long length = connection.getContentLengthLong();
+		InputStream in = connection.getInputStream();
+		String contentRange = connection.getHeaderField("Content-Range");
+		if (start > 0 && status == HttpURLConnection.HTTP_OK) {
+			// The server ignored the Range, so skip what the player doesn't want ourselves
+			// rather than sending it the whole track
+			long skipped = 0;
+			while (skipped < start) {
+				long count = in.skip(start - skipped);
+				if (count <= 0) {
+					break;
+				}
+				skipped += count;
+			}
+			if (skipped < start) {
+				in.close();
+				sendStatus(out, "416 Requested Range Not Satisfiable");
+				return;
+			}
+			status = HttpURLConnection.HTTP_PARTIAL;
+			if (length >= 0) {
+				contentRange = "bytes " + start + "-" + (length - 1) + "/" + length;
+				length -= start;
+			}
+		}
+		
+		StringBuilder response = new StringBuilder();
+		response.append("HTTP/1.1 ").append(status).append(status == HttpURLConnection.HTTP_OK ? " OK" : " Partial Content").append("\r\n");
+		if (length >= 0) {
+			response.append("Content-Length: ").append(length).append("\r\n");
+		}
+		if (contentRange != null) {
+			response.append("Content-Range: ").append(contentRange).append("\r\n");
+		}
+		appendCommonHeaders(response, connection.getContentType());
+		out.write(response.toString().getBytes("ISO-8859-1"));
+
+		boolean saving = start == 0 && status == HttpURLConnection.HTTP_OK;
+		File partial = saving ? cache.newPartialFile() : null;
+		OutputStream save = saving ? new FileOutputStream(partial) : null;
+		boolean complete = false;
+		try {
+			byte[] buffer = new byte[BUFFER_SIZE];
+			long total = 0;
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				out.write(buffer, 0, read);
+				if (save != null) {
+					save.write(buffer, 0, read);
+				}
+				total += read;
+			}
+			out.flush();
+			complete = length < 0 || total == length;
+		} finally {
+			in.close();
+			if (save != null) {
+				save.close();
+				if (complete) {
+					cache.put(uri, validator, connection.getContentType(), partial);
+				} else {
+					partial.delete();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Get the ETag or Last-Modified value of a track without fetching it.  The answer usually
+	 * comes from the check made when the track was set, so doesn't need another request.
+	 *
+	 * @param uri
+	 * @return the value, or null if the server doesn't give one
+	 */
+	private String getValidator(String uri) {
+		try {
+			UriValidator.Result result = UriValidator.getInstance().validate(new URI(uri));
+			return result.isValid() ? result.getCacheValidator() : null;
+		} catch (URISyntaxException e) {
+			return null;
+		}
+	}
+
+	private void sendStats(OutputStream out) throws IOException {
+		StringBuilder body = new StringBuilder();
+		body.append("hits ").append(cache.getHits()).append('\n');
+		body.append("misses ").append(cache.getMisses()).append('\n');
+		body.append("evictions ").append(cache.getEvictions()).append('\n');
+		body.append("tracks ").append(cache.getTrackCount()).append('\n');
+		body.append("bytes ").append(cache.getSize()).append('\n');
+		body.append("budget ").append(cache.getBudget()).append('\n');
+		byte[] bytes = body.toString().getBytes("UTF-8");
+
+		StringBuilder response = new StringBuilder("HTTP/1.1 200 OK\r\n");
+		response.append("Content-Length: ").append(bytes.length).append("\r\n");
+		appendCommonHeaders(response, "text/plain; charset=UTF-8");
+		out.write(response.toString().getBytes("ISO-8859-1"));
+		out.write(bytes);
+		out.flush();
+	}
+
+	private static void sendStatus(OutputStream out, String status) throws IOException {
+		out.write(("HTTP/1.1 " + status + "\r\nContent-Length: 0\r\nConnection: close\r\n\r\n").getBytes("ISO-8859-1"));
+		out.flush();
+	}
+
+	private static void appendCommonHeaders(StringBuilder response, String contentType) {
+		if (contentType != null) {
+			response.append("Content-Type: ").append(contentType).append("\r\n");
+		}
+		response.append("Accept-Ranges: bytes\r\n");
+		response.append("Connection: close\r\n\r\n");
+	}
+
+	/**
+	 * Get the first byte asked for by a Range header
+	 * @param range
+	 * @return
+	 */
+	private static long getRangeStart(String range) {
+		if (range == null || !range.startsWith("bytes=")) {
+			return 0;
+		}
+		int dash = range.indexOf('-');
+		if (dash <= "bytes=".length()) {
+			return 0;
+		}
+		try {
+			return Long.parseLong(range.substring("bytes=".length(), dash).trim());
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+
+	private static String decode(String value) {
+		try {
+			return URLDecoder.decode(value, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			return value;
+		}
+	}
+
+	/**
+	 * Read a line of an HTTP request, without the line ending
+	 * @param in
+	 * @return the line, or null at the end of the stream
+	 * @throws IOException
+	 */
+	private static String readLine(InputStream in) throws IOException {
+		StringBuilder line = new StringBuilder();
+		int c;
+		while ((c = in.read()) != -1) {
+			if (c == '\n') {
+				int end = line.length();
+				if (end > 0 && line.charAt(end - 1) == '\r') {
+					line.setLength(end - 1);
+				}
+				return line.toString();
+			}
+			line.append((char) c);
+		}
+		return line.length() > 0 ? line.toString() : null;
+	}
+}
@@ -0,0 +1,313 @@
+package org.matt1.climediarenderer.managers;
+
+import java.net.URL;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import org.fourthline.cling.UpnpService;
+import org.fourthline.cling.model.gena.LocalGENASubscription;
+import org.fourthline.cling.model.message.StreamResponseMessage;
+import org.fourthline.cling.model.message.gena.OutgoingEventRequestMessage;
+import org.fourthline.cling.model.state.StateVariableValue;
+import org.fourthline.cling.protocol.sync.SendingEvent;
+import org.matt1.climediarenderer.metrics.Metrics;
+
+/**
+ * Sends events to subscribed control points on a few threads of its own, rather than one of
+ * Cling's threads per event.  Each control point is sent one event at a time, in order, and
+ * has room for just one more waiting: if a newer event comes along before the waiting one has
+ * gone, the newer one replaces it.  As the one replaced only had what changed since the event
+ * before, the newer one is sent with the whole state of the service instead, so nothing is
+ * lost - the control point just sees a gap in the sequence numbers.
+ *
+ * A control point that fails to take an event is tried again after a delay that doubles each
+ * time, and after enough failures in a row its subscription is dropped.  That way a phone that
+ * has gone to sleep only holds up its own events, and not for long.
+ *
+ * @author Matt
+ *
+ */
+public class EventDelivery {
+
+	/** Log used to display messages to the console */
+	private static Logger log = Logger.getLogger(EventDelivery.class.getName());
+
+	/** Wait before trying a control point again the first time, in milliseconds */
+	private static final long FIRST_RETRY_DELAY = 1000;
+
+	/** Longest wait before trying a control point again, in milliseconds */
+	private static final long MAX_RETRY_DELAY = 30000;
+
+	/** Used to give each thread a distinct name */
+	private static final AtomicInteger count = new AtomicInteger();
+
+	private final UpnpService upnpService;
+
+	/** Failures in a row after which a subscription is dropped */
+	private final int failureLimit;
+
+	/** Threads that send the events, and wait to try again */
+	private final ScheduledThreadPoolExecutor executor;
+
+	/** What's waiting for each subscription.  Forgotten once Cling has forgotten the subscription. */
+	private final Map<LocalGENASubscription, Subscriber> subscribers =
+			Collections.synchronizedMap(new WeakHashMap<LocalGENASubscription, Subscriber>());
+
+	private final Metrics metrics = Metrics.getInstance();
+
+	/**
+	 * Create a new event delivery
+	 * @param upnpService
+	 * @param threads most events sent at once
+	 * @param failureLimit failures in a row after which a subscription is dropped
+	 */
+	public EventDelivery(UpnpService upnpService, int threads, int failureLimit) {
+		this.upnpService = upnpService;
+		this.failureLimit = Math.max(1, failureLimit);
+		executor = new ScheduledThreadPoolExecutor(Math.max(1, threads), new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "event-delivery-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Queue the event a subscription has just been given.  Called by Cling with the subscription
+	 * locked, so events are queued in the order of their sequence numbers.
+	 * @param subscription
+	 * @return what Cling should run for the event, which does nothing as it is sent from here
+	 */
+	public SendingEvent createSendingEvent(LocalGENASubscription subscription) {
+		QueuedEvent event = new QueuedEvent(upnpService, subscription);
+		Subscriber subscriber;
+		synchronized (subscribers) {
+			subscriber = subscribers.get(subscription);
+			if (subscriber == null) {
+				List<URL> callbacks = subscription.getCallbackURLs();
+				subscriber = new Subscriber(callbacks.isEmpty() ? "unknown" : callbacks.get(0).getHost());
+				subscribers.put(subscription, subscriber);
+			}
+		}
+		subscriber.offer(event);
+		return event;
+	}
+
+	/**
+	 * Stop sending events.  Anything still waiting is dropped.
+	 */
+	public void shutdown() {
+		executor.shutdownNow();
+	}
+
+	/**
+	 * Drop a subscription whose control point has stopped taking events
+	 * @param subscription
+	 */
+	private void evict(LocalGENASubscription subscription) {
+		log.info("Dropping subscription " + subscription.getSubscriptionId() + " after " + failureLimit
+				+ " failed events");
+		metrics.increment("gena.evicted");
+		upnpService.getRegistry().removeLocalSubscription(subscription);
+		subscription.end(null);
+	}
+
+	/**
+	 * The events waiting for one subscription, and how well its control point has been taking
+	 * them
+	 */
+	private class Subscriber implements Runnable {
+
+		/** Control point's address, to record its times under */
+		private final String host;
+
+		/** Next event to send, or null if there isn't one */
+		private QueuedEvent pending;
+
+		/** Whether run() has been scheduled or is running */
+		private boolean scheduled;
+
+		/** Events in a row that couldn't be sent */
+		private int failures;
+
+		/** Set once the subscription has been dropped */
+		private boolean evicted;
+
+		Subscriber(String host) {
+			this.host = host;
+		}
+
+		/**
+		 * Queue an event, replacing any that is still waiting
+		 * @param event
+		 */
+		synchronized void offer(QueuedEvent event) {
+			if (evicted) {
+				return;
+			}
+			if (pending != null) {
+				event.replace(pending);
+				metrics.increment("gena.replaced");
+			}
+			pending = event;
+			if (!scheduled) {
+				scheduled = true;
+				schedule(0);
+			}
+		}
+
+		/**
+		 * Send the waiting event
+		 */
+		@Override
+		public void run() {
+			QueuedEvent event;
+			synchronized (this) {
+				event = pending;
+				pending = null;
+				if (event == null) {
+					scheduled = false;
+					return;
+				}
+			}
+
+			boolean delivered = event.deliver(host);
+
+			boolean evict = false;
+			synchronized (this) {
+				long delay = 0;
+				if (delivered) {
+					failures = 0;
+					metrics.recordSince("gena.lag." + host, event.queued);
+				} else {
+					failures++;
+					metrics.increment("gena.failed");
+					if (failures >= failureLimit) {
+						evicted = evict = true;
+						pending = null;
+					} else {
+						// Try again, unless there's something newer to send instead
+						if (pending == null) {
+							pending = event;
+						} else {
+							pending.replace(event);
+						}
+						delay = Math.min(MAX_RETRY_DELAY, FIRST_RETRY_DELAY << Math.min(failures - 1, 16));
+					}
+				}
+				if (pending == null) {
+					scheduled = false;
+				} else {
+					schedule(delay);
+				}
+			}
+			if (evict) {
+				evict(event.subscription);
+			}
+		}
+
+		/**
+		 * Run after a delay.  Called with this locked.
+		 * @param delayMillis
+		 */
+		private void schedule(long delayMillis) {
+			try {
+				executor.schedule(this, delayMillis, TimeUnit.MILLISECONDS);
+			} catch (RejectedExecutionException e) {
+				// Shutting down
+				scheduled = false;
+				pending = null;
+			}
+		}
+	}
+
+	/**
+	 * An event for one subscription, with its sequence number and body worked out by Cling
+	 * when it was created.  Cling's own run of it does nothing; EventDelivery sends it.
+	 */
+	private static class QueuedEvent extends SendingEvent {
+
+		private final LocalGENASubscription subscription;
+
+		/** When the oldest change in it was queued, from System.nanoTime() */
+		private long queued = System.nanoTime();
+
+		/** Whether to send the whole state of the service rather than what Cling gave us */
+		private boolean fullState;
+
+		QueuedEvent(UpnpService upnpService, LocalGENASubscription subscription) {
+			super(upnpService, subscription);
+			this.subscription = subscription;
+		}
+
+		@Override
+		protected StreamResponseMessage executeSync() {
+			return null;
+		}
+
+		/**
+		 * Note that this is being sent in place of an earlier event that wasn't
+		 * @param earlier
+		 */
+		void replace(QueuedEvent earlier) {
+			fullState = true;
+			queued = Math.min(queued, earlier.queued);
+		}
+
+		/**
+		 * Send the event
+		 * @param host control point's address, to record the time taken under
+		 * @return whether the control point took it
+		 */
+		boolean deliver(String host) {
+			if (fullState) {
+				fillWithFullState();
+			}
+			long start = System.nanoTime();
+			StreamResponseMessage response;
+			try {
+				response = super.executeSync();
+			} catch (RuntimeException e) {
+				// Count it as a failure rather than stop sending to this control point
+				log.warning("Unable to send event for " + subscriptionId + ": " + e.getMessage());
+				response = null;
+			}
+			long took = System.nanoTime() - start;
+			Metrics.getInstance().record("gena.notify", took);
+			Metrics.getInstance().record("gena.notify." + host, took);
+			return response != null && !response.getOperation().isFailed();
+		}
+
+		/**
+		 * Replace the body with the whole state of the service, as the initial event has
+		 */
+		@SuppressWarnings({ "rawtypes", "unchecked" })
+		private void fillWithFullState() {
+			try {
+				Collection<StateVariableValue> values =
+						subscription.getService().getManager().readEventedStateVariableValues(true);
+				List<URL> callbacks = subscription.getCallbackURLs();
+				for (int i = 0; i < requestMessages.length && i < callbacks.size(); i++) {
+					OutgoingEventRequestMessage message = new OutgoingEventRequestMessage(subscription,
+							callbacks.get(i), currentSequence, values);
+					getUpnpService().getConfiguration().getGenaEventProcessor().writeBody(message);
+					requestMessages[i] = message;
+				}
+			} catch (Exception e) {
+				// Send what we have
+				log.warning("Unable to read the state of " + subscription.getService() + ": " + e.getMessage());
+			}
+		}
+	}
+}
@@ -0,0 +1,122 @@
+package org.matt1.climediarenderer.managers;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Logger;
+
+import org.fourthline.cling.support.lastchange.LastChangeAwareServiceManager;
+
+/**
+ * Sends LastChange events to subscribers when something has actually changed, instead of
+ * checking every service every second.  Changes are moderated: events for a service are sent
+ * no more often than once per moderation window (UPnP says at least 200ms), and any changes
+ * made in the meantime are sent together in one event.  Nothing runs while nothing changes.
+ *
+ * @author Matt
+ *
+ */
+public class LastChangeScheduler {
+
+	/** Log used to display messages to the console */
+	private static Logger log = Logger.getLogger(LastChangeScheduler.class.getName());
+
+	/** Shortest moderation window UPnP allows for LastChange, in milliseconds */
+	public static final long MINIMUM_MODERATION = 200;
+
+	/** Thread that sends the events */
+	private final ScheduledExecutorService executor;
+
+	/** Shortest time between two events for the same service, in nanoseconds */
+	private final long moderationNanos;
+
+	/**
+	 * Create a new scheduler
+	 * @param moderationMillis shortest time between events for a service; anything under the
+	 * UPnP minimum is raised to it
+	 */
+	public LastChangeScheduler(long moderationMillis) {
+		moderationNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(MINIMUM_MODERATION, moderationMillis));
+		executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "last-change");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Start sending events for a service whenever its LastChange changes
+	 * @param lastChange
+	 * @param serviceManager
+	 */
+	public void register(ModeratedLastChange lastChange, LastChangeAwareServiceManager<?> serviceManager) {
+		lastChange.setChangeListener(new ServiceEvents(serviceManager));
+	}
+
+	/**
+	 * Stop sending events.  Anything waiting to be sent is sent first.
+	 */
+	public void shutdown() {
+		executor.shutdown();
+		try {
+			if (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+				executor.shutdownNow();
+			}
+		} catch (InterruptedException e) {
+			executor.shutdownNow();
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Keeps track of whether a service has changes waiting to be sent, and when it last sent
+	 * some.
+	 */
+	private class ServiceEvents implements Runnable {
+
+		private final LastChangeAwareServiceManager<?> serviceManager;
+
+		/** Set while a flush is scheduled */
+		private final AtomicBoolean dirty = new AtomicBoolean(false);
+
+		/** When events were last sent, from System.nanoTime() */
+		private volatile long lastFlush = System.nanoTime() - moderationNanos;
+
+		private final Runnable flush = new Runnable() {
+			@Override
+			public void run() {
+				// Clear first so that changes made while we're sending get their own event
+				dirty.set(false);
+				lastFlush = System.nanoTime();
+				try {
+					serviceManager.fireLastChange();
+				} catch (Exception e) {
+					log.warning("Unable to send LastChange event: " + e.getMessage());
+				}
+			}
+		};
+
+		ServiceEvents(LastChangeAwareServiceManager<?> serviceManager) {
+			this.serviceManager = serviceManager;
+		}
+
+		/** Called when a value has changed */
+		@Override
+		public void run() {
+			if (dirty.compareAndSet(false, true)) {
+				long delay = Math.max(0, lastFlush + moderationNanos - System.nanoTime());
+				try {
+					executor.schedule(flush, delay, TimeUnit.NANOSECONDS);
+				} catch (Exception e) {
+					// Shutting down
+					dirty.set(false);
+				}
+			}
+		}
+	}
+}
@@ -2,6 +2,7 @@ package org.matt1.climediarenderer.managers;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.logging.Logger;
 
 import org.fourthline.cling.model.meta.LocalService;
@@ -14,7 +15,13 @@ import org.fourthline.cling.support.lastchange.LastChangeDelegator;
 import org.fourthline.cling.support.lastchange.LastChangeParser;
 
 /**
- * Slightly more lenient LastChangeAwareServiceManager that racefully handles null pointers
+ * Slightly more lenient LastChangeAwareServiceManager that racefully handles null pointers.
+ * 
+ * The initial event sent to each new subscriber is kept and sent to every subscriber after it
+ * until the service's ModeratedLastChange says something has changed, rather than being built
+ * again each time.  Subscribers that get it from there don't have to wait for the service lock.
+ * Services that change values without sending an event for them, such as a track duration the
+ * player only works out later, invalidate the ModeratedLastChange so that it is built again.
  * @author Matt
  *
  * @param <T>
@@ -24,6 +31,9 @@ public class LenientChangeAwareServiceManager<T extends LastChangeDelegator> ext
 
 	private static Logger log = Logger.getLogger(LenientChangeAwareServiceManager.class.getName());
 	
+	/** The last initial event built, or null if there isn't one yet */
+	private volatile InitialEvent initialEvent;
+	
     public LenientChangeAwareServiceManager(LocalService<T> localService,
             LastChangeParser lastChangeParser) {
     	super(localService, null, lastChangeParser);
@@ -36,10 +46,30 @@ public class LenientChangeAwareServiceManager<T extends LastChangeDelegator> ext
     }
 
 
+    @SuppressWarnings("rawtypes")
+	@Override
+    public Collection<StateVariableValue> readEventedStateVariableValues(boolean initial) throws Exception {
+    	if (initial) {
+    		InitialEvent event = initialEvent;
+    		// Asking the implementation for its LastChange would take the lock
+    		if (event != null && event.lastChange.getVersion() == event.version) {
+    			return event.values;
+    		}
+    	}
+    	// Builds a new one with the service locked
+    	return super.readEventedStateVariableValues(initial);
+    }
+
     @SuppressWarnings({ "rawtypes", "unchecked" })
 	@Override
     protected Collection<StateVariableValue> readInitialEventedStateVariableValues() 
     		throws Exception {
+    	
+    	// Anything that changes from here on could be missed out, so will mean building it again
+    	LastChange serviceLastChange = getImplementation().getLastChange();
+    	ModeratedLastChange moderated = serviceLastChange instanceof ModeratedLastChange 
+    			? (ModeratedLastChange) serviceLastChange : null;
+    	long version = moderated == null ? 0 : moderated.getVersion();
 
         // We don't use the service's internal LastChange but a fresh new one just for
         // this initial event. Modifying the internal one would trigger event notification's
@@ -68,8 +98,33 @@ public class LenientChangeAwareServiceManager<T extends LastChangeDelegator> ext
         StateVariable variable = getService().getStateVariable("LastChange");
         Collection<StateVariableValue> values = new ArrayList();
         values.add(new StateVariableValue(variable, lc.toString()));
+        values = Collections.unmodifiableCollection(values);
+        if (moderated != null) {
+        	// Only services that count their changes can have it kept
+        	InitialEvent previous = initialEvent;
+        	if (previous == null || previous.version <= version) {
+        		initialEvent = new InitialEvent(moderated, version, values);
+        	}
+        }
         return values;
     }
     
-	
+    /**
+     * An initial event, along with the version of the service's state it was built from
+     */
+    @SuppressWarnings("rawtypes")
+    private static class InitialEvent {
+    	
+    	final ModeratedLastChange lastChange;
+    	
+    	final long version;
+    	
+    	final Collection<StateVariableValue> values;
+    	
+    	InitialEvent(ModeratedLastChange lastChange, long version, Collection<StateVariableValue> values) {
+    		this.lastChange = lastChange;
+    		this.version = version;
+    		this.values = values;
+    	}
+    }
 }
@@ -0,0 +1,67 @@
+package org.matt1.climediarenderer.managers;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.fourthline.cling.model.types.UnsignedIntegerFourBytes;
+import org.fourthline.cling.support.lastchange.EventedValue;
+import org.fourthline.cling.support.lastchange.LastChange;
+import org.fourthline.cling.support.lastchange.LastChangeParser;
+
+/**
+ * LastChange that tells the LastChangeScheduler whenever a value changes, so that the change
+ * gets sent to subscribers without anything having to poll for it.  It also counts changes, so
+ * anything worked out from the service's state can tell when it is out of date.
+ * 
+ * @author Matt
+ *
+ */
+public class ModeratedLastChange extends LastChange {
+
+	/** Called whenever a value changes */
+	private volatile Runnable changeListener;
+	
+	/** Number of times a value has changed */
+	private final AtomicLong version = new AtomicLong();
+	
+	public ModeratedLastChange(LastChangeParser parser) {
+		super(parser);
+	}
+	
+	/**
+	 * Set what to call whenever a value changes
+	 * @param changeListener
+	 */
+	void setChangeListener(Runnable changeListener) {
+		this.changeListener = changeListener;
+	}
+	
+	/**
+	 * Get the number of times a value has changed.  Services change their own state before
+	 * setting the evented value, so anything worked out from the state while this stayed the
+	 * same is still current.
+	 * @return
+	 */
+	public long getVersion() {
+		return version.get();
+	}
+	
+	/**
+	 * Note that the service's state has changed without an event being sent, e.g. a track
+	 * duration the player has only just worked out, so that anything worked out from the old
+	 * state isn't used again
+	 */
+	public void invalidate() {
+		version.incrementAndGet();
+	}
+	
+	@Override
+	@SuppressWarnings("rawtypes")
+	public void setEventedValue(UnsignedIntegerFourBytes instanceID, EventedValue... ev) {
+		super.setEventedValue(instanceID, ev);
+		version.incrementAndGet();
+		Runnable listener = changeListener;
+		if (listener != null) {
+			listener.run();
+		}
+	}
+}
@@ -0,0 +1,23 @@
+package org.matt1.climediarenderer.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts how many times something has happened, e.g. events that had to be dropped.
+ *
+ * @author Matt
+ *
+ */
+public class Counter implements CounterMBean {
+
+	private final AtomicLong count = new AtomicLong();
+
+	public void increment() {
+		count.incrementAndGet();
+	}
+
+	@Override
+	public long getCount() {
+		return count.get();
+	}
+}
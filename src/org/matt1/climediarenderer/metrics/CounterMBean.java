@@ -0,0 +1,12 @@
+package org.matt1.climediarenderer.metrics;
+
+/**
+ * What JMX clients such as JConsole can see of a counter.
+ *
+ * @author Matt
+ *
+ */
+public interface CounterMBean {
+
+	long getCount();
+}
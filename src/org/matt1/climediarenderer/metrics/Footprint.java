@@ -0,0 +1,212 @@
+package org.matt1.climediarenderer.metrics;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import org.matt1.climediarenderer.utils.PropertyHelper;
+
+/**
+ * How much memory the renderer is using: its resident set size as Linux sees it, which is what
+ * competes with MPD or MPlayer for RAM, and the JVM's heap and non-heap, with the number of
+ * threads as each has a stack.  All are shown under memory and threads in Metrics, in
+ * kilobytes.
+ *
+ * If memoryBudget is set, the resident set size is checked against it every minute, and a
+ * warning logged and memory.overbudget counted each time it is over.
+ *
+ * @author Matt
+ *
+ */
+public class Footprint {
+
+	/** Log used to display messages to the console */
+	private static Logger log = Logger.getLogger(Footprint.class.getName());
+
+	/** Where Linux says how much memory we are using */
+	private static final String STATUS = "/proc/self/status";
+
+	/** Time between checks against the budget, in seconds */
+	private static final long CHECK_INTERVAL = 60;
+
+	private static Footprint footprint;
+
+	private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+
+	/** Most memory to use, in kilobytes, or 0 not to check */
+	private final long budgetKilobytes;
+
+	/** Checks against the budget, or null if there isn't one */
+	private ScheduledExecutorService checker;
+
+	public static synchronized Footprint getInstance() {
+		if (footprint == null) {
+			int budget;
+			try {
+				budget = PropertyHelper.getInstance().getMemoryBudget();
+			} catch (Exception e) {
+				budget = 0;
+			}
+			footprint = new Footprint(budget);
+		}
+		return footprint;
+	}
+
+	private Footprint(int budgetMegabytes) {
+		budgetKilobytes = Math.max(0, budgetMegabytes) * 1024L;
+
+		Metrics metrics = Metrics.getInstance();
+		metrics.gauge("memory.rss", new Gauge() {
+			@Override
+			public long getValue() {
+				return getRssKilobytes();
+			}
+		});
+		metrics.gauge("memory.heap.used", new Gauge() {
+			@Override
+			public long getValue() {
+				return getHeapUsedKilobytes();
+			}
+		});
+		metrics.gauge("memory.heap.committed", new Gauge() {
+			@Override
+			public long getValue() {
+				return memory.getHeapMemoryUsage().getCommitted() / 1024;
+			}
+		});
+		metrics.gauge("memory.nonheap.used", new Gauge() {
+			@Override
+			public long getValue() {
+				return getNonHeapUsedKilobytes();
+			}
+		});
+		metrics.gauge("memory.budget", new Gauge() {
+			@Override
+			public long getValue() {
+				return budgetKilobytes;
+			}
+		});
+		metrics.gauge("threads.live", new Gauge() {
+			@Override
+			public long getValue() {
+				return getThreadCount();
+			}
+		});
+	}
+
+	/**
+	 * Start checking against the budget, if there is one
+	 */
+	public synchronized void start() {
+		if (budgetKilobytes == 0 || checker != null) {
+			return;
+		}
+		checker = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "footprint");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		checker.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				if (isOverBudget()) {
+					Metrics.getInstance().increment("memory.overbudget");
+					log.warning("Using " + getRssKilobytes() / 1024 + "MB, over the memoryBudget of "
+							+ budgetKilobytes / 1024 + "MB");
+				}
+			}
+		}, CHECK_INTERVAL, CHECK_INTERVAL, TimeUnit.SECONDS);
+	}
+
+	public synchronized void shutdown() {
+		if (checker != null) {
+			checker.shutdownNow();
+			checker = null;
+		}
+	}
+
+	/**
+	 * Whether more memory is in use than memoryBudget allows
+	 * @return false if there's no budget, or the resident set size can't be read
+	 */
+	public boolean isOverBudget() {
+		return budgetKilobytes > 0 && getRssKilobytes() > budgetKilobytes;
+	}
+
+	/**
+	 * Collect what garbage can be collected, so the heap used is what is really needed rather
+	 * than whatever happened to be waiting for the next collection
+	 */
+	public void settle() {
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+			try {
+				Thread.sleep(100);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * How much of the process is in RAM, as Linux sees it
+	 * @return kilobytes, or -1 where that can't be read, e.g. not on Linux
+	 */
+	public long getRssKilobytes() {
+		try {
+			BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(STATUS), "US-ASCII"));
+			try {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					// e.g. VmRSS:	   41236 kB
+					if (line.startsWith("VmRSS:")) {
+						return Long.parseLong(line.substring(6).replace("kB", "").trim());
+					}
+				}
+			} finally {
+				reader.close();
+			}
+		} catch (IOException e) {
+			// Not Linux
+		} catch (NumberFormatException e) {
+			// Not a layout we know
+		}
+		return -1;
+	}
+
+	/**
+	 * How much of the heap is in use, including garbage not yet collected
+	 * @return kilobytes
+	 */
+	public long getHeapUsedKilobytes() {
+		return memory.getHeapMemoryUsage().getUsed() / 1024;
+	}
+
+	/**
+	 * How much is in use outside the heap, e.g. loaded classes and compiled code
+	 * @return kilobytes
+	 */
+	public long getNonHeapUsedKilobytes() {
+		return memory.getNonHeapMemoryUsage().getUsed() / 1024;
+	}
+
+	/**
+	 * How many threads are running, each with its own stack
+	 * @return
+	 */
+	public int getThreadCount() {
+		return ManagementFactory.getThreadMXBean().getThreadCount();
+	}
+}
@@ -0,0 +1,13 @@
+package org.matt1.climediarenderer.metrics;
+
+/**
+ * A value read at the moment it is asked for, e.g. how many connections are open.
+ *
+ * @author Matt
+ *
+ */
+public abstract class Gauge implements GaugeMBean {
+
+	@Override
+	public abstract long getValue();
+}
@@ -0,0 +1,142 @@
+package org.matt1.climediarenderer.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts how long something took into buckets, so percentiles can be worked out at any time
+ * without keeping every time.  Times are bucketed to the microsecond, with 16 buckets for each
+ * power of two so a percentile is never more than about 3% out.  Recording doesn't lock, so it
+ * can be done from any number of threads on the hot path.
+ *
+ * @author Matt
+ *
+ */
+public class Histogram implements HistogramMBean {
+
+	/** Buckets per power of two, as a power of two */
+	private static final int SUB_BITS = 4;
+
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+	/** Longest time that gets its own bucket, in microseconds (about 12 days) */
+	private static final long MAX_MICROS = (1L << 40) - 1;
+
+	private static final int BUCKETS = bucket(MAX_MICROS) + 1;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+	private final AtomicLong count = new AtomicLong();
+
+	/** Total of every time recorded, in nanoseconds */
+	private final AtomicLong sum = new AtomicLong();
+
+	/** Longest time recorded, in nanoseconds */
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Record one time
+	 * @param nanos
+	 */
+	public void record(long nanos) {
+		if (nanos < 0) {
+			nanos = 0;
+		}
+		buckets.incrementAndGet(bucket(Math.min(nanos / 1000, MAX_MICROS)));
+		sum.addAndGet(nanos);
+		long longest;
+		while (nanos > (longest = max.get()) && !max.compareAndSet(longest, nanos)) {
+			// Someone else recorded a longer one at the same time; try again
+		}
+		count.incrementAndGet();
+	}
+
+	@Override
+	public long getCount() {
+		return count.get();
+	}
+
+	@Override
+	public double getMeanMillis() {
+		long recorded = count.get();
+		return recorded == 0 ? 0 : sum.get() / 1e6 / recorded;
+	}
+
+	@Override
+	public double getP50Millis() {
+		return getPercentileMillis(50.0);
+	}
+
+	@Override
+	public double getP90Millis() {
+		return getPercentileMillis(90.0);
+	}
+
+	@Override
+	public double getP99Millis() {
+		return getPercentileMillis(99.0);
+	}
+
+	@Override
+	public double getP999Millis() {
+		return getPercentileMillis(99.9);
+	}
+
+	@Override
+	public double getMaxMillis() {
+		return max.get() / 1e6;
+	}
+
+	/**
+	 * Work out a percentile of the times recorded so far
+	 * @param percentile e.g. 99.9
+	 * @return in milliseconds, or 0 if nothing has been recorded
+	 */
+	public double getPercentileMillis(double percentile) {
+		long recorded = count.get();
+		if (recorded == 0) {
+			return 0;
+		}
+		long target = Math.max(1, (long) Math.ceil(percentile / 100.0 * recorded));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += buckets.get(i);
+			if (seen >= target) {
+				// Middle of the bucket, but never more than the longest actually seen
+				return Math.min(middle(i) / 1000.0, getMaxMillis());
+			}
+		}
+		// Only if times were recorded while we were counting
+		return getMaxMillis();
+	}
+
+	/**
+	 * Which bucket a time goes in.  Below 16us each microsecond has its own; above that each
+	 * power of two is split into 16.
+	 * @param micros
+	 * @return
+	 */
+	private static int bucket(long micros) {
+		if (micros < SUB_BUCKETS) {
+			return (int) micros;
+		}
+		int power = 63 - Long.numberOfLeadingZeros(micros);
+		int sub = (int) (micros >>> (power - SUB_BITS)) - SUB_BUCKETS;
+		return SUB_BUCKETS + (power - SUB_BITS) * SUB_BUCKETS + sub;
+	}
+
+	/**
+	 * The time in the middle of a bucket
+	 * @param bucket
+	 * @return in microseconds
+	 */
+	private static double middle(int bucket) {
+		if (bucket < SUB_BUCKETS) {
+			return bucket;
+		}
+		int shift = (bucket - SUB_BUCKETS) / SUB_BUCKETS;
+		long sub = (bucket - SUB_BUCKETS) % SUB_BUCKETS;
+		long lower = (SUB_BUCKETS + sub) << shift;
+		return lower + ((1L << shift) - 1) / 2.0;
+	}
+}
@@ -0,0 +1,24 @@
+package org.matt1.climediarenderer.metrics;
+
+/**
+ * What JMX clients such as JConsole can see of a histogram.  Times are in milliseconds.
+ *
+ * @author Matt
+ *
+ */
+public interface HistogramMBean {
+
+	long getCount();
+
+	double getMeanMillis();
+
+	double getP50Millis();
+
+	double getP90Millis();
+
+	double getP99Millis();
+
+	double getP999Millis();
+
+	double getMaxMillis();
+}
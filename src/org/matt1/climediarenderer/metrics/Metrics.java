@@ -0,0 +1,204 @@
+package org.matt1.climediarenderer.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.logging.Logger;
+
+import javax.management.ObjectName;
+
+import org.matt1.climediarenderer.utils.PropertyHelper;
+
+/**
+ * Keeps a latency histogram for each thing worth timing - UPnP actions, MPlayer and MPD
+ * commands, events sent to control points and so on - named like action.AVTransport.Play, a
+ * counter for each thing worth counting and a gauge for each thing worth watching.  Each one is made available over JMX as
+ * org.matt1.climediarenderer:type=Metrics, and all of them as plain text at /metrics on the
+ * UPnP HTTP server.
+ *
+ * @author Matt
+ *
+ */
+public class Metrics {
+
+	/** Log used to display messages to the console */
+	private static Logger log = Logger.getLogger(Metrics.class.getName());
+
+	private static final String DOMAIN = "org.matt1.climediarenderer";
+
+	/**
+	 * Most histograms, counters and gauges kept, so that names made up from what control points send
+	 * can't use up memory.  Anything after that is counted under "other".
+	 */
+	private static final int MAX_METRICS = 256;
+
+	private static final String OTHER = "other";
+
+	private static Metrics metrics;
+
+	private final boolean enabled;
+
+	/** Histograms by name, sorted so they list nicely */
+	private final ConcurrentMap<String, Histogram> histograms = new ConcurrentSkipListMap<String, Histogram>();
+
+	/** Counters by name, sorted so they list nicely */
+	private final ConcurrentMap<String, Counter> counters = new ConcurrentSkipListMap<String, Counter>();
+
+	/** Gauges by name, sorted so they list nicely */
+	private final ConcurrentMap<String, Gauge> gauges = new ConcurrentSkipListMap<String, Gauge>();
+
+	public static synchronized Metrics getInstance() {
+		if (metrics == null) {
+			boolean enabled;
+			try {
+				enabled = PropertyHelper.getInstance().isMetricsEnabled();
+			} catch (Exception e) {
+				enabled = true;
+			}
+			metrics = new Metrics(enabled);
+		}
+		return metrics;
+	}
+
+	private Metrics(boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	/**
+	 * Whether anything is being recorded
+	 * @return
+	 */
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Record how long something took
+	 * @param name
+	 * @param nanos
+	 */
+	public void record(String name, long nanos) {
+		if (enabled) {
+			histogram(name).record(nanos);
+		}
+	}
+
+	/**
+	 * Record how long something took since it started
+	 * @param name
+	 * @param startNanos from System.nanoTime()
+	 */
+	public void recordSince(String name, long startNanos) {
+		if (enabled) {
+			histogram(name).record(System.nanoTime() - startNanos);
+		}
+	}
+
+	/**
+	 * Count one more of something
+	 * @param name
+	 */
+	public void increment(String name) {
+		if (enabled) {
+			counter(name).increment();
+		}
+	}
+
+	/**
+	 * Get a histogram, creating and registering it with JMX the first time
+	 * @param name
+	 * @return
+	 */
+	public Histogram histogram(String name) {
+		Histogram histogram = histograms.get(name);
+		if (histogram == null) {
+			if (histograms.size() >= MAX_METRICS && !name.equals(OTHER)) {
+				return histogram(OTHER);
+			}
+			Histogram created = new Histogram();
+			histogram = histograms.putIfAbsent(name, created);
+			if (histogram == null) {
+				histogram = created;
+				register(name, created);
+			}
+		}
+		return histogram;
+	}
+
+	/**
+	 * Get a counter, creating and registering it with JMX the first time
+	 * @param name
+	 * @return
+	 */
+	public Counter counter(String name) {
+		Counter counter = counters.get(name);
+		if (counter == null) {
+			if (counters.size() >= MAX_METRICS && !name.equals(OTHER)) {
+				return counter(OTHER);
+			}
+			Counter created = new Counter();
+			counter = counters.putIfAbsent(name, created);
+			if (counter == null) {
+				counter = created;
+				register(name, created);
+			}
+		}
+		return counter;
+	}
+
+	/**
+	 * Watch a value, e.g. how many connections are open.  Does nothing if a gauge with the same
+	 * name is already being watched, or nothing is being recorded.
+	 * @param name
+	 * @param gauge
+	 */
+	public void gauge(String name, Gauge gauge) {
+		if (enabled && gauges.size() < MAX_METRICS && gauges.putIfAbsent(name, gauge) == null) {
+			register(name, gauge);
+		}
+	}
+
+	/**
+	 * Everything recorded so far, one value per line, e.g. action.AVTransport.Play.p99 1.250 or
+	 * gena.evicted 2.  Times are in milliseconds.
+	 * @return
+	 */
+	public String toText() {
+		StringBuilder text = new StringBuilder();
+		for (Map.Entry<String, Histogram> entry : histograms.entrySet()) {
+			String name = entry.getKey();
+			Histogram histogram = entry.getValue();
+			text.append(name).append(".count ").append(histogram.getCount()).append('\n');
+			append(text, name, "mean", histogram.getMeanMillis());
+			append(text, name, "p50", histogram.getP50Millis());
+			append(text, name, "p90", histogram.getP90Millis());
+			append(text, name, "p99", histogram.getP99Millis());
+			append(text, name, "p999", histogram.getP999Millis());
+			append(text, name, "max", histogram.getMaxMillis());
+		}
+		for (Map.Entry<String, Counter> entry : counters.entrySet()) {
+			text.append(entry.getKey()).append(' ').append(entry.getValue().getCount()).append('\n');
+		}
+		for (Map.Entry<String, Gauge> entry : gauges.entrySet()) {
+			text.append(entry.getKey()).append(' ').append(entry.getValue().getValue()).append('\n');
+		}
+		return text.toString();
+	}
+
+	private static void append(StringBuilder text, String name, String statistic, double millis) {
+		text.append(name).append('.').append(statistic).append(' ')
+				.append(String.format(Locale.ROOT, "%.3f", millis)).append('\n');
+	}
+
+	private static void register(String name, Object metric) {
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(metric,
+					new ObjectName(DOMAIN + ":type=Metrics,name=" + ObjectName.quote(name)));
+		} catch (Exception e) {
+			// Still recorded, and still shown at /metrics
+			log.warning("Unable to register " + name + " with JMX: " + e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,61 @@
+package org.matt1.climediarenderer.player;
+
+import javax.sound.sampled.AudioFormat;
+
+/**
+ * Somewhere for the Java Sound player to send decoded audio - normally the sound card, but it
+ * can be a file or nowhere at all so the player can be run without one.
+ *
+ * @author Matt
+ *
+ */
+interface AudioSink {
+
+	/**
+	 * Get ready to take audio in the given format, closing anything already open
+	 * @param format
+	 * @throws PlayerException if the format can't be played
+	 */
+	void open(AudioFormat format) throws PlayerException;
+
+	/**
+	 * Format audio is being taken in, or null if not open
+	 * @return
+	 */
+	AudioFormat getFormat();
+
+	/**
+	 * Write whole frames, waiting for room if need be.  Returns early if flushed.
+	 * @param data
+	 * @param offset
+	 * @param length
+	 * @return how many bytes were taken
+	 */
+	int write(byte[] data, int offset, int length);
+
+	/** Start or resume playing what has been written */
+	void start();
+
+	/** Pause, keeping what has been written */
+	void stop();
+
+	/** Throw away anything written but not yet played */
+	void flush();
+
+	/** Wait until everything written has been played */
+	void drain();
+
+	/**
+	 * Number of frames actually played since it was opened
+	 * @return
+	 */
+	long getFramePosition();
+
+	/**
+	 * Number of frames written since it was opened
+	 * @return
+	 */
+	long getFramesWritten();
+
+	void close();
+}
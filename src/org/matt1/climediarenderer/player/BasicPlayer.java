@@ -39,6 +39,15 @@ public interface BasicPlayer {
 	 */
 	public void skip(long seconds) throws PlayerException;
 	
+	/**
+	 * Move to a position in the track, keeping the player paused if it was paused.  If the
+	 * player is stopped, playback starts from there next time it is played.
+	 * 
+	 * @param seconds position from the start of the track
+	 * @throws PlayerException
+	 */
+	public void seek(long seconds) throws PlayerException;
+	
 	/**
 	 * Get the position of the track in seconds
 	 * @return
@@ -63,6 +72,21 @@ public interface BasicPlayer {
 	 */
 	public String getCurrentUri();
 	
+	/**
+	 * Queue up the track to play once the current one finishes, so the player can move straight
+	 * on to it without a gap.  Pass null to clear it.
+	 * 
+	 * @param uri
+	 * @throws PlayerException if the track cannot be queued, or replace one that already is
+	 */
+	public void setNextUri(String uri) throws PlayerException;
+	
+	/**
+	 * Set who to tell when the player does something on its own, like changing track
+	 * @param listener
+	 */
+	public void setListener(PlayerListener listener);
+	
 	/** Cleanup anything that the garbage collector wont get like processes */
 	public void cleanup();
 }
@@ -0,0 +1,204 @@
+package org.matt1.climediarenderer.player;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.logging.Logger;
+
+import javax.sound.sampled.AudioFormat;
+
+/**
+ * Pretends to be a sound card, taking audio at the rate it would be played, and writes it to
+ * a WAV file or throws it away.  Lets the Java Sound player run on a machine with no sound
+ * output, e.g. for testing.  The file is started again each time a new track is opened.
+ *
+ * @author Matt
+ *
+ */
+class FileAudioSink implements AudioSink {
+
+	/** Log used to display messages to the console */
+	private static Logger log = Logger.getLogger(FileAudioSink.class.getName());
+
+	/** How far ahead of the pretend playback writes can get, in milliseconds */
+	private static final int BUFFER_MILLIS = 250;
+
+	private static final int WAV_HEADER_SIZE = 44;
+
+	/** File to write, or null to throw the audio away */
+	private final File file;
+
+	private RandomAccessFile out;
+
+	private AudioFormat format;
+
+	private long framesWritten;
+
+	/** Frames played when the clock was last set */
+	private long baseFrames;
+
+	/** When the clock was last set, from System.nanoTime() */
+	private long baseTime;
+
+	private boolean started;
+
+	FileAudioSink(File file) {
+		this.file = file;
+	}
+
+	@Override
+	public synchronized void open(AudioFormat format) throws PlayerException {
+		close();
+		if (file != null) {
+			try {
+				out = new RandomAccessFile(file, "rw");
+				out.setLength(0);
+				out.write(new byte[WAV_HEADER_SIZE]);
+			} catch (IOException e) {
+				throw new PlayerException("Unable to write sound to " + file + ": " + e.getMessage());
+			}
+		}
+		this.format = format;
+		framesWritten = 0;
+		baseFrames = 0;
+		baseTime = System.nanoTime();
+		started = false;
+	}
+
+	@Override
+	public synchronized AudioFormat getFormat() {
+		return format;
+	}
+
+	@Override
+	public synchronized int write(byte[] data, int offset, int length) {
+		if (format == null) {
+			return 0;
+		}
+		long position = getFramePosition();
+		if (started && position == framesWritten) {
+			// Ran dry, so the clock waits for us rather than racing ahead
+			resetClock(position);
+		}
+		if (out != null) {
+			try {
+				out.write(data, offset, length);
+			} catch (IOException e) {
+				log.warning("Unable to write sound to " + file + ": " + e.getMessage());
+			}
+		}
+		framesWritten += length / format.getFrameSize();
+
+		long limit = (long) (format.getFrameRate() * BUFFER_MILLIS / 1000);
+		long written = framesWritten;
+		try {
+			while (format != null && framesWritten == written && framesWritten - getFramePosition() > limit) {
+				if (started) {
+					// Until the clock has played enough to make room
+					long frames = framesWritten - getFramePosition() - limit;
+					wait(Math.max(1, (long) (frames * 1000 / format.getFrameRate())));
+				} else {
+					// The clock is stopped, so nothing changes until it starts or is flushed
+					wait();
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		return length;
+	}
+
+	@Override
+	public synchronized void start() {
+		if (!started) {
+			resetClock(getFramePosition());
+			started = true;
+			notifyAll();
+		}
+	}
+
+	@Override
+	public synchronized void stop() {
+		if (started) {
+			resetClock(getFramePosition());
+			started = false;
+		}
+	}
+
+	@Override
+	public synchronized void flush() {
+		long position = getFramePosition();
+		framesWritten = position;
+		resetClock(position);
+		notifyAll();
+	}
+
+	@Override
+	public synchronized void drain() {
+		try {
+			while (started && getFramePosition() < framesWritten) {
+				wait(5);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	@Override
+	public synchronized long getFramePosition() {
+		if (format == null) {
+			return 0;
+		}
+		if (!started) {
+			return baseFrames;
+		}
+		long elapsed = (long) ((System.nanoTime() - baseTime) * (double) format.getFrameRate() / 1000000000L);
+		return Math.min(framesWritten, baseFrames + elapsed);
+	}
+
+	@Override
+	public synchronized long getFramesWritten() {
+		return framesWritten;
+	}
+
+	private void resetClock(long frames) {
+		baseFrames = frames;
+		baseTime = System.nanoTime();
+	}
+
+	@Override
+	public synchronized void close() {
+		if (out != null) {
+			try {
+				writeHeader();
+				out.close();
+			} catch (IOException e) {
+				log.warning("Unable to finish writing " + file + ": " + e.getMessage());
+			}
+			out = null;
+		}
+		format = null;
+		notifyAll();
+	}
+
+	/**
+	 * Fill in the WAV header now that we know how long the data is
+	 * @throws IOException
+	 */
+	private void writeHeader() throws IOException {
+		long dataLength = out.length() - WAV_HEADER_SIZE;
+		out.seek(0);
+		out.writeBytes("RIFF");
+		out.writeInt(Integer.reverseBytes((int) (dataLength + WAV_HEADER_SIZE - 8)));
+		out.writeBytes("WAVEfmt ");
+		out.writeInt(Integer.reverseBytes(16));
+		out.writeShort(Short.reverseBytes((short) 1));
+		out.writeShort(Short.reverseBytes((short) format.getChannels()));
+		out.writeInt(Integer.reverseBytes((int) format.getSampleRate()));
+		out.writeInt(Integer.reverseBytes((int) (format.getSampleRate() * format.getFrameSize())));
+		out.writeShort(Short.reverseBytes((short) format.getFrameSize()));
+		out.writeShort(Short.reverseBytes((short) format.getSampleSizeInBits()));
+		out.writeBytes("data");
+		out.writeInt(Integer.reverseBytes((int) dataLength));
+	}
+}
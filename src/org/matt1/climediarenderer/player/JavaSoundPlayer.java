@@ -0,0 +1,639 @@
+package org.matt1.climediarenderer.player;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Logger;
+
+import javax.sound.sampled.AudioFormat;
+
+import org.matt1.climediarenderer.utils.PropertyHelper;
+
+/**
+ * BasicPlayer that plays uncompressed audio (WAV, AIFF and DLNA LPCM) itself through Java
+ * Sound, rather than handing it to another program.  One thread reads the track from the media
+ * server into a ring buffer, and a second takes it out of the buffer and writes it to the
+ * sound card, so network hiccups are smoothed over and we know exactly what has been played.
+ * Once a track has all been read, the next one is read into the same buffer straight after it
+ * if it is in the same format, so it plays without a gap and the sound card is kept going.
+ *
+ * The audio output setting picks where the sound goes: blank for the default sound card, part
+ * of a mixer name for a particular one, "null" to throw it away, or "file:" and a path to
+ * write it to a WAV file.
+ *
+ * @author Matt
+ *
+ */
+public class JavaSoundPlayer implements BasicPlayer {
+
+	/** Log used to display messages to the console */
+	private static Logger log = Logger.getLogger(JavaSoundPlayer.class.getName());
+
+	/**
+	 * Longest a thread waits for the other to make room in or fill the buffer.  Each wakes the
+	 * other when it does, so this is only in case a wakeup goes astray.
+	 */
+	private static final long MAX_WAIT_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+	/** Bytes read from the network at a time */
+	private static final int READ_SIZE = 16384;
+
+	/** Bytes written to the sound card at a time, before rounding down to whole frames */
+	private static final int WRITE_SIZE = 4096;
+
+	/** Size of the buffer each session gets, in bytes */
+	private final int bufferSize;
+
+	/** Buffer left by a session whose threads have finished with it, or null */
+	private PcmRingBuffer spareBuffer;
+
+	/** Where the audio goes */
+	private final AudioSink sink;
+
+	private String mediaPath;
+
+	private String nextMediaPath;
+
+	private volatile PlayerListener listener;
+
+	/** What is currently being played, or null if stopped */
+	private volatile Session session;
+
+	/** The last source opened for this track, kept so we can seek within it */
+	private PcmSource lastSource;
+
+	private volatile boolean paused = false;
+
+	/** Where to start from next time it is played, in seconds */
+	private long startPosition = 0;
+
+	/** Frame of the track that was playing when the sink was at sinkStartFrame */
+	private volatile long startFrame;
+
+	/** The sink's frame position when startFrame was played */
+	private volatile long sinkStartFrame;
+
+	/** Length of the track in seconds, or -1 if not known */
+	private volatile long duration = -1;
+
+	public JavaSoundPlayer(String mediaPath) throws PlayerException {
+		this(mediaPath, null);
+	}
+
+	/**
+	 * Create a player
+	 * @param mediaPath
+	 * @param audioOutput where the sound should go, see above
+	 * @throws PlayerException
+	 */
+	public JavaSoundPlayer(String mediaPath, String audioOutput) throws PlayerException {
+		int bufferSize;
+		try {
+			bufferSize = PropertyHelper.getInstance().getJavaSoundBufferSize() * 1024;
+		} catch (Exception e) {
+			throw new PlayerException("Unable to load Java Sound settings from config: " + e.getMessage());
+		}
+		this.mediaPath = mediaPath;
+		this.bufferSize = bufferSize;
+		this.sink = createSink(audioOutput);
+		log.info("New Java Sound player ready.");
+	}
+
+	/**
+	 * Work out where the sound should go from the audio output setting
+	 * @param audioOutput
+	 * @return
+	 */
+	private static AudioSink createSink(String audioOutput) {
+		if (audioOutput == null || audioOutput.trim().length() == 0) {
+			return new SourceDataLineSink(null);
+		} else if (audioOutput.trim().equalsIgnoreCase("null")) {
+			return new FileAudioSink(null);
+		} else if (audioOutput.trim().startsWith("file:")) {
+			return new FileAudioSink(new File(audioOutput.trim().substring("file:".length())));
+		}
+		return new SourceDataLineSink(audioOutput.trim());
+	}
+
+	@Override
+	public synchronized void play() throws PlayerException {
+		if (session != null) {
+			if (paused) {
+				sink.start();
+				paused = false;
+				session.wake();
+			}
+		} else {
+			paused = false;
+			startSession(startPosition);
+			startPosition = 0;
+		}
+		log.info("Java Sound player: play");
+	}
+
+	@Override
+	public synchronized void stop() throws PlayerException {
+		stopSession();
+		paused = false;
+		startPosition = 0;
+		log.info("Java Sound player: stop");
+	}
+
+	@Override
+	public synchronized void pause() throws PlayerException {
+		if (session != null && !paused) {
+			sink.stop();
+			paused = true;
+			session.wake();
+		}
+		log.info("Java Sound player: pause");
+	}
+
+	@Override
+	public void skip(long seconds) throws PlayerException {
+		seek(Math.max(0, getPosition() + seconds));
+	}
+
+	@Override
+	public synchronized void seek(long seconds) throws PlayerException {
+		if (session == null) {
+			startPosition = seconds;
+		} else {
+			stopSession();
+			startSession(seconds);
+		}
+		log.info("Java Sound player: seek to " + seconds + "s");
+	}
+
+	@Override
+	public long getPosition() {
+		Session current = session;
+		if (current == null) {
+			synchronized (this) {
+				return startPosition;
+			}
+		}
+		long frames = startFrame + sink.getFramePosition() - sinkStartFrame;
+		return (long) (Math.max(0, frames) / current.format.getFrameRate());
+	}
+
+	@Override
+	public long getDuration() {
+		return duration;
+	}
+
+	@Override
+	public float getPositionPercentage() {
+		long length = duration;
+		if (length <= 0) {
+			return -1;
+		}
+		return (float) getPosition() / length;
+	}
+
+	/**
+	 * How long it takes audio written to the sound card to be heard, in milliseconds
+	 * @return
+	 */
+	public long getOutputLatency() {
+		Session current = session;
+		if (current == null) {
+			return 0;
+		}
+		long frames = sink.getFramesWritten() - sink.getFramePosition();
+		return (long) (frames * 1000 / current.format.getFrameRate());
+	}
+
+	@Override
+	public synchronized String getCurrentUri() {
+		return mediaPath;
+	}
+
+	@Override
+	public synchronized void setNextUri(String uri) throws PlayerException {
+		nextMediaPath = uri;
+		log.info("Java Sound player: next is " + uri);
+	}
+
+	@Override
+	public void setListener(PlayerListener listener) {
+		this.listener = listener;
+	}
+
+	@Override
+	public synchronized void cleanup() {
+		stopSession();
+		sink.close();
+	}
+
+	/**
+	 * Start reading and playing the track from a given position
+	 * @param seconds
+	 * @throws PlayerException
+	 */
+	private void startSession(long seconds) throws PlayerException {
+		long frame = 0;
+		if (seconds > 0 && lastSource != null) {
+			frame = (long) (seconds * lastSource.getFormat().getFrameRate());
+		}
+		PcmSource source = PcmSource.open(mediaPath, frame, lastSource);
+		if (seconds > 0 && lastSource == null) {
+			// Didn't know the rate until we'd opened it
+			source.close();
+			lastSource = source;
+			startSession(seconds);
+			return;
+		}
+		lastSource = source;
+
+		AudioFormat format = source.getFormat();
+		if (sink.getFormat() == null || !sink.getFormat().matches(format)) {
+			sink.open(format);
+		}
+		startFrame = frame;
+		sinkStartFrame = sink.getFramePosition();
+		duration = getDuration(source);
+
+		PcmRingBuffer buffer = spareBuffer;
+		spareBuffer = null;
+		if (buffer == null) {
+			buffer = new PcmRingBuffer(bufferSize);
+		} else {
+			buffer.clear();
+		}
+		Session newSession = new Session(source, format, buffer);
+		session = newSession;
+		newSession.start();
+		if (!paused) {
+			sink.start();
+		}
+		log.fine("Java Sound player: playing " + format + " with " + buffer.getCapacity() / 1024 + "KB buffer");
+	}
+
+	/**
+	 * @param source
+	 * @return length of the track in seconds, or -1 if not known
+	 */
+	private static long getDuration(PcmSource source) {
+		long frames = source.getFrameLength();
+		return frames > 0 ? (long) (frames / source.getFormat().getFrameRate()) : -1;
+	}
+
+	/**
+	 * Stop reading and playing, throwing away anything not yet played
+	 */
+	private void stopSession() {
+		Session current = session;
+		if (current == null) {
+			return;
+		}
+		session = null;
+		current.stopped = true;
+		current.wake();
+		current.source.close();
+		for (Track next : current.tracks) {
+			next.source.close();
+			if (nextMediaPath == null) {
+				// Read into the buffer but never heard, so still to come
+				nextMediaPath = next.path;
+			}
+		}
+		sink.flush();
+		if (current.join()) {
+			spareBuffer = current.buffer;
+		} else {
+			// Still going, so it gets a buffer of its own to finish with
+			log.fine("Java Sound player: session slow to stop, not reusing its buffer");
+		}
+	}
+
+	/**
+	 * Called by the reading thread when it has read all of the current track.  Opens the next
+	 * one to be read into the buffer straight after it, if there is one and it can be.
+	 * @param reading
+	 * @param offset how many bytes have been put in the buffer so far
+	 * @return null if there's nothing to read after it
+	 */
+	private PcmSource readNext(Session reading, long offset) {
+		String nextPath;
+		synchronized (this) {
+			if (session != reading || nextMediaPath == null) {
+				return null;
+			}
+			nextPath = nextMediaPath;
+		}
+
+		// Not while holding the lock, as the media server might be slow
+		PcmSource next;
+		try {
+			next = PcmSource.open(nextPath, 0, null);
+		} catch (PlayerException e) {
+			log.warning("Unable to read next track " + nextPath + ": " + e.getMessage());
+			return null;
+		}
+
+		synchronized (this) {
+			if (session != reading || !nextPath.equals(nextMediaPath) || !next.getFormat().matches(reading.format)) {
+				// Stopped or changed meanwhile, or the sound card needs setting up again, which
+				// is left until this track has finished
+				next.close();
+				return null;
+			}
+			nextMediaPath = null;
+			reading.source = next;
+			reading.tracks.add(new Track(nextPath, next, offset));
+		}
+		log.fine("Java Sound player: reading " + nextPath + " straight after the current track");
+		return next;
+	}
+
+	/**
+	 * Called by the output thread once the sound card has got to the start of a track that
+	 * was read straight after the one before
+	 * @param playing
+	 * @param track
+	 */
+	private void trackStarted(Session playing, Track track) {
+		synchronized (this) {
+			if (session != playing) {
+				return;
+			}
+			mediaPath = track.path;
+			lastSource = track.source;
+			startFrame = 0;
+			sinkStartFrame = track.sinkFrame;
+			duration = getDuration(track.source);
+		}
+
+		PlayerListener current = listener;
+		if (current != null) {
+			current.trackChanged(track.path);
+		}
+	}
+
+	/**
+	 * Called by the output thread when everything has been played.  Moves on to the next track
+	 * if there is one.
+	 * @param finished
+	 */
+	private void finished(Session finished) {
+		String nextPath;
+		synchronized (this) {
+			if (session != finished) {
+				return;
+			}
+			session = null;
+			finished.source.close();
+			// Both threads are done with it: the reader has ended and this is the writer
+			spareBuffer = finished.buffer;
+			nextPath = nextMediaPath;
+			if (nextPath != null) {
+				mediaPath = nextPath;
+				nextMediaPath = null;
+				lastSource = null;
+				try {
+					startSession(0);
+				} catch (PlayerException e) {
+					log.warning("Unable to play next track " + nextPath + ": " + e.getMessage());
+					nextPath = null;
+				}
+			}
+		}
+
+		PlayerListener current = listener;
+		if (current == null) {
+			return;
+		} else if (nextPath != null) {
+			current.trackChanged(nextPath);
+		} else {
+			current.stateChanged(PlayerState.STOPPED);
+		}
+	}
+
+	/**
+	 * A track read into the buffer straight after the one before
+	 */
+	private static class Track {
+
+		final String path;
+
+		final PcmSource source;
+
+		/** Bytes put in the buffer before its first one */
+		final long offset;
+
+		/** The sink's frame position when its first frame is played, or -1 until written */
+		volatile long sinkFrame = -1;
+
+		Track(String path, PcmSource source, long offset) {
+			this.path = path;
+			this.source = source;
+			this.offset = offset;
+		}
+	}
+
+	/**
+	 * The two threads moving tracks from the network to the sound card
+	 */
+	private class Session {
+
+		/** The track being read from the network */
+		volatile PcmSource source;
+
+		final AudioFormat format;
+
+		/** Audio waiting to be played */
+		final PcmRingBuffer buffer;
+
+		/** Tracks read in after the current one, in order, that haven't started playing yet */
+		final ConcurrentLinkedQueue<Track> tracks = new ConcurrentLinkedQueue<Track>();
+
+		volatile boolean stopped = false;
+
+		/** Set once everything has been read from the network */
+		volatile boolean endOfStream = false;
+
+		private final Thread reader;
+
+		private final Thread writer;
+
+		Session(PcmSource source, AudioFormat format, PcmRingBuffer buffer) {
+			this.source = source;
+			this.format = format;
+			this.buffer = buffer;
+			reader = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					read();
+				}
+			}, "javasound-reader");
+			writer = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					write();
+				}
+			}, "javasound-output");
+			reader.setDaemon(true);
+			writer.setDaemon(true);
+			writer.setPriority(Thread.MAX_PRIORITY);
+		}
+
+		void start() {
+			reader.start();
+			writer.start();
+		}
+
+		/** Get both threads to look again at whatever they are waiting for */
+		void wake() {
+			LockSupport.unpark(reader);
+			LockSupport.unpark(writer);
+		}
+
+		/**
+		 * Wait for both threads to finish
+		 * @return whether they have, so nothing will touch the buffer again
+		 */
+		boolean join() {
+			try {
+				reader.join(500);
+				if (Thread.currentThread() != writer) {
+					writer.join(500);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			return !reader.isAlive() && (Thread.currentThread() == writer || !writer.isAlive());
+		}
+
+		/** Network to buffer, carrying on with the next track when one finishes */
+		private void read() {
+			byte[] chunk = new byte[READ_SIZE];
+			int frameSize = format.getFrameSize();
+			long total = 0;
+			try {
+				PcmSource reading = source;
+				while (reading != null && !stopped) {
+					InputStream in = reading.getStream();
+					int count;
+					while (!stopped && (count = in.read(chunk)) != -1) {
+						total += put(chunk, count);
+					}
+					if (total % frameSize != 0) {
+						// A cut off frame would put the next track out of step
+						int padding = frameSize - (int) (total % frameSize);
+						total += put(new byte[padding], padding);
+					}
+					PcmSource next = stopped ? null : readNext(this, total);
+					if (next != null) {
+						reading.close();
+					}
+					reading = next;
+				}
+			} catch (IOException e) {
+				if (!stopped) {
+					log.warning("Java Sound player: lost connection to media server: " + e.getMessage());
+				}
+			} finally {
+				endOfStream = true;
+				LockSupport.unpark(writer);
+			}
+		}
+
+		/**
+		 * How long the writer should wait with nothing to write.  The reader wakes it when it
+		 * puts more in the buffer, but nothing says when the sound card reaches the start of the
+		 * next track, so that is worked out from how much is still to play.
+		 * @param next the next track read in, or null
+		 * @return
+		 */
+		private long getWait(Track next) {
+			if (next == null || next.sinkFrame < 0 || paused) {
+				return MAX_WAIT_NANOS;
+			}
+			long frames = next.sinkFrame - sink.getFramePosition();
+			long nanos = (long) (frames * 1000000000.0 / format.getFrameRate());
+			return Math.max(TimeUnit.MILLISECONDS.toNanos(1), Math.min(nanos, MAX_WAIT_NANOS));
+		}
+
+		/**
+		 * @return the first track read in whose start hasn't been written to the sink, or null
+		 */
+		private Track getUnwritten() {
+			for (Track track : tracks) {
+				if (track.sinkFrame < 0) {
+					return track;
+				}
+			}
+			return null;
+		}
+
+		/**
+		 * Put bytes in the buffer, waiting for room
+		 * @param chunk
+		 * @param count
+		 * @return how many were put in, which is all of them unless stopped
+		 */
+		private int put(byte[] chunk, int count) {
+			int offset = 0;
+			while (offset < count && !stopped) {
+				int written = buffer.write(chunk, offset, count - offset);
+				if (written == 0) {
+					// Woken by the writer once it has taken some out
+					LockSupport.parkNanos(this, MAX_WAIT_NANOS);
+				} else {
+					LockSupport.unpark(writer);
+				}
+				offset += written;
+			}
+			return offset;
+		}
+
+		/** Buffer to sound card, noting where each track read in after the first starts */
+		private void write() {
+			int frameSize = format.getFrameSize();
+			byte[] chunk = new byte[Math.max(frameSize, WRITE_SIZE - WRITE_SIZE % frameSize)];
+			long total = 0;
+			while (!stopped) {
+				Track next = tracks.peek();
+				if (next != null && next.sinkFrame >= 0 && sink.getFramePosition() >= next.sinkFrame) {
+					tracks.poll();
+					trackStarted(this, next);
+					continue;
+				}
+				Track unwritten = getUnwritten();
+				if (unwritten != null && total == unwritten.offset) {
+					unwritten.sinkFrame = sink.getFramesWritten();
+					continue;
+				}
+
+				int available = buffer.available();
+				int length = Math.min(chunk.length, available - available % frameSize);
+				if (unwritten != null) {
+					// Stop at the start of the next track, so we know when it is played
+					length = (int) Math.min(length, unwritten.offset - total);
+				}
+				if (length == 0) {
+					if (endOfStream && buffer.available() < frameSize && tracks.isEmpty()) {
+						sink.drain();
+						if (!stopped) {
+							finished(this);
+						}
+						return;
+					}
+					LockSupport.parkNanos(this, getWait(next));
+					continue;
+				}
+				buffer.read(chunk, 0, length);
+				LockSupport.unpark(reader);
+				total += length;
+				int offset = 0;
+				while (offset < length && !stopped) {
+					offset += sink.write(chunk, offset, length - offset);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,601 @@
+package org.matt1.climediarenderer.player;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Logger;
+
+import org.matt1.climediarenderer.metrics.Metrics;
+
+/**
+ * Asynchronous client for the MPD protocol.  There is one long-lived connection per MPD server,
+ * shared by every player using it, and all connections are serviced by a single NIO thread.
+ *
+ * Commands are written as soon as they are sent, without waiting for the answer to the one
+ * before, and MPD answers them in order - so several independent commands cost one round trip
+ * rather than one each.  Commands that belong together can be sent as a command list, which
+ * MPD runs in one go.  If MPD has dropped the connection (it closes idle ones after a minute
+ * by default) the next command reconnects.  If it breaks with commands still to go, those
+ * not yet written to it are sent again on a new connection.  Those that were written fail, as
+ * there's no knowing whether MPD ran them, unless they were sent with {@link #query} as they
+ * only read.
+ *
+ * @author Matt
+ *
+ */
+public class MPDClient {
+
+	/** Log used to display messages to the console */
+	private static Logger log = Logger.getLogger(MPDClient.class.getName());
+
+	/** How long to wait for an answer before giving up on the connection, in milliseconds */
+	private static final long TIMEOUT = 5000;
+
+	/** One client per server, keyed on host:port */
+	private static final Map<String, MPDClient> clients = new HashMap<String, MPDClient>();
+
+	/** Selector shared by every client, or null until the first one connects */
+	private static Selector selector;
+
+	/** Work for the NIO thread to do next time it wakes up */
+	private static final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
+	private final String host;
+
+	private final int port;
+
+	/** Connection to MPD, or null when not connected */
+	private SocketChannel channel;
+
+	/** Requests waiting for an answer, in the order they were sent */
+	private final Deque<Request> pending = new ArrayDeque<Request>();
+
+	/** Requests waiting to be written, the first perhaps partly written already */
+	private final Deque<Request> outgoing = new ArrayDeque<Request>();
+
+	/** The line read so far */
+	private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+
+	/**
+	 * Gets the client for an MPD server.  Nothing is connected until the first command is sent.
+	 * @param host
+	 * @param port
+	 * @return
+	 */
+	public static synchronized MPDClient getInstance(String host, int port) {
+		String key = host + ":" + port;
+		MPDClient client = clients.get(key);
+		if (client == null) {
+			client = new MPDClient(host, port);
+			clients.put(key, client);
+		}
+		return client;
+	}
+
+	private MPDClient(String host, int port) {
+		this.host = host;
+		this.port = port;
+	}
+
+	/**
+	 * Format a command and its arguments, quoting the arguments as MPD needs
+	 * @param command
+	 * @param args
+	 * @return
+	 */
+	public static String command(String command, Object... args) {
+		StringBuilder builder = new StringBuilder(command);
+		for (Object arg : args) {
+			builder.append(" \"");
+			String value = String.valueOf(arg);
+			for (int i = 0; i < value.length(); i++) {
+				char c = value.charAt(i);
+				if (c == '"' || c == '\\') {
+					builder.append('\\');
+				}
+				builder.append(c);
+			}
+			builder.append('"');
+		}
+		return builder.toString();
+	}
+
+	/**
+	 * Turn the "name: value" lines of an answer into a map.  Only the last value for each name
+	 * is kept.
+	 * @param lines
+	 * @return
+	 */
+	public static Map<String, String> toMap(List<String> lines) {
+		Map<String, String> values = new HashMap<String, String>();
+		for (String value : lines) {
+			int colon = value.indexOf(": ");
+			if (colon > 0) {
+				values.put(value.substring(0, colon), value.substring(colon + 2));
+			}
+		}
+		return values;
+	}
+
+	/**
+	 * Send a command without waiting for the answer
+	 * @param command
+	 * @param args
+	 * @return the lines of the answer, not including the final OK
+	 */
+	public Future<List<String>> send(String command, Object... args) {
+		return enqueue(command(command, args) + "\n", false);
+	}
+
+	/**
+	 * Send a command that only reads, e.g. status, without waiting for the answer.  As running
+	 * it twice does no harm it is sent again if the connection breaks before it is answered.
+	 * @param command
+	 * @param args
+	 * @return the lines of the answer, not including the final OK
+	 */
+	public Future<List<String>> query(String command, Object... args) {
+		return enqueue(command(command, args) + "\n", true);
+	}
+
+	/**
+	 * Send several commands for MPD to run together, without waiting for the answer.  If one
+	 * fails MPD doesn't run the rest.
+	 * @param commands each formatted with {@link #command(String, Object...)}
+	 * @return the lines of all the answers together
+	 */
+	public Future<List<String>> sendList(String... commands) {
+		if (commands.length == 1) {
+			return enqueue(commands[0] + "\n", false);
+		}
+		StringBuilder builder = new StringBuilder("command_list_ok_begin\n");
+		for (String command : commands) {
+			builder.append(command).append('\n');
+		}
+		builder.append("command_list_end\n");
+		return enqueue(builder.toString(), false);
+	}
+
+	/**
+	 * Send a command and wait for the answer
+	 * @param command
+	 * @param args
+	 * @return
+	 * @throws IOException if MPD said no or couldn't be reached
+	 */
+	public List<String> execute(String command, Object... args) throws IOException {
+		return get(send(command, args));
+	}
+
+	/**
+	 * Send several commands for MPD to run together and wait for the answer
+	 * @param commands
+	 * @return
+	 * @throws IOException if MPD said no or couldn't be reached
+	 */
+	public List<String> executeList(String... commands) throws IOException {
+		return get(sendList(commands));
+	}
+
+	/**
+	 * Wait for the answer to a command sent earlier.  If MPD takes too long the connection is
+	 * dropped, so that one stuck command doesn't hold up everything after it.
+	 * @param answer
+	 * @return
+	 * @throws IOException if MPD said no or couldn't be reached
+	 */
+	public List<String> get(Future<List<String>> answer) throws IOException {
+		try {
+			return answer.get(TIMEOUT, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted waiting for MPD");
+		} catch (TimeoutException e) {
+			disconnect(new IOException("Timed out waiting for MPD at " + host + ":" + port));
+			throw new IOException("Timed out waiting for MPD");
+		} catch (ExecutionException e) {
+			throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+		}
+	}
+
+	/**
+	 * Queue a request to be written, connecting first if we need to
+	 * @param text
+	 * @param idempotent whether it can safely be run twice
+	 * @return
+	 */
+	private Future<List<String>> enqueue(String text, boolean idempotent) {
+		Request request;
+		try {
+			request = new Request(text.getBytes("UTF-8"), idempotent);
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+		synchronized (this) {
+			pending.add(request);
+			outgoing.add(request);
+			if (channel == null) {
+				connect();
+			}
+		}
+		runOnSelector(new Runnable() {
+			@Override
+			public void run() {
+				updateInterest();
+			}
+		});
+		return request;
+	}
+
+	/**
+	 * Start connecting.  MPD greets us once connected, so a request for the greeting goes at the
+	 * front of the queue.
+	 */
+	private synchronized void connect() {
+		try {
+			channel = SocketChannel.open();
+			channel.configureBlocking(false);
+			channel.connect(new InetSocketAddress(host, port));
+			pending.addFirst(new Request(null, false));
+			line.reset();
+			final SocketChannel connecting = channel;
+			runOnSelector(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						connecting.register(selector, SelectionKey.OP_CONNECT, MPDClient.this);
+					} catch (IOException e) {
+						failed(connecting, e);
+					}
+				}
+			});
+		} catch (IOException e) {
+			channel = null;
+			failAll(e);
+		}
+	}
+
+	/**
+	 * Drop the connection and fail everything waiting on it
+	 * @param cause
+	 */
+	private synchronized void disconnect(IOException cause) {
+		closeChannel();
+		failAll(cause);
+	}
+
+	private synchronized void closeChannel() {
+		if (channel != null) {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				// Nothing more we can do
+			}
+			channel = null;
+		}
+		outgoing.clear();
+		line.reset();
+	}
+
+	private synchronized void failAll(IOException cause) {
+		for (Request request : pending) {
+			request.fail(cause);
+		}
+		pending.clear();
+		outgoing.clear();
+	}
+
+	/**
+	 * The connection has broken.  Requests that hadn't been written to it, or that only read,
+	 * are sent again on a new connection, once; anything else fails, as MPD may have run it.
+	 * @param broken
+	 * @param cause
+	 */
+	private synchronized void failed(SocketChannel broken, IOException cause) {
+		if (broken != channel) {
+			return;
+		}
+		closeChannel();
+		List<Request> retry = new ArrayList<Request>();
+		for (Request request : pending) {
+			if (request.payload != null && !request.retried && (!request.written || request.idempotent)) {
+				request.retried = true;
+				request.written = false;
+				request.buffer.rewind();
+				request.lines.clear();
+				retry.add(request);
+			} else if (request.payload != null) {
+				request.fail(cause);
+			}
+		}
+		pending.clear();
+		if (!retry.isEmpty()) {
+			log.fine("Connection to MPD at " + host + ":" + port + " lost, reconnecting: " + cause.getMessage());
+			for (Request request : retry) {
+				pending.add(request);
+				outgoing.add(request);
+			}
+			connect();
+		}
+	}
+
+	/** Make sure the selector wants to write whenever there's something to write.  NIO thread only. */
+	private synchronized void updateInterest() {
+		if (channel == null) {
+			return;
+		}
+		SelectionKey key = channel.keyFor(selector);
+		if (key != null && key.isValid() && channel.isConnected()) {
+			key.interestOps(SelectionKey.OP_READ | (outgoing.isEmpty() ? 0 : SelectionKey.OP_WRITE));
+		}
+	}
+
+	/**
+	 * Handle the connection being ready.  NIO thread only.
+	 * @param key
+	 */
+	private void handle(SelectionKey key) {
+		SocketChannel ready = (SocketChannel) key.channel();
+		try {
+			if (key.isConnectable()) {
+				ready.finishConnect();
+				synchronized (this) {
+					if (ready == channel) {
+						updateInterest();
+					}
+				}
+			}
+			if (key.isValid() && key.isWritable()) {
+				write(ready);
+			}
+			if (key.isValid() && key.isReadable()) {
+				read(ready);
+			}
+		} catch (IOException e) {
+			key.cancel();
+			failed(ready, e);
+		}
+	}
+
+	private synchronized void write(SocketChannel ready) throws IOException {
+		if (ready != channel) {
+			return;
+		}
+		while (!outgoing.isEmpty()) {
+			Request request = outgoing.peek();
+			ready.write(request.buffer);
+			if (request.buffer.position() > 0) {
+				// MPD may now get it, even if the rest isn't written
+				request.written = true;
+			}
+			if (request.buffer.hasRemaining()) {
+				break;
+			}
+			outgoing.poll();
+		}
+		updateInterest();
+	}
+
+	/** Buffer for reading, only used on the NIO thread */
+	private final ByteBuffer readBuffer = ByteBuffer.allocate(8192);
+
+	private void read(SocketChannel ready) throws IOException {
+		readBuffer.clear();
+		int count = ready.read(readBuffer);
+		if (count < 0) {
+			throw new IOException("Connection closed by MPD");
+		}
+		readBuffer.flip();
+		synchronized (this) {
+			if (ready != channel) {
+				return;
+			}
+			while (readBuffer.hasRemaining()) {
+				byte b = readBuffer.get();
+				if (b == '\n') {
+					handleLine(new String(line.toByteArray(), "UTF-8"));
+					line.reset();
+				} else {
+					line.write(b);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Pass a line of an answer to the request it belongs to
+	 * @param text
+	 */
+	private synchronized void handleLine(String text) {
+		Request request = pending.peek();
+		if (request == null) {
+			log.warning("Unexpected line from MPD: " + text);
+			return;
+		}
+		if (request.payload == null) {
+			// Greeting
+			pending.poll();
+			if (!text.startsWith("OK MPD")) {
+				log.warning("Unexpected greeting from MPD: " + text);
+			}
+		} else if (text.equals("OK")) {
+			pending.poll();
+			request.complete();
+		} else if (text.startsWith("ACK")) {
+			pending.poll();
+			request.fail(new IOException("MPD error: " + text));
+		} else if (!text.equals("list_OK")) {
+			request.lines.add(text);
+		}
+	}
+
+	/**
+	 * Run something on the NIO thread, starting it if need be
+	 * @param task
+	 */
+	private static synchronized void runOnSelector(Runnable task) {
+		if (selector == null) {
+			try {
+				selector = Selector.open();
+			} catch (IOException e) {
+				throw new IllegalStateException("Unable to open selector: " + e.getMessage(), e);
+			}
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					selectLoop();
+				}
+			}, "mpd-io");
+			thread.setDaemon(true);
+			thread.start();
+		}
+		tasks.add(task);
+		selector.wakeup();
+	}
+
+	/** Body of the NIO thread */
+	private static void selectLoop() {
+		while (true) {
+			try {
+				selector.select();
+				Runnable task;
+				while ((task = tasks.poll()) != null) {
+					task.run();
+				}
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if (key.isValid()) {
+						((MPDClient) key.attachment()).handle(key);
+					}
+				}
+			} catch (Exception e) {
+				log.warning("Error in MPD client: " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * A command or command list waiting for its answer
+	 */
+	private static class Request implements Future<List<String>> {
+
+		/** What to send, or null for the greeting MPD sends when we connect */
+		final byte[] payload;
+
+		/** The payload, as far as it has been written */
+		final ByteBuffer buffer;
+
+		/** Whether it can safely be run twice */
+		final boolean idempotent;
+
+		/** Whether any of it has been written to the connection */
+		boolean written;
+
+		/** Lines of the answer so far */
+		final List<String> lines = new ArrayList<String>();
+
+		/** Whether it has already been sent again after losing the connection */
+		boolean retried;
+
+		/** When it was queued, from System.nanoTime() */
+		private final long queued = System.nanoTime();
+
+		private final CountDownLatch done = new CountDownLatch(1);
+
+		private volatile List<String> result;
+
+		private volatile IOException error;
+
+		Request(byte[] payload, boolean idempotent) {
+			this.payload = payload;
+			this.buffer = payload == null ? null : ByteBuffer.wrap(payload);
+			this.idempotent = idempotent;
+		}
+
+		void complete() {
+			result = Collections.unmodifiableList(lines);
+			done.countDown();
+			Metrics.getInstance().recordSince(getMetricName(), queued);
+		}
+
+		void fail(IOException cause) {
+			error = cause;
+			done.countDown();
+			Metrics.getInstance().recordSince(getMetricName(), queued);
+		}
+
+		/**
+		 * Name to record how long MPD took under, from the command that was sent
+		 * @return e.g. mpd.status, or mpd.command_list for several
+		 */
+		private String getMetricName() {
+			if (payload == null) {
+				return "mpd.connect";
+			}
+			// Command names are plain ASCII
+			StringBuilder command = new StringBuilder("mpd.");
+			for (int i = 0; i < payload.length && payload[i] != ' ' && payload[i] != '\n'; i++) {
+				command.append((char) payload[i]);
+			}
+			return command.indexOf("command_list") >= 0 ? "mpd.command_list" : command.toString();
+		}
+
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			return false;
+		}
+
+		@Override
+		public boolean isCancelled() {
+			return false;
+		}
+
+		@Override
+		public boolean isDone() {
+			return done.getCount() == 0;
+		}
+
+		@Override
+		public List<String> get() throws InterruptedException, ExecutionException {
+			done.await();
+			return answer();
+		}
+
+		@Override
+		public List<String> get(long timeout, TimeUnit unit) throws InterruptedException,
+				ExecutionException, TimeoutException {
+			if (!done.await(timeout, unit)) {
+				throw new TimeoutException();
+			}
+			return answer();
+		}
+
+		private List<String> answer() throws ExecutionException {
+			if (error != null) {
+				throw new ExecutionException(error);
+			}
+			return result;
+		}
+	}
+}
@@ -0,0 +1,379 @@
+package org.matt1.climediarenderer.player;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Keeps a connection open to an MPD server that sits in MPD's idle mode, so that we're told
+ * straight away when the player changes - whether because of us, because a track finished,
+ * or because another MPD client did something.  Each time it is told about a change it reads
+ * the status once and hands the snapshot to its listeners, so nothing needs to poll MPD for
+ * the state or position.
+ *
+ * There is one watcher per MPD server, shared by all the players using it.  It connects when
+ * the first listener is added and disconnects when the last one is removed.
+ *
+ * @author Matt
+ *
+ */
+class MPDIdleWatcher implements Runnable {
+
+	/** Log used to display messages to the console */
+	private static Logger log = Logger.getLogger(MPDIdleWatcher.class.getName());
+
+	/** Subsystems we want to hear about; nothing here uses mixer or playlist changes */
+	private static final String IDLE_COMMAND = "idle player\n";
+
+	/** Timeout for connecting and for answers other than to idle, in milliseconds */
+	private static final int TIMEOUT = 5000;
+
+	/** Longest wait between attempts to reconnect, in milliseconds */
+	private static final long MAX_RECONNECT_DELAY = 30000;
+
+	/** One watcher per server, keyed on host:port */
+	private static final Map<String, MPDIdleWatcher> watchers = new HashMap<String, MPDIdleWatcher>();
+
+	private final String host;
+
+	private final int port;
+
+	private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+	/** Latest status from MPD, or null if we haven't got one */
+	private volatile Status status;
+
+	/** Thread sitting in idle, or null when not watching */
+	private Thread thread;
+
+	/** Connection the thread is using, so it can be closed to stop it */
+	private Socket socket;
+
+	/**
+	 * Gets the watcher for an MPD server
+	 * @param host
+	 * @param port
+	 * @return
+	 */
+	static synchronized MPDIdleWatcher getInstance(String host, int port) {
+		String key = host + ":" + port;
+		MPDIdleWatcher watcher = watchers.get(key);
+		if (watcher == null) {
+			watcher = new MPDIdleWatcher(host, port);
+			watchers.put(key, watcher);
+		}
+		return watcher;
+	}
+
+	private MPDIdleWatcher(String host, int port) {
+		this.host = host;
+		this.port = port;
+	}
+
+	/**
+	 * Start telling a listener about changes, connecting if this is the first one
+	 * @param listener
+	 */
+	synchronized void addListener(Listener listener) {
+		listeners.add(listener);
+		if (thread == null) {
+			thread = new Thread(this, "mpd-idle-" + host + ":" + port);
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+
+	/**
+	 * Stop telling a listener about changes, disconnecting if it was the last one
+	 * @param listener
+	 */
+	synchronized void removeListener(Listener listener) {
+		listeners.remove(listener);
+		if (listeners.isEmpty() && thread != null) {
+			thread.interrupt();
+			thread = null;
+			status = null;
+			closeSocket();
+		}
+	}
+
+	/**
+	 * Gets the latest status MPD told us about, or null if we don't have one yet
+	 * @return
+	 */
+	Status getStatus() {
+		return status;
+	}
+
+	/**
+	 * Whether the given thread is still the one that should be watching
+	 * @param current
+	 * @return
+	 */
+	private synchronized boolean isWatching(Thread current) {
+		return thread == current;
+	}
+
+	@Override
+	public void run() {
+		Thread current = Thread.currentThread();
+		long delay = 1000;
+		while (isWatching(current)) {
+			try {
+				watch(current);
+			} catch (IOException e) {
+				if (!isWatching(current)) {
+					break;
+				}
+				log.warning("Lost idle connection to MPD at " + host + ":" + port + ": " + e.getMessage());
+			}
+			if (!isWatching(current)) {
+				break;
+			}
+			if (status != null) {
+				// We were connected for a while, so start again with a short wait
+				delay = 1000;
+			}
+			status = null;
+			try {
+				Thread.sleep(delay);
+			} catch (InterruptedException e) {
+				break;
+			}
+			delay = Math.min(delay * 2, MAX_RECONNECT_DELAY);
+		}
+	}
+
+	/**
+	 * Connect and then read the status every time MPD says something has changed, until the
+	 * connection is closed
+	 * @param current
+	 * @throws IOException
+	 */
+	private void watch(Thread current) throws IOException {
+		Socket connection = new Socket();
+		synchronized (this) {
+			if (thread != current) {
+				// Removed while we were setting up
+				return;
+			}
+			socket = connection;
+		}
+		try {
+			watch(current, connection);
+		} finally {
+			try {
+				connection.close();
+			} catch (IOException e) {
+				// Nothing more we can do
+			}
+		}
+	}
+
+	/**
+	 * Read the status every time MPD says something has changed
+	 * @param current
+	 * @param connection
+	 * @throws IOException
+	 */
+	private void watch(Thread current, Socket connection) throws IOException {
+		connection.connect(new InetSocketAddress(host, port), TIMEOUT);
+		connection.setKeepAlive(true);
+		BufferedReader reader = new BufferedReader(new InputStreamReader(connection.getInputStream(), "UTF-8"));
+		OutputStream writer = connection.getOutputStream();
+
+		String greeting = reader.readLine();
+		if (greeting == null || !greeting.startsWith("OK MPD")) {
+			throw new IOException("Unexpected greeting: " + greeting);
+		}
+		log.fine("Watching MPD at " + host + ":" + port);
+
+		Set<String> changed = new HashSet<String>();
+		changed.add("player");
+		while (isWatching(current)) {
+			connection.setSoTimeout(TIMEOUT);
+			writer.write("status\n".getBytes("UTF-8"));
+			writer.flush();
+			Status newStatus = new Status(readResponse(reader), System.nanoTime());
+			if (!isWatching(current)) {
+				return;
+			}
+			Status oldStatus = status;
+			status = newStatus;
+			for (Listener listener : listeners) {
+				try {
+					listener.statusChanged(oldStatus, newStatus, changed);
+				} catch (RuntimeException e) {
+					log.warning("MPD listener failed: " + e.getMessage());
+				}
+			}
+
+			// Idle can last as long as nothing happens
+			connection.setSoTimeout(0);
+			writer.write(IDLE_COMMAND.getBytes("UTF-8"));
+			writer.flush();
+			changed = new HashSet<String>();
+			for (String value : readResponse(reader).values()) {
+				changed.add(value);
+			}
+		}
+	}
+
+	/**
+	 * Read a response up to its OK, as name/value pairs.  Only the last value for a name is kept,
+	 * apart from "changed" where every value is kept under its own name.
+	 * @param reader
+	 * @return
+	 * @throws IOException if MPD says there was an error, or the connection closes
+	 */
+	private Map<String, String> readResponse(BufferedReader reader) throws IOException {
+		Map<String, String> values = new HashMap<String, String>();
+		String line;
+		while ((line = reader.readLine()) != null) {
+			if (line.equals("OK")) {
+				return values;
+			} else if (line.startsWith("ACK")) {
+				throw new IOException(line);
+			}
+			int colon = line.indexOf(": ");
+			if (colon > 0) {
+				String name = line.substring(0, colon);
+				String value = line.substring(colon + 2);
+				values.put(name.equals("changed") ? "changed:" + value : name, value);
+			}
+		}
+		throw new IOException("Connection closed");
+	}
+
+	/** Close the connection so that the thread stops waiting in idle */
+	private void closeSocket() {
+		Socket current = socket;
+		socket = null;
+		if (current != null) {
+			try {
+				current.close();
+			} catch (IOException e) {
+				// Nothing more we can do
+			}
+		}
+	}
+
+	/**
+	 * Told whenever MPD's state changes
+	 */
+	interface Listener {
+
+		/**
+		 * @param oldStatus the status before the change, or null if this is the first one since
+		 * connecting
+		 * @param newStatus
+		 * @param changed the subsystems that changed, which is just player
+		 */
+		void statusChanged(Status oldStatus, Status newStatus, Set<String> changed);
+	}
+
+	/**
+	 * The interesting parts of MPD's status at a moment in time
+	 */
+	static class Status {
+
+		/** play, pause or stop */
+		private final String state;
+
+		/** Position in the playlist of the current song, or -1 if none */
+		private final int songPos;
+
+		/** Elapsed time in milliseconds when the status was read */
+		private final long elapsed;
+
+		/** Duration of the current song in seconds, or 0 if not known */
+		private final long duration;
+
+		/** When the status was read, from System.nanoTime() */
+		private final long time;
+
+		Status(Map<String, String> values, long time) {
+			this.time = time;
+			state = values.containsKey("state") ? values.get("state") : "stop";
+			songPos = parseInt(values.get("song"), -1);
+
+			// "time" is elapsed:duration in whole seconds; newer servers also give "elapsed"
+			// and "duration" more precisely
+			long elapsedMillis = 0;
+			long durationSeconds = 0;
+			String timeValue = values.get("time");
+			if (timeValue != null && timeValue.indexOf(':') > 0) {
+				elapsedMillis = parseInt(timeValue.substring(0, timeValue.indexOf(':')), 0) * 1000L;
+				durationSeconds = parseInt(timeValue.substring(timeValue.indexOf(':') + 1), 0);
+			}
+			if (values.containsKey("elapsed")) {
+				elapsedMillis = (long) (parseDouble(values.get("elapsed")) * 1000);
+			}
+			if (values.containsKey("duration")) {
+				durationSeconds = Math.round(parseDouble(values.get("duration")));
+			}
+			elapsed = elapsedMillis;
+			duration = durationSeconds;
+		}
+
+		private static int parseInt(String value, int defaultValue) {
+			try {
+				return value == null ? defaultValue : Integer.parseInt(value.trim());
+			} catch (NumberFormatException e) {
+				return defaultValue;
+			}
+		}
+
+		private static double parseDouble(String value) {
+			try {
+				return Double.parseDouble(value.trim());
+			} catch (NumberFormatException e) {
+				return 0;
+			}
+		}
+
+		/**
+		 * Gets the player state
+		 * @return
+		 */
+		PlayerState getState() {
+			if ("play".equals(state)) {
+				return PlayerState.PLAYING;
+			} else if ("pause".equals(state)) {
+				return PlayerState.PAUSED;
+			}
+			return PlayerState.STOPPED;
+		}
+
+		int getSongPos() {
+			return songPos;
+		}
+
+		/**
+		 * Gets the position in seconds now, allowing for the time since the status was read
+		 * @return
+		 */
+		long getPosition() {
+			long position = elapsed;
+			if (getState() == PlayerState.PLAYING) {
+				position += TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - time);
+			}
+			return position / 1000;
+		}
+
+		long getDuration() {
+			return duration;
+		}
+	}
+}
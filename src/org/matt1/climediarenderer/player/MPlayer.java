@@ -1,11 +1,8 @@
 package org.matt1.climediarenderer.player;
 
-import java.io.BufferedReader;
-import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintStream;
 import java.util.logging.Logger;
 
+import org.matt1.climediarenderer.cache.MediaCache;
 import org.matt1.climediarenderer.services.CliMediaRenderer;
 import org.matt1.climediarenderer.utils.PropertyHelper;
 
@@ -20,24 +17,35 @@ public class MPlayer implements BasicPlayer {
 	/** Log used to display messaes to the console */
 	private static Logger log = Logger.getLogger(CliMediaRenderer.class.getName());
 	
-	/** Process that is controlling MPlayer */
-	Process mPlayer = null;
+	/** Pooled MPlayer process that we are controlling, null while stopped or once cleaned up */
+	volatile MPlayerProcess mPlayer = null;
 	
-	/** Print Stream for writing commands to MPlayer */
-	PrintStream mPlayerStream;
+	/** Pool the process came from and goes back to */
+	private MPlayerProcessPool pool;
 	
-	/** Get Stream Response from MPlayer */
-	BufferedReader mPlayerResponse = null;
+	/** How long to wait for MPlayer to answer a query, in milliseconds */
+	long queryTimeout;
 	
 	/** Path for the media */
 	String mediaPath;
 	
-	/** Clean up any process we've left behind. */
-	protected Thread cleanupThread = new Thread() {
-		public void run() {
-			cleanup();
-		}
-	};
+	/** Path for the media to play once the current one finishes, if any */
+	String nextMediaPath;
+	
+	/** Told when MPlayer moves on to the next track by itself */
+	private volatile PlayerListener listener;
+	
+	/** Whether MPlayer has the media loaded, i.e. it has been played and not stopped */
+	private boolean loaded = false;
+	
+	/** Whether playback is paused */
+	private boolean paused = false;
+	
+	/** Where to start from next time the media is loaded, in seconds */
+	private long startPosition = 0;
+	
+	/** Set between loading the media and MPlayer saying it has started playing it */
+	private boolean awaitingStart = false;
 	
 	/**
 	 * Simple test method.
@@ -55,32 +63,75 @@ public class MPlayer implements BasicPlayer {
 	}
 	
 	/**
-	 * Create a new MPlayer
+	 * Create a new MPlayer, taking an already running process from the pool where possible
 	 * @param mediaPath
 	 * @throws PlayerException
 	 */
 	public MPlayer(String mediaPath) throws PlayerException {
+		this(mediaPath, null);
+	}
+	
+	/**
+	 * Create a new MPlayer that plays through a specific audio output
+	 * @param mediaPath
+	 * @param audioOutput MPlayer -ao value, or null for the default
+	 * @throws PlayerException
+	 */
+	public MPlayer(String mediaPath, String audioOutput) throws PlayerException {
 		try {
-			mPlayer = Runtime.getRuntime().exec(PropertyHelper.getInstance().getMPlayerPath() + " -slave -quiet -idle "); 
-			mPlayerStream = new PrintStream(mPlayer.getOutputStream());
-			mPlayerResponse =  new BufferedReader(new InputStreamReader(mPlayer.getInputStream()));
+			queryTimeout = PropertyHelper.getInstance().getMPlayerQueryTimeout();
+			pool = MPlayerProcessPool.getInstance(audioOutput);
+			acquireProcess();
 			this.mediaPath = mediaPath;
-			Runtime.getRuntime().addShutdownHook(cleanupThread);
 			log.info("New MPlayer player ready.");
-		} catch (IOException e) {
+		} catch (PlayerException e) {
 			log.warning("Unable to create MPlayer instance.");
-			throw new PlayerException("Unable to instantiate player.");
+			throw e;
 		} catch (Exception e) {
 			log.severe(e.getMessage());
+			throw new PlayerException("Unable to instantiate player.");
+		}
+	}
+	
+	/**
+	 * Hand the process back to the pool so the next track can use it.
+	 */
+	public synchronized void cleanup() {
+		releaseProcess();
+	}
+	
+	/**
+	 * Take a process from the pool to play with, unless we already have one
+	 * @throws PlayerException if a new process could not be started
+	 */
+	private void acquireProcess() throws PlayerException {
+		if (mPlayer != null) {
+			return;
 		}
+		MPlayerProcess process = pool.acquire();
+		process.setListener(new PlayerListener() {
+			@Override
+			public void trackChanged(String uri) {
+				started(uri);
+			}
+			
+			@Override
+			public void stateChanged(PlayerState state) {
+				// MPlayer doesn't say
+			}
+		});
+		mPlayer = process;
 	}
 	
 	/**
-	 * Clean up any process left over.
+	 * Give the process back to the pool.  Done whenever playback stops, not just when the
+	 * player is finished with, so a stopped renderer doesn't hold on to a process and the pool
+	 * can shut down once it has been idle for long enough.
 	 */
-	public void cleanup() {
+	private void releaseProcess() {
 		if (mPlayer != null) {
-			mPlayer.destroy();
+			pool.release(mPlayer);
+			mPlayer = null;
 		}
 	}
 	
@@ -91,101 +142,174 @@ public class MPlayer implements BasicPlayer {
 	 * @param command
 	 */
 	private void sendCommand(String command) {
-		mPlayerStream.print(command);
-		mPlayerStream.print("\n");
-		mPlayerStream.flush();
-
+		MPlayerProcess process = mPlayer;
+		if (process != null) {
+			process.sendCommand(command);
+		}
+	}
+	
+	/**
+	 * Called whenever MPlayer starts playing a file.  Other than when we've just loaded the
+	 * media ourselves, that means it has moved on to the next track.
+	 * 
+	 * @param uri
+	 */
+	private void started(String uri) {
+		String newPath;
+		synchronized (this) {
+			if (awaitingStart) {
+				awaitingStart = false;
+				return;
+			}
+			mediaPath = nextMediaPath != null ? nextMediaPath : uri;
+			nextMediaPath = null;
+			newPath = mediaPath;
+		}
+		log.info("MPlayer player: moved on to " + newPath);
+		PlayerListener current = listener;
+		if (current != null) {
+			current.trackChanged(newPath);
+		}
 	}
 	
 	@Override
-	public void play() throws PlayerException {
-		sendCommand("loadfile \"" + mediaPath + "\" 0");
+	public synchronized void play() throws PlayerException {
+		if (loaded && paused) {
+			// pause toggles, and loading the file again would start it from the beginning
+			sendCommand("pause");
+		} else {
+			acquireProcess();
+			awaitingStart = true;
+			sendCommand("loadfile \"" + MediaCache.toPlaybackUri(mediaPath) + "\" 0");
+			if (startPosition > 0) {
+				sendCommand("seek " + startPosition + " 2");
+				startPosition = 0;
+			}
+			if (nextMediaPath != null) {
+				sendCommand("loadfile \"" + MediaCache.toPlaybackUri(nextMediaPath) + "\" 1");
+			}
+		}
+		loaded = true;
+		paused = false;
 		log.info("MPlayer player: play");
 		
 
 	}
 
 	@Override
-	public void stop() throws PlayerException {
-		sendCommand("stop");
+	public synchronized void stop() throws PlayerException {
+		// The pool stops it before keeping it for the next track
+		releaseProcess();
+		loaded = false;
+		paused = false;
 		log.info("MPlayer player: stop");
 	}
 
 	@Override
-	public void pause() throws PlayerException {
-		sendCommand("pause");
+	public synchronized void pause() throws PlayerException {
+		if (loaded && !paused) {
+			sendCommand("pause");
+			paused = true;
+		}
 		log.info("MPlayer player: pause");
 
 	}
+	
+	/**
+	 * MPlayer can only add to the end of its playlist, so once a track has been queued behind
+	 * the one playing it can't be changed or taken away again.
+	 * 
+	 * @throws PlayerException if a different track is already queued
+	 */
+	@Override
+	public synchronized void setNextUri(String uri) throws PlayerException {
+		if (uri == null ? nextMediaPath == null : uri.equals(nextMediaPath)) {
+			// Already queued
+			return;
+		}
+		if (loaded && nextMediaPath != null) {
+			throw new PlayerException("MPlayer cannot remove a queued track, " + nextMediaPath + " will still play next.");
+		}
+		if (loaded && uri != null) {
+			// Appends to MPlayer's playlist; it will open it as soon as the current one ends
+			sendCommand((paused ? "pausing_keep " : "") + "loadfile \"" + MediaCache.toPlaybackUri(uri) + "\" 1");
+		}
+		nextMediaPath = uri;
+		log.info("MPlayer player: next is " + uri);
+	}
+	
+	@Override
+	public void setListener(PlayerListener listener) {
+		this.listener = listener;
+	}
 
 	@Override
-	public void skip(long seconds) throws PlayerException {
-		sendCommand("set_property time_pos " + seconds);
-		log.info("MPlayer player: skip at " + seconds + "s");
+	public synchronized void skip(long seconds) throws PlayerException {
+		if (loaded) {
+			sendCommand((paused ? "pausing_keep " : "") + "seek " + seconds + " 0");
+		}
+		log.info("MPlayer player: skip by " + seconds + "s");
 
 	}
+	
+	@Override
+	public synchronized void seek(long seconds) throws PlayerException {
+		if (loaded) {
+			// MPlayer reads from the new position with a Range request if the server allows it
+			sendCommand((paused ? "pausing_keep " : "") + "seek " + seconds + " 2");
+		} else {
+			startPosition = seconds;
+		}
+		log.info("MPlayer player: seek to " + seconds + "s");
+	}
 
 	@Override
 	public long getPosition() {
-
-		sendCommand("get_property time_pos");
-		String answer;
-		int elapsedTime = -1;
-		try {
-			    while ((answer = mPlayerResponse.readLine()) != null) {
-			        if (answer.startsWith("ANS_time_pos=")) {
-			        	elapsedTime = Integer.parseInt(answer.substring("ANS_time_pos=".length()));
-			        	log.info("MPlayer elapsed time: " + elapsedTime );
-			            break;   
-			        }
-			    }
-			}
-			catch (IOException e) {
-			}
+		long elapsedTime = (long) getNumberProperty("time_pos");
+		log.fine("MPlayer elapsed time: " + elapsedTime);
 		return elapsedTime;
 	}
 
 	@Override
 	public long getDuration() {
-		
-		sendCommand("get_property length");
-		String answer;
-		int totalTime = -1;
-		try {
-			    while ((answer = mPlayerResponse.readLine()) != null) {
-			        if (answer.startsWith("ANS_length=")) {
-			        	totalTime = Integer.parseInt(answer.substring("ANS_length=".length()));
-			        	log.info("MPlayer track length: " + totalTime );
-			            break;   
-			        }
-			    }
-			}
-			catch (IOException e) {
-			}
+		long totalTime = (long) getNumberProperty("length");
+		log.fine("MPlayer track length: " + totalTime);
 		return totalTime;
 	}
 
 	@Override
 	public float getPositionPercentage() {
-		sendCommand("get_property percent_pos");
-		String answer;
-		int percentPos = -1;
+		double percentPos = getNumberProperty("percent_pos");
+		if (percentPos < 0) {
+			return -1;
+		}
+		log.fine("MPlayer position percent: " + percentPos);
+		return (float) (percentPos / 100);
+	}
+
+	/**
+	 * Ask MPlayer for a numeric property, waiting no longer than the configured timeout
+	 * @param property
+	 * @return the value, or -1 if it isn't available
+	 */
+	private double getNumberProperty(String property) {
+		MPlayerProcess process = mPlayer;
+		if (process == null) {
+			return -1;
+		}
+		String answer = process.getProperty(property, queryTimeout);
+		if (answer == null) {
+			return -1;
+		}
 		try {
-			    while ((answer = mPlayerResponse.readLine()) != null) {
-			        if (answer.startsWith("ANS_percent_pos=")) {
-			        	percentPos = Integer.parseInt(answer.substring("ANS_percent_pos=".length())) / 100 ;
-			        	log.info("MPlayer position percent : " + percentPos );
-			        	break;   
-			        }
-			    }
-			}
-			catch (IOException e) {
-			}
-		return percentPos;
+			return Double.parseDouble(answer);
+		} catch (NumberFormatException e) {
+			return -1;
+		}
 	}
 
 	@Override
-	public String getCurrentUri() {
+	public synchronized String getCurrentUri() {
 		return mediaPath;
 	}
 
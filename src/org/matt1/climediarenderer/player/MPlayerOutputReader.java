@@ -0,0 +1,234 @@
+package org.matt1.climediarenderer.player;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Reads everything MPlayer writes to stdout and stderr on background threads.  Answers to
+ * get_property commands are kept in a cache and handed to whoever is waiting for them, so
+ * nobody ever has to block on MPlayer's output streams directly and the pipes never fill up.
+ *
+ * @author Matt
+ *
+ */
+class MPlayerOutputReader {
+
+	/** Log used to display messages to the console */
+	private static Logger log = Logger.getLogger(MPlayerOutputReader.class.getName());
+
+	/** Prefix MPlayer puts on answers to get_property */
+	private static final String ANSWER_PREFIX = "ANS_";
+
+	/** Answer MPlayer gives when a property can't be read, e.g. nothing is playing */
+	private static final String ERROR_ANSWER = "ANS_ERROR=";
+
+	/** Line MPlayer writes when it starts playing a file, followed by the file and a full stop */
+	private static final String PLAYING_PREFIX = "Playing ";
+
+	/** Most queries left waiting for an answer; beyond that MPlayer is taken not to be answering */
+	private static final int MAX_PENDING = 64;
+
+	/** Last value MPlayer gave for each property */
+	private final Map<String, String> properties = new ConcurrentHashMap<String, String>();
+
+	/** Queries sent to MPlayer that haven't been answered yet, oldest first */
+	private final ConcurrentLinkedQueue<PropertyQuery> pending = new ConcurrentLinkedQueue<PropertyQuery>();
+
+	/** Set once stdout has closed, i.e. the process has gone */
+	private volatile boolean closed = false;
+
+	/** Told about every file MPlayer starts playing */
+	private volatile PlayerListener listener;
+
+	/**
+	 * Start reading the output of an MPlayer process
+	 * @param name used to name the reader threads
+	 * @param stdout
+	 * @param stderr
+	 */
+	MPlayerOutputReader(String name, InputStream stdout, InputStream stderr) {
+		final BufferedReader out = new BufferedReader(new InputStreamReader(stdout));
+		final BufferedReader err = new BufferedReader(new InputStreamReader(stderr));
+
+		startThread(name + "-stdout", new Runnable() {
+			@Override
+			public void run() {
+				try {
+					String line;
+					while ((line = out.readLine()) != null) {
+						handleLine(line);
+					}
+				} catch (IOException e) {
+					// Process has gone away
+				} finally {
+					close();
+				}
+			}
+		});
+
+		startThread(name + "-stderr", new Runnable() {
+			@Override
+			public void run() {
+				try {
+					String line;
+					while ((line = err.readLine()) != null) {
+						log.fine("MPlayer: " + line);
+					}
+				} catch (IOException e) {
+					// Process has gone away
+				}
+			}
+		});
+	}
+
+	/**
+	 * Register interest in the answer to a get_property command.  This must be called before
+	 * the command is sent so that the answer can't be missed.
+	 *
+	 * @param property
+	 * @return
+	 */
+	PropertyQuery expect(String property) {
+		PropertyQuery query = new PropertyQuery(property);
+		if (closed) {
+			query.complete(null);
+		} else {
+			pending.add(query);
+			if (pending.size() > MAX_PENDING) {
+				PropertyQuery oldest = pending.poll();
+				if (oldest != null) {
+					oldest.complete(properties.get(oldest.property));
+				}
+			}
+		}
+		return query;
+	}
+
+	/** Forget all cached values, e.g. when a different file is loaded */
+	void clearProperties() {
+		properties.clear();
+	}
+
+	/**
+	 * Set who to tell each time MPlayer starts playing a file
+	 * @param listener
+	 */
+	void setListener(PlayerListener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * Whether MPlayer's stdout has closed
+	 * @return
+	 */
+	boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * Deal with a single line of MPlayer output
+	 * @param line
+	 */
+	void handleLine(String line) {
+		if (line.startsWith(ERROR_ANSWER)) {
+			// Errors don't say which property they're for, but MPlayer answers in order, and
+			// queries that timed out stay queued so their late answers can't be taken for
+			// someone else's
+			PropertyQuery query = pending.poll();
+			if (query != null) {
+				properties.remove(query.property);
+				query.complete(null);
+			}
+		} else if (line.startsWith(ANSWER_PREFIX)) {
+			int equals = line.indexOf('=');
+			if (equals > 0) {
+				String property = line.substring(ANSWER_PREFIX.length(), equals);
+				String value = line.substring(equals + 1);
+				properties.put(property, value);
+
+				// Anything queued before the query this answers was never answered
+				PropertyQuery query;
+				while ((query = pending.poll()) != null) {
+					if (query.property.equals(property)) {
+						query.complete(value);
+						break;
+					}
+					query.complete(properties.get(query.property));
+				}
+			}
+		} else if (line.startsWith(PLAYING_PREFIX) && line.endsWith(".")) {
+			PlayerListener current = listener;
+			if (current != null) {
+				current.trackChanged(line.substring(PLAYING_PREFIX.length(), line.length() - 1));
+			}
+		} else if (log.isLoggable(Level.FINE)) {
+			log.fine("MPlayer: " + line);
+		}
+	}
+
+	/** Release anyone still waiting as there won't be any more answers */
+	private void close() {
+		closed = true;
+		PropertyQuery query;
+		while ((query = pending.poll()) != null) {
+			query.complete(null);
+		}
+	}
+
+	private static void startThread(String name, Runnable runnable) {
+		Thread thread = new Thread(runnable, name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * A get_property command that is waiting for its answer
+	 */
+	class PropertyQuery {
+
+		private final String property;
+
+		private final CountDownLatch answered = new CountDownLatch(1);
+
+		private volatile String value;
+
+		private PropertyQuery(String property) {
+			this.property = property;
+		}
+
+		private void complete(String answer) {
+			value = answer;
+			answered.countDown();
+		}
+
+		/**
+		 * Wait for MPlayer to answer.  If it doesn't answer in time we give up waiting and use
+		 * the last value it gave instead.
+		 *
+		 * @param timeoutMillis
+		 * @return the answer, the cached value if there was no answer in time, or null if
+		 * neither is available
+		 */
+		String get(long timeoutMillis) {
+			try {
+				if (answered.await(timeoutMillis, TimeUnit.MILLISECONDS)) {
+					return value;
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			// Left queued, so that the answer still goes to this query when it comes
+			log.fine("MPlayer did not answer for " + property + " in time, using cached value.");
+			return properties.get(property);
+		}
+	}
+}
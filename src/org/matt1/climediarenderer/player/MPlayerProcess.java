@@ -0,0 +1,118 @@
+package org.matt1.climediarenderer.player;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.matt1.climediarenderer.metrics.Metrics;
+
+/**
+ * A single "slave" MPlayer process started in idle mode, along with the streams used to talk
+ * to it.  The same process can play any number of tracks one after the other via loadfile.
+ *
+ * @author Matt
+ *
+ */
+class MPlayerProcess {
+
+	/** Used to give each process's reader threads a distinct name */
+	private static final AtomicInteger count = new AtomicInteger();
+
+	/** Process that is running MPlayer */
+	private Process process;
+
+	/** Print Stream for writing commands to MPlayer */
+	private PrintStream commandStream;
+
+	/** Reads and parses everything MPlayer writes back */
+	private MPlayerOutputReader output;
+
+	/**
+	 * Start a new idle MPlayer process
+	 * @param mplayerPath
+	 * @param audioOutput MPlayer -ao value, or null for the default
+	 * @throws IOException if the process could not be started
+	 */
+	MPlayerProcess(String mplayerPath, String audioOutput) throws IOException {
+		List<String> command = new ArrayList<String>(Arrays.asList(mplayerPath, "-slave", "-quiet", "-idle",
+				"-gapless-audio"));
+		if (audioOutput != null && audioOutput.trim().length() > 0) {
+			command.add("-ao");
+			command.add(audioOutput.trim());
+		}
+		process = Runtime.getRuntime().exec(command.toArray(new String[command.size()]));
+		commandStream = new PrintStream(process.getOutputStream());
+		output = new MPlayerOutputReader("mplayer-" + count.incrementAndGet(),
+				process.getInputStream(), process.getErrorStream());
+	}
+
+	/**
+	 * Send a command to the media player.  See http://www.mplayerhq.hu/DOCS/tech/slave.txt for
+	 * commands available
+	 *
+	 * @param command
+	 */
+	synchronized void sendCommand(String command) {
+		long start = System.nanoTime();
+		commandStream.print(command);
+		commandStream.print("\n");
+		commandStream.flush();
+		Metrics.getInstance().recordSince("mplayer.command", start);
+	}
+
+	/**
+	 * Ask MPlayer for the value of a property.  Waits at most timeoutMillis for the answer, after
+	 * which the last value MPlayer reported is used instead.
+	 *
+	 * @param property
+	 * @param timeoutMillis
+	 * @return the value, or null if MPlayer couldn't give one (e.g. nothing is playing)
+	 */
+	String getProperty(String property, long timeoutMillis) {
+		long start = System.nanoTime();
+		MPlayerOutputReader.PropertyQuery query = output.expect(property);
+		// pausing_keep_force stops MPlayer from unpausing just because it was asked something
+		sendCommand("pausing_keep_force get_property " + property);
+		String value = query.get(timeoutMillis);
+		Metrics.getInstance().recordSince("mplayer.getProperty", start);
+		return value;
+	}
+
+	/**
+	 * Set who to tell each time MPlayer starts playing a file
+	 * @param listener
+	 */
+	void setListener(PlayerListener listener) {
+		output.setListener(listener);
+	}
+
+	/** Forget any property values from whatever was played before */
+	void clearProperties() {
+		output.clearProperties();
+	}
+
+	/**
+	 * Check if the MPlayer process is still running.  Also catches a broken command pipe, which
+	 * is how a crashed process usually shows itself first.
+	 * @return
+	 */
+	boolean isAlive() {
+		if (output.isClosed() || commandStream.checkError()) {
+			return false;
+		}
+		try {
+			process.exitValue();
+			return false;
+		} catch (IllegalThreadStateException e) {
+			return true;
+		}
+	}
+
+	/** Kill the process */
+	void destroy() {
+		process.destroy();
+	}
+}
@@ -0,0 +1,261 @@
+package org.matt1.climediarenderer.player;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Logger;
+
+import org.matt1.climediarenderer.utils.PropertyHelper;
+
+/**
+ * Keeps a number of idle MPlayer slave processes running so that changing track doesn't have
+ * to wait for a new process to start up.  Processes are handed out to MPlayer instances and
+ * given back when they're done with; dead processes are replaced in the background and the
+ * whole pool is shut down after a period of inactivity.
+ *
+ * There is one pool per audio output, as MPlayer picks its output when it starts.  All pools
+ * share a single maintenance thread.
+ *
+ * @author Matt
+ *
+ */
+public class MPlayerProcessPool {
+
+	/** Log used to display messages to the console */
+	private static Logger log = Logger.getLogger(MPlayerProcessPool.class.getName());
+
+	/** How often the pool checks on its processes, in seconds */
+	private static final int MAINTENANCE_INTERVAL = 5;
+
+	/** Pools for each audio output, with "" for MPlayer's default output */
+	private static final Map<String, MPlayerProcessPool> pools = new HashMap<String, MPlayerProcessPool>();
+
+	/** Background thread for starting, checking and stopping processes in every pool */
+	private static final ScheduledExecutorService maintenance = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "mplayer-pool");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	/** Idle processes ready to play something */
+	private final LinkedBlockingDeque<MPlayerProcess> idle = new LinkedBlockingDeque<MPlayerProcess>();
+
+	/** Regular maintenance of this pool */
+	private final ScheduledFuture<?> maintenanceTask;
+
+	/** Set while a refill is queued so that we don't queue up lots of them */
+	private final AtomicBoolean refillPending = new AtomicBoolean(false);
+
+	/** Number of processes handed out and not yet given back */
+	private int inUse = 0;
+
+	/** Last time a process was handed out or given back, from System.nanoTime() */
+	private volatile long lastUsed = System.nanoTime();
+
+	private final String mplayerPath;
+
+	/** MPlayer -ao audio output, or null for the default */
+	private final String audioOutput;
+
+	private final int size;
+
+	private final long idleTimeoutNanos;
+
+	static {
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			public void run() {
+				shutdownAll();
+			}
+		});
+	}
+
+	/**
+	 * Get the pool for MPlayer's default audio output
+	 * @return
+	 * @throws Exception
+	 */
+	public static MPlayerProcessPool getInstance() throws Exception {
+		return getInstance(null);
+	}
+
+	/**
+	 * Get the pool for an audio output
+	 * @param audioOutput MPlayer -ao value, or null for the default
+	 * @return
+	 * @throws Exception
+	 */
+	public static synchronized MPlayerProcessPool getInstance(String audioOutput) throws Exception {
+		String key = audioOutput == null ? "" : audioOutput;
+		MPlayerProcessPool pool = pools.get(key);
+		if (pool == null) {
+			PropertyHelper properties = PropertyHelper.getInstance();
+			pool = new MPlayerProcessPool(properties.getMPlayerPath(), audioOutput,
+					properties.getMPlayerPoolSize(), properties.getMPlayerPoolIdleTimeout());
+			pools.put(key, pool);
+		}
+		return pool;
+	}
+
+	/** Kill the idle processes in every pool */
+	public static synchronized void shutdownAll() {
+		for (MPlayerProcessPool pool : pools.values()) {
+			pool.shutdown();
+		}
+		maintenance.shutdownNow();
+	}
+
+	private MPlayerProcessPool(String mplayerPath, String audioOutput, int size, int idleTimeoutSeconds) {
+		this.mplayerPath = mplayerPath;
+		this.audioOutput = audioOutput;
+		this.size = Math.max(0, size);
+		this.idleTimeoutNanos = TimeUnit.SECONDS.toNanos(idleTimeoutSeconds);
+
+		maintenanceTask = maintenance.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				maintain();
+			}
+		}, 0, MAINTENANCE_INTERVAL, TimeUnit.SECONDS);
+
+		log.info("MPlayer process pool for " + (audioOutput == null ? "default output" : audioOutput)
+				+ " started with " + this.size + " idle processes.");
+	}
+
+	/**
+	 * Get a process to play something with.  Uses a warmed-up idle process if there is one,
+	 * otherwise starts one straight away.
+	 *
+	 * @return
+	 * @throws PlayerException if a new process could not be started
+	 */
+	MPlayerProcess acquire() throws PlayerException {
+		synchronized (this) {
+			inUse++;
+			lastUsed = System.nanoTime();
+		}
+		try {
+			MPlayerProcess process;
+			while ((process = idle.pollFirst()) != null) {
+				if (process.isAlive()) {
+					return process;
+				}
+				process.destroy();
+			}
+			log.info("No idle MPlayer process available, starting a new one.");
+			return spawn();
+		} catch (PlayerException e) {
+			synchronized (this) {
+				inUse--;
+			}
+			throw e;
+		} finally {
+			scheduleRefill();
+		}
+	}
+
+	/**
+	 * Give a process back once it has finished playing.  It's stopped and kept for the next
+	 * track if it's still healthy and the pool has room, otherwise it's killed.
+	 *
+	 * @param process
+	 */
+	void release(MPlayerProcess process) {
+		synchronized (this) {
+			inUse--;
+			lastUsed = System.nanoTime();
+		}
+		process.setListener(null);
+		if (process.isAlive() && idle.size() < size) {
+			process.sendCommand("stop");
+			process.clearProperties();
+			idle.offerFirst(process);
+		} else {
+			process.destroy();
+		}
+	}
+
+	/** Kill all idle processes */
+	public void shutdown() {
+		maintenanceTask.cancel(false);
+		drain();
+	}
+
+	/** Start a new MPlayer process */
+	private MPlayerProcess spawn() throws PlayerException {
+		try {
+			return new MPlayerProcess(mplayerPath, audioOutput);
+		} catch (IOException e) {
+			log.warning("Unable to start MPlayer: " + e.getMessage());
+			throw new PlayerException("Unable to instantiate player.");
+		}
+	}
+
+	/** Ask the maintenance thread to top up the idle processes */
+	private void scheduleRefill() {
+		if (refillPending.compareAndSet(false, true)) {
+			try {
+				maintenance.execute(new Runnable() {
+					@Override
+					public void run() {
+						refillPending.set(false);
+						maintain();
+					}
+				});
+			} catch (Exception e) {
+				// Shutting down
+				refillPending.set(false);
+			}
+		}
+	}
+
+	/**
+	 * Removes dead processes and either tops up the pool or, if nothing has been played for
+	 * long enough, shuts the idle processes down.  Only ever runs on the maintenance thread.
+	 */
+	private void maintain() {
+		for (MPlayerProcess process : idle) {
+			if (!process.isAlive() && idle.remove(process)) {
+				log.warning("Idle MPlayer process died, replacing it.");
+				process.destroy();
+			}
+		}
+
+		boolean expired;
+		synchronized (this) {
+			expired = inUse == 0 && System.nanoTime() - lastUsed > idleTimeoutNanos;
+		}
+		if (expired) {
+			if (!idle.isEmpty()) {
+				log.info("MPlayer idle for too long, stopping idle processes.");
+				drain();
+			}
+			return;
+		}
+
+		while (idle.size() < size) {
+			try {
+				idle.offerLast(spawn());
+			} catch (PlayerException e) {
+				return;
+			}
+		}
+	}
+
+	/** Kill every idle process */
+	private void drain() {
+		MPlayerProcess process;
+		while ((process = idle.pollFirst()) != null) {
+			process.destroy();
+		}
+	}
+}
@@ -1,12 +1,12 @@
 package org.matt1.climediarenderer.player;
 
-import java.net.MalformedURLException;
-import java.net.URL;
-import java.net.UnknownHostException;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Future;
 
-import org.a0z.mpd.MPD;
-import org.a0z.mpd.exception.MPDClientException;
-import org.a0z.mpd.exception.MPDServerException;
+import org.matt1.climediarenderer.cache.MediaCache;
 import org.matt1.climediarenderer.utils.PropertyHelper;
 
 /**
@@ -17,11 +17,50 @@ import org.matt1.climediarenderer.utils.PropertyHelper;
  */
 public class MusicPlayerDeamonPlayer implements BasicPlayer {
 
-	/** MPD client instance */
-	private MPD mpdPlayer;
+	/** Connection to the MPD server, shared with any other players using it */
+	private final MPDClient client;
 	
+	/** URI currently being played */
+	private volatile String currentUri;
 	
-	public static void main(String[] args) throws MPDServerException, MPDClientException, MalformedURLException, PlayerException, InterruptedException, UnknownHostException {
+	/** URI queued up to play after the current one, if any */
+	private volatile String nextUri;
+	
+	/** Position of the current track in MPD's playlist */
+	private volatile int currentSongPos = 0;
+	
+	/** MPD's id for the queued track, or -1 if none */
+	private volatile int nextSongId = -1;
+	
+	/** Told when MPD moves on to the next track by itself */
+	private volatile PlayerListener listener;
+	
+	/** Tells us as soon as anything changes in MPD, and keeps its latest status */
+	private final MPDIdleWatcher watcher;
+	
+	/** What MPD was last seen doing */
+	private volatile PlayerState lastState = PlayerState.STOPPED;
+	
+	/** Whether MPD has been told to play and not since stopped */
+	private volatile boolean started = false;
+	
+	/** Where to start from next time the track is played, in seconds, or -1 for the start */
+	private volatile long startPosition = -1;
+	
+	/** Picks up changes from the watcher */
+	private final MPDIdleWatcher.Listener statusListener = new MPDIdleWatcher.Listener() {
+		@Override
+		public void statusChanged(MPDIdleWatcher.Status oldStatus, MPDIdleWatcher.Status newStatus, 
+				Set<String> changed) {
+			if (changed.contains("player")) {
+				checkTrackChange(newStatus.getSongPos());
+				checkStateChange(newStatus.getState());
+			}
+		}
+	};
+	
+	
+	public static void main(String[] args) throws PlayerException, InterruptedException {
 		
 		MusicPlayerDeamonPlayer player = new MusicPlayerDeamonPlayer("http://monkeydrive:50599/disk/DLNA-PNMP3-OP01-FLAGS01700000/O0$1$8I450314.mp3");
 		player.play();
@@ -31,45 +70,65 @@ public class MusicPlayerDeamonPlayer implements BasicPlayer {
 		
 	}
 	
-	public MusicPlayerDeamonPlayer(String path) throws 
-		MPDServerException, MPDClientException, MalformedURLException, UnknownHostException {
-		getInstance().getPlaylist().clear();
-		getInstance().getPlaylist().add(new URL(path));
-		
+	public MusicPlayerDeamonPlayer(String path) throws PlayerException {
+		this(path, null, 0);
 	}
 	
 	/**
-	 * Gets a new connection and a new player instance from MPD
-	 * @return
-	 * @throws UnknownHostException
-	 * @throws MPDServerException 
+	 * Create a player for a specific MPD server
+	 * @param path
+	 * @param mpdHost host of the MPD server, or null to use the one in the properties file
+	 * @param mpdPort
+	 * @throws PlayerException if MPD can't be reached or won't take the track
 	 */
-	private MPD getInstance() throws MPDServerException, UnknownHostException {
-		if (mpdPlayer == null) {
+	public MusicPlayerDeamonPlayer(String path, String mpdHost, int mpdPort) throws PlayerException {
+		if (mpdHost == null) {
 			try {
-				mpdPlayer = new MPD(PropertyHelper.getInstance().getMPDHost(), PropertyHelper.getInstance().getMPDPort());
+				mpdHost = PropertyHelper.getInstance().getMPDHost();
+				mpdPort = PropertyHelper.getInstance().getMPDPort();
 			} catch (Exception e) {
-				throw new MPDServerException("Unabled to load MPD config from settings: " + e.getMessage(), e);
+				throw new PlayerException("Unabled to load MPD config from settings: " + e.getMessage());
 			}
 		}
-		return mpdPlayer;
+		client = MPDClient.getInstance(mpdHost, mpdPort);
+		try {
+			// One round trip rather than one for each
+			client.executeList(
+					MPDClient.command("clear"),
+					MPDClient.command("add", MediaCache.toPlaybackUri(path)));
+		} catch (IOException e) {
+			throw new PlayerException("Unable to load track into MPD: " + e.getMessage());
+		}
+		currentUri = path;
+		
+		watcher = MPDIdleWatcher.getInstance(mpdHost, mpdPort);
+		watcher.addListener(statusListener);
 	}
 	
 	@Override
-	public void play() throws PlayerException {
+	public synchronized void play() throws PlayerException {
 		try {
-			getInstance().play();
-		} catch (Exception e) {
+			if (startPosition >= 0 && !started) {
+				// Seeking starts MPD playing from there
+				client.execute("seek", currentSongPos, startPosition);
+			} else {
+				client.execute("play");
+			}
+			started = true;
+			startPosition = -1;
+		} catch (IOException e) {
 			throw new PlayerException(e.getMessage());
 		}
 
 	}
 
 	@Override
-	public void stop() throws PlayerException {
+	public synchronized void stop() throws PlayerException {
 		try {
-			getInstance().stop();
-		} catch (Exception e) {
+			client.execute("stop");
+			started = false;
+			startPosition = -1;
+		} catch (IOException e) {
 			throw new PlayerException(e.getMessage());
 		}
 
@@ -78,8 +137,8 @@ public class MusicPlayerDeamonPlayer implements BasicPlayer {
 	@Override
 	public void pause() throws PlayerException {
 		try {
-			getInstance().pause();
-		} catch (Exception e) {
+			client.execute("pause", 1);
+		} catch (IOException e) {
 			throw new PlayerException(e.getMessage());
 		}
 
@@ -87,15 +146,37 @@ public class MusicPlayerDeamonPlayer implements BasicPlayer {
 
 	@Override
 	public void skip(long seconds) throws PlayerException {
-		
+		seek(Math.max(0, getPosition() + seconds));
+	}
+	
+	@Override
+	public synchronized void seek(long seconds) throws PlayerException {
+		if (!started) {
+			startPosition = seconds;
+			return;
+		}
+		try {
+			// MPD reads from the new position with a Range request if the server allows it
+			client.execute("seek", currentSongPos, seconds);
+		} catch (IOException e) {
+			throw new PlayerException(e.getMessage());
+		}
 	}
 
 	@Override
 	public long getPosition() {
+		MPDIdleWatcher.Status snapshot = watcher.getStatus();
+		if (snapshot != null) {
+			return snapshot.getPosition();
+		}
+		
+		// Not heard from the watcher yet, so we'll have to ask
 		long position = 0;
 		try {
-			position = getInstance().getStatus().getSongPos();
-		} catch (Exception e) {
+			MPDIdleWatcher.Status status = getStatus();
+			position = status.getPosition();
+			checkTrackChange(status.getSongPos());
+		} catch (IOException e) {
 			// swallow it for now
 		} 
 		
@@ -105,10 +186,15 @@ public class MusicPlayerDeamonPlayer implements BasicPlayer {
 
 	@Override
 	public long getDuration() {
+		MPDIdleWatcher.Status snapshot = watcher.getStatus();
+		if (snapshot != null) {
+			return snapshot.getDuration();
+		}
+		
 		long duration = 0;
 		try {
-			duration = getInstance().getStatus().getTotalTime();
-		} catch (Exception e) {
+			duration = getStatus().getDuration();
+		} catch (IOException e) {
 			// swallow it for now
 		} 
 		
@@ -123,25 +209,100 @@ public class MusicPlayerDeamonPlayer implements BasicPlayer {
 
 	@Override
 	public String getCurrentUri() {
-		// TODO Auto-generated method stub
-		return null;
+		return currentUri;
 	}
-
+	
+	/**
+	 * Ask MPD for its status
+	 * @return
+	 * @throws IOException
+	 */
+	private MPDIdleWatcher.Status getStatus() throws IOException {
+		return new MPDIdleWatcher.Status(MPDClient.toMap(client.get(client.query("status"))), System.nanoTime());
+	}
+	
 	@Override
-	public void cleanup() {
-		try {
-			if (getInstance().isConnected()) {
-				getInstance().stop();
-				getInstance().disconnect();
-			}
-			
-		} catch (Exception e) {
-			// what now?
-		} 
-			
-		
+	public synchronized void setNextUri(String uri) throws PlayerException {
+		// Neither needs the other's answer, so both are sent before waiting for either
+		Future<List<String>> removed = null;
+		Future<List<String>> added = null;
+		if (nextUri != null && nextSongId >= 0) {
+			removed = client.send("deleteid", nextSongId);
+		}
+		if (uri != null) {
+			// MPD opens and buffers the next song in the playlist before the current one ends
+			added = client.send("addid", MediaCache.toPlaybackUri(uri));
+		}
 		
+		if (removed != null) {
+			try {
+				client.get(removed);
+			} catch (IOException e) {
+				// Probably already played and gone
+			}
+			nextSongId = -1;
+		}
+		if (added != null) {
+			try {
+				Map<String, String> values = MPDClient.toMap(client.get(added));
+				nextSongId = values.containsKey("Id") ? Integer.parseInt(values.get("Id").trim()) : -1;
+			} catch (IOException e) {
+				throw new PlayerException(e.getMessage());
+			} catch (NumberFormatException e) {
+				nextSongId = -1;
+			}
+		}
+		nextUri = uri;
+	}
+	
+	@Override
+	public void setListener(PlayerListener listener) {
+		this.listener = listener;
+	}
+	
+	/**
+	 * Check whether MPD has moved on to the queued track since we last looked
+	 * @param songPos position in the playlist of the song MPD is playing
+	 */
+	private void checkTrackChange(int songPos) {
+		String newUri;
+		synchronized (this) {
+			if (nextUri == null || songPos <= currentSongPos) {
+				return;
+			}
+			currentSongPos = songPos;
+			currentUri = nextUri;
+			nextUri = null;
+			nextSongId = -1;
+			newUri = currentUri;
+		}
+		PlayerListener current = listener;
+		if (current != null) {
+			current.trackChanged(newUri);
+		}
+	}
 
+	/**
+	 * Let the listener know if MPD has started, paused or stopped since we last looked
+	 * @param state
+	 */
+	private void checkStateChange(PlayerState state) {
+		if (state == lastState) {
+			return;
+		}
+		lastState = state;
+		started = state != PlayerState.STOPPED;
+		PlayerListener current = listener;
+		if (current != null) {
+			current.stateChanged(state);
+		}
+	}
+
+	@Override
+	public void cleanup() {
+		watcher.removeListener(statusListener);
+		// No need to wait - the connection stays open for the next track
+		client.send("stop");
 	}
 
 }
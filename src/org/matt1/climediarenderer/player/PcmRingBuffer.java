@@ -0,0 +1,117 @@
+package org.matt1.climediarenderer.player;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fixed size buffer of audio between the thread reading it from the network and the thread
+ * writing it to the sound card.  The memory is allocated outside the Java heap so the garbage
+ * collector never has to look at it.  There are no locks: it only ever has one thread writing
+ * and one reading, and each only moves its own position.
+ *
+ * @author Matt
+ *
+ */
+class PcmRingBuffer {
+
+	private final ByteBuffer buffer;
+
+	/** Only used by the writing thread */
+	private final ByteBuffer writeView;
+
+	/** Only used by the reading thread */
+	private final ByteBuffer readView;
+
+	private final int capacity;
+
+	/** Total bytes ever written; only the writing thread changes it */
+	private final AtomicLong writePosition = new AtomicLong();
+
+	/** Total bytes ever read; only the reading thread changes it */
+	private final AtomicLong readPosition = new AtomicLong();
+
+	/**
+	 * Create a new buffer
+	 * @param size in bytes, rounded up to a power of two
+	 */
+	PcmRingBuffer(int size) {
+		capacity = Integer.highestOneBit(Math.max(size, 1024) - 1) << 1;
+		buffer = ByteBuffer.allocateDirect(capacity);
+		writeView = buffer.duplicate();
+		readView = buffer.duplicate();
+	}
+
+	/**
+	 * Copy in as much as there's room for, without waiting.  Writing thread only.
+	 * @param source
+	 * @param offset
+	 * @param length
+	 * @return how many bytes were copied
+	 */
+	int write(byte[] source, int offset, int length) {
+		long write = writePosition.get();
+		int free = capacity - (int) (write - readPosition.get());
+		int count = Math.min(length, free);
+		if (count <= 0) {
+			return 0;
+		}
+		int index = (int) (write & (capacity - 1));
+		int first = Math.min(count, capacity - index);
+		writeView.clear();
+		writeView.position(index);
+		writeView.put(source, offset, first);
+		if (count > first) {
+			writeView.clear();
+			writeView.put(source, offset + first, count - first);
+		}
+		// Publishes the bytes to the reading thread
+		writePosition.lazySet(write + count);
+		return count;
+	}
+
+	/**
+	 * Copy out up to the given number of bytes, without waiting.  Reading thread only.
+	 * @param target
+	 * @param offset
+	 * @param length
+	 * @return how many bytes were copied
+	 */
+	int read(byte[] target, int offset, int length) {
+		long read = readPosition.get();
+		int count = Math.min(length, (int) (writePosition.get() - read));
+		if (count <= 0) {
+			return 0;
+		}
+		int index = (int) (read & (capacity - 1));
+		int first = Math.min(count, capacity - index);
+		readView.clear();
+		readView.position(index);
+		readView.get(target, offset, first);
+		if (count > first) {
+			readView.clear();
+			readView.get(target, offset + first, count - first);
+		}
+		// Hands the space back to the writing thread
+		readPosition.lazySet(read + count);
+		return count;
+	}
+
+	/**
+	 * Bytes waiting to be read
+	 * @return
+	 */
+	int available() {
+		return (int) (writePosition.get() - readPosition.get());
+	}
+
+	int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Throw away everything in the buffer.  Only safe while neither thread is using it.
+	 */
+	void clear() {
+		readPosition.set(writePosition.get());
+	}
+}
@@ -0,0 +1,235 @@
+package org.matt1.climediarenderer.player;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.UnsupportedAudioFileException;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.HttpGet;
+import org.matt1.climediarenderer.cache.MediaCache;
+import org.matt1.climediarenderer.utils.MediaHttpClient;
+
+/**
+ * A track being read from the media server and decoded to plain PCM.  WAV, AIFF and AU files
+ * are read with Java Sound's own parsers; DLNA LPCM (audio/L16) has no header, so its format
+ * comes from the content type instead.  Everything is converted to little-endian PCM, which
+ * any sound card and WAV file will take.
+ *
+ * @author Matt
+ *
+ */
+class PcmSource {
+
+	private final HttpGet request;
+
+	/** The decoded audio */
+	private final AudioInputStream stream;
+
+	/** Format of the audio as the server sends it */
+	private final AudioFormat sourceFormat;
+
+	/** Length of the track in frames, or -1 if not known */
+	private final long frameLength;
+
+	/** Where the audio starts in the file, or -1 if not known */
+	private final long dataOffset;
+
+	/**
+	 * Start reading a track
+	 * @param uri
+	 * @param startFrame the frame to start from
+	 * @param previous an earlier source for the same track, whose format and layout can be used
+	 * to start part way through with a Range request, or null
+	 * @return
+	 * @throws PlayerException if the track can't be read or isn't a format we can play
+	 */
+	static PcmSource open(String uri, long startFrame, PcmSource previous) throws PlayerException {
+		String playbackUri = MediaCache.toPlaybackUri(uri);
+		if (startFrame > 0 && previous != null && previous.dataOffset >= 0) {
+			PcmSource source = openRange(playbackUri, startFrame, previous);
+			if (source != null) {
+				return source;
+			}
+		}
+
+		HttpGet request = new HttpGet(playbackUri);
+		try {
+			HttpResponse response = MediaHttpClient.getInstance().getClient().execute(request);
+			HttpEntity entity = response.getEntity();
+			if (response.getStatusLine().getStatusCode() != HttpStatus.SC_OK || entity == null) {
+				request.abort();
+				throw new PlayerException("Media server responded with " + response.getStatusLine());
+			}
+			InputStream in = new BufferedInputStream(entity.getContent());
+			long contentLength = entity.getContentLength();
+
+			AudioInputStream stream;
+			Header contentType = response.getFirstHeader("Content-Type");
+			AudioFormat rawFormat = contentType == null ? null : parseLpcm(contentType.getValue());
+			if (rawFormat != null) {
+				long frames = contentLength < 0 ? AudioSystem.NOT_SPECIFIED : contentLength / rawFormat.getFrameSize();
+				stream = new AudioInputStream(in, rawFormat, frames);
+			} else {
+				stream = AudioSystem.getAudioInputStream(in);
+			}
+
+			AudioFormat format = stream.getFormat();
+			long frameLength = stream.getFrameLength();
+			long dataOffset = -1;
+			if (contentLength > 0 && frameLength > 0) {
+				// The audio is normally the last thing in the file, after the header
+				dataOffset = contentLength - frameLength * format.getFrameSize();
+			}
+
+			PcmSource source = new PcmSource(request, stream, format, frameLength, dataOffset);
+			source.skipFrames(startFrame);
+			return source;
+		} catch (UnsupportedAudioFileException e) {
+			request.abort();
+			throw new PlayerException("Not a format Java Sound can play: " + uri);
+		} catch (IOException e) {
+			request.abort();
+			throw new PlayerException("Unable to read " + uri + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Start part way through a track by asking the server for just the bytes from there on
+	 * @param uri
+	 * @param startFrame
+	 * @param previous
+	 * @return the source, or null if the server sent the whole track instead
+	 * @throws PlayerException
+	 */
+	private static PcmSource openRange(String uri, long startFrame, PcmSource previous) throws PlayerException {
+		HttpGet request = new HttpGet(uri);
+		long start = previous.dataOffset + startFrame * previous.sourceFormat.getFrameSize();
+		request.setHeader("Range", "bytes=" + start + "-");
+		try {
+			HttpResponse response = MediaHttpClient.getInstance().getClient().execute(request);
+			if (response.getStatusLine().getStatusCode() != HttpStatus.SC_PARTIAL_CONTENT || response.getEntity() == null) {
+				request.abort();
+				return null;
+			}
+			long frames = previous.frameLength < 0 ? AudioSystem.NOT_SPECIFIED : previous.frameLength - startFrame;
+			AudioInputStream stream = new AudioInputStream(new BufferedInputStream(response.getEntity().getContent()),
+					previous.sourceFormat, frames);
+			return new PcmSource(request, stream, previous.sourceFormat, previous.frameLength, previous.dataOffset);
+		} catch (IOException e) {
+			request.abort();
+			throw new PlayerException("Unable to read " + uri + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Work out the format of DLNA LPCM from its content type, e.g. audio/L16;rate=44100;channels=2
+	 * @param contentType
+	 * @return the format, or null if it isn't LPCM
+	 */
+	static AudioFormat parseLpcm(String contentType) {
+		String[] parts = contentType.split(";");
+		if (!parts[0].trim().equalsIgnoreCase("audio/L16")) {
+			return null;
+		}
+		float rate = 44100;
+		int channels = 1;
+		for (int i = 1; i < parts.length; i++) {
+			String[] parameter = parts[i].split("=");
+			if (parameter.length != 2) {
+				continue;
+			}
+			try {
+				if (parameter[0].trim().equalsIgnoreCase("rate")) {
+					rate = Float.parseFloat(parameter[1].trim());
+				} else if (parameter[0].trim().equalsIgnoreCase("channels")) {
+					channels = Integer.parseInt(parameter[1].trim());
+				}
+			} catch (NumberFormatException e) {
+				// Stick with the default
+			}
+		}
+		// Network byte order
+		return new AudioFormat(rate, 16, channels, true, true);
+	}
+
+	private PcmSource(HttpGet request, AudioInputStream source, AudioFormat sourceFormat, long frameLength,
+			long dataOffset) throws PlayerException {
+		this.request = request;
+		this.sourceFormat = sourceFormat;
+		this.frameLength = frameLength;
+		this.dataOffset = dataOffset;
+
+		AudioFormat format = source.getFormat();
+		int bits = format.getSampleSizeInBits();
+		if (format.getEncoding() != AudioFormat.Encoding.PCM_SIGNED && format.getEncoding() != AudioFormat.Encoding.PCM_UNSIGNED) {
+			// e.g. u-law in AU files
+			bits = 16;
+		}
+		AudioFormat target = new AudioFormat(bits == 8 ? AudioFormat.Encoding.PCM_UNSIGNED : AudioFormat.Encoding.PCM_SIGNED,
+				format.getSampleRate(), bits, format.getChannels(), bits / 8 * format.getChannels(),
+				format.getSampleRate(), false);
+		if (format.matches(target)) {
+			stream = source;
+		} else {
+			try {
+				stream = AudioSystem.getAudioInputStream(target, source);
+			} catch (IllegalArgumentException e) {
+				request.abort();
+				throw new PlayerException("Unable to convert " + format + " to PCM");
+			}
+		}
+	}
+
+	/**
+	 * Read through the audio up to a frame
+	 * @param frames
+	 * @throws IOException
+	 */
+	private void skipFrames(long frames) throws IOException {
+		long remaining = frames * stream.getFormat().getFrameSize();
+		while (remaining > 0) {
+			long skipped = stream.skip(remaining);
+			if (skipped <= 0) {
+				break;
+			}
+			remaining -= skipped;
+		}
+	}
+
+	/**
+	 * The decoded audio
+	 * @return
+	 */
+	AudioInputStream getStream() {
+		return stream;
+	}
+
+	/**
+	 * Format of the decoded audio
+	 * @return
+	 */
+	AudioFormat getFormat() {
+		return stream.getFormat();
+	}
+
+	/**
+	 * Length of the track in frames, or -1 if not known
+	 * @return
+	 */
+	long getFrameLength() {
+		return frameLength;
+	}
+
+	/** Stop reading from the server */
+	void close() {
+		request.abort();
+	}
+}
@@ -1,6 +1,8 @@
 package org.matt1.climediarenderer.player;
 
-import org.matt1.climediarenderer.utils.PropertyHelper;
+import java.util.logging.Logger;
+
+import org.matt1.climediarenderer.utils.RendererConfig;
 
 /**
  * Factory class to create a new player based on the value setup in the properties file
@@ -10,31 +12,49 @@ import org.matt1.climediarenderer.utils.PropertyHelper;
  */
 public class PlayerFactory {
 
+	/** Log used to display messages to the console */
+	private static Logger log = Logger.getLogger(PlayerFactory.class.getName());
+
 	/**
-	 * Get an appropriate player type based on the mediaType in the properties file
+	 * Get an appropriate player type based on the renderer's settings
+	 * @param mediaPath
+	 * @param config settings for the renderer that will play it
 	 * @return
 	 * @throws PlayerException 
 	 */
-	public static BasicPlayer getPlayer(String mediaPath) throws PlayerException {
-		String type;
-		try {
-			type = PropertyHelper.getInstance().getMediaPlayer().toLowerCase();
-		} catch (Exception e) {
-			throw new PlayerException("Unable to load media player type from config: " + e.getMessage());
+	public static BasicPlayer getPlayer(String mediaPath, RendererConfig config) throws PlayerException {
+		if (config.getPlayerType() == null) {
+			throw new PlayerException("No media player type in config");
 		}
 		
 		//Java 7 only
-		switch (type) {
+		switch (config.getPlayerType().toLowerCase()) {
 			case "mplayer":
-				return new MPlayer(mediaPath);
-				break;
+				return new MPlayer(mediaPath, config.getAudioOutput());
 			case "mpd":
-				return new MusicPlayerDeamonPlayer(mediaPath);
-				break;
+				return new MusicPlayerDeamonPlayer(mediaPath, config.getMPDHost(), config.getMPDPort());
+			case "javasound":
+				return new JavaSoundPlayer(mediaPath, config.getAudioOutput());
 			default:
 				throw new PlayerException("Unknown media player type");
 		}		
 	
 	}
 	
-}
+	/**
+	 * Start up anything a renderer's player type needs ahead of the first track, such as the
+	 * pool of idle MPlayer processes for its audio output.
+	 * 
+	 * @param config
+	 */
+	public static void warmUp(RendererConfig config) {
+		if ("mplayer".equalsIgnoreCase(config.getPlayerType())) {
+			try {
+				MPlayerProcessPool.getInstance(config.getAudioOutput());
+			} catch (Exception e) {
+				log.warning("Unable to start MPlayer process pool: " + e.getMessage());
+			}
+		}
+	}
+	
+}
@@ -0,0 +1,27 @@
+package org.matt1.climediarenderer.player;
+
+/**
+ * Receives notifications about things the player does on its own, rather than because it was
+ * told to - e.g. moving on to the next track.
+ * 
+ * @author Matt
+ *
+ */
+public interface PlayerListener {
+
+	/**
+	 * The player has finished the current track and started playing the one that was queued
+	 * with setNextUri.
+	 * 
+	 * @param uri the URI now being played
+	 */
+	public void trackChanged(String uri);
+	
+	/**
+	 * The player has started, paused or stopped by itself - e.g. it reached the end of the
+	 * last track, or something other than us controlled it.
+	 * 
+	 * @param state what the player is doing now
+	 */
+	public void stateChanged(PlayerState state);
+}
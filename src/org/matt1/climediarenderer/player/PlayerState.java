@@ -0,0 +1,13 @@
+package org.matt1.climediarenderer.player;
+
+/**
+ * What a player is doing
+ * 
+ * @author Matt
+ *
+ */
+public enum PlayerState {
+	PLAYING,
+	PAUSED,
+	STOPPED
+}
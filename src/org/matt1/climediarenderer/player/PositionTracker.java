@@ -0,0 +1,257 @@
+package org.matt1.climediarenderer.player;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Works out the playback position from the clock instead of asking the player every time.
+ * The player is only sampled occasionally in the background to anchor the clock: after a
+ * state change or seek, and every so often while playing to catch any drift.  Reading the
+ * position never talks to the player, however often control points poll for it.
+ *
+ * @author Matt
+ *
+ */
+public class PositionTracker {
+
+	/** Log used to display messages to the console */
+	private static Logger log = Logger.getLogger(PositionTracker.class.getName());
+
+	/** Single background thread shared by all trackers for sampling players */
+	private static final ExecutorService sampler = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "position-sync");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	/** The player whose position we're tracking */
+	private final BasicPlayer player;
+
+	/** How far the clock can drift from the player before it is re-anchored, in milliseconds */
+	private final long driftThreshold;
+
+	/** How long to trust the clock while playing before checking it against the player */
+	private final long resyncIntervalNanos;
+
+	/** Current anchor point for the clock */
+	private volatile Anchor anchor = new Anchor(0, System.nanoTime(), false);
+
+	/** Track duration in seconds, or -1 if not known */
+	private volatile long duration = -1;
+
+	/** Bumped on every state change or seek so that out of date samples are thrown away */
+	private final AtomicLong generation = new AtomicLong();
+
+	/** When the player was last sampled, from System.nanoTime() */
+	private volatile long lastSample = System.nanoTime();
+
+	/** Set while a sample is queued or running */
+	private final AtomicBoolean samplePending = new AtomicBoolean(false);
+
+	/** Called whenever the duration changes, or null */
+	private volatile Runnable durationListener;
+
+	/**
+	 * Create a new tracker for a player that has been loaded but not started
+	 * @param player
+	 * @param driftThreshold milliseconds
+	 * @param resyncInterval seconds
+	 */
+	public PositionTracker(BasicPlayer player, long driftThreshold, long resyncInterval) {
+		this.player = player;
+		this.driftThreshold = driftThreshold;
+		this.resyncIntervalNanos = TimeUnit.SECONDS.toNanos(resyncInterval);
+	}
+
+	/**
+	 * Get the current position in seconds.  Never talks to the player directly.
+	 * @return
+	 */
+	public long getPosition() {
+		Anchor current = anchor;
+		if (current.playing && System.nanoTime() - lastSample > resyncIntervalNanos) {
+			requestSample();
+		}
+		long position = current.positionAt(System.nanoTime()) / 1000;
+		long knownDuration = duration;
+		if (knownDuration > 0 && position > knownDuration) {
+			position = knownDuration;
+		}
+		return position;
+	}
+
+	/**
+	 * Get the track duration in seconds, or -1 if it isn't known yet.  Never talks to the
+	 * player directly.  Live streams never have a duration, so while it isn't known the player
+	 * is asked again no more often than the usual resync interval.
+	 * @return
+	 */
+	public long getDuration() {
+		if (duration <= 0 && System.nanoTime() - lastSample > resyncIntervalNanos) {
+			requestSample();
+		}
+		return duration;
+	}
+
+	/**
+	 * Set the duration from somewhere other than the player, e.g. the track metadata
+	 * @param seconds
+	 */
+	public void setDuration(long seconds) {
+		if (seconds > 0 && seconds != duration) {
+			duration = seconds;
+			durationChanged();
+		}
+	}
+
+	/**
+	 * Set what to call whenever the duration changes, including when the player works it out
+	 * in the background
+	 * @param durationListener
+	 */
+	public void setDurationListener(Runnable durationListener) {
+		this.durationListener = durationListener;
+	}
+
+	private void durationChanged() {
+		Runnable listener = durationListener;
+		if (listener != null) {
+			listener.run();
+		}
+	}
+
+	/** Playback has started or resumed */
+	public void playing() {
+		changeState(true);
+	}
+
+	/** Playback has been paused */
+	public void paused() {
+		changeState(false);
+	}
+
+	/** Playback has stopped, so we're back at the start */
+	public void stopped() {
+		generation.incrementAndGet();
+		anchor = new Anchor(0, System.nanoTime(), false);
+	}
+
+	/** The player has moved on to the next track by itself, which starts from the beginning */
+	public void trackChanged() {
+		generation.incrementAndGet();
+		duration = -1;
+		anchor = new Anchor(0, System.nanoTime(), true);
+		requestSample();
+	}
+
+	/**
+	 * The player has been told to seek to a new position
+	 * @param seconds the position in seconds
+	 */
+	public void seeked(long seconds) {
+		generation.incrementAndGet();
+		anchor = new Anchor(seconds * 1000, System.nanoTime(), anchor.playing);
+		requestSample();
+	}
+
+	/**
+	 * Freeze or start the clock at the current position and then check it against the player
+	 * @param playing
+	 */
+	private void changeState(boolean playing) {
+		generation.incrementAndGet();
+		long now = System.nanoTime();
+		anchor = new Anchor(anchor.positionAt(now), now, playing);
+		requestSample();
+	}
+
+	/** Ask the background thread to sample the player, unless it's already going to */
+	private void requestSample() {
+		if (samplePending.compareAndSet(false, true)) {
+			try {
+				sampler.execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							sample();
+						} finally {
+							samplePending.set(false);
+						}
+					}
+				});
+			} catch (Exception e) {
+				samplePending.set(false);
+			}
+		}
+	}
+
+	/**
+	 * Read the position and duration from the player and re-anchor the clock if it has drifted
+	 * too far.  Only ever runs on the background thread.
+	 */
+	private void sample() {
+		long sampleGeneration = generation.get();
+		long position = player.getPosition();
+		long now = System.nanoTime();
+		lastSample = now;
+
+		long playerDuration = player.getDuration();
+		if (playerDuration > 0 && playerDuration != duration) {
+			duration = playerDuration;
+			durationChanged();
+		}
+
+		if (position < 0 || sampleGeneration != generation.get()) {
+			// Player doesn't know yet, or things changed while we were asking
+			return;
+		}
+		Anchor current = anchor;
+		long drift = Math.abs(current.positionAt(now) - position * 1000);
+		if (drift > driftThreshold) {
+			log.fine("Position drifted by " + drift + "ms, re-anchoring.");
+			anchor = new Anchor(position * 1000, now, current.playing);
+		}
+	}
+
+	/**
+	 * A known position at a known time, from which the position at any other time can be
+	 * worked out.
+	 */
+	private static class Anchor {
+
+		/** Position in milliseconds */
+		final long position;
+
+		/** When the position was taken, from System.nanoTime() */
+		final long time;
+
+		/** Whether the position is moving */
+		final boolean playing;
+
+		Anchor(long position, long time, boolean playing) {
+			this.position = position;
+			this.time = time;
+			this.playing = playing;
+		}
+
+		/**
+		 * Get the position in milliseconds at a given System.nanoTime()
+		 * @param now
+		 * @return
+		 */
+		long positionAt(long now) {
+			if (!playing) {
+				return position;
+			}
+			return position + TimeUnit.NANOSECONDS.toMillis(now - time);
+		}
+	}
+}
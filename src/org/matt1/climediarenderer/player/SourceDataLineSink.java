@@ -0,0 +1,120 @@
+package org.matt1.climediarenderer.player;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.DataLine;
+import javax.sound.sampled.LineUnavailableException;
+import javax.sound.sampled.Mixer;
+import javax.sound.sampled.SourceDataLine;
+
+/**
+ * Plays audio through a Java Sound SourceDataLine
+ *
+ * @author Matt
+ *
+ */
+class SourceDataLineSink implements AudioSink {
+
+	/** How much audio the sound card is given ahead of what it is playing, in milliseconds */
+	private static final int LINE_BUFFER_MILLIS = 250;
+
+	/** Name, or part of the name, of the mixer to play through, or null for the default */
+	private final String mixerName;
+
+	private SourceDataLine line;
+
+	private AudioFormat format;
+
+	private volatile long framesWritten;
+
+	SourceDataLineSink(String mixerName) {
+		this.mixerName = mixerName;
+	}
+
+	@Override
+	public void open(AudioFormat format) throws PlayerException {
+		close();
+		DataLine.Info info = new DataLine.Info(SourceDataLine.class, format);
+		try {
+			Mixer.Info mixer = findMixer();
+			line = (SourceDataLine) (mixer == null ? AudioSystem.getLine(info) : AudioSystem.getMixer(mixer).getLine(info));
+			int bufferSize = (int) (format.getFrameRate() * LINE_BUFFER_MILLIS / 1000) * format.getFrameSize();
+			line.open(format, bufferSize);
+		} catch (LineUnavailableException e) {
+			throw new PlayerException("Unable to open sound output: " + e.getMessage());
+		} catch (IllegalArgumentException e) {
+			throw new PlayerException("Sound output can't play " + format + ": " + e.getMessage());
+		}
+		this.format = format;
+		framesWritten = 0;
+	}
+
+	/**
+	 * Find the mixer whose name contains the configured name
+	 * @return
+	 * @throws PlayerException if there isn't one
+	 */
+	private Mixer.Info findMixer() throws PlayerException {
+		if (mixerName == null || mixerName.length() == 0) {
+			return null;
+		}
+		for (Mixer.Info info : AudioSystem.getMixerInfo()) {
+			if (info.getName().contains(mixerName)) {
+				return info;
+			}
+		}
+		throw new PlayerException("No sound output called " + mixerName);
+	}
+
+	@Override
+	public AudioFormat getFormat() {
+		return format;
+	}
+
+	@Override
+	public int write(byte[] data, int offset, int length) {
+		int written = line.write(data, offset, length);
+		framesWritten += written / format.getFrameSize();
+		return written;
+	}
+
+	@Override
+	public void start() {
+		line.start();
+	}
+
+	@Override
+	public void stop() {
+		line.stop();
+	}
+
+	@Override
+	public void flush() {
+		line.flush();
+		framesWritten = line.getLongFramePosition();
+	}
+
+	@Override
+	public void drain() {
+		line.drain();
+	}
+
+	@Override
+	public long getFramePosition() {
+		return line == null ? 0 : line.getLongFramePosition();
+	}
+
+	@Override
+	public long getFramesWritten() {
+		return framesWritten;
+	}
+
+	@Override
+	public void close() {
+		if (line != null) {
+			line.close();
+			line = null;
+			format = null;
+		}
+	}
+}
@@ -0,0 +1,224 @@
+package org.matt1.climediarenderer.playlist;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.logging.Logger;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Reads the items from a DIDL-Lite document, such as a media server's listing of a container,
+ * with a streaming parser so only one item is held at a time.  Each item's first res is the
+ * track to play, and the item itself, in a DIDL-Lite document of its own, is its metadata.
+ * Containers within the document are skipped, as there's no way to list what's in them
+ * without browsing the media server.
+ *
+ * @author Matt
+ *
+ */
+public class DidlParser implements PlaylistParser {
+
+	/** Log used to display messages to the console */
+	private static Logger log = Logger.getLogger(DidlParser.class.getName());
+
+	private static final XMLInputFactory factory = XMLInputFactory.newInstance();
+
+	static {
+		// Playlists come from the network, so don't let them read anything else
+		factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+		factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+		factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+	}
+
+	private final XMLStreamReader reader;
+
+	/** The DIDL-Lite element's namespace declarations, for the document each item is put in */
+	private final StringBuilder namespaces = new StringBuilder();
+
+	/**
+	 * Create a parser
+	 * @param in the document, in whatever encoding it declares
+	 * @throws IOException if it isn't XML
+	 */
+	public DidlParser(InputStream in) throws IOException {
+		try {
+			reader = factory.createXMLStreamReader(in);
+		} catch (XMLStreamException e) {
+			throw new IOException("Unable to read DIDL-Lite: " + e.getMessage(), e);
+		}
+	}
+
+	@Override
+	public PlaylistEntry next() throws IOException {
+		try {
+			while (reader.hasNext()) {
+				if (reader.next() != XMLStreamConstants.START_ELEMENT) {
+					continue;
+				}
+				String name = reader.getLocalName();
+				if (name.equals("DIDL-Lite")) {
+					for (int i = 0; i < reader.getNamespaceCount(); i++) {
+						appendNamespace(namespaces, reader.getNamespacePrefix(i), reader.getNamespaceURI(i));
+					}
+				} else if (name.equals("item")) {
+					PlaylistEntry entry = readItem();
+					if (entry != null) {
+						return entry;
+					}
+				} else if (name.equals("container")) {
+					skipElement();
+				}
+			}
+			return null;
+		} catch (XMLStreamException e) {
+			throw new IOException("Unable to read DIDL-Lite: " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Read an item, copying it into its own document as it goes.  Called with the reader on
+	 * the item's start.
+	 * @return null if it has no res to play
+	 * @throws XMLStreamException
+	 */
+	private PlaylistEntry readItem() throws XMLStreamException {
+		StringBuilder item = new StringBuilder();
+		String uri = null;
+		StringBuilder res = null;
+		int depth = 0;
+		int event = XMLStreamConstants.START_ELEMENT;
+		while (true) {
+			switch (event) {
+			case XMLStreamConstants.START_ELEMENT:
+				depth++;
+				appendStart(item);
+				if (uri == null && res == null && reader.getLocalName().equals("res")) {
+					res = new StringBuilder();
+				}
+				break;
+			case XMLStreamConstants.END_ELEMENT:
+				depth--;
+				item.append("</").append(qualifiedName()).append('>');
+				if (res != null && reader.getLocalName().equals("res")) {
+					uri = res.toString().trim();
+					res = null;
+				}
+				break;
+			case XMLStreamConstants.CHARACTERS:
+			case XMLStreamConstants.CDATA:
+			case XMLStreamConstants.SPACE:
+				item.append(escape(reader.getText()));
+				if (res != null) {
+					res.append(reader.getText());
+				}
+				break;
+			default:
+				break;
+			}
+			if (depth == 0) {
+				break;
+			}
+			event = reader.next();
+		}
+
+		if (uri == null || uri.length() == 0) {
+			log.warning("Skipping DIDL-Lite item without anything to play");
+			return null;
+		}
+		StringBuilder didl = new StringBuilder("<DIDL-Lite");
+		didl.append(namespaces.length() == 0
+				? " xmlns=\"urn:schemas-upnp-org:metadata-1-0/DIDL-Lite/\"" : namespaces.toString());
+		didl.append('>').append(item).append("</DIDL-Lite>");
+		return new PlaylistEntry(uri, didl.toString());
+	}
+
+	/**
+	 * Skip past an element and everything in it.  Called with the reader on its start.
+	 * @throws XMLStreamException
+	 */
+	private void skipElement() throws XMLStreamException {
+		int depth = 1;
+		while (depth > 0 && reader.hasNext()) {
+			int event = reader.next();
+			if (event == XMLStreamConstants.START_ELEMENT) {
+				depth++;
+			} else if (event == XMLStreamConstants.END_ELEMENT) {
+				depth--;
+			}
+		}
+	}
+
+	private void appendStart(StringBuilder out) {
+		out.append('<').append(qualifiedName());
+		for (int i = 0; i < reader.getNamespaceCount(); i++) {
+			appendNamespace(out, reader.getNamespacePrefix(i), reader.getNamespaceURI(i));
+		}
+		for (int i = 0; i < reader.getAttributeCount(); i++) {
+			String prefix = reader.getAttributePrefix(i);
+			out.append(' ');
+			if (prefix != null && prefix.length() > 0) {
+				out.append(prefix).append(':');
+			}
+			out.append(reader.getAttributeLocalName(i)).append("=\"")
+					.append(escape(reader.getAttributeValue(i))).append('"');
+		}
+		out.append('>');
+	}
+
+	private String qualifiedName() {
+		String prefix = reader.getPrefix();
+		return prefix == null || prefix.length() == 0 ? reader.getLocalName() : prefix + ":" + reader.getLocalName();
+	}
+
+	private static void appendNamespace(StringBuilder out, String prefix, String uri) {
+		out.append(" xmlns");
+		if (prefix != null && prefix.length() > 0) {
+			out.append(':').append(prefix);
+		}
+		out.append("=\"").append(escape(uri == null ? "" : uri)).append('"');
+	}
+
+	/**
+	 * Escape text to go in XML, in an element or an attribute
+	 * @param text
+	 * @return
+	 */
+	static String escape(String text) {
+		StringBuilder escaped = null;
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			String replacement;
+			switch (c) {
+			case '&':
+				replacement = "&amp;";
+				break;
+			case '<':
+				replacement = "&lt;";
+				break;
+			case '>':
+				replacement = "&gt;";
+				break;
+			case '"':
+				replacement = "&quot;";
+				break;
+			default:
+				replacement = null;
+				break;
+			}
+			if (replacement != null && escaped == null) {
+				escaped = new StringBuilder(text.length() + 16).append(text, 0, i);
+			}
+			if (escaped != null) {
+				if (replacement == null) {
+					escaped.append(c);
+				} else {
+					escaped.append(replacement);
+				}
+			}
+		}
+		return escaped == null ? text : escaped.toString();
+	}
+}
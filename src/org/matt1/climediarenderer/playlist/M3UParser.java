@@ -0,0 +1,113 @@
+package org.matt1.climediarenderer.playlist;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.net.URI;
+import java.util.logging.Logger;
+
+import org.fourthline.cling.model.ModelUtil;
+
+/**
+ * Reads an M3U or extended M3U playlist a line at a time.  Entries relative to the playlist
+ * are taken to be on the same server.  Only network streams can be played, so anything that
+ * isn't an http URI, e.g. a path on the machine that made the playlist, is skipped.
+ *
+ * Each track's title and length from #EXTINF are given to control points as DIDL-Lite, the
+ * same as a media server would describe it.
+ *
+ * @author Matt
+ *
+ */
+public class M3UParser implements PlaylistParser {
+
+	/** Log used to display messages to the console */
+	private static Logger log = Logger.getLogger(M3UParser.class.getName());
+
+	private final BufferedReader reader;
+
+	private final URI base;
+
+	/**
+	 * Create a parser
+	 * @param reader the playlist
+	 * @param base where the playlist came from, for entries relative to it
+	 */
+	public M3UParser(Reader reader, URI base) {
+		this.reader = new BufferedReader(reader);
+		this.base = base;
+	}
+
+	@Override
+	public PlaylistEntry next() throws IOException {
+		String title = null;
+		long seconds = -1;
+		String line;
+		while ((line = reader.readLine()) != null) {
+			line = line.trim();
+			if (line.startsWith("\uFEFF")) {
+				line = line.substring(1);
+			}
+			if (line.length() == 0) {
+				continue;
+			}
+			if (line.startsWith("#")) {
+				// e.g. #EXTINF:215,Artist - Title
+				if (line.startsWith("#EXTINF:")) {
+					int comma = line.indexOf(',');
+					String length = comma < 0 ? line.substring(8) : line.substring(8, comma);
+					title = comma < 0 ? null : line.substring(comma + 1).trim();
+					try {
+						seconds = (long) Double.parseDouble(length.trim());
+					} catch (NumberFormatException e) {
+						seconds = -1;
+					}
+				}
+				continue;
+			}
+
+			URI uri;
+			try {
+				uri = base == null ? new URI(line) : base.resolve(line);
+			} catch (Exception e) {
+				log.warning("Skipping playlist entry " + line + ": " + e.getMessage());
+				continue;
+			}
+			if (!"http".equals(uri.getScheme())) {
+				log.warning("Skipping playlist entry that isn't a network stream: " + line);
+				title = null;
+				seconds = -1;
+				continue;
+			}
+			return new PlaylistEntry(uri.toString(), metaData(uri.toString(), title, seconds));
+		}
+		return null;
+	}
+
+	/**
+	 * Describe a track as DIDL-Lite
+	 * @param uri
+	 * @param title null if not known
+	 * @param seconds -1 if not known
+	 * @return
+	 */
+	private static String metaData(String uri, String title, long seconds) {
+		if (title == null && seconds < 0) {
+			return null;
+		}
+		StringBuilder didl = new StringBuilder();
+		didl.append("<DIDL-Lite xmlns=\"urn:schemas-upnp-org:metadata-1-0/DIDL-Lite/\" ")
+				.append("xmlns:dc=\"http://purl.org/dc/elements/1.1/\" ")
+				.append("xmlns:upnp=\"urn:schemas-upnp-org:metadata-1-0/upnp/\">")
+				.append("<item id=\"\" parentID=\"\" restricted=\"1\">");
+		if (title != null) {
+			didl.append("<dc:title>").append(DidlParser.escape(title)).append("</dc:title>");
+		}
+		didl.append("<upnp:class>object.item.audioItem.musicTrack</upnp:class><res");
+		if (seconds >= 0) {
+			didl.append(" duration=\"").append(ModelUtil.toTimeString(seconds)).append('"');
+		}
+		didl.append('>').append(DidlParser.escape(uri)).append("</res></item></DIDL-Lite>");
+		return didl.toString();
+	}
+}
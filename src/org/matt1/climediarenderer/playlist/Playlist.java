@@ -0,0 +1,501 @@
+package org.matt1.climediarenderer.playlist;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.net.URI;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Logger;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.entity.ContentType;
+import org.fourthline.cling.support.model.PlayMode;
+import org.matt1.climediarenderer.metrics.Metrics;
+import org.matt1.climediarenderer.utils.MediaHttpClient;
+
+/**
+ * A playlist - an M3U file or a DIDL-Lite listing - being played through, and the order to play
+ * it in.  It is read in the background as it downloads, so the first track can be played as
+ * soon as it has arrived; asking for a track that hasn't arrived yet waits for it.  The tracks
+ * are kept in a spool file rather than in memory, with just where each one starts held here,
+ * so a playlist of thousands of tracks costs a few kilobytes.
+ *
+ * Tracks can be played in order (NORMAL), in order over and over (REPEAT_ALL), or each once in
+ * a random order (SHUFFLE).  Going back in SHUFFLE goes back through the tracks played.
+ *
+ * @author Matt
+ *
+ */
+public class Playlist {
+
+	/** Log used to display messages to the console */
+	private static Logger log = Logger.getLogger(Playlist.class.getName());
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/** Most tracks read from a playlist; anything after that is left off */
+	private static final int MAX_ENTRIES = 100000;
+
+	/** Content types of playlists, for URIs that don't say what they are */
+	private static final String[] PLAYLIST_TYPES = {
+		"audio/x-mpegurl", "audio/mpegurl", "application/x-mpegurl", "application/vnd.apple.mpegurl",
+		"text/xml", "application/xml"
+	};
+
+	/** Threads that read playlists as they download */
+	private static final ExecutorService readers = Executors.newCachedThreadPool(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "playlist-reader");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	/** The playlist's own URI */
+	private final String uri;
+
+	private final File spoolFile;
+
+	/** Where the tracks are kept once read */
+	private final RandomAccessFile spool;
+
+	/** Where each track starts in the spool */
+	private long[] offsets = new long[64];
+
+	/** Tracks read so far */
+	private int size;
+
+	/** Set once the whole playlist has been read, or reading it failed */
+	private boolean complete;
+
+	/** Why reading the playlist failed, or null if it didn't */
+	private IOException error;
+
+	private boolean closed;
+
+	/** The download, so it can be stopped */
+	private HttpGet request;
+
+	private PlayMode playMode;
+
+	/** Index of the track being played, or -1 before the first */
+	private int current = -1;
+
+	/** Index of the track to play after this one, once worked out, or -1 for none */
+	private int upcoming;
+
+	private boolean upcomingChosen;
+
+	/** Tracks played, in order, so SHUFFLE can go back */
+	private int[] history = new int[16];
+
+	private int historySize;
+
+	/** Tracks played so far in SHUFFLE */
+	private final BitSet played = new BitSet();
+
+	private final Random random = new Random();
+
+	/**
+	 * Whether a URI is a playlist, from its name or metadata.  Playlists that are neither named
+	 * nor described as such can still be spotted with isPlaylistType once the server has been
+	 * asked what they are.
+	 * @param uri
+	 * @param metaData DIDL-Lite the control point sent, or null
+	 * @return
+	 */
+	public static boolean isPlaylist(URI uri, String metaData) {
+		String path = uri.getPath() == null ? "" : uri.getPath().toLowerCase();
+		if (path.endsWith(".m3u") || path.endsWith(".m3u8") || path.endsWith(".didl")) {
+			return true;
+		}
+		// A container rather than an item
+		return metaData != null && metaData.contains("<container") && !metaData.contains("<item");
+	}
+
+	/**
+	 * Whether a content type is that of a playlist
+	 * @param contentType e.g. audio/x-mpegurl; charset=UTF-8, or null
+	 * @return
+	 */
+	public static boolean isPlaylistType(String contentType) {
+		if (contentType == null) {
+			return false;
+		}
+		String type = contentType.toLowerCase();
+		for (String playlistType : PLAYLIST_TYPES) {
+			if (type.startsWith(playlistType)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Create a playlist, ready to start reading
+	 * @param uri
+	 * @param playMode order to play it in
+	 * @throws IOException if there's nowhere to keep the tracks
+	 */
+	public Playlist(String uri, PlayMode playMode) throws IOException {
+		this.uri = uri;
+		this.playMode = playMode;
+		spoolFile = File.createTempFile("playlist", ".spool");
+		spoolFile.deleteOnExit();
+		spool = new RandomAccessFile(spoolFile, "rw");
+	}
+
+	/**
+	 * Start reading the playlist in the background
+	 * @param completed run once it has all been read, or reading it failed; may be null
+	 */
+	public void start(final Runnable completed) {
+		readers.execute(new Runnable() {
+			@Override
+			public void run() {
+				read();
+				if (completed != null) {
+					completed.run();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Get a track, waiting for it to be read if need be
+	 * @param index from 0
+	 * @param timeoutMillis longest to wait
+	 * @return null if the playlist doesn't have that many tracks, or it didn't arrive in time
+	 */
+	public synchronized PlaylistEntry get(int index, long timeoutMillis) {
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		while (index >= size && !complete && !closed) {
+			long wait = deadline - System.currentTimeMillis();
+			if (wait <= 0) {
+				return null;
+			}
+			try {
+				wait(wait);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return null;
+			}
+		}
+		if (index < 0 || index >= size || closed) {
+			return null;
+		}
+		try {
+			spool.seek(offsets[index]);
+			String uri = readString();
+			return new PlaylistEntry(uri, readString());
+		} catch (IOException e) {
+			log.warning("Unable to read track " + (index + 1) + " of " + this.uri + ": " + e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * How many tracks have been read so far
+	 * @return
+	 */
+	public synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * Whether the whole playlist has been read, or reading it has failed
+	 * @return
+	 */
+	public synchronized boolean isComplete() {
+		return complete;
+	}
+
+	/**
+	 * Why reading the playlist failed
+	 * @return null if it didn't
+	 */
+	public synchronized IOException getError() {
+		return error;
+	}
+
+	/**
+	 * Index of the track being played
+	 * @return -1 before the first
+	 */
+	public synchronized int getCurrent() {
+		return current;
+	}
+
+	public String getUri() {
+		return uri;
+	}
+
+	/**
+	 * Change the order the rest of the playlist is played in
+	 * @param playMode NORMAL, REPEAT_ALL or SHUFFLE
+	 */
+	public synchronized void setPlayMode(PlayMode playMode) {
+		if (playMode != this.playMode) {
+			this.playMode = playMode;
+			upcomingChosen = false;
+			played.clear();
+			if (current >= 0) {
+				played.set(current);
+			}
+		}
+	}
+
+	/**
+	 * The track to play after the current one.  It stays the same until the current track
+	 * changes or the play mode does, so it can be got ready in advance.
+	 * @return its index, or -1 if the playlist ends with this one.  It may not have been read
+	 * yet, and may turn out not to exist.
+	 */
+	public synchronized int peekNext() {
+		if (!upcomingChosen) {
+			upcoming = chooseNext();
+			upcomingChosen = true;
+		}
+		return upcoming;
+	}
+
+	/**
+	 * The track to play to go back one
+	 * @return its index, or -1 if there isn't one
+	 */
+	public synchronized int peekPrevious() {
+		if (playMode == PlayMode.SHUFFLE) {
+			return historySize > 1 ? history[historySize - 2] : -1;
+		}
+		if (current > 0) {
+			return current - 1;
+		}
+		if (playMode == PlayMode.REPEAT_ALL && complete && size > 0) {
+			return size - 1;
+		}
+		return -1;
+	}
+
+	/**
+	 * Note that a track is now being played.  Going to the one played before goes back in
+	 * the history rather than adding to it.
+	 * @param index
+	 */
+	public synchronized void moveTo(int index) {
+		if (historySize > 1 && history[historySize - 2] == index) {
+			historySize--;
+		} else if (historySize == 0 || history[historySize - 1] != index) {
+			if (historySize == history.length) {
+				// Only the most recent are needed to go back through
+				if (history.length >= MAX_ENTRIES) {
+					System.arraycopy(history, history.length / 2, history, 0, history.length - history.length / 2);
+					historySize = history.length - history.length / 2;
+				} else {
+					history = Arrays.copyOf(history, history.length * 2);
+				}
+			}
+			history[historySize++] = index;
+		}
+		current = index;
+		played.set(index);
+		upcomingChosen = false;
+	}
+
+	/**
+	 * Stop reading the playlist and throw away the tracks
+	 */
+	public void close() {
+		HttpGet download;
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			download = request;
+			try {
+				spool.close();
+			} catch (IOException e) {
+				// Being deleted anyway
+			}
+			spoolFile.delete();
+			notifyAll();
+		}
+		if (download != null) {
+			download.abort();
+		}
+	}
+
+	/**
+	 * Work out the track after the current one.  Called with this locked.
+	 * @return
+	 */
+	private int chooseNext() {
+		int next = current + 1;
+		if (playMode == PlayMode.SHUFFLE) {
+			int unplayed = size - played.cardinality();
+			if (unplayed <= 0) {
+				// Anything still to be read hasn't been played
+				return complete ? -1 : size;
+			}
+			int pick = random.nextInt(unplayed);
+			int index = played.nextClearBit(0);
+			for (int i = 0; i < pick; i++) {
+				index = played.nextClearBit(index + 1);
+			}
+			return index;
+		}
+		if (next < size || !complete) {
+			return next;
+		}
+		if (playMode == PlayMode.REPEAT_ALL && size > 0) {
+			return 0;
+		}
+		return -1;
+	}
+
+	/**
+	 * Download the playlist and read the tracks from it
+	 */
+	private void read() {
+		long start = System.nanoTime();
+		HttpGet get = new HttpGet(uri);
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			request = get;
+		}
+		try {
+			HttpResponse response = MediaHttpClient.getInstance().getClient().execute(get);
+			HttpEntity entity = response.getEntity();
+			if (response.getStatusLine().getStatusCode() != HttpStatus.SC_OK || entity == null) {
+				throw new IOException("Server answered " + response.getStatusLine());
+			}
+			InputStream in = new BufferedInputStream(entity.getContent());
+			try {
+				PlaylistParser parser = createParser(in, response.getFirstHeader("Content-Type"), entity);
+				PlaylistEntry entry;
+				while ((entry = parser.next()) != null && append(entry)) {
+					// Keep reading
+				}
+			} finally {
+				get.abort();
+			}
+			Metrics.getInstance().recordSince("playlist.read", start);
+			log.info("Read " + size() + " tracks from " + uri);
+		} catch (IOException e) {
+			synchronized (this) {
+				if (!closed) {
+					error = e;
+					log.warning("Unable to read playlist " + uri + ": " + e.getMessage());
+				}
+			}
+		} catch (RuntimeException e) {
+			synchronized (this) {
+				error = new IOException(e.getMessage(), e);
+			}
+			log.warning("Unable to read playlist " + uri + ": " + e);
+		} finally {
+			synchronized (this) {
+				complete = true;
+				request = null;
+				// The track after this one may have been taken to be one that wasn't read yet
+				if (upcomingChosen && upcoming >= size) {
+					upcomingChosen = false;
+				}
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Pick the parser for what the playlist turns out to be: DIDL-Lite if it starts like XML,
+	 * M3U otherwise
+	 * @param in
+	 * @param contentType
+	 * @param entity
+	 * @return
+	 * @throws IOException
+	 */
+	private PlaylistParser createParser(InputStream in, Header contentType, HttpEntity entity) throws IOException {
+		in.mark(64);
+		int c;
+		do {
+			c = in.read();
+		} while (c == ' ' || c == '\t' || c == '\r' || c == '\n' || c == 0xEF || c == 0xBB || c == 0xBF);
+		in.reset();
+		if (c == '<') {
+			return new DidlParser(in);
+		}
+
+		Charset charset = null;
+		if (contentType != null) {
+			try {
+				charset = ContentType.getOrDefault(entity).getCharset();
+			} catch (RuntimeException e) {
+				// Not a charset we know
+			}
+		}
+		return new M3UParser(new InputStreamReader(in, charset == null ? UTF8 : charset), URI.create(uri));
+	}
+
+	/**
+	 * Keep a track that has been read
+	 * @param entry
+	 * @return false to stop reading
+	 * @throws IOException
+	 */
+	private synchronized boolean append(PlaylistEntry entry) throws IOException {
+		if (closed) {
+			return false;
+		}
+		if (size == MAX_ENTRIES) {
+			log.warning("Only playing the first " + MAX_ENTRIES + " tracks of " + uri);
+			return false;
+		}
+		long offset = spool.length();
+		spool.seek(offset);
+		writeString(entry.getUri());
+		writeString(entry.getMetaData());
+		if (size == offsets.length) {
+			offsets = Arrays.copyOf(offsets, offsets.length * 2);
+		}
+		offsets[size++] = offset;
+		notifyAll();
+		return true;
+	}
+
+	private void writeString(String value) throws IOException {
+		if (value == null) {
+			spool.writeInt(-1);
+		} else {
+			byte[] bytes = value.getBytes(UTF8);
+			spool.writeInt(bytes.length);
+			spool.write(bytes);
+		}
+	}
+
+	private String readString() throws IOException {
+		int length = spool.readInt();
+		if (length < 0) {
+			return null;
+		}
+		byte[] bytes = new byte[length];
+		spool.readFully(bytes);
+		return new String(bytes, UTF8);
+	}
+}
@@ -0,0 +1,36 @@
+package org.matt1.climediarenderer.playlist;
+
+/**
+ * One track in a playlist
+ *
+ * @author Matt
+ *
+ */
+public class PlaylistEntry {
+
+	private final String uri;
+
+	private final String metaData;
+
+	public PlaylistEntry(String uri, String metaData) {
+		this.uri = uri;
+		this.metaData = metaData;
+	}
+
+	public String getUri() {
+		return uri;
+	}
+
+	/**
+	 * DIDL-Lite describing the track, with just the one item in it
+	 * @return null if there isn't any
+	 */
+	public String getMetaData() {
+		return metaData;
+	}
+
+	@Override
+	public String toString() {
+		return uri;
+	}
+}
@@ -0,0 +1,20 @@
+package org.matt1.climediarenderer.playlist;
+
+import java.io.IOException;
+
+/**
+ * Reads the tracks from a playlist one at a time, as they come in, so that the whole playlist
+ * never has to be held in memory
+ *
+ * @author Matt
+ *
+ */
+public interface PlaylistParser {
+
+	/**
+	 * Read the next track
+	 * @return null once there are no more
+	 * @throws IOException if the playlist can't be read or understood
+	 */
+	public PlaylistEntry next() throws IOException;
+}
@@ -1,7 +1,12 @@
 package org.matt1.climediarenderer.services;
 
-import java.io.IOException;
 import java.net.URI;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import java.util.logging.Logger;
 
 import org.fourthline.cling.model.ModelUtil;
@@ -14,17 +19,29 @@ import org.fourthline.cling.support.avtransport.lastchange.AVTransportVariable;
 import org.fourthline.cling.support.lastchange.LastChange;
 import org.fourthline.cling.support.model.DeviceCapabilities;
 import org.fourthline.cling.support.model.MediaInfo;
+import org.fourthline.cling.support.model.PlayMode;
 import org.fourthline.cling.support.model.PositionInfo;
+import org.fourthline.cling.support.model.SeekMode;
 import org.fourthline.cling.support.model.StorageMedium;
 import org.fourthline.cling.support.model.TransportAction;
 import org.fourthline.cling.support.model.TransportInfo;
 import org.fourthline.cling.support.model.TransportSettings;
 import org.fourthline.cling.support.model.TransportState;
+import org.matt1.climediarenderer.cache.MediaCache;
+import org.matt1.climediarenderer.managers.ModeratedLastChange;
+import org.matt1.climediarenderer.metrics.Metrics;
 import org.matt1.climediarenderer.player.BasicPlayer;
 import org.matt1.climediarenderer.player.PlayerException;
+import org.matt1.climediarenderer.player.PlayerListener;
+import org.matt1.climediarenderer.player.PlayerState;
 import org.matt1.climediarenderer.player.PlayerFactory;
-import org.seamless.http.HttpFetch;
-import org.seamless.util.URIUtil;
+import org.matt1.climediarenderer.player.PositionTracker;
+import org.matt1.climediarenderer.playlist.Playlist;
+import org.matt1.climediarenderer.playlist.PlaylistEntry;
+import org.matt1.climediarenderer.utils.MetadataReader;
+import org.matt1.climediarenderer.utils.PropertyHelper;
+import org.matt1.climediarenderer.utils.RendererConfig;
+import org.matt1.climediarenderer.utils.UriValidator;
 
 /**
  * The AVTransportService for the CLI Media Renderer handles mapping the requests from UPnP to
@@ -36,13 +53,59 @@ import org.seamless.util.URIUtil;
 public class CliMRAVTransportService extends AbstractAVTransportService {
 
     final private static Logger log = Logger.getLogger(CliMRAVTransportService.class.getName());
+    
+    /** DLNA seek mode for seeking to a byte offset, which isn't one of Cling's SeekModes */
+    private static final String BYTE_SEEK_MODE = "X_DLNA_REL_BYTE";
+    
+    /** Longest to wait for the first track of a playlist to arrive, in milliseconds */
+    private static final long PLAYLIST_WAIT = 5000;
+    
+    /** Longest to wait for the track after this one to arrive when getting it ready, in milliseconds */
+    private static final long PREFETCH_WAIT = 30000;
+    
+    /** Gets the next track of a playlist ready while the current one plays */
+    private static final ExecutorService prefetcher = Executors.newSingleThreadExecutor(new ThreadFactory() {
+    	@Override
+    	public Thread newThread(Runnable runnable) {
+    		Thread thread = new Thread(runnable, "playlist-prefetch");
+    		thread.setDaemon(true);
+    		return thread;
+    	}
+    });
 
     /** The player instance that we are going to use for playback */
     private BasicPlayer player;  
     
+    /** Keeps track of the player's position without having to keep asking it */
+    private PositionTracker positionTracker;
+    
     /** Info about the media file */
     private MediaInfo mediaInfo = new MediaInfo();
     
+    /** URI queued with SetNextAVTransportURI to play once the current one finishes */
+    private String nextURI;
+    
+    /** Metadata for the queued URI */
+    private String nextURIMetaData;
+    
+    /** The playlist being played through, or null if just the one track was given */
+    private Playlist playlist;
+    
+    /** Metadata the control point gave for the playlist */
+    private String playlistMetaData;
+    
+    /** Index of the playlist track the player has been told to play next, or -1 for none */
+    private int prefetched = -1;
+    
+    /** What the control point's metadata says about the current track */
+    private MetadataReader.Metadata metadata = MetadataReader.getInstance().read(null, null);
+    
+    /** What the server said about the current track when it was checked, or null if not known */
+    private UriValidator.Result source;
+    
+    /** What the server said about the track the player will play next, or null if not known */
+    private UriValidator.Result nextSource;
+    
     /** Position information for the media */
     private PositionInfo positionInfo = new PositionInfo();
     
@@ -52,13 +115,43 @@ public class CliMRAVTransportService extends AbstractAVTransportService {
     
     private DeviceCapabilities deviceCapabilities = new DeviceCapabilities(new StorageMedium[]{});
     
+    /** Settings for the renderer this service belongs to */
+    private final RendererConfig config;
+    
+    /** Where what's playing is recorded to carry on after a restart, or null not to */
+    private final StateJournal journal;
+    
     /**
      * Create a new CLI Media Renderer transport service
      * 
      * @param lastChange
+     * @param config settings for the renderer, e.g. which player to use
      */
-    protected CliMRAVTransportService(LastChange lastChange) {
+    protected CliMRAVTransportService(LastChange lastChange, RendererConfig config) {
+        this(lastChange, config, null, 0);
+    }
+    
+    /**
+     * Create a new CLI Media Renderer transport service that records what it's playing
+     * 
+     * @param lastChange
+     * @param config settings for the renderer, e.g. which player to use
+     * @param journal where to record what's playing, or null not to
+     * @param journalInterval time between recording the position, in milliseconds
+     */
+    protected CliMRAVTransportService(LastChange lastChange, RendererConfig config, StateJournal journal,
+    		long journalInterval) {
         super(lastChange);       
+        this.config = config;
+        this.journal = journal;
+        if (journal != null) {
+        	journal.schedule(new Runnable() {
+        		@Override
+        		public void run() {
+        			recordPosition();
+        		}
+        	}, journalInterval);
+        }
     }
 
     
@@ -66,56 +159,382 @@ public class CliMRAVTransportService extends AbstractAVTransportService {
     public void setAVTransportURI(UnsignedIntegerFourBytes instanceId, String currentURI, String currentURIMetaData) 
     		throws AVTransportException {
     	
-        URI uri;
-        try {
-            uri = new URI(currentURI);
-        } catch (Exception ex) {
-            throw new AVTransportException(
-                    ErrorCode.INVALID_ARGS, "CurrentURI can not be null or malformed"
-            );
+        URI uri = parseURI(currentURI, "CurrentURI");
+        MetadataReader.Metadata trackMetadata = MetadataReader.getInstance().read(currentURI, currentURIMetaData);
+        if (Playlist.isPlaylist(uri, currentURIMetaData) || Playlist.isPlaylistType(trackMetadata.getContentType())) {
+        	startPlaylist(currentURI, currentURIMetaData, -1);
+        	return;
         }
-
-        if (currentURI.startsWith("http:")) {
-            try {
-                HttpFetch.validate(URIUtil.toURL(uri));
-            } catch (IOException ex) {
-                throw new AVTransportException(AVTransportErrorCode.READ_ERROR, "Unable to read requested URI: " + uri);
-            }
-        } else  {
-            throw new AVTransportException(ErrorCode.INVALID_ACTION, "Requested URI was not a network stream.");
+        
+        // Check the URI can be read while the new player gets ready
+        Future<UriValidator.Result> validation = UriValidator.getInstance().validateAsync(uri);
+        BasicPlayer newPlayer = createPlayer(uri, validation);
+        
+        // Only the server knows it's a playlist
+        if (Playlist.isPlaylistType(getContentType(validation))) {
+        	newPlayer.cleanup();
+        	startPlaylist(currentURI, currentURIMetaData, -1);
+        	return;
         }
         
-        // Instantiate a new player
-		try {
-			if (player != null) {
-				player.cleanup();
-			}
-			player = PlayerFactory.getPlayer(uri.toString());
-		} catch (PlayerException e) {
-			throw new AVTransportException(ErrorCode.HUMAN_INTERVENTION_REQUIRED, "Unable to start media player backend.");
-		}
+		// Swap over to the new player
+		swapPlayer(newPlayer);
+		closePlaylist();
+		source = getResult(validation);
 
-		// Build media info
-		String duration = ModelUtil.toTimeString(player.getDuration());
-		mediaInfo = new MediaInfo(currentURI, currentURIMetaData, null, duration, null);
-		positionInfo = new PositionInfo(1, currentURIMetaData, currentURI);
+		// Build media info from the metadata rather than asking a player that hasn't loaded
+		// anything yet; its own figures take over once it's playing
+		String duration = applyMetadata(trackMetadata);
+		mediaInfo = new MediaInfo(currentURI, currentURIMetaData, new UnsignedIntegerFourBytes(1), duration, null);
+		positionInfo = new PositionInfo(1, duration, currentURIMetaData, currentURI, 
+				ModelUtil.toTimeString(0), ModelUtil.toTimeString(0), Integer.MAX_VALUE, Integer.MAX_VALUE);
 	    transportInfo = new TransportInfo(TransportState.STOPPED);    
+	    nextURI = null;
+	    nextURIMetaData = null;
+	    nextSource = null;
+	    if (journal != null) {
+	    	journal.recordTrack(currentURI, currentURIMetaData);
+	    }
 		
+	    Metrics metrics = Metrics.getInstance();
+	    long start = System.nanoTime();
         getLastChange().setEventedValue(
                 getDefaultInstanceID(),
+                new AVTransportVariable.AVTransportURI(uri),
+                new AVTransportVariable.AVTransportURIMetaData(currentURIMetaData),
+                new AVTransportVariable.CurrentTrackURI(uri),
+                new AVTransportVariable.CurrentTrackMetaData(currentURIMetaData),
+                new AVTransportVariable.NumberOfTracks(new UnsignedIntegerFourBytes(1)),
+                new AVTransportVariable.CurrentTrack(new UnsignedIntegerFourBytes(1)),
+                new AVTransportVariable.CurrentTrackDuration(duration),
+                new AVTransportVariable.CurrentMediaDuration(duration),
+                new AVTransportVariable.NextAVTransportURI((URI) null),
+                new AVTransportVariable.NextAVTransportURIMetaData((String) null),
                 new AVTransportVariable.TransportState(TransportState.STOPPED),
                 new AVTransportVariable.CurrentTransportActions(new TransportAction[]{
                         TransportAction.Play
                 })
         );
-        getLastChange().fire(getPropertyChangeSupport());
+        metrics.recordSince("setAVTransportURI.event", start);
 		
-		log.info("New player created for " + uri);
+		log.info("New player created for " + (trackMetadata.getTitle() == null ? "" : trackMetadata.getTitle() + " at ") + uri);
         
     }
+    
+    /**
+     * Give the position tracker a new track's length from its metadata, until the player
+     * says otherwise
+     * 
+     * @param trackMetadata
+     * @return the length to tell control points
+     */
+    private String applyMetadata(MetadataReader.Metadata trackMetadata) {
+    	metadata = trackMetadata;
+    	positionTracker.setDuration(trackMetadata.getDuration());
+    	return toDurationString(trackMetadata.getDuration());
+    }
+    
+    /**
+     * @param seconds
+     * @return the duration as control points expect it, 00:00:00 if not known
+     */
+    private static String toDurationString(long seconds) {
+    	return ModelUtil.toTimeString(seconds > 0 ? seconds : 0);
+    }
+    
+    /**
+     * Start a player for a track, checking the track can be read while it starts
+     * 
+     * @param uri
+     * @param validation the check, as started with the UriValidator
+     * @return
+     * @throws AVTransportException if the player can't be started or the track can't be read
+     */
+    private BasicPlayer createPlayer(URI uri, Future<UriValidator.Result> validation) throws AVTransportException {
+        Metrics metrics = Metrics.getInstance();
+        long start = System.nanoTime();
+        BasicPlayer newPlayer;
+		try {
+			newPlayer = PlayerFactory.getPlayer(uri.toString(), config);
+			metrics.recordSince("setAVTransportURI.spawn", start);
+		} catch (PlayerException e) {
+			throw new AVTransportException(ErrorCode.HUMAN_INTERVENTION_REQUIRED, "Unable to start media player backend.");
+		}
+		
+		// Only the part of the check that didn't happen while the player was starting
+		start = System.nanoTime();
+		try {
+			checkReadable(uri, validation);
+		} catch (AVTransportException e) {
+			newPlayer.cleanup();
+			throw e;
+		} finally {
+			metrics.recordSince("setAVTransportURI.validate", start);
+		}
+		return newPlayer;
+    }
+    
+    /**
+     * Swap over to a new player, getting rid of the old one
+     * 
+     * @param newPlayer
+     * @throws AVTransportException if its position can't be tracked
+     */
+    private void swapPlayer(BasicPlayer newPlayer) throws AVTransportException {
+    	PositionTracker newPositionTracker;
+    	try {
+    		newPositionTracker = createPositionTracker(newPlayer);
+    	} catch (PlayerException e) {
+    		newPlayer.cleanup();
+    		throw new AVTransportException(ErrorCode.HUMAN_INTERVENTION_REQUIRED, "Unable to start media player backend.");
+    	}
+    	
+		long start = System.nanoTime();
+		if (player != null) {
+			player.cleanup();
+		}
+		Metrics.getInstance().recordSince("setAVTransportURI.cleanup", start);
+		player = newPlayer;
+		player.setListener(playerListener);
+		positionTracker = newPositionTracker;
+    }
+    
+    /**
+     * Start playing through a playlist: start reading it, and load its first track once that
+     * has arrived, without waiting for the rest
+     * 
+     * @param playlistURI
+     * @param metaData metadata the control point gave for the playlist
+     * @param index track to start at, from 0, or -1 for the first.  If the playlist no longer
+     * has that many tracks it starts at the first.
+     * @throws AVTransportException if the playlist can't be read, or its first track can't be
+     */
+    private void startPlaylist(String playlistURI, String metaData, int index) throws AVTransportException {
+    	final Playlist newPlaylist;
+    	try {
+    		newPlaylist = new Playlist(playlistURI, transportSettings.getPlayMode());
+    	} catch (Exception e) {
+    		throw new AVTransportException(ErrorCode.ACTION_FAILED, "Unable to read playlist: " + e.getMessage());
+    	}
+    	newPlaylist.start(new Runnable() {
+    		@Override
+    		public void run() {
+    			playlistRead(newPlaylist);
+    		}
+    	});
+    	
+    	if (newPlaylist.get(0, PLAYLIST_WAIT) == null) {
+    		Exception error = newPlaylist.getError();
+    		newPlaylist.close();
+    		throw new AVTransportException(AVTransportErrorCode.READ_ERROR, error == null 
+    				? "Nothing to play in playlist " + playlistURI : "Unable to read playlist: " + error.getMessage());
+    	}
+    	
+    	try {
+    		if ((index < 0 || !loadTrack(newPlaylist, metaData, index, false))
+    				&& !loadTrack(newPlaylist, metaData, newPlaylist.peekNext(), false)) {
+    			throw new AVTransportException(AVTransportErrorCode.READ_ERROR, "Nothing to play in playlist " + playlistURI);
+    		}
+    	} catch (AVTransportException e) {
+    		newPlaylist.close();
+    		throw e;
+    	}
+    	log.info("Playing through playlist " + playlistURI);
+    }
+    
+    /**
+     * Load a track from a playlist into a new player, making that playlist the current one
+     * 
+     * @param list
+     * @param metaData metadata the control point gave for the playlist
+     * @param index which track
+     * @param play whether to start playing it
+     * @return false if the playlist doesn't have that track
+     * @throws AVTransportException if the track can't be played
+     */
+    private boolean loadTrack(Playlist list, String metaData, int index, boolean play) throws AVTransportException {
+    	PlaylistEntry entry = index < 0 ? null : list.get(index, PLAYLIST_WAIT);
+    	if (entry == null) {
+    		return false;
+    	}
+    	URI uri = parseURI(entry.getUri(), "CurrentURI");
+    	Future<UriValidator.Result> validation = UriValidator.getInstance().validateAsync(uri);
+    	swapPlayer(createPlayer(uri, validation));
+    	String duration = applyMetadata(MetadataReader.getInstance().read(entry.getUri(), entry.getMetaData()));
+    	
+    	synchronized (this) {
+    		if (playlist != list) {
+    			closePlaylist();
+    			playlist = list;
+    			playlistMetaData = metaData;
+    		}
+    		list.moveTo(index);
+    		prefetched = -1;
+    		mediaInfo = new MediaInfo(list.getUri(), metaData, null, null, 
+    				new UnsignedIntegerFourBytes(list.size()), null, null);
+    		positionInfo = new PositionInfo(index + 1, duration, entry.getMetaData(), entry.getUri(),
+    				ModelUtil.toTimeString(0), ModelUtil.toTimeString(0), Integer.MAX_VALUE, Integer.MAX_VALUE);
+    		transportInfo = new TransportInfo(TransportState.STOPPED);
+    		nextURI = null;
+    		nextURIMetaData = null;
+    		source = getResult(validation);
+    		nextSource = null;
+    	}
+    	if (journal != null) {
+    		journal.recordTrack(entry.getUri(), entry.getMetaData(), list.getUri(), metaData, index);
+    	}
+    	
+    	getLastChange().setEventedValue(
+    			getDefaultInstanceID(),
+    			new AVTransportVariable.AVTransportURI(URI.create(list.getUri())),
+    			new AVTransportVariable.AVTransportURIMetaData(metaData),
+    			new AVTransportVariable.CurrentTrackURI(uri),
+    			new AVTransportVariable.CurrentTrackMetaData(entry.getMetaData()),
+    			new AVTransportVariable.NumberOfTracks(new UnsignedIntegerFourBytes(list.size())),
+    			new AVTransportVariable.CurrentTrack(new UnsignedIntegerFourBytes(index + 1)),
+    			new AVTransportVariable.CurrentTrackDuration(duration),
+    			new AVTransportVariable.NextAVTransportURI((URI) null),
+    			new AVTransportVariable.NextAVTransportURIMetaData((String) null),
+    			new AVTransportVariable.TransportState(TransportState.STOPPED),
+    			new AVTransportVariable.CurrentTransportActions(withPlaylistActions(TransportAction.Play))
+    	);
+    	log.info("Loaded track " + (index + 1) + " of " + list.getUri() + ": " + uri);
+    	
+    	if (play) {
+    		play(getDefaultInstanceID(), "1");
+    	}
+    	prefetch();
+    	return true;
+    }
+    
+    /**
+     * Stop playing through the playlist, if there is one
+     */
+    private synchronized void closePlaylist() {
+    	if (playlist != null) {
+    		playlist.close();
+    		playlist = null;
+    		playlistMetaData = null;
+    		prefetched = -1;
+    	}
+    }
+    
+    /**
+     * Called once a playlist has been read, to let control points know how many tracks it has
+     * 
+     * @param list
+     */
+    private void playlistRead(Playlist list) {
+    	synchronized (this) {
+    		if (playlist != list) {
+    			return;
+    		}
+    		mediaInfo = new MediaInfo(mediaInfo.getCurrentURI(), mediaInfo.getCurrentURIMetaData(), null, null, 
+    				new UnsignedIntegerFourBytes(list.size()), null, null);
+    	}
+    	getLastChange().setEventedValue(
+    			getDefaultInstanceID(),
+    			new AVTransportVariable.NumberOfTracks(new UnsignedIntegerFourBytes(list.size()))
+    	);
+    	// What comes after the last track could only be worked out now
+    	prefetch();
+    }
+    
+    /**
+     * Get the playlist's next track ready in the background, so the player can go straight on
+     * to it when the current one finishes.  A track queued by the control point comes first.
+     * Nothing is sent to the player if it already has that track queued, and if it can't
+     * replace the one it has, that one stays as the next track.
+     */
+    private void prefetch() {
+    	final Playlist list;
+    	final BasicPlayer currentPlayer;
+    	synchronized (this) {
+    		list = playlist;
+    		currentPlayer = player;
+    		if (list == null || currentPlayer == null || nextURI != null) {
+    			return;
+    		}
+    	}
+    	prefetcher.execute(new Runnable() {
+    		@Override
+    		public void run() {
+    			int index = list.peekNext();
+    			synchronized (CliMRAVTransportService.this) {
+    				if (index >= 0 && index == prefetched) {
+    					// Already queued
+    					return;
+    				}
+    			}
+    			PlaylistEntry entry = index < 0 ? null : list.get(index, PREFETCH_WAIT);
+    			String uri = null;
+    			UriValidator.Result result = null;
+    			if (entry != null) {
+    				try {
+    					result = UriValidator.getInstance().validate(URI.create(entry.getUri()));
+    					if (result.isValid()) {
+    						uri = entry.getUri();
+    					} else {
+    						log.warning("Unable to read track " + (index + 1) + " of " + list.getUri() + ": " + result.getError());
+    					}
+    				} catch (IllegalArgumentException e) {
+    					log.warning("Unable to read track " + (index + 1) + " of " + list.getUri() + ": " + e.getMessage());
+    				}
+    			}
+    			
+    			synchronized (CliMRAVTransportService.this) {
+    				if (playlist != list || player != currentPlayer || nextURI != null) {
+    					// Moved on while it was being got ready
+    					return;
+    				}
+    				if (uri != null && index == prefetched) {
+    					// Queued by another prefetch meanwhile
+    					return;
+    				}
+    				try {
+    					currentPlayer.setNextUri(uri);
+    					prefetched = uri == null ? -1 : index;
+    					nextSource = uri == null ? null : result;
+    				} catch (PlayerException e) {
+    					// Whatever the player already has queued still plays next, and prefetched
+    					// still says which track that is
+    					log.warning("Unable to queue track " + (index + 1) + " of " + list.getUri() + ": " + e.getMessage());
+    				}
+    			}
+    		}
+    	});
+    }
+    
+    /**
+     * Add Next and Previous to the actions that can be taken when playing through a playlist
+     * 
+     * @param actions
+     * @return
+     */
+    private TransportAction[] withPlaylistActions(TransportAction... actions) {
+    	if (playlist == null) {
+    		return actions;
+    	}
+    	TransportAction[] all = Arrays.copyOf(actions, actions.length + 2);
+    	all[actions.length] = TransportAction.Next;
+    	all[actions.length + 1] = TransportAction.Previous;
+    	return all;
+    }
 
     @Override
     public MediaInfo getMediaInfo(UnsignedIntegerFourBytes instanceId) throws AVTransportException {
+    	PositionTracker tracker = positionTracker;
+    	if (tracker != null && playlist == null) {
+    		// Once the player knows how long the track is, that's better than the metadata
+    		String duration = toDurationString(tracker.getDuration());
+    		synchronized (this) {
+    			if (!duration.equals(mediaInfo.getMediaDuration()) && !duration.equals(toDurationString(0))) {
+    				mediaInfo = new MediaInfo(mediaInfo.getCurrentURI(), mediaInfo.getCurrentURIMetaData(),
+    						mediaInfo.getNextURI(), mediaInfo.getNextURIMetaData(), mediaInfo.getNumberOfTracks(),
+    						duration, mediaInfo.getPlayMedium());
+    			}
+    		}
+    	}
 		return mediaInfo;
         
     }
@@ -132,12 +551,17 @@ public class CliMRAVTransportService extends AbstractAVTransportService {
 		if (player == null) {
 			// nop
 		} else {
-			long position = player.getPosition();
-			long duration = player.getDuration();
+			long position = positionTracker.getPosition();
+			long duration = positionTracker.getDuration();
 			String positionString = ModelUtil.toTimeString(position);
 			String durationString = ModelUtil.toTimeString(duration);
-			positionInfo = new PositionInfo(0, durationString, 
-					player.getCurrentUri(), positionString, positionString);
+			Playlist list = playlist;
+			String uri = player.getCurrentUri();
+			// A single URI is track 1; 0 only when there's nothing loaded
+			long track = list != null ? list.getCurrent() + 1 : (uri == null ? 0 : 1);
+			positionInfo = new PositionInfo(track, durationString, 
+					positionInfo.getTrackMetaData(), uri, positionString, positionString,
+					Integer.MAX_VALUE, Integer.MAX_VALUE);
 			
 		}
 		return positionInfo;
@@ -147,6 +571,102 @@ public class CliMRAVTransportService extends AbstractAVTransportService {
     public void setPositionInfo(PositionInfo newPosition) {
     	positionInfo = newPosition;
     }
+    
+    /**
+     * Record how far through the track we are in the journal, if it has changed
+     */
+    private void recordPosition() {
+    	PositionTracker tracker = positionTracker;
+    	if (journal != null && tracker != null) {
+    		journal.recordPosition(tracker.getPosition() * 1000, transportInfo.getCurrentTransportState());
+    	}
+    }
+    
+    /**
+     * Carry on with what was playing before a restart: set the play mode back, load the track
+     * into the player, reading its playlist again if it came from one, and, if it was playing
+     * and resume is set, play it from where it had got to
+     * 
+     * @param entry what was playing, as recorded in the journal
+     * @param resume whether to start playing again
+     * @return false if the track couldn't be loaded, e.g. as the media server isn't up yet,
+     * so it's worth trying again
+     */
+    public boolean restore(StateJournal.Entry entry, boolean resume) {
+    	if (player != null) {
+    		// A control point has already given us something else to play
+    		return true;
+    	}
+    	long start = System.nanoTime();
+    	try {
+    		if (entry.getPlayMode() != null) {
+    			setPlayMode(getDefaultInstanceID(), entry.getPlayMode().toString());
+    		}
+    		if (entry.getPlaylistUri() != null) {
+    			startPlaylist(entry.getPlaylistUri(), entry.getPlaylistMetaData(), entry.getIndex());
+    		} else {
+    			setAVTransportURI(getDefaultInstanceID(), entry.getUri(), entry.getMetaData());
+    		}
+    	} catch (AVTransportException e) {
+    		log.warning("Unable to restore " + entry + ": " + e.getMessage());
+    		return false;
+    	}
+    	if (resume && entry.getState() == TransportState.PLAYING) {
+    		try {
+    			play(getDefaultInstanceID(), "1");
+    		} catch (AVTransportException e) {
+    			log.warning("Unable to resume " + entry.getUri() + ": " + e.getMessage());
+    			return true;
+    		}
+    		long seconds = entry.getPositionMillis() / 1000;
+    		// Not if the playlist has changed and it started from the first track instead
+    		if (seconds > 0 && entry.getUri().equals(positionInfo.getTrackURI())) {
+    			try {
+    				seek(getDefaultInstanceID(), SeekMode.REL_TIME.toString(), ModelUtil.toTimeString(seconds));
+    			} catch (AVTransportException e) {
+    				log.warning("Unable to resume " + entry.getUri() + " at " + seconds + "s, playing from the start: " 
+    						+ e.getMessage());
+    			}
+    		}
+    	}
+    	Metrics.getInstance().recordSince("journal.restore", start);
+    	log.info("Restored " + entry);
+    	return true;
+    }
+    
+    /**
+     * Create a position tracker for a new player using the settings from the properties file
+     * 
+     * @param newPlayer
+     * @return
+     * @throws PlayerException
+     */
+    private PositionTracker createPositionTracker(BasicPlayer newPlayer) throws PlayerException {
+    	PositionTracker tracker;
+    	try {
+    		PropertyHelper properties = PropertyHelper.getInstance();
+    		tracker = new PositionTracker(newPlayer, properties.getPositionDriftThreshold(),
+    				properties.getPositionResyncInterval());
+    	} catch (Exception e) {
+    		throw new PlayerException("Unable to load position settings from config: " + e.getMessage());
+    	}
+    	tracker.setDurationListener(durationListener);
+    	return tracker;
+    }
+    
+    /**
+     * Told when the position tracker finds out how long the track is.  No event is sent for it,
+     * so the initial event kept for new subscribers has to be built again.
+     */
+    private final Runnable durationListener = new Runnable() {
+    	@Override
+    	public void run() {
+    		LastChange lastChange = getLastChange();
+    		if (lastChange instanceof ModeratedLastChange) {
+    			((ModeratedLastChange) lastChange).invalidate();
+    		}
+    	}
+    };
 
     @Override
     public DeviceCapabilities getDeviceCapabilities(UnsignedIntegerFourBytes instanceId) throws AVTransportException {
@@ -165,12 +685,13 @@ public class CliMRAVTransportService extends AbstractAVTransportService {
       if (player != null) {
     	  try {
 			player.stop();
+			positionTracker.stopped();
 			transportInfo = new TransportInfo(TransportState.STOPPED);
+			recordPosition();
 			this.getLastChange().setEventedValue(
 				this.getCurrentInstanceIds()[0],
 				new AVTransportVariable.TransportState(TransportState.STOPPED)
 			);
-			this.getLastChange().fire(getPropertyChangeSupport());
 		} catch (PlayerException e) {
 			throw new AVTransportException(ErrorCode.ACTION_FAILED, e.getMessage());
 		}
@@ -183,16 +704,18 @@ public class CliMRAVTransportService extends AbstractAVTransportService {
        if (player != null) {
     	   try {
 	    	   player.play();
+	    	   positionTracker.playing();
 	    	   transportInfo = new TransportInfo(TransportState.PLAYING);
+	    	   recordPosition();
 	
 	           getLastChange().setEventedValue(
 	                   getDefaultInstanceID(),
 	                   new AVTransportVariable.TransportState(TransportState.PLAYING),
-	                   new AVTransportVariable.CurrentTransportActions(new TransportAction[]{
-	                           TransportAction.Stop
-	                   })
+	                   new AVTransportVariable.CurrentTransportActions(withPlaylistActions(
+	                           TransportAction.Stop,
+	                           TransportAction.Seek
+	                   ))
 	           );
-	           getLastChange().fire(getPropertyChangeSupport());
     	   } catch (PlayerException e) {
     		   throw new AVTransportException(ErrorCode.ACTION_FAILED, e.toString());
     	   }
@@ -208,17 +731,19 @@ public class CliMRAVTransportService extends AbstractAVTransportService {
     	if (player != null) {
      	   try {
  	    	   player.pause();
+ 	    	   positionTracker.paused();
  	    	   transportInfo = new TransportInfo(TransportState.PAUSED_PLAYBACK);
+ 	    	   recordPosition();
  	
  	           getLastChange().setEventedValue(
  	                   getDefaultInstanceID(),
  	                   new AVTransportVariable.TransportState(TransportState.PAUSED_PLAYBACK),
- 	                   new AVTransportVariable.CurrentTransportActions(new TransportAction[]{
+ 	                   new AVTransportVariable.CurrentTransportActions(withPlaylistActions(
  	                           TransportAction.Stop,
- 	                           TransportAction.Play
- 	                   })
+ 	                           TransportAction.Play,
+ 	                           TransportAction.Seek
+ 	                   ))
  	           );
- 	           getLastChange().fire(getPropertyChangeSupport());
      	   } catch (PlayerException e) {
      		   throw new AVTransportException(ErrorCode.ACTION_FAILED, e.toString());
      	   }
@@ -236,29 +761,436 @@ public class CliMRAVTransportService extends AbstractAVTransportService {
 
     @Override
     public void seek(UnsignedIntegerFourBytes instanceId, String unit, String target) throws AVTransportException {
-    	throw new AVTransportException(ErrorCode.INVALID_ACTION, "Seek not supported.");
+    	if (player == null) {
+    		throw new AVTransportException(ErrorCode.INVALID_ACTION, "No player created - try setting URI of media first.");
+    	}
+    	if (unit.equals(SeekMode.TRACK_NR.toString())) {
+    		seekTrack(target);
+    		return;
+    	}
+    	
+    	// Only what was found out when the track was loaded; asking the server again would
+    	// hold up the control point
+    	String uri = player.getCurrentUri();
+    	UriValidator.Result current = source;
+    	long duration = positionTracker.getDuration();
+    	long seconds;
+    	try {
+    		if (BYTE_SEEK_MODE.equals(unit)) {
+    			long length = current != null && current.getContentLength() > 0 ? current.getContentLength() : metadata.getSize();
+    			seconds = byteToSeconds(Long.parseLong(target.trim()), length, duration);
+    		} else if (unit.equals(SeekMode.REL_TIME.toString()) || unit.equals(SeekMode.ABS_TIME.toString())) {
+    			// One track, so the track and the whole media start at the same time
+    			seconds = ModelUtil.fromTimeString(target);
+    		} else {
+    			throw new AVTransportException(AVTransportErrorCode.SEEKMODE_NOT_SUPPORTED, "Seek mode " + unit + " not supported.");
+    		}
+    	} catch (NumberFormatException e) {
+    		throw new AVTransportException(AVTransportErrorCode.ILLEGAL_SEEK_TARGET, "Seek target " + target + " not understood.");
+    	} catch (IllegalArgumentException e) {
+    		throw new AVTransportException(AVTransportErrorCode.ILLEGAL_SEEK_TARGET, "Seek target " + target + " not understood.");
+    	}
+    	if (seconds < 0 || (duration > 0 && seconds > duration)) {
+    		throw new AVTransportException(AVTransportErrorCode.ILLEGAL_SEEK_TARGET, "Seek target " + target + " is outside the track.");
+    	}
+    	
+    	// Only refused when the server said it can't seek by byte or by time, as without ranges
+    	// the player would have to read the whole track up to the target again.  The media cache
+    	// can seek in a track it has saved and skips through the rest for the player.  Otherwise,
+    	// including when the server just didn't say, let the player try
+    	if (current != null && current.isRangeRefused() && !current.isTimeSeekSupported()
+    			&& MediaCache.getInstance() == null) {
+    		throw new AVTransportException(AVTransportErrorCode.ILLEGAL_SEEK_TARGET, "Media server can not seek in " + uri);
+    	}
+    	
+    	try {
+    		player.seek(seconds);
+    	} catch (PlayerException e) {
+    		throw new AVTransportException(ErrorCode.ACTION_FAILED, e.getMessage());
+    	}
+    	positionTracker.seeked(seconds);
+    	recordPosition();
+    	log.info("Seeked to " + seconds + "s");
+    }
+    
+    /**
+     * Work out roughly how far into the track a byte is, assuming a constant bit rate
+     * 
+     * @param offset
+     * @param length length of the track in bytes
+     * @param duration length of the track in seconds
+     * @return
+     * @throws AVTransportException if either length isn't known
+     */
+    private long byteToSeconds(long offset, long length, long duration) throws AVTransportException {
+    	if (length <= 0 || duration <= 0) {
+    		throw new AVTransportException(AVTransportErrorCode.ILLEGAL_SEEK_TARGET, "Track length not known, can not seek by byte.");
+    	}
+    	if (offset < 0 || offset >= length) {
+    		throw new AVTransportException(AVTransportErrorCode.ILLEGAL_SEEK_TARGET, "Seek target " + offset + " is outside the track.");
+    	}
+    	return offset * duration / length;
+    }
+
+    /**
+     * Seek to another track in the playlist, carrying on playing if it was
+     * 
+     * @param target track number, from 1
+     * @throws AVTransportException
+     */
+    private void seekTrack(String target) throws AVTransportException {
+    	int track;
+    	try {
+    		track = Integer.parseInt(target.trim());
+    	} catch (NumberFormatException e) {
+    		throw new AVTransportException(AVTransportErrorCode.ILLEGAL_SEEK_TARGET, "Seek target " + target + " not understood.");
+    	}
+    	Playlist list = playlist;
+    	if (list == null) {
+    		// Just the one track
+    		if (track != 1) {
+    			throw new AVTransportException(AVTransportErrorCode.ILLEGAL_SEEK_TARGET, "Seek target " + target + " is outside the playlist.");
+    		}
+    		seek(getDefaultInstanceID(), SeekMode.REL_TIME.toString(), ModelUtil.toTimeString(0));
+    		return;
+    	}
+    	if (track < 1 || !loadTrack(list, playlistMetaData, track - 1, isPlaying())) {
+    		throw new AVTransportException(AVTransportErrorCode.ILLEGAL_SEEK_TARGET, "Seek target " + target + " is outside the playlist.");
+    	}
+    }
+    
+    private boolean isPlaying() {
+    	return transportInfo.getCurrentTransportState() == TransportState.PLAYING;
     }
 
     @Override
     public void next(UnsignedIntegerFourBytes instanceId) throws AVTransportException {
-    	throw new AVTransportException(ErrorCode.INVALID_ACTION, "Next not supported.");
+    	Playlist list = playlist;
+    	if (list == null) {
+    		throw new AVTransportException(ErrorCode.INVALID_ACTION, "Next not supported.");
+    	}
+    	if (!loadTrack(list, playlistMetaData, list.peekNext(), isPlaying())) {
+    		throw new AVTransportException(AVTransportErrorCode.TRANSITION_NOT_AVAILABLE, "No next track in the playlist.");
+    	}
     }
 
     @Override
     public void previous(UnsignedIntegerFourBytes instanceId) throws AVTransportException {
-    	throw new AVTransportException(ErrorCode.INVALID_ACTION, "Previous not supported.");
+    	Playlist list = playlist;
+    	if (list == null) {
+    		throw new AVTransportException(ErrorCode.INVALID_ACTION, "Previous not supported.");
+    	}
+    	if (!loadTrack(list, playlistMetaData, list.peekPrevious(), isPlaying())) {
+    		throw new AVTransportException(AVTransportErrorCode.TRANSITION_NOT_AVAILABLE, "No previous track in the playlist.");
+    	}
     }
 
     @Override
     public void setNextAVTransportURI(UnsignedIntegerFourBytes instanceId,
                                       String nextURI,
                                       String nextURIMetaData) throws AVTransportException {
-    	throw new AVTransportException(ErrorCode.INVALID_ACTION, "Next URI not supported.");
+    	if (player == null) {
+    		throw new AVTransportException(ErrorCode.INVALID_ACTION, "No player created - try setting URI of media first.");
+    	}
+    	
+    	URI uri = null;
+    	UriValidator.Result result = null;
+    	if (nextURI != null && nextURI.length() > 0) {
+    		uri = parseURI(nextURI, "NextURI");
+    		Future<UriValidator.Result> validation = UriValidator.getInstance().validateAsync(uri);
+    		checkReadable(uri, validation);
+    		result = getResult(validation);
+    	}
+    	
+    	// Clearing a next URI that was never set leaves the playlist's own next track queued
+    	boolean keepPrefetched;
+    	synchronized (this) {
+    		keepPrefetched = uri == null && this.nextURI == null;
+    	}
+    	if (!keepPrefetched) {
+    		try {
+    			player.setNextUri(uri == null ? null : uri.toString());
+    		} catch (PlayerException e) {
+    			throw new AVTransportException(ErrorCode.ACTION_FAILED, e.getMessage());
+    		}
+    	}
+    	
+    	synchronized (this) {
+    		if (!keepPrefetched) {
+    			prefetched = -1;
+    			nextSource = result;
+    		}
+	    	this.nextURI = uri == null ? null : nextURI;
+	    	this.nextURIMetaData = uri == null ? null : nextURIMetaData;
+	    	mediaInfo = new MediaInfo(mediaInfo.getCurrentURI(), mediaInfo.getCurrentURIMetaData(),
+	    			this.nextURI, this.nextURIMetaData, mediaInfo.getNumberOfTracks(), mediaInfo.getMediaDuration(), null);
+    	}
+    	
+    	getLastChange().setEventedValue(
+    			getDefaultInstanceID(),
+    			new AVTransportVariable.NextAVTransportURI(uri),
+    			new AVTransportVariable.NextAVTransportURIMetaData(this.nextURIMetaData)
+    	);
+    	
+    	log.info("Next URI set to " + uri);
+    	if (uri == null) {
+    		// Back to the playlist's own next track
+    		prefetch();
+    	}
+    }
+    
+    /**
+     * Told by the player when it moves on to the queued track by itself, which makes the queued 
+     * URI the current one, or when it starts or stops by itself.  Either way control points are 
+     * let know straight away.
+     */
+    private final PlayerListener playerListener = new PlayerListener() {
+    	@Override
+    	public void trackChanged(String uri) {
+    		if (playlistTrackChanged(uri)) {
+    			return;
+    		}
+    		String metaData;
+    		MetadataReader.Metadata trackMetadata;
+    		String duration;
+    		synchronized (CliMRAVTransportService.this) {
+    			if (nextURI == null) {
+    				return;
+    			}
+    			// A track queued by the control point takes over from the playlist
+    			closePlaylist();
+    			metaData = nextURIMetaData;
+    			trackMetadata = MetadataReader.getInstance().read(nextURI, metaData);
+    			duration = toDurationString(trackMetadata.getDuration());
+    			mediaInfo = new MediaInfo(nextURI, metaData, new UnsignedIntegerFourBytes(1), duration, null);
+    			positionInfo = new PositionInfo(1, duration, metaData, nextURI,
+    					ModelUtil.toTimeString(0), ModelUtil.toTimeString(0), Integer.MAX_VALUE, Integer.MAX_VALUE);
+    			if (journal != null) {
+    				journal.recordTrack(nextURI, metaData);
+    				journal.recordPosition(0, transportInfo.getCurrentTransportState());
+    			}
+    			nextURI = null;
+    			nextURIMetaData = null;
+    			source = nextSource;
+    			nextSource = null;
+    		}
+    		positionTracker.trackChanged();
+    		applyMetadata(trackMetadata);
+    		
+    		URI current = URI.create(uri);
+    		getLastChange().setEventedValue(
+    				getDefaultInstanceID(),
+    				new AVTransportVariable.AVTransportURI(current),
+    				new AVTransportVariable.AVTransportURIMetaData(metaData),
+    				new AVTransportVariable.CurrentTrackURI(current),
+    				new AVTransportVariable.CurrentTrackMetaData(metaData),
+    				new AVTransportVariable.NumberOfTracks(new UnsignedIntegerFourBytes(1)),
+    				new AVTransportVariable.CurrentTrack(new UnsignedIntegerFourBytes(1)),
+    				new AVTransportVariable.CurrentTrackDuration(duration),
+    				new AVTransportVariable.CurrentMediaDuration(duration),
+    				new AVTransportVariable.NextAVTransportURI((URI) null),
+    				new AVTransportVariable.NextAVTransportURIMetaData((String) null)
+    		);
+    		
+    		log.info("Player moved on to next URI " + uri);
+    	}
+    	
+    	/**
+    	 * Move on to the playlist track the player was given to play next, if that's what it
+    	 * has moved on to
+    	 * @param uri
+    	 * @return false if it wasn't a playlist track
+    	 */
+    	private boolean playlistTrackChanged(String uri) {
+    		Playlist list;
+    		int index;
+    		PlaylistEntry entry;
+    		MetadataReader.Metadata trackMetadata;
+    		String duration;
+    		synchronized (CliMRAVTransportService.this) {
+    			list = playlist;
+    			index = prefetched;
+    			if (list == null || nextURI != null || index < 0) {
+    				return false;
+    			}
+    			entry = list.get(index, 0);
+    			if (entry == null) {
+    				return false;
+    			}
+    			list.moveTo(index);
+    			prefetched = -1;
+    			source = nextSource;
+    			nextSource = null;
+    			trackMetadata = MetadataReader.getInstance().read(entry.getUri(), entry.getMetaData());
+    			duration = toDurationString(trackMetadata.getDuration());
+    			positionInfo = new PositionInfo(index + 1, duration, entry.getMetaData(), entry.getUri(),
+    					ModelUtil.toTimeString(0), ModelUtil.toTimeString(0), Integer.MAX_VALUE, Integer.MAX_VALUE);
+    			if (journal != null) {
+    				journal.recordTrack(entry.getUri(), entry.getMetaData(), list.getUri(), playlistMetaData, index);
+    				journal.recordPosition(0, transportInfo.getCurrentTransportState());
+    			}
+    		}
+    		positionTracker.trackChanged();
+    		applyMetadata(trackMetadata);
+    		
+    		getLastChange().setEventedValue(
+    				getDefaultInstanceID(),
+    				new AVTransportVariable.CurrentTrackURI(URI.create(uri)),
+    				new AVTransportVariable.CurrentTrackMetaData(entry.getMetaData()),
+    				new AVTransportVariable.CurrentTrack(new UnsignedIntegerFourBytes(index + 1)),
+    				new AVTransportVariable.CurrentTrackDuration(duration)
+    		);
+    		log.info("Player moved on to track " + (index + 1) + " of " + list.getUri() + ": " + uri);
+    		prefetch();
+    		return true;
+    	}
+    	
+    	@Override
+    	public void stateChanged(PlayerState state) {
+    		TransportState transportState;
+    		TransportAction[] actions;
+    		switch (state) {
+    		case PLAYING:
+    			positionTracker.playing();
+    			transportState = TransportState.PLAYING;
+    			actions = withPlaylistActions(TransportAction.Stop, TransportAction.Seek);
+    			break;
+    		case PAUSED:
+    			positionTracker.paused();
+    			transportState = TransportState.PAUSED_PLAYBACK;
+    			actions = withPlaylistActions(TransportAction.Stop, TransportAction.Play, TransportAction.Seek);
+    			break;
+    		default:
+    			positionTracker.stopped();
+    			transportState = TransportState.STOPPED;
+    			actions = withPlaylistActions(TransportAction.Play);
+    			break;
+    		}
+    		
+    		if (transportInfo.getCurrentTransportState() == transportState) {
+    			// We already knew, probably because we asked for it
+    			return;
+    		}
+    		transportInfo = new TransportInfo(transportState);
+    		recordPosition();
+    		getLastChange().setEventedValue(
+    				getDefaultInstanceID(),
+    				new AVTransportVariable.TransportState(transportState),
+    				new AVTransportVariable.CurrentTransportActions(actions)
+    		);
+    		
+    		log.info("Player state changed to " + transportState);
+    	}
+    };
+    
+    /**
+     * Check that a URI from a control point is well formed and points to a network stream.
+     * 
+     * @param value the URI as given by the control point
+     * @param argument name of the action argument, for error messages
+     * @return
+     * @throws AVTransportException if the URI can't be used
+     */
+    private URI parseURI(String value, String argument) throws AVTransportException {
+        URI uri;
+        try {
+            uri = new URI(value);
+        } catch (Exception ex) {
+            throw new AVTransportException(
+                    ErrorCode.INVALID_ARGS, argument + " can not be null or malformed"
+            );
+        }
+
+        if (!value.startsWith("http:")) {
+            throw new AVTransportException(ErrorCode.INVALID_ACTION, "Requested URI was not a network stream.");
+        }
+        return uri;
+    }
+    
+    /**
+     * Wait for the check on whether a URI can be read to finish
+     * 
+     * @param uri
+     * @param validation the check, as started with the UriValidator
+     * @throws AVTransportException if the URI can't be read
+     */
+    private void checkReadable(URI uri, Future<UriValidator.Result> validation) throws AVTransportException {
+    	UriValidator.Result result;
+    	try {
+    		result = validation.get();
+    	} catch (InterruptedException e) {
+    		Thread.currentThread().interrupt();
+    		throw new AVTransportException(AVTransportErrorCode.READ_ERROR, "Unable to read requested URI: " + uri);
+    	} catch (ExecutionException e) {
+    		throw new AVTransportException(AVTransportErrorCode.READ_ERROR, "Unable to read requested URI: " + uri);
+    	}
+    	if (!result.isValid()) {
+    		log.warning("Unable to read " + uri + ": " + result.getError());
+    		throw new AVTransportException(AVTransportErrorCode.READ_ERROR, "Unable to read requested URI: " + uri);
+    	}
+    }
+
+    /**
+     * What the server said a URI is, once it has been checked
+     * 
+     * @param validation the check, as started with the UriValidator
+     * @return null if it didn't say
+     */
+    private String getContentType(Future<UriValidator.Result> validation) {
+    	UriValidator.Result result = getResult(validation);
+    	return result == null ? null : result.getContentType();
+    }
+    
+    /**
+     * The outcome of checking a URI, once the check has finished
+     * 
+     * @param validation the check, as started with the UriValidator
+     * @return null if it couldn't be checked
+     */
+    private static UriValidator.Result getResult(Future<UriValidator.Result> validation) {
+    	try {
+    		return validation.get();
+    	} catch (InterruptedException e) {
+    		Thread.currentThread().interrupt();
+    		return null;
+    	} catch (ExecutionException e) {
+    		return null;
+    	}
     }
 
     @Override
     public void setPlayMode(UnsignedIntegerFourBytes instanceId, String newPlayMode) throws AVTransportException {
-    	throw new AVTransportException(ErrorCode.INVALID_ACTION, "Setting playmode not supported.");
+    	PlayMode playMode;
+    	try {
+    		playMode = PlayMode.valueOf(newPlayMode);
+    	} catch (Exception e) {
+    		throw new AVTransportException(AVTransportErrorCode.PLAYMODE_NOT_SUPPORTED, "Play mode " + newPlayMode + " not supported.");
+    	}
+    	if (playMode != PlayMode.NORMAL && playMode != PlayMode.REPEAT_ALL && playMode != PlayMode.SHUFFLE) {
+    		throw new AVTransportException(AVTransportErrorCode.PLAYMODE_NOT_SUPPORTED, "Play mode " + newPlayMode + " not supported.");
+    	}
+    	
+    	Playlist list;
+    	synchronized (this) {
+    		transportSettings = new TransportSettings(playMode);
+    		list = playlist;
+    		if (list != null) {
+    			list.setPlayMode(playMode);
+    		}
+    		if (journal != null) {
+    			journal.recordPlayMode(playMode);
+    		}
+    	}
+    	getLastChange().setEventedValue(
+    			getDefaultInstanceID(),
+    			new AVTransportVariable.CurrentPlayMode(playMode)
+    	);
+    	log.info("Play mode set to " + playMode);
+    	
+    	if (list != null) {
+    		// The track after this one may now be a different one
+    		prefetch();
+    	}
     }
 
     @Override
@@ -17,6 +17,25 @@ public class CliMRConnectionManagerService extends ConnectionManagerService {
      * Basic MP3 support only for now...
      */
     public CliMRConnectionManagerService() {
+    	this(null);
+    }
+    
+    /**
+     * Advertise the formats the renderer's player can play
+     * @param playerType
+     */
+    public CliMRConnectionManagerService(String playerType) {
+    	if ("javasound".equalsIgnoreCase(playerType)) {
+    		// Only uncompressed audio
+    		sinkProtocolInfo.add(new ProtocolInfo("http-get:*:audio/wav:*"));
+    		sinkProtocolInfo.add(new ProtocolInfo("http-get:*:audio/x-wav:*"));
+    		sinkProtocolInfo.add(new ProtocolInfo("http-get:*:audio/x-aiff:*"));
+    		sinkProtocolInfo.add(new ProtocolInfo("http-get:*:audio/aiff:*"));
+    		sinkProtocolInfo.add(new ProtocolInfo("http-get:*:audio/L16;rate=44100;channels=2:DLNA.ORG_PN=LPCM"));
+    		sinkProtocolInfo.add(new ProtocolInfo("http-get:*:audio/L16;rate=48000;channels=2:DLNA.ORG_PN=LPCM"));
+    		sinkProtocolInfo.add(new ProtocolInfo("http-get:*:audio/L16:*"));
+    		return;
+    	}
         sinkProtocolInfo.add(new ProtocolInfo("http-get:*:audio/mp3:*"));
         sinkProtocolInfo.add(new ProtocolInfo("http-get:*:audio/mpeg:*"));
     	sinkProtocolInfo.add(new ProtocolInfo("http-get:*:audio/mpeg3:*"));
@@ -6,6 +6,7 @@ import java.util.logging.Logger;
 
 import org.fourthline.cling.binding.LocalServiceBinder;
 import org.fourthline.cling.binding.annotations.AnnotationLocalServiceBinder;
+import org.fourthline.cling.model.Command;
 import org.fourthline.cling.model.DefaultServiceManager;
 import org.fourthline.cling.model.ServiceManager;
 import org.fourthline.cling.model.ValidationException;
@@ -19,11 +20,13 @@ import org.fourthline.cling.model.meta.ModelDetails;
 import org.fourthline.cling.model.types.UDADeviceType;
 import org.fourthline.cling.model.types.UDN;
 import org.fourthline.cling.support.avtransport.lastchange.AVTransportLastChangeParser;
-import org.fourthline.cling.support.lastchange.LastChange;
 import org.fourthline.cling.support.lastchange.LastChangeAwareServiceManager;
 import org.fourthline.cling.support.renderingcontrol.lastchange.RenderingControlLastChangeParser;
+import org.matt1.climediarenderer.managers.LastChangeScheduler;
 import org.matt1.climediarenderer.managers.LenientChangeAwareServiceManager;
+import org.matt1.climediarenderer.managers.ModeratedLastChange;
 import org.matt1.climediarenderer.utils.PropertyHelper;
+import org.matt1.climediarenderer.utils.RendererConfig;
 
 /**
  * Creates a new CliMediaRenderer UPnP instance, setting up all of the appropriate UPnP services 
@@ -44,10 +47,13 @@ public class CliMediaRenderer {
     protected LocalServiceBinder serviceBinder = new AnnotationLocalServiceBinder();
     
     /** The LastChange object for the AVTransport */
-    protected LastChange avTransportLastChange = new LastChange(new AVTransportLastChangeParser());
+    protected ModeratedLastChange avTransportLastChange = new ModeratedLastChange(new AVTransportLastChangeParser());
     
     /** The last change object for the Rendering Control */
-    protected LastChange renderingControlLastChange = new LastChange(new RenderingControlLastChangeParser());
+    protected ModeratedLastChange renderingControlLastChange = new ModeratedLastChange(new RenderingControlLastChangeParser());
+    
+    /** Sends LastChange events to subscribers when something changes */
+    protected LastChangeScheduler lastChangeScheduler;
 
     /** Service manager for the connection service */
     protected ServiceManager<CliMRConnectionManagerService> connectionServiceManager;
@@ -76,12 +82,27 @@ public class CliMediaRenderer {
     /** Default model site */
     private static final String MODEL_SITE = MANUFACTURER_SITE;
     
+    /** Tries at restoring what was playing, for when the media server is slower to start */
+    private static final int RESTORE_ATTEMPTS = 6;
+    
+    /** Wait between tries at restoring what was playing, in milliseconds */
+    private static final long RESTORE_RETRY_DELAY = 5000;
+    
     /** Longer lock for slower hardware/JRE */
     protected static final int TIMEOUT = 2000;
     
     /** PropertyHelper instance */
     protected PropertyHelper properties;
     
+    /** Settings for this renderer device */
+    protected RendererConfig config;
+    
+    /** Whether the LastChange scheduler is ours alone, rather than shared with other devices */
+    private boolean ownsScheduler;
+    
+    /** Where the AVTransport records what's playing, or null if it doesn't */
+    protected StateJournal journal;
+    
     /**
      * Creates a new device using the default device details
      * 
@@ -116,6 +137,25 @@ public class CliMediaRenderer {
         ));
     }
     
+    /**
+     * Creates a new device from its renderer settings.  Several devices can share one 
+     * LastChange scheduler so they don't each need their own thread.
+     * 
+     * @param config settings for this device
+     * @param scheduler scheduler to send events with, or null to create one
+     * @throws IllegalArgumentException
+     * @throws ValidationException
+     * @throws IOException 
+     */
+    public CliMediaRenderer(RendererConfig config, LastChangeScheduler scheduler) throws IllegalArgumentException, 
+    	ValidationException, IOException, Exception {
+    	this(new DeviceDetails(
+                config.getName(),
+                new ManufacturerDetails(MANUFACTURER_NAME, MANUFACTURER_SITE),
+                new ModelDetails(MODEL_NAME, MODEL_DESCRIPTION, MODEL_VERSION, MODEL_SITE)
+        ), config, scheduler);
+    }
+    
     /**
      * Try loading the properties from the configuration file.
      * 
@@ -136,20 +176,38 @@ public class CliMediaRenderer {
      * Try loading the icon specified in the properties file
      */
     private Icon loadIcon() {
-    	File iconFile = new File(properties.getIconPath());
+    	if (config.getIconPath() == null) {
+    		return null;
+    	}
+    	File iconFile = new File(config.getIconPath());
     	Icon icon = null;
     	try {
 	    	if (iconFile.exists() && iconFile.canRead()) {
 	    		icon = new Icon("image/png", 48, 48, 8, iconFile);
 	    	} else {
-	    		log.warning("Custom icon " + properties.getIconPath() + " could not be read.");
+	    		log.warning("Custom icon " + config.getIconPath() + " could not be read.");
 	    	}
     	} catch (IOException e) {
-    		log.warning("IO Exception trying to load icon file at " + properties.getIconPath());
+    		log.warning("IO Exception trying to load icon file at " + config.getIconPath());
     	}
     	return icon;
     }
     
+    /**
+     * Work out the UDN for this device.  Each renderer needs a different one, and it needs to
+     * stay the same across restarts so control points recognise us.
+     * 
+     * @return
+     */
+    private UDN createUDN() {
+    	if (config.getUdn() != null) {
+    		return UDN.valueOf(config.getUdn().trim());
+    	} else if (config.getId() == null) {
+    		return UDN.uniqueSystemIdentifier("CLI Media Renderer");
+    	}
+    	return UDN.uniqueSystemIdentifier("CLI Media Renderer " + config.getId());
+    }
+    
     /**
      * Creates a new CliMediaRenderer device and sets up all of the appropriate services.
      * @param deviceDetails Details about this device
@@ -157,18 +215,35 @@ public class CliMediaRenderer {
      * @throws IllegalArgumentException 
      * @throws IOException 
      */
-    @SuppressWarnings("unchecked")
 	public CliMediaRenderer(DeviceDetails deviceDetails) throws IllegalArgumentException, 
 		ValidationException, IOException, Exception {
+    	this(deviceDetails, null, null);
+    }
+    
+    /**
+     * Creates a new CliMediaRenderer device and sets up all of the appropriate services.
+     * @param deviceDetails Details about this device
+     * @param config settings for this device, or null for the first one in the properties file
+     * @param scheduler scheduler to send events with, or null to create one
+     * @throws ValidationException 
+     * @throws IllegalArgumentException 
+     * @throws IOException 
+     */
+    @SuppressWarnings("unchecked")
+	protected CliMediaRenderer(DeviceDetails deviceDetails, RendererConfig config, 
+			LastChangeScheduler scheduler) throws IllegalArgumentException, 
+		ValidationException, IOException, Exception {
         	
     	loadProperties();
+    	this.config = config != null ? config : properties.getRendererConfigs().get(0);
+    	journal = openJournal();
     	
         LocalService<CliMRConnectionManagerService> connectionManagerService = serviceBinder.read(CliMRConnectionManagerService.class);
         connectionServiceManager =
                 new DefaultServiceManager<CliMRConnectionManagerService>(connectionManagerService) {
                     @Override
                     protected CliMRConnectionManagerService createServiceInstance() throws Exception {
-                        return new CliMRConnectionManagerService();
+                        return new CliMRConnectionManagerService(CliMediaRenderer.this.config.getPlayerType());
                     }
                     
                     @Override
@@ -185,7 +260,8 @@ public class CliMediaRenderer {
                         new AVTransportLastChangeParser()) {
                     @Override
                     protected CliMRAVTransportService createServiceInstance() throws Exception {
-                        return new CliMRAVTransportService(avTransportLastChange);
+                        return new CliMRAVTransportService(avTransportLastChange, 
+                        		CliMediaRenderer.this.config, journal, properties.getStateJournalInterval());
                     }
                     @Override
                     protected int getLockTimeoutMillis() {
@@ -213,7 +289,7 @@ public class CliMediaRenderer {
 
         
         uPnPDevice = new LocalDevice(
-                new DeviceIdentity(UDN.uniqueSystemIdentifier("CLI Media Renderer")),
+                new DeviceIdentity(createUDN()),
                 new UDADeviceType("MediaRenderer", 1),
                 deviceDetails,
                 loadIcon(),
@@ -224,39 +300,100 @@ public class CliMediaRenderer {
                 }
         );
 
-        // Finally setup last change thread to send updates back to subscribers.
-        initChangeThread();
+        // Finally send last change events back to subscribers whenever something changes.
+        initLastChangeScheduler(scheduler);
         
         log.info("CLI Media Renderer ready.");
     }
 
     /**
-     * Starts a thread that will run and send all "last change" events (e.g. player state change)
-     * back to any subscribing control points
+     * Sets up sending all "last change" events (e.g. player state change) back to any 
+     * subscribing control points as soon as they happen
      */
-    protected void initChangeThread() {
-        Thread changeThread = new Thread() {
-            @Override
-            public void run() {
-                try {
-                    while (true) {
-                        audioTransportServiceManager.fireLastChange();
-                        renderingControlServiceManager.fireLastChange();
-                        Thread.sleep(1000);
-                    }
-                } catch (Exception ex) {
-                	log.info("Exception caught in lastChangeThread(): " + ex.getMessage());
-                }
-            }
-        };
-        
-        changeThread.start();
+    protected void initLastChangeScheduler(LastChangeScheduler scheduler) {
+    	ownsScheduler = scheduler == null;
+    	lastChangeScheduler = ownsScheduler ? new LastChangeScheduler(properties.getLastChangeModeration()) : scheduler;
+    	lastChangeScheduler.register(avTransportLastChange, audioTransportServiceManager);
+    	lastChangeScheduler.register(renderingControlLastChange, renderingControlServiceManager);
+    }
+    
+    /**
+     * Open the journal the AVTransport records what's playing in, one per renderer
+     * 
+     * @return null if it's turned off or can't be opened
+     */
+    private StateJournal openJournal() {
+    	if (!properties.isStateJournalEnabled()) {
+    		return null;
+    	}
+    	File file = new File(properties.getStateJournalDirectory(), 
+    			config.getId() == null ? "state.journal" : "state-" + config.getId() + ".journal");
+    	try {
+    		return new StateJournal(file);
+    	} catch (IOException e) {
+    		log.warning("Unable to open state journal " + file + ": " + e.getMessage());
+    		return null;
+    	}
+    }
+    
+    /**
+     * Carry on with what was playing before the renderer was last stopped, as recorded in the
+     * journal, in the background.  Does nothing if nothing was.  If the track can't be read,
+     * e.g. as the media server is still starting too, it is tried again a few times.
+     */
+    public void restore() {
+    	final StateJournal.Entry entry = journal == null ? null : journal.getRecorded();
+    	if (entry == null) {
+    		return;
+    	}
+    	final boolean resume = properties.isResumePlayback();
+    	Thread thread = new Thread(new Runnable() {
+    		@Override
+    		public void run() {
+    			final boolean[] restored = new boolean[1];
+    			for (int attempt = 1; attempt <= RESTORE_ATTEMPTS && !restored[0]; attempt++) {
+    				try {
+    					if (attempt > 1) {
+    						Thread.sleep(RESTORE_RETRY_DELAY);
+    					}
+    					audioTransportServiceManager.execute(new Command<CliMRAVTransportService>() {
+    						@Override
+    						public void execute(ServiceManager<CliMRAVTransportService> manager) throws Exception {
+    							restored[0] = manager.getImplementation().restore(entry, resume);
+    						}
+    					});
+    				} catch (InterruptedException e) {
+    					return;
+    				} catch (Exception e) {
+    					log.warning("Unable to restore " + entry + ": " + e.getMessage());
+    				}
+    			}
+    		}
+    	}, "state-restore");
+    	thread.setDaemon(true);
+    	thread.start();
+    }
+    
+    /**
+     * Stop sending events, sending any that are still waiting first, and close the journal
+     */
+    public void shutdown() {
+    	if (ownsScheduler) {
+    		lastChangeScheduler.shutdown();
+    	}
+    	if (journal != null) {
+    		journal.close();
+    	}
     }
 
     public LocalDevice getDevice() {
         return uPnPDevice;
     }
 
+    public RendererConfig getConfig() {
+        return config;
+    }
+
     public ServiceManager<CliMRConnectionManagerService> getConnectionManager() {
         return connectionServiceManager;
     }
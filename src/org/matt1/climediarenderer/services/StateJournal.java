@@ -0,0 +1,569 @@
+package org.matt1.climediarenderer.services;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import org.fourthline.cling.support.model.PlayMode;
+import org.fourthline.cling.support.model.TransportState;
+
+/**
+ * Keeps what a renderer is playing - the URI, its metadata, the playlist it came from and which
+ * track of it it is, how far through it is, whether it is playing and the play mode - in a small
+ * memory-mapped file, so that after a restart it can carry on where it was.  The position is a
+ * fixed-size record that is cheap enough to update every second; the URIs and metadata are only
+ * written when the track changes.
+ *
+ * Each record has two slots, written alternately with a sequence number and checksum, so if
+ * the renderer dies half way through writing one the other still holds the last whole record.
+ * The position is only kept for the track it was recorded against.  As the file is mapped, what
+ * has been written survives the JVM dying; track and state changes are also forced to disk, so
+ * they survive the power going too.
+ *
+ * @author Matt
+ *
+ */
+public class StateJournal {
+
+	/** Log used to display messages to the console */
+	private static Logger log = Logger.getLogger(StateJournal.class.getName());
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/** "CMRJ", to recognise our files */
+	private static final int MAGIC = 0x434D524A;
+
+	private static final int VERSION = 2;
+
+	/** Size of the whole file */
+	private static final int SIZE = 64 * 1024;
+
+	/**
+	 * Where the two position slots start: sequence, track sequence, position, state, play mode,
+	 * checksum
+	 */
+	private static final int POSITION_SLOTS = 16;
+
+	private static final int POSITION_SLOT_SIZE = 40;
+
+	/**
+	 * Where the two track slots start: sequence, lengths of the URI and metadata of the track
+	 * and of its playlist, track index, checksum, then text
+	 */
+	private static final int TRACK_SLOTS = 4096;
+
+	private static final int TRACK_SLOT_SIZE = (SIZE - TRACK_SLOTS) / 2;
+
+	private static final int TRACK_HEADER_SIZE = 32;
+
+	/** Single background thread shared by all journals for recording positions */
+	private static final ScheduledExecutorService recorder = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "state-journal");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	private final File file;
+
+	private final RandomAccessFile raf;
+
+	private final MappedByteBuffer buffer;
+
+	/** What was in the file when it was opened, or null if nothing usable */
+	private final Entry recorded;
+
+	/** Sequence number of the last track record written */
+	private long trackSequence;
+
+	/** Sequence number of the last position record written */
+	private long positionSequence;
+
+	/** Last position and state written, so they're only written again when they change */
+	private long lastPosition = -1;
+
+	private TransportState lastState;
+
+	/** Play mode to write with the position */
+	private PlayMode playMode = PlayMode.NORMAL;
+
+	/** Regular recording of the position, or null if not started */
+	private ScheduledFuture<?> recording;
+
+	private boolean closed;
+
+	/**
+	 * Open a journal, creating it if need be, and read what was recorded in it
+	 * @param file
+	 * @throws IOException
+	 */
+	public StateJournal(File file) throws IOException {
+		this.file = file;
+		raf = new RandomAccessFile(file, "rw");
+		try {
+			boolean fresh = raf.length() != SIZE;
+			raf.setLength(SIZE);
+			buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, SIZE);
+			if (fresh || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+				for (int i = 0; i < SIZE; i += 8) {
+					buffer.putLong(i, 0);
+				}
+				buffer.putInt(0, MAGIC);
+				buffer.putInt(4, VERSION);
+				buffer.force();
+				recorded = null;
+			} else {
+				recorded = readEntry();
+			}
+		} catch (IOException e) {
+			raf.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * What was playing when the journal was last written to, before this run
+	 * @return null if nothing was, or the journal was new or unreadable
+	 */
+	public Entry getRecorded() {
+		return recorded;
+	}
+
+	/**
+	 * Record a new track on its own, which starts stopped at the beginning.  Metadata too big
+	 * for the journal is left out.
+	 * @param uri
+	 * @param metaData
+	 */
+	public void recordTrack(String uri, String metaData) {
+		recordTrack(uri, metaData, null, null, -1);
+	}
+
+	/**
+	 * Record a new track from a playlist, which starts stopped at the beginning.  Metadata too
+	 * big for the journal is left out, the playlist's first; if the playlist's URI is too, the
+	 * track is recorded on its own.
+	 * @param uri
+	 * @param metaData
+	 * @param playlistUri null if the track isn't from a playlist
+	 * @param playlistMetaData
+	 * @param index which track of the playlist it is, from 0
+	 */
+	public synchronized void recordTrack(String uri, String metaData, String playlistUri, String playlistMetaData,
+			int index) {
+		if (closed) {
+			return;
+		}
+		byte[] uriBytes = uri == null ? new byte[0] : uri.getBytes(UTF8);
+		byte[] metaBytes = metaData == null ? new byte[0] : metaData.getBytes(UTF8);
+		byte[] playlistBytes = playlistUri == null ? new byte[0] : playlistUri.getBytes(UTF8);
+		byte[] playlistMetaBytes = playlistMetaData == null ? new byte[0] : playlistMetaData.getBytes(UTF8);
+		if (TRACK_HEADER_SIZE + uriBytes.length > TRACK_SLOT_SIZE) {
+			log.warning("URI too long to journal: " + uri);
+			uriBytes = new byte[0];
+		}
+		if (TRACK_HEADER_SIZE + uriBytes.length + playlistBytes.length > TRACK_SLOT_SIZE) {
+			log.warning("Playlist URI too long to journal: " + playlistUri);
+			playlistBytes = new byte[0];
+		}
+		if (playlistBytes.length == 0) {
+			playlistMetaBytes = new byte[0];
+			index = -1;
+		}
+		int length = uriBytes.length + playlistBytes.length;
+		if (TRACK_HEADER_SIZE + length + metaBytes.length + playlistMetaBytes.length > TRACK_SLOT_SIZE) {
+			playlistMetaBytes = new byte[0];
+		}
+		if (TRACK_HEADER_SIZE + length + metaBytes.length > TRACK_SLOT_SIZE) {
+			metaBytes = new byte[0];
+		}
+
+		long sequence = trackSequence + 1;
+		int slot = trackSlot(sequence);
+		buffer.putLong(slot, sequence);
+		buffer.putInt(slot + 8, uriBytes.length);
+		buffer.putInt(slot + 12, metaBytes.length);
+		buffer.putInt(slot + 16, playlistBytes.length);
+		buffer.putInt(slot + 20, playlistMetaBytes.length);
+		buffer.putInt(slot + 24, index);
+		int offset = slot + TRACK_HEADER_SIZE;
+		offset = put(offset, uriBytes);
+		offset = put(offset, metaBytes);
+		offset = put(offset, playlistBytes);
+		offset = put(offset, playlistMetaBytes);
+		// Written last, so a slot only checks out once everything else is in it
+		buffer.putInt(slot + 28, trackChecksum(slot, offset - slot - TRACK_HEADER_SIZE));
+		trackSequence = sequence;
+
+		lastPosition = -1;
+		writePosition(0, TransportState.STOPPED);
+		buffer.force();
+	}
+
+	/**
+	 * Record how far through the track the renderer is and what it is doing.  Does nothing if
+	 * neither has changed.
+	 * @param positionMillis
+	 * @param state
+	 */
+	public synchronized void recordPosition(long positionMillis, TransportState state) {
+		if (closed || (positionMillis == lastPosition && state == lastState)) {
+			return;
+		}
+		boolean stateChanged = state != lastState;
+		writePosition(positionMillis, state);
+		if (stateChanged) {
+			buffer.force();
+		}
+	}
+
+	/**
+	 * Record the order playlists are played in.  It is written with the next position, unless
+	 * something has already been recorded since the journal was opened, when it is written now.
+	 * @param playMode
+	 */
+	public synchronized void recordPlayMode(PlayMode playMode) {
+		if (closed || playMode == this.playMode) {
+			return;
+		}
+		this.playMode = playMode;
+		if (lastState != null) {
+			// Not before, as that would lose the position recorded before the restart
+			writePosition(lastPosition, lastState);
+			buffer.force();
+		}
+	}
+
+	/**
+	 * Start recording the position regularly
+	 * @param task records the position, e.g. by calling recordPosition
+	 * @param intervalMillis
+	 */
+	public synchronized void schedule(Runnable task, long intervalMillis) {
+		if (closed || recording != null) {
+			return;
+		}
+		final Runnable update = task;
+		recording = recorder.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					update.run();
+				} catch (RuntimeException e) {
+					// Try again next time rather than stop recording
+					log.warning("Unable to record position in " + file + ": " + e.getMessage());
+				}
+			}
+		}, intervalMillis, Math.max(100, intervalMillis), TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stop recording, and write everything out
+	 */
+	public synchronized void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		if (recording != null) {
+			recording.cancel(false);
+		}
+		buffer.force();
+		try {
+			raf.close();
+		} catch (IOException e) {
+			log.warning("Unable to close " + file + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Write a position record into the older slot.  Called with this locked.
+	 * @param positionMillis
+	 * @param state
+	 */
+	private void writePosition(long positionMillis, TransportState state) {
+		long sequence = positionSequence + 1;
+		int slot = positionSlot(sequence);
+		buffer.putLong(slot, sequence);
+		buffer.putLong(slot + 8, trackSequence);
+		buffer.putLong(slot + 16, positionMillis);
+		buffer.putInt(slot + 24, stateCode(state));
+		buffer.putInt(slot + 28, playModeCode(playMode));
+		buffer.putInt(slot + 32, checksum(slot, 32));
+		positionSequence = sequence;
+		lastPosition = positionMillis;
+		lastState = state;
+	}
+
+	/**
+	 * Copy text into the buffer
+	 * @param offset where to put it
+	 * @param bytes
+	 * @return where it ends
+	 */
+	private int put(int offset, byte[] bytes) {
+		for (int i = 0; i < bytes.length; i++) {
+			buffer.put(offset + i, bytes[i]);
+		}
+		return offset + bytes.length;
+	}
+
+	/**
+	 * Copy text out of the buffer
+	 * @param offset where it starts
+	 * @param length
+	 * @return null if it's empty
+	 */
+	private String get(int offset, int length) {
+		if (length == 0) {
+			return null;
+		}
+		byte[] bytes = new byte[length];
+		for (int i = 0; i < length; i++) {
+			bytes[i] = buffer.get(offset + i);
+		}
+		return new String(bytes, UTF8);
+	}
+
+	/**
+	 * Read the newest whole records from both pairs of slots
+	 * @return null if there isn't a whole track record
+	 */
+	private Entry readEntry() {
+		int track = -1;
+		for (int slot = TRACK_SLOTS; slot < SIZE; slot += TRACK_SLOT_SIZE) {
+			long sequence = buffer.getLong(slot);
+			long textLength = 0;
+			boolean lengthsValid = true;
+			for (int i = 8; i < 24; i += 4) {
+				int length = buffer.getInt(slot + i);
+				lengthsValid &= length >= 0;
+				textLength += length;
+			}
+			if (sequence <= 0 || !lengthsValid || TRACK_HEADER_SIZE + textLength > TRACK_SLOT_SIZE
+					|| buffer.getInt(slot + 28) != trackChecksum(slot, (int) textLength)) {
+				continue;
+			}
+			if (track < 0 || sequence > buffer.getLong(track)) {
+				track = slot;
+			}
+		}
+		int position = -1;
+		for (int slot = POSITION_SLOTS; slot < POSITION_SLOTS + 2 * POSITION_SLOT_SIZE; slot += POSITION_SLOT_SIZE) {
+			long sequence = buffer.getLong(slot);
+			if (sequence <= 0 || buffer.getInt(slot + 32) != checksum(slot, 32)) {
+				continue;
+			}
+			if (position < 0 || sequence > buffer.getLong(position)) {
+				position = slot;
+			}
+		}
+		if (position >= 0) {
+			positionSequence = buffer.getLong(position);
+		}
+		if (track < 0) {
+			return null;
+		}
+		trackSequence = buffer.getLong(track);
+
+		int offset = track + TRACK_HEADER_SIZE;
+		String uri = get(offset, buffer.getInt(track + 8));
+		offset += buffer.getInt(track + 8);
+		String metaData = get(offset, buffer.getInt(track + 12));
+		offset += buffer.getInt(track + 12);
+		String playlistUri = get(offset, buffer.getInt(track + 16));
+		offset += buffer.getInt(track + 16);
+		String playlistMetaData = get(offset, buffer.getInt(track + 20));
+		if (uri == null) {
+			return null;
+		}
+
+		long positionMillis = 0;
+		TransportState state = TransportState.STOPPED;
+		PlayMode recordedPlayMode = null;
+		if (position >= 0) {
+			// The play mode doesn't belong to a track
+			recordedPlayMode = playMode(buffer.getInt(position + 28));
+			if (buffer.getLong(position + 8) == trackSequence) {
+				positionMillis = buffer.getLong(position + 16);
+				state = state(buffer.getInt(position + 24));
+			}
+		}
+		return new Entry(uri, metaData, playlistUri, playlistMetaData, buffer.getInt(track + 24),
+				positionMillis, state, recordedPlayMode);
+	}
+
+	private int trackChecksum(int slot, int textLength) {
+		CRC32 crc = new CRC32();
+		for (int i = 0; i < 28; i++) {
+			crc.update(buffer.get(slot + i));
+		}
+		for (int i = 0; i < textLength; i++) {
+			crc.update(buffer.get(slot + TRACK_HEADER_SIZE + i));
+		}
+		return (int) crc.getValue();
+	}
+
+	private int checksum(int offset, int length) {
+		CRC32 crc = new CRC32();
+		for (int i = 0; i < length; i++) {
+			crc.update(buffer.get(offset + i));
+		}
+		return (int) crc.getValue();
+	}
+
+	private static int trackSlot(long sequence) {
+		return TRACK_SLOTS + (int) (sequence % 2) * TRACK_SLOT_SIZE;
+	}
+
+	private static int positionSlot(long sequence) {
+		return POSITION_SLOTS + (int) (sequence % 2) * POSITION_SLOT_SIZE;
+	}
+
+	private static int stateCode(TransportState state) {
+		if (state == TransportState.PLAYING) {
+			return 1;
+		} else if (state == TransportState.PAUSED_PLAYBACK) {
+			return 2;
+		}
+		return 0;
+	}
+
+	private static TransportState state(int code) {
+		switch (code) {
+		case 1:
+			return TransportState.PLAYING;
+		case 2:
+			return TransportState.PAUSED_PLAYBACK;
+		default:
+			return TransportState.STOPPED;
+		}
+	}
+
+	private static int playModeCode(PlayMode playMode) {
+		if (playMode == PlayMode.REPEAT_ALL) {
+			return 1;
+		} else if (playMode == PlayMode.SHUFFLE) {
+			return 2;
+		}
+		return 0;
+	}
+
+	private static PlayMode playMode(int code) {
+		switch (code) {
+		case 1:
+			return PlayMode.REPEAT_ALL;
+		case 2:
+			return PlayMode.SHUFFLE;
+		default:
+			return PlayMode.NORMAL;
+		}
+	}
+
+	/**
+	 * What a renderer was playing, as recorded in a journal
+	 */
+	public static class Entry {
+
+		private final String uri;
+
+		private final String metaData;
+
+		private final String playlistUri;
+
+		private final String playlistMetaData;
+
+		private final int index;
+
+		private final long positionMillis;
+
+		private final TransportState state;
+
+		private final PlayMode playMode;
+
+		Entry(String uri, String metaData, String playlistUri, String playlistMetaData, int index,
+				long positionMillis, TransportState state, PlayMode playMode) {
+			this.uri = uri;
+			this.metaData = metaData;
+			this.playlistUri = playlistUri;
+			this.playlistMetaData = playlistMetaData;
+			this.index = index;
+			this.positionMillis = positionMillis;
+			this.state = state;
+			this.playMode = playMode;
+		}
+
+		public String getUri() {
+			return uri;
+		}
+
+		/**
+		 * @return null if there wasn't any, or it was too big to keep
+		 */
+		public String getMetaData() {
+			return metaData;
+		}
+
+		/**
+		 * @return null if the track wasn't from a playlist
+		 */
+		public String getPlaylistUri() {
+			return playlistUri;
+		}
+
+		/**
+		 * @return null if there wasn't any, or it was too big to keep
+		 */
+		public String getPlaylistMetaData() {
+			return playlistMetaData;
+		}
+
+		/**
+		 * Which track of the playlist it was
+		 * @return from 0, or -1 if it wasn't from a playlist
+		 */
+		public int getIndex() {
+			return index;
+		}
+
+		/**
+		 * How far through the track it was when last recorded
+		 * @return
+		 */
+		public long getPositionMillis() {
+			return positionMillis;
+		}
+
+		/**
+		 * @return PLAYING, PAUSED_PLAYBACK or STOPPED
+		 */
+		public TransportState getState() {
+			return state;
+		}
+
+		/**
+		 * @return NORMAL, REPEAT_ALL or SHUFFLE, or null if it wasn't recorded
+		 */
+		public PlayMode getPlayMode() {
+			return playMode;
+		}
+
+		@Override
+		public String toString() {
+			return (playlistUri == null ? "" : "track " + (index + 1) + " of " + playlistUri + ", ")
+					+ uri + " " + state + " at " + positionMillis + "ms";
+		}
+	}
+}
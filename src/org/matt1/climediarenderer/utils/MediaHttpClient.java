@@ -0,0 +1,82 @@
+package org.matt1.climediarenderer.utils;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.client.HttpClient;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.PoolingClientConnectionManager;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+
+/**
+ * Shared HTTP client for talking to media servers.  Connections are kept alive and reused
+ * so that checking a track on the same server doesn't need a new connection every time.
+ *
+ * @author Matt
+ *
+ */
+public class MediaHttpClient {
+
+	/** Timeout for connecting to and reading from media servers, in milliseconds */
+	private static final int TIMEOUT = 5000;
+
+	/** Most connections kept open to any one media server */
+	private static final int MAX_PER_SERVER = 4;
+
+	/** Most connections kept open altogether */
+	private static final int MAX_TOTAL = 16;
+
+	/** How long a connection can sit unused before it is closed, in seconds */
+	private static final int IDLE_TIMEOUT = 30;
+
+	private static MediaHttpClient mediaHttpClient;
+
+	private final PoolingClientConnectionManager connectionManager;
+
+	private final DefaultHttpClient client;
+
+	public static synchronized MediaHttpClient getInstance() {
+		if (mediaHttpClient == null) {
+			mediaHttpClient = new MediaHttpClient();
+		}
+		return mediaHttpClient;
+	}
+
+	private MediaHttpClient() {
+		connectionManager = new PoolingClientConnectionManager();
+		connectionManager.setDefaultMaxPerRoute(MAX_PER_SERVER);
+		connectionManager.setMaxTotal(MAX_TOTAL);
+
+		client = new DefaultHttpClient(connectionManager);
+		HttpParams params = client.getParams();
+		HttpConnectionParams.setConnectionTimeout(params, TIMEOUT);
+		HttpConnectionParams.setSoTimeout(params, TIMEOUT);
+
+		ScheduledExecutorService evictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "media-http-evictor");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		evictor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				connectionManager.closeExpiredConnections();
+				connectionManager.closeIdleConnections(IDLE_TIMEOUT, TimeUnit.SECONDS);
+			}
+		}, IDLE_TIMEOUT, IDLE_TIMEOUT, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Gets the shared client
+	 * @return
+	 */
+	public HttpClient getClient() {
+		return client;
+	}
+}
@@ -0,0 +1,232 @@
+package org.matt1.climediarenderer.utils;
+
+import java.io.StringReader;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.matt1.climediarenderer.metrics.Metrics;
+
+/**
+ * Reads what the renderer needs to know about a track - its length, title, size and what
+ * sort of file it is - from the DIDL-Lite metadata the control point sends with it, so
+ * control points can be told straight away rather than once the player has found out.
+ * Only the first item is read, and reading stops as soon as its first res has been, so
+ * long descriptions cost nothing.  Results are remembered per URI, as the same tracks keep
+ * coming back, e.g. from SetNextAVTransportURI or a playlist on repeat.
+ *
+ * @author Matt
+ *
+ */
+public class MetadataReader {
+
+	/** Log used to display messages to the console */
+	private static Logger log = Logger.getLogger(MetadataReader.class.getName());
+
+	/** Most results remembered before they are all cleared out */
+	private static final int MAX_RESULTS = 256;
+
+	private static MetadataReader metadataReader;
+
+	/** What's known about a track without any metadata */
+	private static final Metadata NONE = new Metadata(null, null, -1, null, -1);
+
+	private final XMLInputFactory factory = XMLInputFactory.newInstance();
+
+	/** Recent results, keyed on URI */
+	private final Map<String, Metadata> results = new ConcurrentHashMap<String, Metadata>();
+
+	public static synchronized MetadataReader getInstance() {
+		if (metadataReader == null) {
+			metadataReader = new MetadataReader();
+		}
+		return metadataReader;
+	}
+
+	private MetadataReader() {
+		// Metadata comes from the network, so don't let it read anything else
+		factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+		factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+		factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+	}
+
+	/**
+	 * Read the metadata for a track, using the last result for it if the metadata hasn't changed
+	 * @param uri the track
+	 * @param metaData DIDL-Lite describing it, or null
+	 * @return what could be found out; never null
+	 */
+	public Metadata read(String uri, String metaData) {
+		if (metaData == null || metaData.length() == 0) {
+			return NONE;
+		}
+		String key = uri == null ? "" : uri;
+		Metadata result = results.get(key);
+		if (result != null && metaData.equals(result.source)) {
+			return result;
+		}
+
+		long start = System.nanoTime();
+		result = parse(metaData);
+		Metrics.getInstance().recordSince("metadata.parse", start);
+		if (results.size() >= MAX_RESULTS) {
+			results.clear();
+		}
+		results.put(key, result);
+		return result;
+	}
+
+	/**
+	 * Pick the title and the first res's details out of DIDL-Lite
+	 * @param metaData
+	 * @return
+	 */
+	private Metadata parse(String metaData) {
+		String title = null;
+		long duration = -1;
+		String protocolInfo = null;
+		long size = -1;
+		boolean resRead = false;
+		XMLStreamReader reader = null;
+		try {
+			reader = factory.createXMLStreamReader(new StringReader(metaData));
+			while (reader.hasNext() && !(resRead && title != null)) {
+				int event = reader.next();
+				if (event == XMLStreamConstants.END_ELEMENT && isItem(reader.getLocalName())) {
+					// Only the first item describes this track
+					break;
+				}
+				if (event != XMLStreamConstants.START_ELEMENT) {
+					continue;
+				}
+				String name = reader.getLocalName();
+				if (title == null && name.equals("title")) {
+					title = reader.getElementText().trim();
+				} else if (!resRead && name.equals("res")) {
+					resRead = true;
+					duration = parseDuration(reader.getAttributeValue(null, "duration"));
+					protocolInfo = reader.getAttributeValue(null, "protocolInfo");
+					size = parseSize(reader.getAttributeValue(null, "size"));
+				}
+			}
+		} catch (XMLStreamException e) {
+			log.fine("Unable to read track metadata: " + e.getMessage());
+		} finally {
+			if (reader != null) {
+				try {
+					reader.close();
+				} catch (XMLStreamException e) {
+					// Finished with anyway
+				}
+			}
+		}
+		return new Metadata(metaData, title, duration, protocolInfo, size);
+	}
+
+	private static boolean isItem(String name) {
+		return name.equals("item") || name.equals("container");
+	}
+
+	/**
+	 * Parse a DIDL-Lite duration, H+:MM:SS with optional fractions of a second
+	 * @param duration
+	 * @return seconds, or -1 if it isn't one
+	 */
+	private static long parseDuration(String duration) {
+		if (duration == null) {
+			return -1;
+		}
+		String[] parts = duration.trim().split(":");
+		if (parts.length != 3) {
+			return -1;
+		}
+		try {
+			int fraction = parts[2].indexOf('.');
+			long seconds = Long.parseLong(fraction < 0 ? parts[2] : parts[2].substring(0, fraction));
+			return Long.parseLong(parts[0]) * 3600 + Long.parseLong(parts[1]) * 60 + seconds;
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	private static long parseSize(String size) {
+		if (size == null) {
+			return -1;
+		}
+		try {
+			return Long.parseLong(size.trim());
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * What the metadata says about a track
+	 */
+	public static class Metadata {
+
+		/** The metadata this was read from */
+		private final String source;
+
+		private final String title;
+
+		private final long duration;
+
+		private final String protocolInfo;
+
+		private final long size;
+
+		private Metadata(String source, String title, long duration, String protocolInfo, long size) {
+			this.source = source;
+			this.title = title;
+			this.duration = duration;
+			this.protocolInfo = protocolInfo;
+			this.size = size;
+		}
+
+		/**
+		 * @return null if not known
+		 */
+		public String getTitle() {
+			return title;
+		}
+
+		/**
+		 * @return length of the track in seconds, or -1 if not known
+		 */
+		public long getDuration() {
+			return duration;
+		}
+
+		/**
+		 * @return e.g. http-get:*:audio/mpeg:*, or null if not known
+		 */
+		public String getProtocolInfo() {
+			return protocolInfo;
+		}
+
+		/**
+		 * Content type from the protocol info
+		 * @return e.g. audio/mpeg, or null if not known
+		 */
+		public String getContentType() {
+			if (protocolInfo == null) {
+				return null;
+			}
+			String[] fields = protocolInfo.split(":");
+			return fields.length < 3 || fields[2].equals("*") ? null : fields[2];
+		}
+
+		/**
+		 * @return size of the track in bytes, or -1 if not known
+		 */
+		public long getSize() {
+			return size;
+		}
+	}
+}
@@ -3,6 +3,8 @@ package org.matt1.climediarenderer.utils;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
 
 /**
@@ -85,4 +87,379 @@ public class PropertyHelper {
 	public int getMPDPort() {
 		return Integer.valueOf(properties.getProperty("mpdPort"));
 	}
+	
+	/**
+	 * Gets the number of idle MPlayer processes to keep warmed up ready for the next track
+	 * @return
+	 */
+	public int getMPlayerPoolSize() {
+		return getIntProperty("mplayerPoolSize", 1);
+	}
+	
+	/**
+	 * Gets the number of seconds without any playback after which the idle MPlayer processes
+	 * are shut down
+	 * @return
+	 */
+	public int getMPlayerPoolIdleTimeout() {
+		return getIntProperty("mplayerPoolIdleTimeout", 300, 60);
+	}
+	
+	/**
+	 * Gets the longest time to wait for MPlayer to answer a query before falling back to the
+	 * last value it gave, in milliseconds
+	 * @return
+	 */
+	public int getMPlayerQueryTimeout() {
+		return getIntProperty("mplayerQueryTimeout", 500);
+	}
+	
+	/**
+	 * Gets how far the estimated playback position can drift from the player's own position
+	 * before it is corrected, in milliseconds
+	 * @return
+	 */
+	public int getPositionDriftThreshold() {
+		return getIntProperty("positionDriftThreshold", 1500);
+	}
+	
+	/**
+	 * Gets how often the estimated playback position is checked against the player while
+	 * playing, in seconds
+	 * @return
+	 */
+	public int getPositionResyncInterval() {
+		return getIntProperty("positionResyncInterval", 10);
+	}
+	
+	/**
+	 * Gets whether tracks should be cached on disk and played from there
+	 * @return
+	 */
+	public boolean isMediaCacheEnabled() {
+		return Boolean.parseBoolean(properties.getProperty("mediaCacheEnabled", "false").trim());
+	}
+	
+	/**
+	 * Gets the directory to keep cached tracks in
+	 * @return
+	 */
+	public String getMediaCacheDirectory() {
+		return properties.getProperty("mediaCacheDirectory", "./cache").trim();
+	}
+	
+	/**
+	 * Gets the most disk space the media cache can use, in megabytes
+	 * @return
+	 */
+	public int getMediaCacheSize() {
+		return getIntProperty("mediaCacheSize", 512);
+	}
+	
+	/**
+	 * Gets the address the player should use to reach the media cache
+	 * @return
+	 */
+	public String getMediaCacheHost() {
+		return properties.getProperty("mediaCacheHost", "127.0.0.1").trim();
+	}
+	
+	/**
+	 * Gets the port the media cache listens on, 0 to pick any free port
+	 * @return
+	 */
+	public int getMediaCachePort() {
+		return getIntProperty("mediaCachePort", 0);
+	}
+	
+	/**
+	 * Gets how long to remember that a media URI could be read, in seconds
+	 * @return
+	 */
+	public int getUriValidationCacheTime() {
+		return getIntProperty("uriValidationCacheTime", 30);
+	}
+	
+	/**
+	 * Gets the shortest time between LastChange events sent to control points, in milliseconds
+	 * @return
+	 */
+	public int getLastChangeModeration() {
+		return getIntProperty("lastChangeModeration", 200);
+	}
+	
+	/**
+	 * Gets whether what's playing should be recorded, so it can be carried on after a restart
+	 * @return
+	 */
+	public boolean isStateJournalEnabled() {
+		return Boolean.parseBoolean(properties.getProperty("stateJournalEnabled", "false").trim());
+	}
+	
+	/**
+	 * Gets the directory to keep the state journals in
+	 * @return
+	 */
+	public String getStateJournalDirectory() {
+		return properties.getProperty("stateJournalDirectory", ".").trim();
+	}
+	
+	/**
+	 * Gets the time between recording the playback position in the state journal, in
+	 * milliseconds
+	 * @return
+	 */
+	public int getStateJournalInterval() {
+		return getIntProperty("stateJournalInterval", 1000);
+	}
+	
+	/**
+	 * Gets whether to start playing again after a restart if a track was playing, rather than
+	 * just loading it
+	 * @return
+	 */
+	public boolean isResumePlayback() {
+		return Boolean.parseBoolean(properties.getProperty("resumePlayback", "false").trim());
+	}
+	
+	/**
+	 * Gets the size of the Java Sound player's buffer between the network and the sound card,
+	 * in kilobytes
+	 * @return
+	 */
+	public int getJavaSoundBufferSize() {
+		return getIntProperty("javaSoundBufferSize", 1024, 256);
+	}
+	
+	/**
+	 * Gets whether actions, player commands and events should be timed, and the times shown
+	 * over JMX and at /metrics
+	 * @return
+	 */
+	public boolean isMetricsEnabled() {
+		return Boolean.parseBoolean(properties.getProperty("metricsEnabled", "true").trim());
+	}
+	
+	/**
+	 * Gets the number of threads that send events to subscribed control points
+	 * @return
+	 */
+	public int getEventDeliveryThreads() {
+		return getIntProperty("eventDeliveryThreads", 4, 1);
+	}
+	
+	/**
+	 * Gets how many events in a row a control point can fail to take before its subscription
+	 * is dropped
+	 * @return
+	 */
+	public int getEventFailureLimit() {
+		return getIntProperty("eventFailureLimit", 5);
+	}
+	
+	/**
+	 * Gets the most connections to control points that can be open at once
+	 * @return
+	 */
+	public int getHttpClientMaxConnections() {
+		return getIntProperty("httpClientMaxConnections", 64, 16);
+	}
+	
+	/**
+	 * Gets the most connections to any one control point that can be open at once
+	 * @return
+	 */
+	public int getHttpClientMaxConnectionsPerRoute() {
+		return getIntProperty("httpClientMaxConnectionsPerRoute", 4, 2);
+	}
+	
+	/**
+	 * Gets how long to wait to connect to a control point, in seconds
+	 * @return
+	 */
+	public int getHttpClientConnectTimeout() {
+		return getIntProperty("httpClientConnectTimeout", 5);
+	}
+	
+	/**
+	 * Gets how long to wait for a control point to answer, in seconds
+	 * @return
+	 */
+	public int getHttpClientReadTimeout() {
+		return getIntProperty("httpClientReadTimeout", 5);
+	}
+	
+	/**
+	 * Gets how long a connection to a control point can be left idle before it is closed, in
+	 * seconds
+	 * @return
+	 */
+	public int getHttpClientIdleTimeout() {
+		return getIntProperty("httpClientIdleTimeout", 30);
+	}
+	
+	/**
+	 * Gets which server answers control points' requests: apache, with a thread per
+	 * connection, or nio, with one thread watching every connection
+	 * @return
+	 */
+	public String getStreamServer() {
+		return properties.getProperty("streamServer", isEmbedded() ? "nio" : "apache").trim();
+	}
+	
+	/**
+	 * Gets how long the nio server keeps a control point's connection open between requests,
+	 * in seconds
+	 * @return
+	 */
+	public int getStreamServerIdleTimeout() {
+		return getIntProperty("streamServerIdleTimeout", 60);
+	}
+	
+	/**
+	 * Gets what runs the UPnP stack's protocol work: cling, its own executor; bounded, a fixed
+	 * pool of threads; or virtual, a virtual thread for each task
+	 * @return
+	 */
+	public String getExecutorProfile() {
+		return properties.getProperty("executorProfile", isEmbedded() ? "bounded" : "cling").trim();
+	}
+	
+	/**
+	 * Gets the number of threads in the bounded executor
+	 * @return
+	 */
+	public int getExecutorThreads() {
+		return getIntProperty("executorThreads", 4, 2);
+	}
+	
+	/**
+	 * Gets how many tasks can wait for the bounded executor's threads before more are turned away
+	 * @return
+	 */
+	public int getExecutorQueueSize() {
+		return getIntProperty("executorQueueSize", 64, 32);
+	}
+	
+	/**
+	 * Gets whether to run in embedded mode, for boards with little memory.  Settings that aren't
+	 * given then default to fewer threads, smaller buffers and less frequent housekeeping, and
+	 * nothing is started until it is first needed.
+	 * @return
+	 */
+	public boolean isEmbedded() {
+		return Boolean.parseBoolean(properties.getProperty("embedded", "false").trim());
+	}
+	
+	/**
+	 * Gets how often the UPnP stack checks for expired subscriptions and devices, in
+	 * milliseconds
+	 * @return
+	 */
+	public int getRegistryMaintenanceInterval() {
+		return getIntProperty("registryMaintenanceInterval", 1000, 5000);
+	}
+	
+	/**
+	 * Gets the stack size of the UPnP stack's threads, in kilobytes, or 0 for the JVM's default
+	 * @return
+	 */
+	public int getThreadStackSize() {
+		return getIntProperty("threadStackSize", 0, 256);
+	}
+	
+	/**
+	 * Gets the most memory the renderer should use, in megabytes, or 0 not to check
+	 * @return
+	 */
+	public int getMemoryBudget() {
+		return getIntProperty("memoryBudget", 0);
+	}
+	
+	/**
+	 * Gets the settings for every renderer device to run.  If the renderers property lists
+	 * several, each gets its settings from properties starting renderer.&lt;id&gt;., falling back
+	 * to the top-level ones; otherwise there is a single renderer using the top-level settings.
+	 * @return
+	 */
+	public List<RendererConfig> getRendererConfigs() {
+		List<RendererConfig> configs = new ArrayList<RendererConfig>();
+		String renderers = properties.getProperty("renderers", "").trim();
+		if (renderers.length() == 0) {
+			configs.add(getRendererConfig(null));
+		} else {
+			for (String id : renderers.split(",")) {
+				if (id.trim().length() > 0) {
+					configs.add(getRendererConfig(id.trim()));
+				}
+			}
+		}
+		return configs;
+	}
+	
+	/**
+	 * Gets the settings for a single renderer device
+	 * @param id the renderer's id, or null for the top-level settings
+	 * @return
+	 */
+	private RendererConfig getRendererConfig(String id) {
+		String port = getRendererProperty(id, "mpdPort");
+		return new RendererConfig(
+				id,
+				getRendererProperty(id, "name"),
+				// Every device needs its own UDN, so this one isn't shared
+				id == null ? properties.getProperty("udn") : properties.getProperty("renderer." + id + ".udn"),
+				getRendererProperty(id, "icon"),
+				getRendererProperty(id, "playerType"),
+				getRendererProperty(id, "audioOutput"),
+				getRendererProperty(id, "mpdHost"),
+				port == null ? 6600 : Integer.valueOf(port.trim()));
+	}
+	
+	/**
+	 * Gets a renderer's own setting, or the top-level one if it doesn't have its own
+	 * @param id
+	 * @param key
+	 * @return
+	 */
+	private String getRendererProperty(String id, String key) {
+		String value = null;
+		if (id != null) {
+			value = properties.getProperty("renderer." + id + "." + key);
+		}
+		if (value == null) {
+			value = properties.getProperty(key);
+		}
+		return value;
+	}
+	
+	/**
+	 * Gets an integer property, falling back to a default for embedded mode or otherwise if it
+	 * is missing or not a number
+	 * @param key
+	 * @param defaultValue
+	 * @param embeddedValue
+	 * @return
+	 */
+	private int getIntProperty(String key, int defaultValue, int embeddedValue) {
+		return getIntProperty(key, isEmbedded() ? embeddedValue : defaultValue);
+	}
+	
+	/**
+	 * Gets an integer property, falling back to a default if it is missing or not a number
+	 * @param key
+	 * @param defaultValue
+	 * @return
+	 */
+	private int getIntProperty(String key, int defaultValue) {
+		String value = properties.getProperty(key);
+		if (value == null) {
+			return defaultValue;
+		}
+		try {
+			return Integer.parseInt(value.trim());
+		} catch (NumberFormatException e) {
+			return defaultValue;
+		}
+	}
 }
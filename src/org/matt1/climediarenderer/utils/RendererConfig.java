@@ -0,0 +1,105 @@
+package org.matt1.climediarenderer.utils;
+
+/**
+ * Settings for one renderer device.  Normally there's just the one, set up from the top-level
+ * properties, but several can be declared with the "renderers" property to serve several zones
+ * (e.g. one per USB DAC) from a single process.
+ *
+ * @author Matt
+ *
+ */
+public class RendererConfig {
+
+	/** Short name used for this renderer's properties, or null for the default renderer */
+	private final String id;
+
+	private final String name;
+
+	private final String udn;
+
+	private final String iconPath;
+
+	private final String playerType;
+
+	private final String audioOutput;
+
+	private final String mpdHost;
+
+	private final int mpdPort;
+
+	public RendererConfig(String id, String name, String udn, String iconPath, String playerType,
+			String audioOutput, String mpdHost, int mpdPort) {
+		this.id = id;
+		this.name = name;
+		this.udn = udn;
+		this.iconPath = iconPath;
+		this.playerType = playerType;
+		this.audioOutput = audioOutput;
+		this.mpdHost = mpdHost;
+		this.mpdPort = mpdPort;
+	}
+
+	/**
+	 * Gets the short name used for this renderer's properties, null for the default renderer
+	 * @return
+	 */
+	public String getId() {
+		return id;
+	}
+
+	/**
+	 * Gets the name shown to control points
+	 * @return
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Gets the UDN to use for the device, or null to work one out from the id
+	 * @return
+	 */
+	public String getUdn() {
+		return udn;
+	}
+
+	/**
+	 * Gets the path to the icon file
+	 * @return
+	 */
+	public String getIconPath() {
+		return iconPath;
+	}
+
+	/**
+	 * Gets the player type, e.g. mplayer or mpd
+	 * @return
+	 */
+	public String getPlayerType() {
+		return playerType;
+	}
+
+	/**
+	 * Gets the MPlayer -ao audio output to play through, or null for MPlayer's default
+	 * @return
+	 */
+	public String getAudioOutput() {
+		return audioOutput;
+	}
+
+	/**
+	 * Gets the hostname of the MPD server
+	 * @return
+	 */
+	public String getMPDHost() {
+		return mpdHost;
+	}
+
+	/**
+	 * Gets the port of the MPD server
+	 * @return
+	 */
+	public int getMPDPort() {
+		return mpdPort;
+	}
+}
@@ -0,0 +1,334 @@
+package org.matt1.climediarenderer.utils;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpHead;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.util.EntityUtils;
+
+/**
+ * Checks that a media URI can actually be read before we try to play it.  Uses a HEAD request
+ * over the shared keep-alive client, falling back to asking for the first byte for servers that
+ * don't understand HEAD.  Results are remembered for a short while so that a URI that was
+ * checked a moment ago (e.g. by SetNextAVTransportURI) doesn't need checking again.
+ *
+ * @author Matt
+ *
+ */
+public class UriValidator {
+
+	/** Log used to display messages to the console */
+	private static Logger log = Logger.getLogger(UriValidator.class.getName());
+
+	/** Largest response body that is read rather than dropping the connection, in bytes */
+	private static final long SMALL_BODY = 4096;
+
+	/** Most results remembered before old ones are cleared out */
+	private static final int MAX_RESULTS = 256;
+
+	private static UriValidator uriValidator;
+
+	/** Recent results, keyed on URI */
+	private final Map<String, Result> results = new ConcurrentHashMap<String, Result>();
+
+	/** Threads that check URIs in the background */
+	private final ExecutorService workers = Executors.newCachedThreadPool(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "uri-validation");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	/** How long results are remembered for */
+	private final long ttlNanos;
+
+	public static synchronized UriValidator getInstance() {
+		if (uriValidator == null) {
+			int ttl;
+			try {
+				ttl = PropertyHelper.getInstance().getUriValidationCacheTime();
+			} catch (Exception e) {
+				ttl = 0;
+			}
+			uriValidator = new UriValidator(ttl);
+		}
+		return uriValidator;
+	}
+
+	private UriValidator(int ttlSeconds) {
+		ttlNanos = TimeUnit.SECONDS.toNanos(ttlSeconds);
+	}
+
+	/**
+	 * Start checking a URI in the background, so that something else can be done meanwhile
+	 * @param uri
+	 * @return
+	 */
+	public Future<Result> validateAsync(final URI uri) {
+		return workers.submit(new Callable<Result>() {
+			@Override
+			public Result call() {
+				return validate(uri);
+			}
+		});
+	}
+
+	/**
+	 * Check a URI, using a recent result if there is one
+	 * @param uri
+	 * @return
+	 */
+	public Result validate(URI uri) {
+		String key = uri.toString();
+		Result result = results.get(key);
+		if (result != null && System.nanoTime() - result.time < ttlNanos) {
+			return result;
+		}
+
+		result = check(uri);
+		if (result.isValid() && ttlNanos > 0) {
+			if (results.size() >= MAX_RESULTS) {
+				removeExpired();
+			}
+			results.put(key, result);
+		}
+		return result;
+	}
+
+	/** Clear out results that are too old to use */
+	private void removeExpired() {
+		long now = System.nanoTime();
+		Iterator<Result> iterator = results.values().iterator();
+		while (iterator.hasNext()) {
+			if (now - iterator.next().time >= ttlNanos) {
+				iterator.remove();
+			}
+		}
+		if (results.size() >= MAX_RESULTS) {
+			results.clear();
+		}
+	}
+
+	/**
+	 * Ask the media server about a URI
+	 * @param uri
+	 * @return
+	 */
+	private Result check(URI uri) {
+		try {
+			HttpResponse response = execute(new HttpHead(uri));
+			int status = response.getStatusLine().getStatusCode();
+			if (status == HttpStatus.SC_METHOD_NOT_ALLOWED || status == HttpStatus.SC_NOT_IMPLEMENTED
+					|| status == HttpStatus.SC_BAD_REQUEST) {
+				log.fine("HEAD not supported by " + uri.getHost() + ", trying GET for first byte.");
+				HttpGet get = new HttpGet(uri);
+				get.setHeader("Range", "bytes=0-0");
+				response = execute(get);
+				status = response.getStatusLine().getStatusCode();
+			}
+
+			if (status != HttpStatus.SC_OK && status != HttpStatus.SC_PARTIAL_CONTENT) {
+				return new Result(false, "Server responded with " + response.getStatusLine(), response);
+			}
+			return new Result(true, null, response);
+		} catch (IOException e) {
+			return new Result(false, e.getMessage(), null);
+		}
+	}
+
+	/**
+	 * Send a request and finish with the connection without reading the whole body, so that
+	 * a server that ignores the Range header doesn't send us the whole track.
+	 *
+	 * @param request
+	 * @return
+	 * @throws IOException
+	 */
+	private HttpResponse execute(HttpRequestBase request) throws IOException {
+		// Ask DLNA servers to say whether they can seek in the track
+		request.setHeader("getcontentFeatures.dlna.org", "1");
+		HttpResponse response = MediaHttpClient.getInstance().getClient().execute(request);
+		if (response.getEntity() != null) {
+			long length = response.getEntity().getContentLength();
+			if (length >= 0 && length <= SMALL_BODY) {
+				// Small enough to read so that the connection can be reused
+				EntityUtils.consume(response.getEntity());
+			} else {
+				request.abort();
+			}
+		}
+		return response;
+	}
+
+	/**
+	 * The outcome of checking a URI, along with anything useful the server told us about it
+	 */
+	public static class Result {
+
+		private final boolean valid;
+
+		private final String error;
+
+		private final String contentType;
+
+		private final String cacheValidator;
+
+		/** Length of the track in bytes, or -1 if not known */
+		private final long contentLength;
+
+		/** Whether the server will send part of the track from a byte offset */
+		private final boolean rangeSupported;
+
+		/** Whether the server said outright that it won't send part of the track from a byte offset */
+		private final boolean rangeRefused;
+
+		/** Whether the server will send part of the track from a time with TimeSeekRange.dlna.org */
+		private final boolean timeSeekSupported;
+
+		/** When the check was made, from System.nanoTime() */
+		private final long time = System.nanoTime();
+
+		private Result(boolean valid, String error, HttpResponse response) {
+			this.valid = valid;
+			this.error = error;
+			String type = null;
+			String validator = null;
+			long length = -1;
+			boolean range = false;
+			boolean noRange = false;
+			boolean timeSeek = false;
+			if (response != null) {
+				Header header = response.getFirstHeader("Content-Type");
+				type = header == null ? null : header.getValue();
+				header = response.getFirstHeader("ETag");
+				if (header == null) {
+					header = response.getFirstHeader("Last-Modified");
+				}
+				validator = header == null ? null : header.getValue();
+
+				if (response.getStatusLine().getStatusCode() == HttpStatus.SC_PARTIAL_CONTENT) {
+					// Answer to our request for the first byte, so the length is after the slash
+					range = true;
+					header = response.getFirstHeader("Content-Range");
+					if (header != null && header.getValue().indexOf('/') > 0) {
+						length = parseLength(header.getValue().substring(header.getValue().indexOf('/') + 1));
+					}
+				} else {
+					header = response.getFirstHeader("Accept-Ranges");
+					range = header != null && header.getValue().toLowerCase().contains("bytes");
+					// The header is optional, so only "none" says no
+					noRange = header != null && header.getValue().trim().equalsIgnoreCase("none");
+					header = response.getFirstHeader("Content-Length");
+					length = header == null ? -1 : parseLength(header.getValue());
+				}
+
+				// DLNA.ORG_OP is two flags: time seek, then byte range
+				header = response.getFirstHeader("contentFeatures.dlna.org");
+				String features = header == null ? "" : header.getValue().toUpperCase();
+				int op = features.indexOf("DLNA.ORG_OP=");
+				if (op >= 0 && features.length() >= op + 14) {
+					timeSeek = features.charAt(op + 12) == '1';
+					range = range || features.charAt(op + 13) == '1';
+					noRange = noRange || features.charAt(op + 13) == '0';
+				}
+			}
+			this.contentType = type;
+			this.cacheValidator = validator;
+			this.contentLength = length;
+			this.rangeSupported = range;
+			this.rangeRefused = noRange && !range;
+			this.timeSeekSupported = timeSeek;
+		}
+
+		private static long parseLength(String value) {
+			try {
+				return Long.parseLong(value.trim());
+			} catch (NumberFormatException e) {
+				return -1;
+			}
+		}
+
+		/**
+		 * Whether the URI can be read
+		 * @return
+		 */
+		public boolean isValid() {
+			return valid;
+		}
+
+		/**
+		 * Why the URI can't be read
+		 * @return
+		 */
+		public String getError() {
+			return error;
+		}
+
+		/**
+		 * The content type the server gave, if any
+		 * @return
+		 */
+		public String getContentType() {
+			return contentType;
+		}
+
+		/**
+		 * The ETag, or failing that Last-Modified, value the server gave, if any
+		 * @return
+		 */
+		public String getCacheValidator() {
+			return cacheValidator;
+		}
+
+		/**
+		 * The length of the track in bytes, or -1 if the server didn't say
+		 * @return
+		 */
+		public long getContentLength() {
+			return contentLength;
+		}
+
+		/**
+		 * Whether the server can send the track from a byte offset, so seeking doesn't mean
+		 * reading everything before it
+		 * @return
+		 */
+		public boolean isRangeSupported() {
+			return rangeSupported;
+		}
+
+		/**
+		 * Whether the server said it can't send the track from a byte offset, with Accept-Ranges:
+		 * none or the byte flag of DLNA.ORG_OP off, rather than just not saying that it can
+		 * @return
+		 */
+		public boolean isRangeRefused() {
+			return rangeRefused;
+		}
+
+		/**
+		 * Whether the server can send the track from a time offset using TimeSeekRange.dlna.org
+		 * @return
+		 */
+		public boolean isTimeSeekSupported() {
+			return timeSeekSupported;
+		}
+	}
+}